@@ -16,78 +16,179 @@
  */
 package org.waveprotocol.wave.crypto;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache supporting both LRU and time-based expiration.
+ * Cache supporting both size-bounded and time-based expiration.
  *
- * LRU: once maximum size is reached, the least recently accessed element is
+ * Size-bounded: once maximum size is reached, the oldest element is
  * discarded.
  *
  * Time-based: entries are discarded once they reach a maximum age.
  *
- * This cache is in-memory only, uses 1024 entries and expires them after 10
- * minutes. In large deployments, you might want to replace this implementation
- * with a distributed cache that survives restarts of the servers (although
- * 10 minutes is still a good time for the expirations). Simply inject a
- * different {@link VerifiedCertChainCache} using Guice.
+ * Lookups take no locks. Chains are keyed by a SHA-256 fingerprint of their
+ * encoded certificates, which is computed once for each chain object rather
+ * than walking the encodings on every lookup, as {@code List.equals} would.
+ * Since every entry lives for the same time, the order entries were added in
+ * is also the order they expire in, so a single queue serves both for
+ * eviction and for expiry.
+ *
+ * This cache is in-memory only, by default uses 1024 entries and expires them
+ * after 10 minutes. In large deployments, you might want to replace this
+ * implementation with a distributed cache that survives restarts of the
+ * servers (although 10 minutes is still a good time for the expirations).
+ * Simply inject a different {@link VerifiedCertChainCache} using Guice.
  */
 public class DefaultCacheImpl implements VerifiedCertChainCache {
 
   private static final int VALIDATION_CACHE_SIZE = 1024;
   private static final long VALIDATION_CACHE_AGE_SECONDS = 10 * 60;
 
-  private final LruLinkedHashMap map;
   private final TimeSource timeSource;
+  private final int maxSize;
+  private final long maxAgeMillis;
+
+  // Expiry time of each verified chain, by fingerprint.
+  private final ConcurrentMap<ByteString, Long> expiryTimes =
+      new ConcurrentHashMap<ByteString, Long>();
+
+  // Entries in the order they were added, and so in the order they expire.
+  private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<Entry>();
+  private final AtomicInteger queued = new AtomicInteger();
+
+  // Fingerprints of the chains we've seen. The keys are weak, and so
+  // compared by identity: the same chain object always has the same
+  // fingerprint, and is forgotten once no longer in use.
+  private final ConcurrentMap<List<? extends X509Certificate>, ByteString> fingerprints =
+      new MapMaker().weakKeys().makeMap();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong expiries = new AtomicLong();
 
   public DefaultCacheImpl(TimeSource timeSource) {
-    this.map = new LruLinkedHashMap(VALIDATION_CACHE_SIZE);
+    this(timeSource, VALIDATION_CACHE_SIZE, VALIDATION_CACHE_AGE_SECONDS * 1000L);
+  }
+
+  public DefaultCacheImpl(TimeSource timeSource, int maxSize, long maxAgeMillis) {
+    Preconditions.checkArgument(maxSize > 0, "Cache size must be > 0");
+    Preconditions.checkArgument(maxAgeMillis > 0, "Cache age must be > 0");
     this.timeSource = timeSource;
+    this.maxSize = maxSize;
+    this.maxAgeMillis = maxAgeMillis;
   }
 
   public void add(List<? extends X509Certificate> key) {
-    synchronized(map) {
-      long maxAge = timeSource.currentTimeMillis()
-          + VALIDATION_CACHE_AGE_SECONDS * 1000L;
-      map.put(key, new EntryWithAge(maxAge));
+    ByteString fingerprint = fingerprint(key);
+    if (fingerprint == null) {
+      return;
+    }
+    long now = timeSource.currentTimeMillis();
+    long expireMillis = now + maxAgeMillis;
+    expiryTimes.put(fingerprint, expireMillis);
+    insertionOrder.add(new Entry(fingerprint, expireMillis));
+    queued.incrementAndGet();
+
+    // Drop whatever has expired, then the oldest entries while over size.
+    Entry eldest;
+    while ((eldest = insertionOrder.peek()) != null
+        && (eldest.expireMillis <= now || queued.get() > maxSize)) {
+      if (insertionOrder.remove(eldest)) {
+        queued.decrementAndGet();
+        // Leave the entry be if it has been added again since.
+        expiryTimes.remove(eldest.fingerprint, eldest.expireMillis);
+      }
     }
   }
 
   public boolean contains(List<? extends X509Certificate> key) {
-    synchronized(map) {
-      EntryWithAge entry = map.get(key);
-      if ((entry != null)
-          && (timeSource.currentTimeMillis() < entry.expireMillis)) {
-        return true;
+    ByteString fingerprint = fingerprint(key);
+    Long expireMillis = (fingerprint == null) ? null : expiryTimes.get(fingerprint);
+    if (expireMillis == null) {
+      misses.incrementAndGet();
+      return false;
+    }
+    if (timeSource.currentTimeMillis() >= expireMillis) {
+      if (expiryTimes.remove(fingerprint, expireMillis)) {
+        expiries.incrementAndGet();
       }
+      misses.incrementAndGet();
       return false;
     }
- }
+    hits.incrementAndGet();
+    return true;
+  }
 
- private static class EntryWithAge {
-   private final long expireMillis;
+  /**
+   * Returns the fingerprint of a chain, or null if one of its certificates
+   * can't be encoded (and so the chain can't be cached).
+   */
+  private ByteString fingerprint(List<? extends X509Certificate> chain) {
+    ByteString fingerprint = fingerprints.get(chain);
+    if (fingerprint == null) {
+      try {
+        MessageDigest digest = Sha256.digest();
+        for (X509Certificate cert : chain) {
+          byte[] encoded = cert.getEncoded();
+          digest.update(ByteBuffer.allocate(4).putInt(encoded.length).array());
+          digest.update(encoded);
+        }
+        fingerprint = ByteString.copyFrom(digest.digest());
+      } catch (CertificateEncodingException e) {
+        return null;
+      }
+      fingerprints.put(chain, fingerprint);
+    }
+    return fingerprint;
+  }
 
-   public EntryWithAge(long expireMillis) {
-     this.expireMillis = expireMillis;
-   }
- }
+  /** @return the number of chains in the cache, some of which may have expired. */
+  public int size() {
+    return expiryTimes.size();
+  }
 
- private static class LruLinkedHashMap
-     extends LinkedHashMap<Object, EntryWithAge> {
+  /** @return the number of lookups that found an unexpired chain. */
+  public long getHits() {
+    return hits.get();
+  }
 
-   private final int capacity;
+  /** @return the number of lookups that didn't. */
+  public long getMisses() {
+    return misses.get();
+  }
 
-   public LruLinkedHashMap(int capacity) {
-     super(capacity, 0.75f, true);
-     this.capacity = capacity;
-   }
+  /** @return the number of lookups that found a chain, but an expired one. */
+  public long getExpiries() {
+    return expiries.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DefaultCacheImpl(size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+        + ", expiries=" + getExpiries() + ")";
+  }
 
-   @Override
-   protected boolean removeEldestEntry(Map.Entry<Object, EntryWithAge> eldest) {
-     return this.size() > capacity;
-   }
- }
+  private static final class Entry {
+    private final ByteString fingerprint;
+    private final long expireMillis;
+
+    Entry(ByteString fingerprint, long expireMillis) {
+      this.fingerprint = fingerprint;
+      this.expireMillis = expireMillis;
+    }
+  }
 }
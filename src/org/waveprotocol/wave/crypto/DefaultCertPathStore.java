@@ -30,6 +30,9 @@ import java.util.concurrent.ConcurrentMap;
  * shut down. It will also not share stored data among several instances of the
  * server.
  *
+ * Storing a signer info that is already in the store does nothing, so its
+ * certificates are only ever parsed once.
+ *
  * Replace this implementation by injecting a new {@link CertPathStore} using
  * Guice.
  */
@@ -37,6 +40,9 @@ public class DefaultCertPathStore implements CertPathStore {
 
   private final ConcurrentMap<ByteBuffer, SignerInfo> map = new MapMaker().makeMap();
 
+  // The signer infos stored, parsed.
+  private final ConcurrentMap<ProtocolSignerInfo, SignerInfo> parsed = new MapMaker().makeMap();
+
   /*
    * @see CertPathStore#get(java.lang.String)
    */
@@ -48,7 +54,25 @@ public class DefaultCertPathStore implements CertPathStore {
    * @see CertPathStore#put(SignerInfo)
    */
   public void put(ProtocolSignerInfo protobuf) throws SignatureException {
+    add(protobuf);
+  }
+
+  /**
+   * Adds a signer info to the store, unless it's there already.
+   *
+   * @return the parsed signer info if it was added, null if it was already in
+   *   the store
+   * @throws SignatureException if the signer info could not be parsed
+   */
+  protected SignerInfo add(ProtocolSignerInfo protobuf) throws SignatureException {
+    if (parsed.containsKey(protobuf)) {
+      return null;
+    }
     SignerInfo signerInfo = new SignerInfo(protobuf);
+    if (parsed.putIfAbsent(protobuf, signerInfo) != null) {
+      return null;
+    }
     map.put(ByteBuffer.wrap(signerInfo.getSignerId()), signerInfo);
+    return signerInfo;
   }
 }
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.waveprotocol.wave.crypto;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * A SHA-256 hash tree over a bundle of payloads, so that the whole bundle can
+ * be signed with a single signature over the root.
+ *
+ * Leaves are hashed as H(0 || payload) and inner nodes as H(1 || left ||
+ * right), so that a leaf can't pass for an inner node. A node without a
+ * sibling is carried up to the next level unchanged. The signature is made
+ * over {@link #ROOT_PREFIX} followed by the root hash, which can't be
+ * mistaken for a serialized delta.
+ *
+ * Each payload is sent with an inclusion proof: the number of leaves and the
+ * hashes of its siblings on the way up to the root. The proof travels in
+ * fields 4 and 5 of the {@link ProtocolSignature}, the serialized_tree and
+ * leaf fields set aside for Merkle tree signatures in federation.protodevel.
+ * The generated code doesn't have them yet, so they are carried as unknown
+ * fields, which protocol buffers preserve across parsing and serialization.
+ */
+public final class MerkleTree {
+
+  /** Field number of the serialized inclusion proof in a ProtocolSignature. */
+  static final int SERIALIZED_TREE_FIELD = 4;
+
+  /** Field number of the leaf index in a ProtocolSignature. */
+  static final int LEAF_FIELD = 5;
+
+  private static final int HASH_SIZE = 32;
+  private static final byte LEAF_PREFIX = 0;
+  private static final byte NODE_PREFIX = 1;
+  private static final byte[] ROOT_PREFIX = {
+      0, 'w', 'a', 'v', 'e', '-', 'm', 'e', 'r', 'k', 'l', 'e', '-', 's', 'h', 'a', '2', '5', '6'};
+
+  /** The hashes of each level of the tree, leaves first. */
+  private final List<byte[][]> levels = Lists.newArrayList();
+
+  /**
+   * Builds the tree over a bundle of payloads.
+   */
+  public MerkleTree(List<byte[]> payloads) {
+    Preconditions.checkArgument(!payloads.isEmpty(), "Empty bundle");
+    MessageDigest digest = Sha256.digest();
+    byte[][] level = new byte[payloads.size()][];
+    for (int i = 0; i < level.length; i++) {
+      level[i] = hashLeaf(digest, payloads.get(i));
+    }
+    levels.add(level);
+    while (level.length > 1) {
+      byte[][] parents = new byte[(level.length + 1) / 2][];
+      for (int i = 0; i < parents.length; i++) {
+        parents[i] = (2 * i + 1 < level.length)
+            ? hashNode(digest, level[2 * i], level[2 * i + 1])
+            : level[2 * i];
+      }
+      levels.add(parents);
+      level = parents;
+    }
+  }
+
+  /** @return the number of payloads in the tree. */
+  public int getLeafCount() {
+    return levels.get(0).length;
+  }
+
+  /** @return the bytes to sign: the root hash, with a prefix. */
+  public byte[] getSignedPayload() {
+    return signedPayload(levels.get(levels.size() - 1)[0]);
+  }
+
+  /**
+   * @return the inclusion proof for a leaf: the number of leaves followed by
+   *         the hashes of the leaf's siblings, from the bottom up
+   */
+  public byte[] getProof(int leaf) {
+    Preconditions.checkElementIndex(leaf, getLeafCount());
+    List<byte[]> siblings = Lists.newArrayList();
+    int index = leaf;
+    for (int l = 0; l < levels.size() - 1; l++) {
+      byte[][] level = levels.get(l);
+      int sibling = index ^ 1;
+      if (sibling < level.length) {
+        siblings.add(level[sibling]);
+      }
+      index >>= 1;
+    }
+    ByteBuffer proof = ByteBuffer.allocate(4 + siblings.size() * HASH_SIZE);
+    proof.putInt(getLeafCount());
+    for (byte[] hash : siblings) {
+      proof.put(hash);
+    }
+    return proof.array();
+  }
+
+  /**
+   * Adds the inclusion proof for a leaf to a signature over the tree.
+   */
+  public ProtocolSignature.Builder addProof(ProtocolSignature.Builder signature, int leaf) {
+    return signature.mergeUnknownFields(UnknownFieldSet.newBuilder()
+        .addField(SERIALIZED_TREE_FIELD, UnknownFieldSet.Field.newBuilder()
+            .addLengthDelimited(ByteString.copyFrom(getProof(leaf))).build())
+        .addField(LEAF_FIELD, UnknownFieldSet.Field.newBuilder()
+            .addVarint(leaf).build())
+        .build());
+  }
+
+  /**
+   * @return whether the signature is over the root of a tree, rather than
+   *         directly over a payload
+   */
+  public static boolean hasProof(ProtocolSignature signature) {
+    return signature.getUnknownFields().hasField(SERIALIZED_TREE_FIELD);
+  }
+
+  /**
+   * Recomputes the bytes signed by a signature over a tree, from one of the
+   * payloads in the tree and its inclusion proof.
+   *
+   * @throws SignatureException if the proof is malformed
+   */
+  public static byte[] getSignedPayload(byte[] payload, ProtocolSignature signature)
+      throws SignatureException {
+    UnknownFieldSet fields = signature.getUnknownFields();
+    List<ByteString> trees = fields.getField(SERIALIZED_TREE_FIELD).getLengthDelimitedList();
+    List<Long> leaves = fields.hasField(LEAF_FIELD)
+        ? fields.getField(LEAF_FIELD).getVarintList() : null;
+    if (trees.size() != 1 || leaves == null || leaves.size() != 1) {
+      throw new SignatureException("malformed Merkle tree signature");
+    }
+    ByteBuffer proof = trees.get(0).asReadOnlyByteBuffer();
+    if (proof.remaining() < 4 || (proof.remaining() - 4) % HASH_SIZE != 0) {
+      throw new SignatureException("malformed Merkle tree inclusion proof");
+    }
+    int size = proof.getInt();
+    long leaf = leaves.get(0);
+    if (size <= 0 || leaf < 0 || leaf >= size) {
+      throw new SignatureException("leaf " + leaf + " not in a tree of " + size);
+    }
+
+    MessageDigest digest = Sha256.digest();
+    byte[] hash = hashLeaf(digest, payload);
+    int index = (int) leaf;
+    byte[] sibling = new byte[HASH_SIZE];
+    while (size > 1) {
+      if ((index ^ 1) < size) {
+        if (!proof.hasRemaining()) {
+          throw new SignatureException("Merkle tree inclusion proof too short");
+        }
+        proof.get(sibling);
+        hash = ((index & 1) == 0)
+            ? hashNode(digest, hash, sibling)
+            : hashNode(digest, sibling, hash);
+      }
+      index >>= 1;
+      size = (size + 1) / 2;
+    }
+    if (proof.hasRemaining()) {
+      throw new SignatureException("Merkle tree inclusion proof too long");
+    }
+    return signedPayload(hash);
+  }
+
+  private static byte[] signedPayload(byte[] root) {
+    byte[] payload = new byte[ROOT_PREFIX.length + root.length];
+    System.arraycopy(ROOT_PREFIX, 0, payload, 0, ROOT_PREFIX.length);
+    System.arraycopy(root, 0, payload, ROOT_PREFIX.length, root.length);
+    return payload;
+  }
+
+  private static byte[] hashLeaf(MessageDigest digest, byte[] payload) {
+    digest.update(LEAF_PREFIX);
+    return digest.digest(payload);
+  }
+
+  private static byte[] hashNode(MessageDigest digest, byte[] left, byte[] right) {
+    digest.update(NODE_PREFIX);
+    digest.update(left);
+    return digest.digest(right);
+  }
+}
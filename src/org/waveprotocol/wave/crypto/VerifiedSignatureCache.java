@@ -0,0 +1,133 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.waveprotocol.wave.crypto;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe record of signatures that have already been
+ * verified, so that a delta seen more than once (replayed, resubmitted or
+ * fetched again with a wavelet's history) costs a hash rather than a
+ * public-key operation.
+ *
+ * A verification is identified by a SHA-256 hash of the signer id, the
+ * signature bytes, the expected authority and the signed payload, so a
+ * different signature or authority for the same payload is never mistaken
+ * for a verified one. Once full, the oldest entries are evicted first.
+ */
+public class VerifiedSignatureCache {
+
+  private final int maxSize;
+  private final ConcurrentMap<ByteString, Boolean> verified =
+      new ConcurrentHashMap<ByteString, Boolean>();
+  private final Queue<ByteString> insertionOrder = new ConcurrentLinkedQueue<ByteString>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxSize the number of verifications to remember; 0 to remember none
+   */
+  public VerifiedSignatureCache(int maxSize) {
+    Preconditions.checkArgument(maxSize >= 0, "Cache size must be >= 0");
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Computes the key identifying the verification of a signature on a
+   * payload, for use with {@link #contains} and {@link #add}.
+   */
+  public ByteString keyFor(byte[] signedPayload, ProtocolSignature signature, String authority) {
+    MessageDigest md = Sha256.digest();
+    update(md, signature.getSignerId().toByteArray());
+    update(md, signature.getSignatureBytes().toByteArray());
+    update(md, authority.getBytes());
+    update(md, signedPayload);
+    return ByteString.copyFrom(md.digest());
+  }
+
+  private static void update(MessageDigest md, byte[] field) {
+    // Length-prefix each field so that no two distinct inputs hash alike.
+    md.update(ByteBuffer.allocate(4).putInt(field.length).array());
+    md.update(field);
+  }
+
+  /**
+   * @return whether the verification identified by the key has succeeded
+   *         before
+   */
+  public boolean contains(ByteString key) {
+    if (verified.containsKey(key)) {
+      hits.incrementAndGet();
+      return true;
+    } else {
+      misses.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Records that the verification identified by the key has succeeded.
+   */
+  public void add(ByteString key) {
+    if (maxSize == 0 || verified.putIfAbsent(key, Boolean.TRUE) != null) {
+      return;
+    }
+    insertionOrder.add(key);
+    if (size.incrementAndGet() > maxSize) {
+      ByteString eldest = insertionOrder.poll();
+      if (eldest != null) {
+        verified.remove(eldest);
+        size.decrementAndGet();
+      }
+    }
+  }
+
+  /** @return the number of verifications remembered. */
+  public int size() {
+    return size.get();
+  }
+
+  /** @return the number of lookups that found a verified signature. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of lookups that didn't. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "VerifiedSignatureCache(size=" + size() + ", hits=" + getHits() + ", misses="
+        + getMisses() + ")";
+  }
+}
@@ -16,8 +16,13 @@
  */
 package org.waveprotocol.wave.crypto;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+
 import org.apache.commons.codec.binary.Base64;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature.SignatureAlgorithm;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -26,15 +31,33 @@ import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A class capable of verifying signatures, by looking up certificate chains in
- * a store, and using a caching cert chain validator.
+ * a store, and using a caching cert chain validator. Signatures that have
+ * been verified before are remembered in a {@link VerifiedSignatureCache}.
  */
 public class WaveSignatureVerifier {
 
+  // The number of certificates whose authority names we remember.
+  private static final int AUTHORITY_NAMES_CACHE_SIZE = 1000;
+
+  // Signature objects are costly to look up and create, but not thread-safe,
+  // so each thread keeps one per algorithm.
+  private static final ThreadLocal<Map<SignatureAlgorithm, Signature>> VERIFIERS =
+      new ThreadLocal<Map<SignatureAlgorithm, Signature>>() {
+        @Override
+        protected Map<SignatureAlgorithm, Signature> initialValue() {
+          return Maps.newEnumMap(SignatureAlgorithm.class);
+        }
+      };
+
   // regexp that picks out a Common Name out of a X.500 Distinguished Name
   private static final Pattern CN_PATTERN = Pattern.compile("CN=([^,]+)");
 
@@ -49,13 +72,29 @@ public class WaveSignatureVerifier {
   // cert chains.
   private final CertPathStore pathStore;
 
+  // Signatures that checked out before, and so needn't be checked again.
+  private final VerifiedSignatureCache verifiedSignatures;
+
+  // The names that each certificate we've seen was issued to.
+  private final ConcurrentMap<X509Certificate, AuthorityNames> authorityNames =
+      new ConcurrentHashMap<X509Certificate, AuthorityNames>();
+
   public WaveSignatureVerifier(WaveCertPathValidator validator, CertPathStore store) {
+    this(validator, store, new VerifiedSignatureCache(0));
+  }
+
+  public WaveSignatureVerifier(WaveCertPathValidator validator, CertPathStore store,
+      VerifiedSignatureCache verifiedSignatures) {
     this.pathValidator = validator;
     this.pathStore = store;
+    this.verifiedSignatures = verifiedSignatures;
   }
 
   /**
-   * Verifies the signature on some signed payload.
+   * Verifies the signature on some signed payload. The signature may be
+   * directly over the payload, or over the root of a {@link MerkleTree} of a
+   * bundle of payloads, which the signature shows the payload to be part of.
+   *
    * @param signedPayload the payload on which we're verifiying the signature.
    * @param signatureInfo the signature provided with the payload.
    * @param authority name of the authority that we expect the target
@@ -80,15 +119,14 @@ public class WaveSignatureVerifier {
 
     verifySignerInfo(signer);
 
-    Signature verifier;
-    try {
-      verifier = Signature.getInstance(AlgorithmUtil.getJceName(
-          signatureInfo.getSignatureAlgorithm()));
-    } catch (NoSuchAlgorithmException e) {
-      throw new SignatureException("can't verify signatures of type " +
-          signatureInfo.getSignatureAlgorithm().toString(), e);
+    // The chain is checked every time, as certificates expire, but the
+    // signature itself only needs checking once.
+    ByteString key = verifiedSignatures.keyFor(signedPayload, signatureInfo, authority);
+    if (verifiedSignatures.contains(key)) {
+      return;
     }
 
+    Signature verifier = getVerifier(signatureInfo.getSignatureAlgorithm());
     X509Certificate cert = signer.getCertificates().get(0);
 
     try {
@@ -98,8 +136,12 @@ public class WaveSignatureVerifier {
           "message signing");
     }
 
+    byte[] payloadToVerify = MerkleTree.hasProof(signatureInfo)
+        ? MerkleTree.getSignedPayload(signedPayload, signatureInfo)
+        : signedPayload;
+
     try {
-      verifier.update(signedPayload);
+      verifier.update(payloadToVerify);
     } catch (java.security.SignatureException e) {
       // this is thrown if the verifier object is not properly initialized.
       // this shouldn't happen as we _just_ initialized it on the previous line.
@@ -115,6 +157,25 @@ public class WaveSignatureVerifier {
     }
 
     verifyMatchingAuthority(authority, cert);
+    verifiedSignatures.add(key);
+  }
+
+  /**
+   * Returns this thread's {@link Signature} object for an algorithm.
+   */
+  private static Signature getVerifier(SignatureAlgorithm algorithm) throws SignatureException {
+    Map<SignatureAlgorithm, Signature> verifiers = VERIFIERS.get();
+    Signature verifier = verifiers.get(algorithm);
+    if (verifier == null) {
+      try {
+        verifier = Signature.getInstance(AlgorithmUtil.getJceName(algorithm));
+      } catch (NoSuchAlgorithmException e) {
+        throw new SignatureException("can't verify signatures of type " +
+            algorithm.toString(), e);
+      }
+      verifiers.put(algorithm, verifier);
+    }
+    return verifier;
   }
 
   /**
@@ -139,19 +200,27 @@ public class WaveSignatureVerifier {
   private void verifyMatchingAuthority(String authority,
       X509Certificate certificate) throws SignatureException {
 
-    String cn = getCommonNameFromDistinguishedName(
-        certificate.getSubjectX500Principal().getName());
+    AuthorityNames names = authorityNames.get(certificate);
+    if (names == null) {
+      names = new AuthorityNames(getCommonNameFromDistinguishedName(
+          certificate.getSubjectX500Principal().getName()),
+          getSubjectAlternativeDnsNames(certificate));
+      if (authorityNames.size() >= AUTHORITY_NAMES_CACHE_SIZE) {
+        authorityNames.clear();
+      }
+      authorityNames.put(certificate, names);
+    }
 
-    if (cn == null) {
+    if (names.commonName == null) {
       throw new SignatureException("no common name found in signer " +
           "certificate " + certificate.getSubjectDN().toString());
     }
 
-    if (cn.equals(authority)) {
+    if (names.commonName.equals(authority)) {
       return;
     }
 
-    if (authorityMatchesSubjectAlternativeNames(authority, certificate)) {
+    if (names.dnsNames.contains(authority)) {
       return;
     }
 
@@ -161,11 +230,10 @@ public class WaveSignatureVerifier {
   }
 
   /**
-   * Returns true if the authority given matches any of the
-   * SubjectAlternativeNames present in the certificate, false otherwise.
+   * Returns the domain names among the SubjectAlternativeNames present in the
+   * certificate.
    */
-  private boolean authorityMatchesSubjectAlternativeNames(String authority,
-      X509Certificate certificate) {
+  private Set<String> getSubjectAlternativeDnsNames(X509Certificate certificate) {
 
     Collection<List<?>> subjAltNames = null;
     try {
@@ -177,9 +245,10 @@ public class WaveSignatureVerifier {
     }
 
     if (subjAltNames == null) {
-      return false;
+      return ImmutableSet.of();
     }
 
+    ImmutableSet.Builder<String> dnsNames = ImmutableSet.builder();
     for (List<?> altName : subjAltNames) {
 
       Integer nameType = (Integer) altName.get(0);
@@ -189,14 +258,9 @@ public class WaveSignatureVerifier {
         continue;
       }
 
-      String dnsName = (String) altName.get(1);
-      if (authority.equals(dnsName)) {
-        return true;
-      }
+      dnsNames.add((String) altName.get(1));
     }
-
-    // None of the names matched.
-    return false;
+    return dnsNames.build();
   }
 
   private String getCommonNameFromDistinguishedName(String dn) {
@@ -207,4 +271,18 @@ public class WaveSignatureVerifier {
       return null;
     }
   }
+
+  /**
+   * The names a certificate was issued to: its Common Name, which may be
+   * null, and the domain names among its SubjectAlternativeNames.
+   */
+  private static final class AuthorityNames {
+    final String commonName;
+    final Set<String> dnsNames;
+
+    AuthorityNames(String commonName, Set<String> dnsNames) {
+      this.commonName = commonName;
+      this.dnsNames = dnsNames;
+    }
+  }
 }
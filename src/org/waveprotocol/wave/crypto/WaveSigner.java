@@ -17,6 +17,7 @@
 
 package org.waveprotocol.wave.crypto;
 
+import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
@@ -26,6 +27,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Signature;
+import java.util.List;
 
 /**
  * Class that can sign payloads (i.e., byte arrays).
@@ -36,6 +38,26 @@ public class WaveSigner {
   private final SignerInfo signerInfo;
   private final PrivateKey signingKey;
 
+  /**
+   * An initialized signature object per thread. A {@link Signature} is reset
+   * to its initialized state by {@link Signature#sign()}, so it can be reused
+   * for any number of signatures, but not concurrently.
+   */
+  private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+    @Override
+    protected Signature initialValue() {
+      try {
+        return newSignature();
+      } catch (InvalidKeyException e) {
+        // we checked for this in the constructor - this really shouldn't happen
+        throw new IllegalStateException(e);
+      } catch (NoSuchAlgorithmException e) {
+        // we checked for this in the constructor - this really shouldn't happen
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
   /**
    * Public constructor.
    * @param alg the signature algorithm that this signer will use on all of its
@@ -56,11 +78,9 @@ public class WaveSigner {
 
     try {
 
-      // we'll check here whether we can make such a signer, but we won't use
-      // it. We'll (re-)make a new signer object in the sign() method in order
-      // to be thread-safe.
-      Signature signer = Signature.getInstance(AlgorithmUtil.getJceName(alg));
-      signer.initSign(signingKey);
+      // we'll check here whether we can make such a signer. Each thread
+      // calling sign() makes one of its own in order to be thread-safe.
+      newSignature();
 
     } catch (InvalidKeyException e) {
       throw new SignatureException("private key does not match algorithm " +
@@ -80,9 +100,7 @@ public class WaveSigner {
   public ProtocolSignature.Builder sign(byte[] payload) {
 
     try {
-      Signature signer = Signature.getInstance(
-          AlgorithmUtil.getJceName(algorithm));
-      signer.initSign(signingKey);
+      Signature signer = signatures.get();
       signer.update(payload);
       // TODO: FIX THIS.
       return ProtocolSignature.newBuilder()
@@ -93,20 +111,39 @@ public class WaveSigner {
     } catch (java.security.SignatureException e) {
 
       // This is thrown if the signer object isn't properly initialized.
-      // Since we just made that object from scratch and initialized it, this
-      // really shouldn't happen
-      throw new IllegalStateException(e);
-
-    } catch (InvalidKeyException e) {
-
-      // we checked for this in the constructor - this really shouldn't happen
+      // Since we initialized that object when we made it, this really
+      // shouldn't happen. Don't reuse it, in case it's been left half way
+      // through a signature.
+      signatures.remove();
       throw new IllegalStateException(e);
+    }
+  }
 
-    } catch (NoSuchAlgorithmException e) {
-
-      // we checked for this in the constructor - this really shouldn't happen
-      throw new IllegalStateException(e);
+  /**
+   * Signs a bundle of payloads with a single signature over the root of a
+   * {@link MerkleTree} of them. Each payload's signature carries the proof
+   * that the payload is in the tree.
+   *
+   * @param payloads the bits that are to be signed.
+   * @return the signatures of the payloads, in the same order.
+   */
+  public List<ProtocolSignature.Builder> signBundle(List<byte[]> payloads) {
+    MerkleTree tree = new MerkleTree(payloads);
+    ProtocolSignature rootSignature = sign(tree.getSignedPayload()).build();
+    List<ProtocolSignature.Builder> signatures = Lists.newArrayListWithCapacity(payloads.size());
+    for (int leaf = 0; leaf < payloads.size(); leaf++) {
+      signatures.add(tree.addProof(rootSignature.toBuilder(), leaf));
     }
+    return signatures;
+  }
+
+  /**
+   * Makes a new signature object, initialized for signing.
+   */
+  private Signature newSignature() throws InvalidKeyException, NoSuchAlgorithmException {
+    Signature signer = Signature.getInstance(AlgorithmUtil.getJceName(algorithm));
+    signer.initSign(signingKey);
+    return signer;
   }
 
   /**
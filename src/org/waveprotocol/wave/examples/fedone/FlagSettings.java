@@ -80,7 +80,103 @@ public class FlagSettings {
   @Flag(name="maximum_delta_bundle_size", description="The largest bundle size to accumulate before " +
   		"signing. If set to 1, will do straightforward delta signing.")
 private static int deltaBundleSize;
+
+  @Flag(name="delta_signing_threads", description="Number of threads across which bundles of " +
+      "deltas are signed. 0 for one per processor.", defaultValue="0")
+  private static int deltaSigningThreads;
+
+  @Flag(name="delta_signing_merkle", description="Sign each bundle of deltas with a single " +
+      "signature over a hash tree of its deltas, rather than signing each delta. Remote " +
+      "servers must support verifying such signatures.", defaultValue="false")
+  private static boolean deltaSigningMerkle;
+
+  @Flag(name="signature_verification_threads", description="Number of threads across which " +
+      "the signatures of a batch of incoming deltas are verified. 0 for one per processor.",
+      defaultValue="0")
+  private static int signatureVerificationThreads;
+
+  @Flag(name="verified_signature_cache_size", description="Number of verified delta " +
+      "signatures to remember, so that deltas seen again needn't be verified again.",
+      defaultValue="10000")
+  private static int verifiedSignatureCacheSize;
+
   /*set to true to enable or false to disable persistence*/
   @Flag(name="waveserver_enable_persistence", defaultValue="false")
   private static boolean waveserverEnablePersistence;
+
+  @Flag(name="delta_store_directory", description="Directory in which wavelet delta logs are " +
+      "kept when persistence is enabled.", defaultValue="_deltas")
+  private static String deltaStoreDirectory;
+
+  @Flag(name="delta_store_segment_size_bytes", description="Size after which a delta log " +
+      "segment is closed and a new one started.", defaultValue="16777216")
+  private static int deltaStoreSegmentSize;
+
+  @Flag(name="delta_store_group_commit_delay_ms", description="The delay, in ms, during which " +
+      "to accumulate deltas before writing and syncing them to disk as one batch. Value must " +
+      "be >= 0 ms", defaultValue="0")
+  private static int deltaStoreGroupCommitDelay;
+
+  @Flag(name="wavelet_residency_limit", description="Maximum number of wavelets to keep in " +
+      "memory. The least recently used wavelets beyond it are evicted and reloaded from the " +
+      "delta store when next needed. 0 for no limit. Ignored unless persistence is enabled.",
+      defaultValue="0")
+  private static int waveletResidencyLimit;
+
+  @Flag(name="snapshot_store_directory", description="Directory in which wavelet snapshots " +
+      "are kept when persistence is enabled.", defaultValue="_snapshots")
+  private static String snapshotStoreDirectory;
+
+  @Flag(name="cert_path_store_directory", description="Directory in which validated signer " +
+      "infos (certificate chains) are kept when persistence is enabled.",
+      defaultValue="_certificates")
+  private static String certPathStoreDirectory;
+
+  @Flag(name="cert_path_store_max_age_hours", description="Age, in hours since they were " +
+      "validated, after which stored signer infos are dropped when the server starts, so that " +
+      "they are fetched and validated again. 0 for no limit.", defaultValue="168")
+  private static int certPathStoreMaxAgeHours;
+
+  @Flag(name="snapshot_interval_deltas", description="Number of deltas after which a new " +
+      "snapshot of a wavelet is written, so that reloading it only replays the deltas since. " +
+      "0 to not take snapshots by number of deltas.", defaultValue="1000")
+  private static int snapshotIntervalDeltas;
+
+  @Flag(name="snapshot_interval_bytes", description="Total size of deltas after which a new " +
+      "snapshot of a wavelet is written. 0 to not take snapshots by size of deltas.",
+      defaultValue="1048576")
+  private static int snapshotIntervalBytes;
+
+  @Flag(name="submit_pipeline_threads", description="Number of threads in each stage of the " +
+      "delta submit pipeline (verify, apply, fan-out). 0 for one per processor.",
+      defaultValue="0")
+  private static int submitPipelineThreads;
+
+  @Flag(name="submit_pipeline_capacity", description="Number of deltas which may be queued " +
+      "in each stage of the delta submit pipeline before submitters have to wait.",
+      defaultValue="1024")
+  private static int submitPipelineCapacity;
+
+  @Flag(name="rpc_selector_threads", description="Number of threads serving client RPC " +
+      "connections.", defaultValue="2")
+  private static int rpcSelectorThreads;
+
+  @Flag(name="rpc_worker_threads", description="Number of threads on which client RPCs are " +
+      "run.", defaultValue="16")
+  private static int rpcWorkerThreads;
+
+  @Flag(name="rpc_max_message_bytes", description="Size of the largest message which may be " +
+      "received over a client RPC connection. A connection sending a larger one is closed.",
+      defaultValue="16777216")
+  private static int rpcMaxMessageBytes;
+
+  @Flag(name="rpc_outbound_queue_bytes", description="Number of bytes which may be queued " +
+      "for writing to each client RPC connection. A connection which falls further behind " +
+      "is closed as too slow.", defaultValue="4194304")
+  private static int rpcOutboundQueueBytes;
+
+  @Flag(name="rpc_compression_threshold", description="Size in bytes of the smallest message " +
+      "compressed for client RPC connections which accept compression. -1 never to compress.",
+      defaultValue="1024")
+  private static int rpcCompressionThreshold;
 }
@@ -21,6 +21,7 @@ import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.apache.commons.codec.binary.Hex;
 import org.waveprotocol.wave.examples.fedone.model.util.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.examples.fedone.waveserver.AppliedDeltaUtil;
 import org.waveprotocol.wave.examples.fedone.waveserver.ByteStringMessage;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
@@ -102,10 +103,12 @@ public final class HashedVersion {
    */
   public static HashedVersion getHashedVersionAfter(
       ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta) {
-    int opsApplied = appliedDelta.getMessage().getOperationsApplied();
-    HashedVersion versionAppliedAt = getHashedVersionAppliedAt(appliedDelta);
-    return new HashedVersionFactoryImpl().create(
-        appliedDelta.getByteArray(), versionAppliedAt, opsApplied);
+    // Read only the fields needed, rather than parse the whole delta.
+    int opsApplied = AppliedDeltaUtil.getOperationsApplied(appliedDelta.getByteString());
+    HashedVersion versionAppliedAt = WaveletOperationSerializer.deserialize(
+        AppliedDeltaUtil.getHashedVersionAppliedAt(appliedDelta.getByteString()));
+    return HASHED_HISTORY_VERSION_FACTORY.create(
+        appliedDelta.getByteString(), versionAppliedAt, opsApplied);
   }
 
   /** The number of ops that lead to this version. */
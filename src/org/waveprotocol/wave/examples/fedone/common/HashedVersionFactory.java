@@ -16,6 +16,8 @@
 
 package org.waveprotocol.wave.examples.fedone.common;
 
+import com.google.protobuf.ByteString;
+
 import org.waveprotocol.wave.model.id.WaveletName;
 
 /**
@@ -27,5 +29,7 @@ public interface HashedVersionFactory {
   HashedVersion createVersionZero(WaveletName waveletName);
   HashedVersion create(byte[] appliedDeltaBytes, HashedVersion hashedVersionAppliedAt,
       int operationsApplied);
+  HashedVersion create(ByteString appliedDeltaBytes, HashedVersion hashedVersionAppliedAt,
+      int operationsApplied);
   HashedVersion create(long version, byte[] historyHash);
 }
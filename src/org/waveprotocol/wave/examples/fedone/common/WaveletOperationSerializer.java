@@ -43,11 +43,13 @@ import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot.DocumentSnapshot;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * Utility class for serialising/deserialising wavelet operations (and their components) to/from
@@ -297,6 +299,26 @@ public class WaveletOperationSerializer {
     }
   }
 
+  /**
+   * Serializes the participants and documents of a wavelet into a
+   * {@link WaveletSnapshot}.
+   *
+   * @param waveletData the wavelet to serialize
+   * @return the new protobuffer
+   */
+  public static WaveletSnapshot serialize(WaveletData waveletData) {
+    WaveletSnapshot.Builder snapshotBuilder = WaveletSnapshot.newBuilder();
+    for (Entry<String, BufferedDocOp> document : waveletData.getDocuments().entrySet()) {
+      snapshotBuilder.addDocument(DocumentSnapshot.newBuilder()
+          .setDocumentId(document.getKey())
+          .setDocumentOperation(serialize(document.getValue())));
+    }
+    for (ParticipantId participant : waveletData.getParticipants()) {
+      snapshotBuilder.addParticipantId(participant.toString());
+    }
+    return snapshotBuilder.build();
+  }
+
   /**
    * Deserialize a {@link WaveletSnapshot} into a list of {@link WaveletOperation}s.
    *
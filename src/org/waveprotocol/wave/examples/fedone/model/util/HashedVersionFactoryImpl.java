@@ -18,11 +18,14 @@
 package org.waveprotocol.wave.examples.fedone.model.util;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
 
+import org.waveprotocol.wave.crypto.Sha256;
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
 
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class for creating Hashed Versions with Crypto dependencies, this is intented
@@ -40,17 +43,32 @@ public class HashedVersionFactoryImpl extends HashedVersionZeroFactoryImpl {
   // Allow override for unit testing.
   static int hashSizeBits = HASH_SIZE_BITS;
 
-  private static byte[] calculateHash(byte[] historyHash, byte[] appliedDeltaBytes) {
-    byte[] joined = new byte[appliedDeltaBytes.length + historyHash.length];
-    byte[] result = new byte[hashSizeBits / 8];
-    System.arraycopy(historyHash, 0, joined, 0, historyHash.length);
-    System.arraycopy(appliedDeltaBytes, 0, joined, historyHash.length, appliedDeltaBytes.length);
+  /** Each thread's buffer for the full digest, of which the hash is a prefix. */
+  private static final ThreadLocal<byte[]> DIGEST_BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[32];
+    }
+  };
+
+  /**
+   * Calculates the hash of the history hash followed by the applied delta,
+   * without joining them into one array. The delta's bytes are streamed into
+   * the digest in place.
+   */
+  private static byte[] calculateHash(byte[] historyHash, ByteBuffer appliedDeltaBytes) {
+    MessageDigest sha256 = Sha256.digest();
+    byte[] digest = DIGEST_BUFFER.get();
+    sha256.update(historyHash);
+    sha256.update(appliedDeltaBytes);
     try {
-      historyHash = MessageDigest.getInstance("SHA-256").digest(joined);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
+      sha256.digest(digest, 0, digest.length);
+    } catch (DigestException e) {
+      // Thrown only if the buffer is too small for a SHA-256 digest.
+      throw new IllegalStateException(e);
     }
-    System.arraycopy(historyHash, 0, result, 0, result.length);
+    byte[] result = new byte[hashSizeBits / 8];
+    System.arraycopy(digest, 0, result, 0, result.length);
     return result;
   }
 
@@ -59,6 +77,16 @@ public class HashedVersionFactoryImpl extends HashedVersionZeroFactoryImpl {
       HashedVersion hashedVersionAppliedAt, int operationsApplied) {
 
     return new HashedVersion(hashedVersionAppliedAt.getVersion() + operationsApplied,
-        calculateHash(hashedVersionAppliedAt.getHistoryHash(), appliedDeltaBytes));
+        calculateHash(hashedVersionAppliedAt.getHistoryHash(),
+            ByteBuffer.wrap(appliedDeltaBytes)));
+  }
+
+  @Override
+  public HashedVersion create(ByteString appliedDeltaBytes,
+      HashedVersion hashedVersionAppliedAt, int operationsApplied) {
+
+    return new HashedVersion(hashedVersionAppliedAt.getVersion() + operationsApplied,
+        calculateHash(hashedVersionAppliedAt.getHistoryHash(),
+            appliedDeltaBytes.asReadOnlyByteBuffer()));
   }
 }
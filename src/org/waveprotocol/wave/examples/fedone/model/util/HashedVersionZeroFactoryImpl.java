@@ -17,6 +17,8 @@
 
 package org.waveprotocol.wave.examples.fedone.model.util;
 
+import com.google.protobuf.ByteString;
+
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
 import org.waveprotocol.wave.examples.fedone.common.HashedVersionFactory;
 import org.waveprotocol.wave.examples.fedone.util.URLEncoderDecoderBasedPercentEncoderDecoder;
@@ -66,6 +68,14 @@ public class HashedVersionZeroFactoryImpl implements HashedVersionFactory {
     throw new UnsupportedOperationException("This method is not supported here.");
   }
 
+  /** Explicitly fail for creating a hashed version with version not 0. */
+  @Override
+  public HashedVersion create(ByteString appliedDeltaBytes,
+      HashedVersion hashedVersionAppliedAt, int operationsApplied) {
+    // For lightweight users of this Factory, don't depend on crypto code.
+    throw new UnsupportedOperationException("This method is not supported here.");
+  }
+
   @Override
   public HashedVersion create(long version, byte[] historyHash) {
     return new HashedVersion(version, historyHash);
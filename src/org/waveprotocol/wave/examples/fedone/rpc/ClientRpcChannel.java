@@ -105,6 +105,8 @@ public class ClientRpcChannel implements RpcChannel {
     SequencedProtoChannel protoChannel = 
       new SequencedProtoChannel(channel, callback, threadPool);
     protoChannel.expectMessage(Rpc.RpcFinished.getDefaultInstance());
+    // Wave update catch-ups can be large, so ask for them compressed.
+    protoChannel.offerCompression();
     protoChannel.startAsyncRead();
     LOG.fine("Opened a new ClientRpcChannel to " + serverAddress);    
     return protoChannel;
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages compressed and decompressed by {@link MessageCompressor}s,
+ * their sizes before and after, and the time spent, so that the compression
+ * threshold can be tuned. Thread safe; usually shared by every connection of
+ * a server.
+ */
+public final class CompressionStats {
+  private final AtomicLong messagesBelowThreshold = new AtomicLong();
+  private final AtomicLong bytesBelowThreshold = new AtomicLong();
+
+  private final AtomicLong messagesDeflated = new AtomicLong();
+  private final AtomicLong bytesBeforeDeflate = new AtomicLong();
+  private final AtomicLong bytesAfterDeflate = new AtomicLong();
+  private final AtomicLong deflateNanos = new AtomicLong();
+
+  private final AtomicLong messagesIncompressible = new AtomicLong();
+  private final AtomicLong incompressibleNanos = new AtomicLong();
+
+  private final AtomicLong messagesInflated = new AtomicLong();
+  private final AtomicLong bytesBeforeInflate = new AtomicLong();
+  private final AtomicLong bytesAfterInflate = new AtomicLong();
+  private final AtomicLong inflateNanos = new AtomicLong();
+
+  /** Records a message sent uncompressed for being smaller than the threshold. */
+  void recordBelowThreshold(int bytes) {
+    messagesBelowThreshold.incrementAndGet();
+    bytesBelowThreshold.addAndGet(bytes);
+  }
+
+  /** Records a message compressed. */
+  void recordDeflated(int before, int after, long nanos) {
+    messagesDeflated.incrementAndGet();
+    bytesBeforeDeflate.addAndGet(before);
+    bytesAfterDeflate.addAndGet(after);
+    deflateNanos.addAndGet(nanos);
+  }
+
+  /** Records a message sent uncompressed since compressing it didn't help. */
+  void recordIncompressible(long nanos) {
+    messagesIncompressible.incrementAndGet();
+    incompressibleNanos.addAndGet(nanos);
+  }
+
+  /** Records a message decompressed. */
+  void recordInflated(int before, int after, long nanos) {
+    messagesInflated.incrementAndGet();
+    bytesBeforeInflate.addAndGet(before);
+    bytesAfterInflate.addAndGet(after);
+    inflateNanos.addAndGet(nanos);
+  }
+
+  /** @return the number of messages too small to compress. */
+  public long getMessagesBelowThreshold() {
+    return messagesBelowThreshold.get();
+  }
+
+  /** @return the total size of the messages too small to compress. */
+  public long getBytesBelowThreshold() {
+    return bytesBelowThreshold.get();
+  }
+
+  /** @return the number of messages compressed. */
+  public long getMessagesDeflated() {
+    return messagesDeflated.get();
+  }
+
+  /** @return the total size of the messages compressed, before compression. */
+  public long getBytesBeforeDeflate() {
+    return bytesBeforeDeflate.get();
+  }
+
+  /** @return the total size of the messages compressed, after compression. */
+  public long getBytesAfterDeflate() {
+    return bytesAfterDeflate.get();
+  }
+
+  /**
+   * @return the compressed size of the messages compressed as a fraction of
+   *         their size, or 1 if none was
+   */
+  public double getDeflateRatio() {
+    long before = bytesBeforeDeflate.get();
+    return (before == 0) ? 1 : (double) bytesAfterDeflate.get() / before;
+  }
+
+  /** @return the time spent compressing messages, in microseconds. */
+  public long getDeflateMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(deflateNanos.get());
+  }
+
+  /** @return the number of messages which compression didn't shrink. */
+  public long getMessagesIncompressible() {
+    return messagesIncompressible.get();
+  }
+
+  /** @return the time wasted trying to compress messages, in microseconds. */
+  public long getIncompressibleMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(incompressibleNanos.get());
+  }
+
+  /** @return the number of messages decompressed. */
+  public long getMessagesInflated() {
+    return messagesInflated.get();
+  }
+
+  /** @return the total size of the messages decompressed, before decompression. */
+  public long getBytesBeforeInflate() {
+    return bytesBeforeInflate.get();
+  }
+
+  /** @return the total size of the messages decompressed, after decompression. */
+  public long getBytesAfterInflate() {
+    return bytesAfterInflate.get();
+  }
+
+  /** @return the time spent decompressing messages, in microseconds. */
+  public long getInflateMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(inflateNanos.get());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("deflated %d messages, %d -> %d bytes (ratio %.3f) in %dus;"
+        + " %d incompressible in %dus; %d below threshold (%d bytes);"
+        + " inflated %d messages, %d -> %d bytes in %dus",
+        getMessagesDeflated(), getBytesBeforeDeflate(), getBytesAfterDeflate(),
+        getDeflateRatio(), getDeflateMicros(), getMessagesIncompressible(),
+        getIncompressibleMicros(), getMessagesBelowThreshold(), getBytesBelowThreshold(),
+        getMessagesInflated(), getBytesBeforeInflate(), getBytesAfterInflate(),
+        getInflateMicros());
+  }
+}
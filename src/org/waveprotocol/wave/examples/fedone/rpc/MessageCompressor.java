@@ -0,0 +1,157 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the messages of one connection, with a
+ * {@link Deflater} and an {@link Inflater} kept for the connection's
+ * lifetime rather than created per message.
+ *
+ * A compressed message is its uncompressed size as a varint, followed by the
+ * zlib stream of it. Messages smaller than the threshold aren't compressed,
+ * nor are those compression wouldn't shrink.
+ */
+public final class MessageCompressor {
+
+  /** Default size in bytes of the smallest message compressed. */
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  /** Largest output buffer kept between messages. */
+  private static final int MAX_KEPT_BUFFER_SIZE = 256 * 1024;
+
+  private final int threshold;
+  private final CompressionStats stats;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+  private byte[] deflateBuffer = new byte[0];
+
+  /**
+   * @param threshold size in bytes of the smallest message to compress, or
+   *        -1 never to compress; messages can be decompressed either way
+   * @param stats where to count the messages compressed and decompressed
+   */
+  public MessageCompressor(int threshold, CompressionStats stats) {
+    this.threshold = threshold;
+    this.stats = stats;
+  }
+
+  /** @return whether this may compress messages. */
+  public boolean isEnabled() {
+    return threshold >= 0;
+  }
+
+  /**
+   * Compresses a message, if it is large enough and compresses well enough.
+   *
+   * @return the compressed message, or null if it should be sent as it is
+   */
+  synchronized byte[] deflate(byte[] data, int offset, int length) {
+    if (!isEnabled()) {
+      return null;
+    }
+    if (length < threshold) {
+      stats.recordBelowThreshold(length);
+      return null;
+    }
+    long start = System.nanoTime();
+    int headerSize = CodedOutputStream.computeRawVarint32Size(length);
+    // Only worth sending if smaller than the message.
+    int limit = length - 1;
+    if (deflateBuffer.length < limit) {
+      deflateBuffer = new byte[limit];
+    }
+    deflater.reset();
+    deflater.setInput(data, offset, length);
+    deflater.finish();
+    int compressedSize = headerSize;
+    while (!deflater.finished() && compressedSize < limit) {
+      compressedSize += deflater.deflate(deflateBuffer, compressedSize, limit - compressedSize);
+    }
+    byte[] compressed = null;
+    if (deflater.finished()) {
+      CodedOutputStream header = CodedOutputStream.newInstance(deflateBuffer, 0, headerSize);
+      try {
+        header.writeRawVarint32(length);
+      } catch (IOException e) {
+        throw new IllegalStateException("Writing to an array failed", e);
+      }
+      compressed = Arrays.copyOf(deflateBuffer, compressedSize);
+    }
+    if (deflateBuffer.length > MAX_KEPT_BUFFER_SIZE) {
+      deflateBuffer = new byte[0];
+    }
+    long elapsed = System.nanoTime() - start;
+    if (compressed != null) {
+      stats.recordDeflated(length, compressed.length, elapsed);
+    } else {
+      stats.recordIncompressible(elapsed);
+    }
+    return compressed;
+  }
+
+  /**
+   * Decompresses a message compressed by {@link #deflate}.
+   *
+   * @param maxSize the size of the largest message accepted
+   * @return the message
+   * @throws IOException if the message is corrupt or too large
+   */
+  synchronized byte[] inflate(byte[] data, int offset, int length, int maxSize)
+      throws IOException {
+    long start = System.nanoTime();
+    CodedInputStream header = CodedInputStream.newInstance(data, offset, length);
+    int size = header.readRawVarint32();
+    int headerSize = header.getTotalBytesRead();
+    if (size < 0 || size > maxSize) {
+      throw new InvalidProtocolBufferException(String.format("Compressed payload (%d bytes)"
+          + " larger than limit (%d bytes)", size, maxSize));
+    }
+    byte[] message = new byte[size];
+    inflater.reset();
+    inflater.setInput(data, offset + headerSize, length - headerSize);
+    int inflated = 0;
+    try {
+      while (inflated < size) {
+        int n = inflater.inflate(message, inflated, size - inflated);
+        if (n == 0 && (inflater.finished() || inflater.needsInput()
+            || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed payload", e);
+    }
+    if (inflated != size) {
+      throw new InvalidProtocolBufferException("Compressed payload holds " + inflated
+          + " bytes, not " + size);
+    }
+    stats.recordInflated(length, size, System.nanoTime() - start);
+    return message;
+  }
+}
@@ -18,10 +18,15 @@
 package org.waveprotocol.wave.examples.fedone.rpc;
 
 import com.google.common.collect.Maps;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.UnknownFieldSet;
 
 import org.waveprotocol.wave.examples.fedone.util.Log;
 
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -30,6 +35,8 @@ import java.util.Map;
  *
  */
 public abstract class MessageExpectingChannel {
+  private static final Log LOG = Log.get(MessageExpectingChannel.class);
+
   private final Map<String, Message> expectedMessages = Maps.newHashMap();
   /**
    * Register an expected incoming message type.
@@ -66,6 +73,58 @@ public abstract class MessageExpectingChannel {
     sendMessage(sequenceNo, message);
   }
   
+  /**
+   * @return the size of a message encoded with its sequence number and type
+   *         by {@link #writeSequencedMessage}
+   */
+  static int computeSequencedMessageSize(long sequenceNo, String messageType,
+      MessageLite message) {
+    return CodedOutputStream.computeInt64SizeNoTag(sequenceNo)
+        + CodedOutputStream.computeStringSizeNoTag(messageType)
+        + CodedOutputStream.computeMessageSizeNoTag(message);
+  }
+
+  /**
+   * Writes a message preceded by its sequence number and type.
+   */
+  static void writeSequencedMessage(CodedOutputStream outputStream, long sequenceNo,
+      String messageType, MessageLite message) throws IOException {
+    outputStream.writeInt64NoTag(sequenceNo);
+    outputStream.writeStringNoTag(messageType);
+    outputStream.writeMessageNoTag(message);
+  }
+
+  /**
+   * Reads a message written by {@link #writeSequencedMessage} and hands it to
+   * the callback; as unknown fields if its type isn't expected.
+   *
+   * @param source where the message came from, for logging
+   */
+  void readSequencedMessage(CodedInputStream inputStream, ProtoCallback callback, Object source)
+      throws IOException {
+    long incomingSequenceNo = inputStream.readInt64();
+    String messageType = inputStream.readString();
+    Message prototype = getMessagePrototype(messageType);
+    if (prototype == null) {
+      LOG.info("Received misunderstood message (??? " + messageType + " ???, seq "
+          + incomingSequenceNo + ") from: " + source);
+      // We have to emulate some of the semantics of reading a
+      // whole message here, including reading its encoded length.
+      final int length = inputStream.readRawVarint32();
+      final int oldLimit = inputStream.pushLimit(length);
+      UnknownFieldSet unknownFieldSet = UnknownFieldSet.parseFrom(inputStream);
+      inputStream.popLimit(oldLimit);
+      callback.unknown(incomingSequenceNo, messageType, unknownFieldSet);
+    } else {
+      // TODO: change to LOG.debug
+      LOG.fine("Received message (" + messageType + ", seq "
+          + incomingSequenceNo + ") from: " + source);
+      Message.Builder builder = prototype.newBuilderForType();
+      inputStream.readMessage(builder, null);
+      callback.message(incomingSequenceNo, builder.build());
+    }
+  }
+
   public void startAsyncRead() {
     // nothing necessarily to do.
   }
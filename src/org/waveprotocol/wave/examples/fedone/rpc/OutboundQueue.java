@@ -0,0 +1,396 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of framed messages waiting to be written to a channel.
+ *
+ * Senders only enqueue; the queue is drained by a writer task on a separate
+ * executor, which copies as many queued frames as fit into a direct buffer
+ * and writes them with a single call. At most one writer task runs per queue
+ * at a time, so frames are written in the order they were queued. When a
+ * non-blocking channel's socket buffer fills up, the writer task ends and is
+ * run again once the channel's {@link Monitor} finds it writable.
+ *
+ * Senders never wait: a frame which would take the queue past its limit
+ * marks the consumer as too slow, and the channel is closed. The monitor is
+ * told whenever the queue closes the channel itself.
+ */
+final class OutboundQueue {
+
+  private static final Log LOG = Log.get(OutboundQueue.class);
+
+  /** Size of the direct buffer into which frames are coalesced. */
+  static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Watches the channel on behalf of the queue, typically from the event
+   * loop which reads it.
+   */
+  interface Monitor {
+    /**
+     * Runs a task once the non-blocking channel is writable. The task
+     * returns straight away, handing the writing back to the writer executor.
+     */
+    void runWhenWritable(Runnable task);
+
+    /**
+     * Called once the queue has closed the channel, because the consumer was
+     * too slow or a write failed, so that the channel can be cleaned up as if
+     * its reader had closed it.
+     */
+    void closed();
+  }
+
+  /** How long the writer waits for a stalled channel without a monitor. */
+  private static final long WRITE_STALL_WAIT_MS = 1000;
+
+  /** Total bytes queued across all channels. */
+  public static final AtomicLong varzQueuedBytes = new AtomicLong();
+
+  /** Total bytes written across all channels. */
+  public static final AtomicLong varzBytesWritten = new AtomicLong();
+
+  /** Number of channels closed for consuming too slowly. */
+  public static final AtomicLong varzSlowConsumerDisconnects = new AtomicLong();
+
+  private final WritableByteChannel channel;
+  private final Executor writerExecutor;
+  private final int maxQueuedBytes;
+  private volatile Monitor monitor = null;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(COALESCE_BUFFER_SIZE);
+
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  private final Runnable resume = new Runnable() {
+    @Override
+    public void run() {
+      writerExecutor.execute(drain);
+    }
+  };
+
+  // Guarded by this.
+  private final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+  private int queuedBytes = 0;
+  private boolean writing = false;
+  private boolean closed = false;
+  private long windowStartMs = System.currentTimeMillis();
+  private long windowBytes = 0;
+  private long lastWindowBytes = 0;
+
+  // Only touched by the writer task.
+  /** The batch being written, if the last writer task stalled part way. */
+  private ByteBuffer inFlight = null;
+  private int inFlightBytes = 0;
+  /** Waits for a stalled channel without a monitor; opened on its first stall. */
+  private Selector stallSelector = null;
+
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong framesWritten = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+
+  /**
+   * @param channel the channel to write to
+   * @param writerExecutor runs the writer tasks
+   * @param maxQueuedBytes number of bytes which may be queued before the
+   *        consumer is considered too slow
+   */
+  OutboundQueue(WritableByteChannel channel, Executor writerExecutor, int maxQueuedBytes) {
+    Preconditions.checkArgument(maxQueuedBytes > 0, "Queue limit must be > 0");
+    this.channel = channel;
+    this.writerExecutor = writerExecutor;
+    this.maxQueuedBytes = maxQueuedBytes;
+  }
+
+  /**
+   * Sets the monitor which resumes writing once a stalled non-blocking
+   * channel is writable again, and which is told when the queue closes the
+   * channel.
+   */
+  void setMonitor(Monitor monitor) {
+    this.monitor = monitor;
+  }
+
+  /**
+   * Queues a frame to be written, without waiting. If the queue is full the
+   * channel is closed instead. A frame larger than the limit is accepted
+   * while the queue is empty.
+   *
+   * @return false if the frame was dropped because the channel is, or has
+   *         now been, closed
+   */
+  boolean offer(byte[] frame) {
+    boolean tooSlow = false;
+    synchronized (this) {
+      if (!closed && queuedBytes > 0 && queuedBytes + frame.length > maxQueuedBytes) {
+        LOG.warning("Closing " + channel + ", a slow consumer with " + queuedBytes
+            + " bytes queued");
+        varzSlowConsumerDisconnects.incrementAndGet();
+        tooSlow = closeLocked();
+      }
+      if (closed) {
+        if (tooSlow) {
+          notifyClosed();
+        }
+        return false;
+      }
+      frames.addLast(frame);
+      queuedBytes += frame.length;
+      varzQueuedBytes.addAndGet(frame.length);
+      if (writing) {
+        return true;
+      }
+      writing = true;
+    }
+    writerExecutor.execute(drain);
+    return true;
+  }
+
+  /** Closes the queue and the channel, discarding any unwritten frames. */
+  synchronized void close() {
+    closeLocked();
+  }
+
+  /** @return true if the queue was open until now */
+  private boolean closeLocked() {
+    if (closed) {
+      return false;
+    }
+    closed = true;
+    varzQueuedBytes.addAndGet(-queuedBytes);
+    frames.clear();
+    queuedBytes = 0;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOG.warning("Failed to close " + channel, e);
+    }
+    if (!writing) {
+      closeStallSelector();
+    }
+    return true;
+  }
+
+  /** Tells the monitor, if any, that the queue closed the channel itself. */
+  private void notifyClosed() {
+    Monitor current = monitor;
+    if (current != null) {
+      current.closed();
+    }
+  }
+
+  private void closeStallSelector() {
+    if (stallSelector != null) {
+      try {
+        stallSelector.close();
+      } catch (IOException e) {
+        LOG.warning("Failed to close selector", e);
+      }
+      stallSelector = null;
+    }
+  }
+
+  /**
+   * Writes queued frames until there are none left, or until a non-blocking
+   * channel with a monitor stalls.
+   */
+  private void drain() {
+    while (true) {
+      if (inFlight == null) {
+        synchronized (this) {
+          if (closed || frames.isEmpty()) {
+            writing = false;
+            if (closed) {
+              closeStallSelector();
+            }
+            return;
+          }
+          takeBatch();
+        }
+      }
+      try {
+        while (inFlight.hasRemaining()) {
+          int written = channel.write(inFlight);
+          writes.incrementAndGet();
+          if (written == 0 && awaitWritable()) {
+            // Resumed by the monitor, still holding the batch.
+            return;
+          }
+        }
+      } catch (IOException e) {
+        LOG.info("Failed to write to " + channel + ", closing it", e);
+        inFlight = null;
+        boolean failed;
+        synchronized (this) {
+          writing = false;
+          failed = closeLocked();
+          closeStallSelector();
+        }
+        if (failed) {
+          notifyClosed();
+        }
+        return;
+      }
+      int batchBytes = inFlightBytes;
+      inFlight = null;
+      bytesWritten.addAndGet(batchBytes);
+      varzBytesWritten.addAndGet(batchBytes);
+      synchronized (this) {
+        if (!closed) {
+          queuedBytes -= batchBytes;
+          varzQueuedBytes.addAndGet(-batchBytes);
+        }
+        countWritten(batchBytes);
+      }
+    }
+  }
+
+  /**
+   * Takes the next batch of frames off the queue, coalescing them into the
+   * buffer; a frame which doesn't fit into an empty buffer is written on its
+   * own.
+   */
+  private void takeBatch() {
+    int batchBytes = 0;
+    buffer.clear();
+    while (!frames.isEmpty() && frames.peekFirst().length <= buffer.remaining()) {
+      byte[] frame = frames.pollFirst();
+      buffer.put(frame);
+      batchBytes += frame.length;
+      framesWritten.incrementAndGet();
+    }
+    if (batchBytes == 0) {
+      byte[] large = frames.pollFirst();
+      inFlight = ByteBuffer.wrap(large);
+      batchBytes = large.length;
+      framesWritten.incrementAndGet();
+    } else {
+      buffer.flip();
+      inFlight = buffer;
+    }
+    inFlightBytes = batchBytes;
+  }
+
+  /**
+   * Deals with a non-blocking channel whose socket buffer is full. With a
+   * monitor, the writer task is handed to it to run once the channel is
+   * writable; otherwise the writer waits on a selector of its own, kept for
+   * later stalls, so that the channel's event loop never blocks on a slow
+   * consumer.
+   *
+   * @return true if the writer task has been handed to the monitor, and
+   *         must end
+   */
+  private boolean awaitWritable() throws IOException {
+    if (!(channel instanceof SelectableChannel)
+        || ((SelectableChannel) channel).isBlocking()) {
+      return false;
+    }
+    Monitor current = monitor;
+    if (current != null) {
+      current.runWhenWritable(resume);
+      return true;
+    }
+    if (stallSelector == null) {
+      stallSelector = Selector.open();
+      ((SelectableChannel) channel).register(stallSelector, SelectionKey.OP_WRITE);
+    }
+    stallSelector.select(WRITE_STALL_WAIT_MS);
+    stallSelector.selectedKeys().clear();
+    return false;
+  }
+
+  /** Adds to the bytes written in the current one second window. */
+  private void countWritten(long bytes) {
+    rollWindow();
+    windowBytes += bytes;
+  }
+
+  private void rollWindow() {
+    long now = System.currentTimeMillis();
+    if (now - windowStartMs >= 2000) {
+      lastWindowBytes = 0;
+      windowBytes = 0;
+      windowStartMs = now;
+    } else if (now - windowStartMs >= 1000) {
+      lastWindowBytes = windowBytes;
+      windowBytes = 0;
+      windowStartMs += 1000;
+    }
+  }
+
+  /** @return the number of frames waiting to be written. */
+  synchronized int getQueueDepth() {
+    return frames.size();
+  }
+
+  /** @return the number of bytes waiting to be written. */
+  synchronized int getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  /** @return the number of bytes written in the last whole second. */
+  synchronized long getBytesPerSecond() {
+    rollWindow();
+    return lastWindowBytes;
+  }
+
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  long getFramesWritten() {
+    return framesWritten.get();
+  }
+
+  /** @return the number of write calls made on the channel. */
+  long getWrites() {
+    return writes.get();
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public String toString() {
+    return "Outbound queue to " + channel + ": " + getQueueDepth() + " frames ("
+        + getQueuedBytes() + " bytes) queued, " + getFramesWritten() + " frames ("
+        + getBytesWritten() + " bytes) written in " + getWrites() + " writes, "
+        + getBytesPerSecond() + " bytes/s";
+  }
+}
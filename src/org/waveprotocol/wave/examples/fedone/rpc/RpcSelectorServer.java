@@ -0,0 +1,295 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves the native RPC protocol from a small, fixed number of selector
+ * threads rather than a thread per connection.
+ *
+ * The first event loop accepts connections and hands them out to the loops
+ * in turn. Each loop reads whatever its connections have available and
+ * passes it to their {@link SequencedProtoChannel}, which decodes complete
+ * messages and hands them to its callback. Callbacks must not block; the
+ * {@link ServerRpcProvider} dispatches RPCs to its worker pool. Writes are
+ * made by the writer of each connection's {@link OutboundQueue}; a loop only
+ * watches a connection whose socket buffer has filled up, and hands it back
+ * to its writer once it is writable again.
+ */
+final class RpcSelectorServer {
+
+  private static final Log LOG = Log.get(RpcSelectorServer.class);
+
+  /** Sets up and tears down connections accepted by the server. */
+  interface ConnectionHandler {
+    /**
+     * Sets up a newly accepted connection.
+     *
+     * @param channel the connection's channel, already non-blocking
+     * @return the channel to feed the connection's input to
+     */
+    SequencedProtoChannel connected(SocketChannel channel);
+
+    /**
+     * Called once the connection has been closed, by either end.
+     */
+    void disconnected(SocketChannel channel);
+  }
+
+  /** A selector and the thread running it. */
+  private final class EventLoop implements Runnable {
+
+    /** A connection served by this loop, attached to its selection key. */
+    private final class Connection implements OutboundQueue.Monitor {
+      final SequencedProtoChannel protoChannel;
+      SelectionKey key;
+      // Only touched by the loop.
+      /** Resumes writing once the channel is writable. */
+      private Runnable onWritable = null;
+      private boolean closed = false;
+
+      Connection(SequencedProtoChannel protoChannel) {
+        this.protoChannel = protoChannel;
+      }
+
+      @Override
+      public void runWhenWritable(final Runnable task) {
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            if (key.isValid()) {
+              onWritable = task;
+              key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+          }
+        });
+      }
+
+      @Override
+      public void closed() {
+        // The key was cancelled when the queue closed the channel, so the
+        // selector won't report it; clean it up like any other close.
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            close(key);
+          }
+        });
+      }
+
+      void writable() {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        Runnable task = onWritable;
+        onWritable = null;
+        if (task != null) {
+          task.run();
+        }
+      }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    EventLoop(int index) throws IOException {
+      selector = Selector.open();
+      thread = new Thread(this, "RpcSelector-" + index);
+    }
+
+    /** Runs a task on this loop's thread, e.g. to register a channel. */
+    void execute(Runnable task) {
+      pending.add(task);
+      selector.wakeup();
+    }
+
+    void stop() {
+      running = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select();
+          Runnable task;
+          while ((task = pending.poll()) != null) {
+            task.run();
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+            if (key.isWritable()) {
+              ((Connection) key.attachment()).writable();
+            }
+            if (key.isValid() && key.isReadable()) {
+              read(key);
+            }
+          }
+        }
+      } catch (IOException e) {
+        LOG.severe("RPC selector loop failed", e);
+      } finally {
+        // Register connections still waiting, so that they are closed too.
+        Runnable task;
+        while ((task = pending.poll()) != null) {
+          task.run();
+        }
+        for (SelectionKey key : selector.keys()) {
+          if (key.isValid() && key.attachment() != null) {
+            close(key);
+          }
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close selector", e);
+        }
+      }
+    }
+
+    private void accept() {
+      SocketChannel channel;
+      try {
+        while ((channel = server.accept()) != null) {
+          channel.configureBlocking(false);
+          loops[nextLoop].add(channel);
+          nextLoop = (nextLoop + 1) % loops.length;
+        }
+      } catch (ClosedChannelException e) {
+        // The server is shutting down.
+      } catch (IOException e) {
+        LOG.warning("Failed to accept connection", e);
+      }
+    }
+
+    /** Starts serving a connection from this loop. */
+    private void add(final SocketChannel channel) {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          SequencedProtoChannel protoChannel = handler.connected(channel);
+          Connection connection = new Connection(protoChannel);
+          try {
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            protoChannel.setMonitor(connection);
+          } catch (ClosedChannelException e) {
+            protoChannel.close();
+            handler.disconnected(channel);
+          }
+        }
+      });
+    }
+
+    private void read(SelectionKey key) {
+      SequencedProtoChannel protoChannel = ((Connection) key.attachment()).protoChannel;
+      boolean open;
+      try {
+        open = protoChannel.readAvailable();
+      } catch (IOException e) {
+        LOG.info("Failed to read from " + key.channel() + ", closing it", e);
+        open = false;
+      } catch (RuntimeException e) {
+        // Bad input from this connection mustn't take down the others.
+        LOG.warning("Closing " + key.channel() + " after failing to handle its input", e);
+        open = false;
+      }
+      if (!open) {
+        close(key);
+      }
+    }
+
+    private void close(SelectionKey key) {
+      Connection connection = (Connection) key.attachment();
+      if (connection.closed) {
+        return;
+      }
+      connection.closed = true;
+      key.cancel();
+      connection.protoChannel.close();
+      handler.disconnected((SocketChannel) key.channel());
+    }
+  }
+
+  private final ServerSocketChannel server;
+  private final ConnectionHandler handler;
+  private final EventLoop[] loops;
+
+  /** Loop to give the next accepted connection to; used by the first loop only. */
+  private int nextLoop = 0;
+
+  /**
+   * @param server a bound server channel
+   * @param selectorThreads the number of event loops
+   * @param handler sets up accepted connections
+   */
+  RpcSelectorServer(ServerSocketChannel server, int selectorThreads, ConnectionHandler handler)
+      throws IOException {
+    Preconditions.checkArgument(selectorThreads > 0, "Need at least one selector thread");
+    this.server = server;
+    this.handler = handler;
+    this.loops = new EventLoop[selectorThreads];
+    for (int i = 0; i < selectorThreads; i++) {
+      loops[i] = new EventLoop(i);
+    }
+  }
+
+  /** Starts accepting and serving connections. */
+  void start() throws IOException {
+    server.configureBlocking(false);
+    server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    for (EventLoop loop : loops) {
+      loop.thread.start();
+    }
+  }
+
+  /**
+   * Stops the event loops, closing every connection they were serving, and
+   * waits for them to finish. The server channel is left to its owner.
+   */
+  void stop() throws InterruptedException {
+    for (EventLoop loop : loops) {
+      loop.stop();
+    }
+    for (EventLoop loop : loops) {
+      loop.thread.join();
+    }
+  }
+}
@@ -23,53 +23,82 @@ import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.JsonFormat;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageLite;
-import com.google.protobuf.UnknownFieldSet;
 
 import org.waveprotocol.wave.examples.fedone.util.Log;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Create a two-way channel for protocol buffer exchange. Enhances this exchange
  * with metadata in the form of sequence numbers.
+ *
+ * Large messages may be compressed, once each end knows the other can
+ * decompress them: a frame whose size prefix has its top bit set holds a
+ * message compressed by {@link MessageCompressor}, and an empty such frame
+ * offers compression. One end offers with {@link #offerCompression()}; the
+ * other, if it has compression enabled, answers with an offer of its own.
  * 
  *
  */
 public class SequencedProtoChannel extends MessageExpectingChannel {
   private static final Log LOG = Log.get(SequencedProtoChannel.class);
-  private final CodedOutputStream outputStream;
+
+  /** Default number of bytes which may be queued for writing per channel. */
+  public static final int DEFAULT_OUTBOUND_QUEUE_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * Writes outbound messages for all channels. Shared rather than taken from
+   * the channel's thread pool, which may have no thread to spare once the
+   * read loop is running.
+   */
+  private static final ExecutorService WRITER_POOL =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "SequencedProtoChannelWriter-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final OutboundQueue outboundQueue;
   private final ByteChannel channel;
   private final ExecutorService threadPool;
+  private final ProtoCallback callback;
   private final Runnable asyncRead;
   private boolean isReading = false;
-  
+
+  /** Default size of the largest message which may be received. */
+  public static final int DEFAULT_MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
   /**
-   * Internal helper method to remove and return the specified number of bytes
-   * from the beginning of the specified ByteBuffer.
-   * 
-   * @param buffer the ByteBuffer instance to remove data from
-   * @param size the number of bytes requested
-   * @return an array of length exactly equal to size, the bytes at the start of
-   *         the buffer which have now been removed - or null if the buffer
-   *         contained less than this number of bytes
+   * Usual size of the input buffer. It grows to hold larger messages as they
+   * arrive and shrinks back once they have been read.
    */
-  private static byte[] popFromBuffer(ByteBuffer buffer, int size) {
-    if (buffer.position() < size) {
-      return null;
-    } else {
-      byte[] result = new byte[size];
-      buffer.flip();
-      buffer.get(result);
-      buffer.compact();
-      return result;
-    }
-  }
+  private static final int INPUT_BUFFER_SIZE = 8192 * 4;
+
+  private final int maxMessageBytes;
+
+  /** Marks, in a frame's size prefix, a compressed message. */
+  private static final int COMPRESSED_FLAG = 0x80000000;
+
+  private final MessageCompressor compressor;
+  private final AtomicBoolean compressionOffered = new AtomicBoolean();
+  /** Whether the other end has offered compression, so can decompress. */
+  private volatile boolean peerDecompresses = false;
+
+  // Input state, only touched by the one thread reading at any time.
+  private ByteBuffer inputBuffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
 
   /**
    * Instantiate a new SequencedProtoChannel. Requires the backing SocketChannel
@@ -79,73 +108,46 @@ public class SequencedProtoChannel extends MessageExpectingChannel {
    * @param callback the callback for incoming known and unknown messages
    * @param threadPool the service used to create threads
    */
-  public SequencedProtoChannel(final ByteChannel channel, final ProtoCallback callback,
+  public SequencedProtoChannel(ByteChannel channel, ProtoCallback callback,
       ExecutorService threadPool) {
+    this(channel, callback, threadPool, DEFAULT_MAX_MESSAGE_BYTES,
+        DEFAULT_OUTBOUND_QUEUE_BYTES,
+        new MessageCompressor(MessageCompressor.DEFAULT_THRESHOLD, new CompressionStats()));
+  }
+
+  /**
+   * Instantiate a new SequencedProtoChannel with limits on its input and on
+   * its outbound queue, and the given compressor. Outgoing messages are
+   * queued and written by a separate writer thread; a message which would
+   * take more than {@code maxQueuedBytes} queued closes the channel instead,
+   * without waiting.
+   *
+   * @param channel the backing ByteChannel, which must be blocking
+   * @param callback the callback for incoming known and unknown messages
+   * @param threadPool the service used to create threads
+   * @param maxMessageBytes the size of the largest message which may be
+   *        received; a larger one is a protocol error
+   * @param maxQueuedBytes the number of bytes which may be queued for writing
+   * @param compressor compresses and decompresses this channel's messages
+   */
+  public SequencedProtoChannel(final ByteChannel channel, final ProtoCallback callback,
+      ExecutorService threadPool, int maxMessageBytes, int maxQueuedBytes,
+      MessageCompressor compressor) {
     this.channel = channel;
+    this.compressor = compressor;
     this.threadPool = threadPool;
+    this.callback = callback;
+    this.maxMessageBytes = maxMessageBytes;
+    this.outboundQueue =
+        new OutboundQueue(channel, WRITER_POOL, maxQueuedBytes);
 
     this.asyncRead = new Runnable() {
       @Override
       public void run() {
-        final int bufferSize = 8192 * 4;
-        ByteBuffer inputBuffer = ByteBuffer.allocate(bufferSize);
-        int requiredSize = -1;
         try {
           // we don't have enough data - read from buffer
           while (-1 != channel.read(inputBuffer)) {
-            
-            // While there's still data available, try to process it.
-            while (inputBuffer.position() > 0) {
-
-              // Grab our requiredSize if we still need it, popping a 32-bit int.
-              if (requiredSize == -1) {
-                byte[] buffer = popFromBuffer(inputBuffer, CodedOutputStream.LITTLE_ENDIAN_32_SIZE);
-                if (buffer != null) {
-                  requiredSize = CodedInputStream.newInstance(buffer).readRawLittleEndian32();
-                } else {
-                  // not enough data - fall out
-                  break;
-                }
-              }
-  
-              // Try to grab the whole payload.
-              if (requiredSize > bufferSize) {
-                throw new IllegalStateException(String.format("Payload (%d bytes) too large for" +
-                		" buffer (%d bytes)", requiredSize, bufferSize));
-              } else if (requiredSize > -1) {
-                byte[] buffer = popFromBuffer(inputBuffer, requiredSize);
-                if (buffer != null) {
-                  CodedInputStream inputStream = CodedInputStream.newInstance(buffer);
-                  long incomingSequenceNo = inputStream.readInt64();
-                  String messageType = inputStream.readString();
-                  Message prototype = getMessagePrototype(messageType);
-                  if (prototype == null) {
-                    LOG.info("Received misunderstood message (??? " + messageType + " ???, seq "
-                        + incomingSequenceNo + ") from: " + channel);
-                    // We have to emulate some of the semantics of reading a
-                    // whole message here, including reading its encoded length.
-                    final int length = inputStream.readRawVarint32();
-                    final int oldLimit = inputStream.pushLimit(length);
-                    UnknownFieldSet unknownFieldSet = UnknownFieldSet.parseFrom(inputStream);
-                    inputStream.popLimit(oldLimit);
-                    callback.unknown(incomingSequenceNo, messageType, unknownFieldSet);
-                  } else {
-                    // TODO: change to LOG.debug
-                    LOG.fine("Received message (" + messageType + ", seq "
-                        + incomingSequenceNo + ") from: " + channel);
-                    Message.Builder builder = prototype.newBuilderForType();
-                    inputStream.readMessage(builder, null);
-                    callback.message(incomingSequenceNo, builder.build());
-                  }
-  
-                  // Reset the required size for the next invocation of this loop.
-                  requiredSize = -1;
-                } else {
-                  // not enough data - fall out
-                  break;
-                }
-              }
-            }
+            decodeFrames();
           }
         } catch (IOException e) {
           // TODO: error case.
@@ -153,23 +155,6 @@ public class SequencedProtoChannel extends MessageExpectingChannel {
         }
       }
     };
-
-    outputStream = CodedOutputStream.newInstance(new OutputStream() {
-      @Override
-      public void write(int b) throws IOException {
-        channel.write(ByteBuffer.wrap(new byte[] {(byte) b}));
-      }
-
-      @Override
-      public void write(byte[] buf) throws IOException {
-        channel.write(ByteBuffer.wrap(buf));
-      }
-
-      @Override
-      public void write(byte[] buf, int off, int len) throws IOException {
-        channel.write(ByteBuffer.wrap(buf, off, len));
-      }
-    });
   }
 
   /**
@@ -193,6 +178,102 @@ public class SequencedProtoChannel extends MessageExpectingChannel {
     isReading = true;
   }
   
+  /**
+   * Reads whatever is available from a non-blocking channel and dispatches
+   * any complete messages to the callback. For use by a selector loop in
+   * place of {@link #startAsyncRead()}.
+   *
+   * @return false if the end of the stream has been reached
+   */
+  boolean readAvailable() throws IOException {
+    int read;
+    while ((read = channel.read(inputBuffer)) > 0) {
+      decodeFrames();
+    }
+    return read != -1;
+  }
+
+  /**
+   * Dispatches each complete message in the input buffer to the callback,
+   * leaving any incomplete one in the buffer. Messages are parsed straight
+   * from the buffer's backing array.
+   */
+  private void decodeFrames() throws IOException {
+    inputBuffer.flip();
+    try {
+      while (inputBuffer.remaining() >= CodedOutputStream.LITTLE_ENDIAN_32_SIZE) {
+        int start = inputBuffer.position();
+        int prefix = peekFrameSize(start);
+        boolean compressed = (prefix & COMPRESSED_FLAG) != 0;
+        int requiredSize = prefix & ~COMPRESSED_FLAG;
+        if (requiredSize > maxMessageBytes) {
+          throw new IllegalStateException(String.format("Payload (%d bytes) larger than" +
+              " limit (%d bytes)", requiredSize, maxMessageBytes));
+        }
+        int frameEnd = start + CodedOutputStream.LITTLE_ENDIAN_32_SIZE + requiredSize;
+        if (frameEnd > inputBuffer.limit()) {
+          // not enough data - fall out
+          break;
+        }
+        int payloadStart = inputBuffer.arrayOffset() + start
+            + CodedOutputStream.LITTLE_ENDIAN_32_SIZE;
+        inputBuffer.position(frameEnd);
+        if (!compressed) {
+          readSequencedMessage(CodedInputStream.newInstance(inputBuffer.array(), payloadStart,
+              requiredSize), callback, channel);
+        } else if (requiredSize == 0) {
+          compressionOffered();
+        } else {
+          byte[] message = compressor.inflate(inputBuffer.array(), payloadStart, requiredSize,
+              maxMessageBytes);
+          readSequencedMessage(CodedInputStream.newInstance(message), callback, channel);
+        }
+      }
+    } finally {
+      inputBuffer.compact();
+    }
+    resizeInputBuffer();
+  }
+
+  /**
+   * @return the little-endian size prefix of the frame starting at the given
+   *         index of the input buffer
+   */
+  private int peekFrameSize(int index) {
+    return (inputBuffer.get(index) & 0xff)
+        | (inputBuffer.get(index + 1) & 0xff) << 8
+        | (inputBuffer.get(index + 2) & 0xff) << 16
+        | (inputBuffer.get(index + 3) & 0xff) << 24;
+  }
+
+  /**
+   * Grows the input buffer if the frame at its start doesn't fit, or shrinks
+   * it back to its usual size once a large frame has been read. Called with
+   * the buffer ready for reading into.
+   */
+  private void resizeInputBuffer() {
+    int needed = inputBuffer.position();
+    if (needed >= CodedOutputStream.LITTLE_ENDIAN_32_SIZE) {
+      int requiredSize = peekFrameSize(0) & ~COMPRESSED_FLAG;
+      if (requiredSize <= maxMessageBytes) {
+        needed = Math.max(needed, CodedOutputStream.LITTLE_ENDIAN_32_SIZE + requiredSize);
+      }
+    }
+    int capacity;
+    if (needed > inputBuffer.capacity()) {
+      capacity = Math.max(needed, (int) Math.min(2L * inputBuffer.capacity(),
+          (long) maxMessageBytes + CodedOutputStream.LITTLE_ENDIAN_32_SIZE));
+    } else if (inputBuffer.capacity() > INPUT_BUFFER_SIZE && needed <= INPUT_BUFFER_SIZE) {
+      capacity = INPUT_BUFFER_SIZE;
+    } else {
+      return;
+    }
+    ByteBuffer resized = ByteBuffer.allocate(capacity);
+    inputBuffer.flip();
+    resized.put(inputBuffer);
+    inputBuffer = resized;
+  }
+
   /**
    * Send the given message across the connection along with the sequence number.
    * 
@@ -205,23 +286,92 @@ public class SequencedProtoChannel extends MessageExpectingChannel {
 
   private void internalSendMessage(long sequenceNo, MessageLite message, String messageType) {
     int messageSize = message.getSerializedSize();
-    int size = CodedOutputStream.computeInt64SizeNoTag(sequenceNo)
-             + CodedOutputStream.computeStringSizeNoTag(messageType)
-             + CodedOutputStream.computeMessageSizeNoTag(message);
+    int size = computeSequencedMessageSize(sequenceNo, messageType, message);
     // TODO: change to LOG.debug
     LOG.fine("Sending message (" + messageType + ", seq " + sequenceNo + ") to: " + channel);
-    // Only one message should be written at at time.
-    synchronized (outputStream) {
-      try {
-        // TODO: turn this into a data structure which can read/write itself
-        outputStream.writeRawLittleEndian32(size); // i.e., not including itself
-        outputStream.writeInt64NoTag(sequenceNo);
-        outputStream.writeStringNoTag(messageType);
-        outputStream.writeMessageNoTag(message);
-        outputStream.flush();
-      } catch (IOException e) {
-        throw new IllegalStateException(e);
+    // Frame the message up front so that the queue only holds finished frames,
+    // written in the order they were queued.
+    byte[] frame = new byte[CodedOutputStream.LITTLE_ENDIAN_32_SIZE + size];
+    CodedOutputStream outputStream = CodedOutputStream.newInstance(frame);
+    try {
+      // TODO: turn this into a data structure which can read/write itself
+      outputStream.writeRawLittleEndian32(size); // i.e., not including itself
+      writeSequencedMessage(outputStream, sequenceNo, messageType, message);
+      outputStream.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    if (peerDecompresses) {
+      byte[] compressed =
+          compressor.deflate(frame, CodedOutputStream.LITTLE_ENDIAN_32_SIZE, size);
+      if (compressed != null) {
+        frame = createFrame(compressed.length | COMPRESSED_FLAG, compressed);
       }
     }
+    if (!outboundQueue.offer(frame)) {
+      LOG.info("Dropped message (" + messageType + ", seq " + sequenceNo + ") to closed: "
+          + channel);
+    }
+  }
+
+  /**
+   * Tells the other end that this one can decompress messages, if this
+   * channel's compressor is enabled. If the other end can too, it answers in
+   * kind, after which each end compresses large messages to the other. An
+   * end which doesn't know of compression takes the offer for a protocol
+   * error, so only offer to ends which do.
+   */
+  public void offerCompression() {
+    if (compressor.isEnabled() && compressionOffered.compareAndSet(false, true)) {
+      if (!outboundQueue.offer(createFrame(COMPRESSED_FLAG, new byte[0]))) {
+        LOG.info("Couldn't offer compression to closed: " + channel);
+      }
+    }
+  }
+
+  /** Takes up the other end's offer of compression, and answers it. */
+  private void compressionOffered() {
+    if (compressor.isEnabled()) {
+      LOG.fine("Compressing messages to: " + channel);
+      offerCompression();
+      peerDecompresses = true;
+    }
+  }
+
+  /** @return a frame with the given size prefix and payload. */
+  private static byte[] createFrame(int prefix, byte[] payload) {
+    byte[] frame = new byte[CodedOutputStream.LITTLE_ENDIAN_32_SIZE + payload.length];
+    CodedOutputStream outputStream = CodedOutputStream.newInstance(frame);
+    try {
+      outputStream.writeRawLittleEndian32(prefix);
+      outputStream.writeRawBytes(payload);
+      outputStream.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return frame;
+  }
+
+  /**
+   * Sets the monitor which resumes writing once the underlying channel, if
+   * non-blocking, is writable again after filling up, and which is told when
+   * the channel is closed for falling behind or failing to write.
+   */
+  void setMonitor(OutboundQueue.Monitor monitor) {
+    outboundQueue.setMonitor(monitor);
+  }
+
+  /**
+   * Closes the underlying channel, discarding any messages not yet written.
+   */
+  public void close() {
+    outboundQueue.close();
+  }
+
+  /**
+   * @return a description of the state of this channel's outbound queue.
+   */
+  public String getOutboundQueueStats() {
+    return outboundQueue.toString();
   }
 }
@@ -18,7 +18,6 @@
 package org.waveprotocol.wave.examples.fedone.rpc;
 
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.protobuf.Descriptors;
@@ -42,16 +41,13 @@ import org.eclipse.jetty.websocket.WebSocketServlet;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -63,15 +59,23 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class ServerRpcProvider {
   private static final Log LOG = Log.get(ServerRpcProvider.class);
+
+  /** Messages compressed and decompressed across all client RPC connections. */
+  public static final CompressionStats varzCompression = new CompressionStats();
   
   private final SocketAddress rpcHostingAddress;
   private final String websocketHost;
   private final Integer websocketPort;
-  private final Set<Connection> incomingConnections = Sets.newHashSet();
+  private final ConcurrentMap<SocketChannel, Connection> incomingConnections =
+      new ConcurrentHashMap<SocketChannel, Connection>();
   private final ExecutorService threadPool;
+  private final int selectorThreads;
+  private final int maxMessageBytes;
+  private final int outboundQueueBytes;
+  private final int compressionThreshold;
   private ServerSocketChannel rpcServer = null;
+  private RpcSelectorServer selectorServer = null;
   private Server websocketServer = null;
-  private Future<?> acceptorThread = null;
   
   // Mapping from incoming protocol buffer type -> specific handler.
   private final Map<Descriptors.Descriptor, RegisteredServiceMethod> registeredServices =
@@ -99,11 +103,12 @@ public class ServerRpcProvider {
       LOG.info("New Connection set up from " + this.channel);
       
       // Set up protoChannel, let it know to expect messages of all the
-      // registered service/method types.
+      // registered service/method types. Its input is read by the selector
+      // server rather than by a thread of its own.
       // TODO: dynamic lookup for these types instead
-      protoChannel = new SequencedProtoChannel(channel, this, threadPool);
+      protoChannel = new SequencedProtoChannel(channel, this, threadPool, maxMessageBytes,
+          outboundQueueBytes, new MessageCompressor(compressionThreshold, varzCompression));
       expectMessages(protoChannel);
-      protoChannel.startAsyncRead();
     }
     
     protected void sendMessage(long sequenceNo, Message message) {
@@ -114,8 +119,8 @@ public class ServerRpcProvider {
   class WebSocketConnection extends Connection {
     private WebSocketServerChannel socketChannel;
 
-    WebSocketConnection() {
-      socketChannel = new WebSocketServerChannel(this);
+    WebSocketConnection(boolean binary, MessageCompressor compressor, boolean spanFrames) {
+      socketChannel = new WebSocketServerChannel(this, binary, compressor, spanFrames);
       LOG.info("New websocket connection set up.");
       expectMessages(socketChannel);
     }
@@ -184,7 +189,7 @@ public class ServerRpcProvider {
                     }
                   });
 
-            // Kick off a new thread specific to this RPC.
+            // Run this RPC on the worker pool.
             activeRpcs.put(sequenceNo, controller);
             threadPool.execute(controller);
           }
@@ -213,20 +218,47 @@ public class ServerRpcProvider {
    * and WebSocket host and port. (The websocket isn't passed in as a 
    * SocketAddress beacuse Jetty requires host + port.)
    *
-   * Also accepts an ExecutorService for spawning managing threads.
-   * 
+   * Also accepts an ExecutorService on which RPCs are run.
+   *
    * @param rpcHost the hosting socket
    * @param websocketHost host for websocket server
    * @param websocketPort port for websocket server
-   * @param threadPool the service used to create threads
+   * @param threadPool the service on which RPCs are run
+   * @param selectorThreads the number of threads serving RPC connections
+   * @param maxMessageBytes the size of the largest message which may be
+   *        received from a connection
+   * @param outboundQueueBytes bytes which may be queued for writing to each
+   *        connection before it is closed as too slow
+   * @param compressionThreshold size in bytes of the smallest message
+   *        compressed to connections which accept compression, or -1 never to
+   *        compress
    */
-  public ServerRpcProvider(SocketAddress rpcHost, 
+  public ServerRpcProvider(SocketAddress rpcHost,
       String websocketHost, Integer websocketPort,
-      ExecutorService threadPool) {
+      ExecutorService threadPool, int selectorThreads, int maxMessageBytes,
+      int outboundQueueBytes, int compressionThreshold) {
     rpcHostingAddress = rpcHost;
     this.websocketHost = websocketHost;
     this.websocketPort = websocketPort;
     this.threadPool = threadPool;
+    this.selectorThreads = selectorThreads;
+    this.maxMessageBytes = maxMessageBytes;
+    this.outboundQueueBytes = outboundQueueBytes;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * Constructs a new ServerRpcProvider with one selector thread, the
+   * default message size and outbound queue limits of
+   * {@link SequencedProtoChannel} and the default compression threshold.
+   */
+  public ServerRpcProvider(SocketAddress rpcHost,
+      String websocketHost, Integer websocketPort,
+      ExecutorService threadPool) {
+    this(rpcHost, websocketHost, websocketPort, threadPool, 1,
+        SequencedProtoChannel.DEFAULT_MAX_MESSAGE_BYTES,
+        SequencedProtoChannel.DEFAULT_OUTBOUND_QUEUE_BYTES,
+        MessageCompressor.DEFAULT_THRESHOLD);
   }
 
   /**
@@ -241,9 +273,15 @@ public class ServerRpcProvider {
   public ServerRpcProvider(@Named("client_frontend_hostname") String rpcHost,
         @Named("client_frontend_port") Integer rpcPort,
         @Named("websocket_frontend_hostname") String websocketHost,
-        @Named("websocket_frontend_port") Integer websocketPort) {
+        @Named("websocket_frontend_port") Integer websocketPort,
+        @Named("rpc_selector_threads") int selectorThreads,
+        @Named("rpc_worker_threads") int workerThreads,
+        @Named("rpc_max_message_bytes") int maxMessageBytes,
+        @Named("rpc_outbound_queue_bytes") int outboundQueueBytes,
+        @Named("rpc_compression_threshold") int compressionThreshold) {
     this(new InetSocketAddress(rpcHost, rpcPort),
-         websocketHost, websocketPort);
+         websocketHost, websocketPort, Executors.newFixedThreadPool(workerThreads),
+         selectorThreads, maxMessageBytes, outboundQueueBytes, compressionThreshold);
   }
 
   /**
@@ -253,28 +291,27 @@ public class ServerRpcProvider {
     rpcServer = ServerSocketChannel.open();
     rpcServer.socket().setReuseAddress(true);
     rpcServer.socket().bind(rpcHostingAddress);
-    rpcServer.configureBlocking(true);
 
-    // Spawn a new server acceptor thread, which must accept incoming
-    // connections indefinitely - until a ClosedChannelException is thrown.
-    acceptorThread = threadPool.submit(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          LOG.fine("ServerRpcProvider acceptorThread waiting for connections.");
-          while (true) {
-            SocketChannel serverSocket = rpcServer.accept();
-            incomingConnections.add(new SequencedProtoChannelConnection(serverSocket));
+    selectorServer = new RpcSelectorServer(rpcServer, selectorThreads,
+        new RpcSelectorServer.ConnectionHandler() {
+          @Override
+          public SequencedProtoChannel connected(SocketChannel channel) {
+            SequencedProtoChannelConnection connection =
+                new SequencedProtoChannelConnection(channel);
+            incomingConnections.put(channel, connection);
+            return connection.protoChannel;
           }
-        } catch (ClosedChannelException e) {
-          return;
-        } catch (IOException e) {
-          throw new IllegalStateException("Server should not throw a misunderstood IOException", e);
-        }
-      }
-    });
+
+          @Override
+          public void disconnected(SocketChannel channel) {
+            LOG.info("Connection closed: " + channel);
+            incomingConnections.remove(channel);
+          }
+        });
+    selectorServer.start();
+    LOG.fine("ServerRpcProvider waiting for connections.");
   }
-  
+
   public void startWebSocketServer() {
     websocketServer = new Server();
     Connector c = new SelectChannelConnector();
@@ -303,7 +340,18 @@ public class ServerRpcProvider {
   public class WaveWebSocketServlet extends WebSocketServlet {
     protected WebSocket doWebSocketConnect(HttpServletRequest request, String protocol)
     {
-      WebSocketConnection connection = new WebSocketConnection();
+      // Clients asking for a binary subprotocol are sent binary frames, with
+      // large messages compressed and spanning frames if they ask for that;
+      // any other client gets JSON, each message in one frame unless it asks
+      // for the stream subprotocol.
+      WebSocketConnection connection;
+      if (WebSocketChannel.DEFLATE_PROTOCOL.equals(protocol)) {
+        connection = new WebSocketConnection(true,
+            new MessageCompressor(compressionThreshold, varzCompression), true);
+      } else {
+        connection = new WebSocketConnection(WebSocketChannel.BINARY_PROTOCOL.equals(protocol),
+            null, WebSocketChannel.JSON_STREAM_PROTOCOL.equals(protocol));
+      }
       return connection.getWebSocketServerChannel();
     }
   }
@@ -339,16 +387,11 @@ public class ServerRpcProvider {
     } catch (Exception e) {
       LOG.warning("Fatal error stopping websocket server.", e);
     }
-    if (acceptorThread != null) {
+    if (selectorServer != null) {
       try {
-        acceptorThread.get();
+        selectorServer.stop();
       } catch (InterruptedException e) {
         throw new IllegalStateException();
-      } catch (ExecutionException e) {
-        throw new IllegalStateException("Server thread threw an exception", e.getCause());
-      }
-      if (!acceptorThread.isDone()) {
-        throw new IllegalStateException("Server acceptor thread has not stopped.");
       }
     }
     LOG.fine("server shutdown.");
@@ -18,25 +18,137 @@
 package org.waveprotocol.wave.examples.fedone.rpc;
 
 import java.io.IOException;
+import java.util.Arrays;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonParseException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.JsonFormat;
 import com.google.protobuf.Message;
 
 import org.waveprotocol.wave.examples.fedone.util.Log;
 
-import org.eclipse.jetty.websocket.WebSocket;
-
 /**
  * A channel abstraction for websocket, for sending and receiving strings.
+ *
+ * By default messages are sent as JSON strings. If the connection was opened
+ * with the {@link #BINARY_PROTOCOL} subprotocol, they are instead sent in
+ * binary frames, each holding the sequence number, type and serialized
+ * message just as a {@link SequencedProtoChannel} frame does. Either kind of
+ * message is understood on input. With the {@link #DEFLATE_PROTOCOL}
+ * subprotocol, each binary message is instead preceded by a varint holding
+ * its length shifted left once, with the low bit set if it is compressed by
+ * a {@link MessageCompressor}; large messages are compressed both ways.
+ *
+ * Each message is sent in a single frame, unless the peer asked for
+ * {@link #JSON_STREAM_PROTOCOL} or {@link #DEFLATE_PROTOCOL}: then messages
+ * longer than {@link #MAX_FRAME_SIZE} span several frames, so that neither
+ * end needs a buffer the size of the largest message. Messages spanning
+ * frames are joined back together on input whatever the subprotocol. JSON
+ * messages are printed straight into the frames and parsed straight from
+ * them by {@link ProtoJsonCodec}.
  */
 public abstract class WebSocketChannel extends MessageExpectingChannel {
   private static final Log LOG = Log.get(WebSocketChannel.class);
   private static final int VERSION = 0;
 
+  /** The WebSocket subprotocol in which messages are sent in binary frames. */
+  public static final String BINARY_PROTOCOL = "fedone-protobuf";
+
+  /**
+   * The WebSocket subprotocol in which messages are sent in binary frames,
+   * large ones compressed.
+   */
+  public static final String DEFLATE_PROTOCOL = "fedone-protobuf-deflate";
+
+  /**
+   * The WebSocket subprotocol in which messages are sent as JSON, large ones
+   * spanning several text frames.
+   */
+  public static final String JSON_STREAM_PROTOCOL = "fedone-json-stream";
+
+  /** Size in bytes of the largest frame sent when messages may span frames. */
+  public static final int MAX_FRAME_SIZE = 16 * 1024;
+
+  /** Size in bytes of the largest message accepted. */
+  private static final int MAX_MESSAGE_SIZE = SequencedProtoChannel.DEFAULT_MAX_MESSAGE_BYTES;
+
+  /**
+   * Collects ASCII text into frames, sending each as it fills if messages may
+   * span frames, and otherwise growing the frame to hold the whole message.
+   */
+  private final class TextFrameOutput extends ProtoJsonCodec.Output {
+    private byte[] frame = new byte[MAX_FRAME_SIZE];
+    private int length = 0;
+
+    @Override
+    void write(char c) {
+      if (length == frame.length) {
+        if (spanFrames) {
+          flush();
+        } else {
+          frame = Arrays.copyOf(frame, frame.length * 2);
+        }
+      }
+      frame[length++] = (byte) c;
+    }
+
+    /** Sends whatever is collected. */
+    void flush() {
+      if (length > 0) {
+        int frameLength = length;
+        length = 0;
+        sendTextFrame(frame, 0, frameLength);
+      }
+      if (frame.length > MAX_FRAME_SIZE) {
+        // Don't hold on to the room a rare large message needed.
+        frame = new byte[MAX_FRAME_SIZE];
+      }
+    }
+  }
+
+  /**
+   * Escapes what is written as the contents of a JSON string. Since the
+   * codec's output is ASCII without control characters, only quotes and
+   * backslashes need escaping.
+   */
+  private static final class QuotingOutput extends ProtoJsonCodec.Output {
+    private final ProtoJsonCodec.Output out;
+
+    QuotingOutput(ProtoJsonCodec.Output out) {
+      this.out = out;
+    }
+
+    @Override
+    void write(char c) throws IOException {
+      if (c == '"' || c == '\\') {
+        out.write('\\');
+      }
+      out.write(c);
+    }
+  }
+
   private final ProtoCallback callback;
-  private Gson gson = new Gson();
+  private final boolean binary;
+  private final MessageCompressor compressor;
+  private final boolean spanFrames;
+
+  /** Guards the output, so that the frames of messages don't interleave. */
+  private final Object sendLock = new Object();
+  private final TextFrameOutput textOutput = new TextFrameOutput();
+  private final QuotingOutput quotedTextOutput = new QuotingOutput(textOutput);
+
+  /** Text received but not yet making up a whole message. */
+  private final StringBuilder pendingText = new StringBuilder();
+  /** How far pendingText has been scanned for the end of the message. */
+  private int scannedText = 0;
+  private int textDepth = 0;
+  private boolean inTextString = false;
+  private boolean textEscape = false;
+
+  /** Bytes received but not yet making up a whole message. */
+  private byte[] pendingBytes = new byte[0];
+  private int pendingBytesLength = 0;
   
   /**
    * Constructs a new WebSocketChannel, using the callback to handle any
@@ -46,75 +158,346 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    *                 channel
    */
   public WebSocketChannel(ProtoCallback callback) {
-    this.callback = callback;
+    this(callback, false);
   }
-  
+
   /**
-   * A simple message wrapper that bundles a json string with a version,
-   * sequence number, and type information.
+   * Constructs a new WebSocketChannel, using the callback to handle any
+   * incoming messages.
+   *
+   * @param callback a protocallback to be called when data arrives on this
+   *                 channel
+   * @param binary whether to send messages in binary frames rather than as
+   *               JSON strings
    */
-  private static class MessageWrapper {
-    private int version;
-    private long sequenceNumber;
-    private String messageType;
-    private String messageJson;
-    
-    MessageWrapper() {
-      // no-args constructor
-    }
-    MessageWrapper(int version, long sequenceNumber, String messageType, 
-        String messageJson) {
-      this.version = version;
-      this.sequenceNumber = sequenceNumber;
-      this.messageType = messageType;
-      this.messageJson = messageJson;
+  public WebSocketChannel(ProtoCallback callback, boolean binary) {
+    this(callback, binary, null);
+  }
+
+  /**
+   * Constructs a new WebSocketChannel, using the callback to handle any
+   * incoming messages.
+   *
+   * @param callback a protocallback to be called when data arrives on this
+   *                 channel
+   * @param binary whether to send messages in binary frames rather than as
+   *               JSON strings
+   * @param compressor if not null, binary messages are sent and received
+   *                   with the framing of {@link #DEFLATE_PROTOCOL}, and
+   *                   compressed with this
+   */
+  public WebSocketChannel(ProtoCallback callback, boolean binary,
+      MessageCompressor compressor) {
+    this(callback, binary, compressor, compressor != null);
+  }
+
+  /**
+   * Constructs a new WebSocketChannel, using the callback to handle any
+   * incoming messages.
+   *
+   * @param callback a protocallback to be called when data arrives on this
+   *                 channel
+   * @param binary whether to send messages in binary frames rather than as
+   *               JSON strings
+   * @param compressor if not null, binary messages are sent and received
+   *                   with the framing of {@link #DEFLATE_PROTOCOL}, and
+   *                   compressed with this
+   * @param spanFrames whether the peer negotiated that large messages may be
+   *                   sent across several frames
+   */
+  public WebSocketChannel(ProtoCallback callback, boolean binary,
+      MessageCompressor compressor, boolean spanFrames) {
+    if (compressor != null && !binary) {
+      throw new IllegalArgumentException("Only binary messages may be compressed");
     }
+    this.callback = callback;
+    this.binary = binary;
+    this.compressor = compressor;
+    this.spanFrames = spanFrames;
+  }
+
+  /** @return whether messages are sent in binary frames. */
+  public boolean isBinary() {
+    return binary;
   }
   
   /**
-   * Convert the given string into a Message object and pass it to the proto 
+   * Take the text of a frame, and once it completes a JSON-encoded message
+   * wrapper (holding a version, sequence number, type and the message as a
+   * JSON string), convert it into a Message object and pass it to the proto
    * callback.
    *
-   * @param data A json-encoded MessageWrapper object.
+   * @param data Text of a frame.
    */
   public void handleMessageString(String data) {
-    MessageWrapper wrapper = null;
+    pendingText.append(data);
+    int messageStart = 0;
     try {
-      wrapper = gson.fromJson(data, MessageWrapper.class);
-    } catch (JsonParseException jpe) {
-      LOG.info("Unable to parse JSON: " + jpe.getMessage());
-      throw new IllegalArgumentException(jpe);
+      for (int i = scannedText; i < pendingText.length(); i++) {
+        char c = pendingText.charAt(i);
+        if (inTextString) {
+          if (textEscape) {
+            textEscape = false;
+          } else if (c == '\\') {
+            textEscape = true;
+          } else if (c == '"') {
+            inTextString = false;
+          }
+        } else if (c == '"') {
+          inTextString = true;
+        } else if (c == '{' || c == '[') {
+          textDepth++;
+        } else if ((c == '}' || c == ']') && textDepth > 0) {
+          textDepth--;
+          if (textDepth == 0) {
+            int messageEnd = i + 1;
+            int start = messageStart;
+            messageStart = messageEnd;
+            handleJsonMessage(start, messageEnd);
+          }
+        } else if (textDepth == 0 && !Character.isWhitespace(c)) {
+          throw new IllegalArgumentException("Expected a JSON object but found '" + c + "'");
+        }
+      }
+      if (pendingText.length() - messageStart > MAX_MESSAGE_SIZE) {
+        throw new IllegalArgumentException(String.format("Message larger than limit (%d chars)",
+            MAX_MESSAGE_SIZE));
+      }
+    } catch (IllegalArgumentException e) {
+      // Start afresh with the next frame.
+      messageStart = pendingText.length();
+      textDepth = 0;
+      inTextString = false;
+      textEscape = false;
+      throw e;
+    } finally {
+      pendingText.delete(0, messageStart);
+      scannedText = pendingText.length();
+      if (pendingText.length() == 0 && pendingText.capacity() > MAX_FRAME_SIZE * 2) {
+        pendingText.setLength(MAX_FRAME_SIZE);
+        pendingText.trimToSize();
+        pendingText.setLength(0);
+      }
     }
-    
-    if (wrapper.version != VERSION) {
-      LOG.info("Bad message version number: " + wrapper.version);
-      throw new IllegalArgumentException("Bad version number: " + wrapper.version);
+  }
+
+  /**
+   * Parses the message wrapper in the given range of pendingText and passes
+   * the message it holds to the proto callback.
+   */
+  private void handleJsonMessage(int start, int end) {
+    ProtoJsonCodec.SequenceInput in = new ProtoJsonCodec.SequenceInput(pendingText, start, end);
+    long version = VERSION;
+    long sequenceNumber = 0;
+    String messageType = null;
+    Message message = null;
+    String messageJson = null;
+    try {
+      in.expect('{');
+      if (!in.consume('}')) {
+        do {
+          String name = in.readString();
+          in.expect(':');
+          if (name.equals("version")) {
+            version = Long.parseLong(in.readToken());
+          } else if (name.equals("sequenceNumber")) {
+            sequenceNumber = Long.parseLong(in.readToken());
+          } else if (name.equals("messageType")) {
+            messageType = in.readString();
+          } else if (name.equals("messageJson")) {
+            Message prototype = (messageType != null) ? getMessagePrototype(messageType) : null;
+            if (prototype != null) {
+              // Parse the message straight out of the string holding it.
+              in.skipWhitespace();
+              int jsonStart = in.getPosition();
+              try {
+                Message.Builder builder = prototype.newBuilderForType();
+                ProtoJsonCodec.Input jsonIn = in.quoted();
+                ProtoJsonCodec.merge(jsonIn, builder);
+                jsonIn.expectEnd();
+                message = builder.build();
+              } catch (JsonFormat.ParseException pe) {
+                // Read it as a string, to be parsed again and reported below.
+                in.setPosition(jsonStart);
+                messageJson = in.readString();
+              }
+            } else {
+              messageJson = in.readString();
+            }
+          } else {
+            in.skipValue();
+          }
+        } while (in.consume(','));
+        in.expect('}');
+      }
+      in.expectEnd();
+    } catch (JsonFormat.ParseException pe) {
+      LOG.info("Unable to parse JSON: " + pe.getMessage());
+      throw new IllegalArgumentException(pe);
+    } catch (NumberFormatException nfe) {
+      LOG.info("Unable to parse JSON: " + nfe.getMessage());
+      throw new IllegalArgumentException(nfe);
     }
     
-    Message prototype = getMessagePrototype(wrapper.messageType);
-    if (prototype == null) {
-      LOG.info("Received misunderstood message (??? " + wrapper.messageType + " ???, seq "
-          + wrapper.sequenceNumber + ") from: " + this);
-      callback.unknown(wrapper.sequenceNumber, wrapper.messageType, wrapper.messageJson);
-    } else {
-      Message.Builder builder = prototype.newBuilderForType();
-      try {
-        JsonFormat.merge(wrapper.messageJson, builder);
-        callback.message(wrapper.sequenceNumber, builder.build());        
-      } catch (JsonFormat.ParseException pe) {
-        LOG.info("Unable to parse message (" + wrapper.messageType + ", seq "
-          + wrapper.sequenceNumber + ") from: " + this + " -- " + wrapper.messageJson);
-        callback.unknown(wrapper.sequenceNumber, wrapper.messageType, wrapper.messageJson);
+    if (version != VERSION) {
+      LOG.info("Bad message version number: " + version);
+      throw new IllegalArgumentException("Bad version number: " + version);
+    }
+
+    if (message == null && messageJson != null) {
+      // The message came before its type, or didn't parse.
+      Message prototype = getMessagePrototype(messageType);
+      if (prototype == null) {
+        LOG.info("Received misunderstood message (??? " + messageType + " ???, seq "
+            + sequenceNumber + ") from: " + this);
+      } else {
+        Message.Builder builder = prototype.newBuilderForType();
+        try {
+          ProtoJsonCodec.merge(messageJson, builder);
+          message = builder.build();
+        } catch (JsonFormat.ParseException pe) {
+          LOG.info("Unable to parse message (" + messageType + ", seq "
+            + sequenceNumber + ") from: " + this + " -- " + messageJson);
+        }
       }
     }
+    if (message != null) {
+      callback.message(sequenceNumber, message);
+    } else {
+      callback.unknown(sequenceNumber, messageType, messageJson);
+    }
   }
   
   /**
-   * Send the given data String
+   * Take the data of a binary frame, and once it completes a message, convert
+   * that into a Message object and pass it to the proto callback.
+   *
+   * @param data holds the sequence number, type and serialized message, or
+   *             part of them
+   * @param offset of the frame in data
+   * @param length of the frame
+   */
+  public void handleMessageBytes(byte[] data, int offset, int length) {
+    try {
+      if (pendingBytesLength == 0 && peekMessageSize(data, offset, length) == length) {
+        // The usual case, of a message in a single frame.
+        dispatchBinaryMessage(data, offset, length);
+        return;
+      }
+      if (pendingBytesLength + length > pendingBytes.length) {
+        pendingBytes = Arrays.copyOf(pendingBytes,
+            Math.max(pendingBytesLength + length, pendingBytes.length * 2));
+      }
+      System.arraycopy(data, offset, pendingBytes, pendingBytesLength, length);
+      pendingBytesLength += length;
+      int messageStart = 0;
+      int messageSize;
+      while ((messageSize = peekMessageSize(pendingBytes, messageStart,
+          pendingBytesLength - messageStart)) > 0
+          && messageStart + messageSize <= pendingBytesLength) {
+        int start = messageStart;
+        messageStart += messageSize;
+        dispatchBinaryMessage(pendingBytes, start, messageSize);
+      }
+      if (pendingBytesLength - messageStart > MAX_MESSAGE_SIZE) {
+        throw new IllegalArgumentException(String.format("Message larger than limit (%d bytes)",
+            MAX_MESSAGE_SIZE));
+      }
+      System.arraycopy(pendingBytes, messageStart, pendingBytes, 0,
+          pendingBytesLength - messageStart);
+      pendingBytesLength -= messageStart;
+      if (pendingBytesLength == 0 && pendingBytes.length > MAX_FRAME_SIZE * 2) {
+        pendingBytes = new byte[0];
+      }
+    } catch (IOException e) {
+      LOG.info("Unable to parse binary frame: " + e.getMessage());
+      pendingBytesLength = 0;
+      throw new IllegalArgumentException(e);
+    } catch (IllegalArgumentException e) {
+      pendingBytesLength = 0;
+      throw e;
+    }
+  }
+
+  /**
+   * @return the size of the message starting the given data, or 0 if too
+   *         little of it is there to tell
+   * @throws IllegalArgumentException if the message is too large
+   */
+  private int peekMessageSize(byte[] data, int offset, int length) {
+    CodedInputStream inputStream = CodedInputStream.newInstance(data, offset, length);
+    long size;
+    try {
+      if (compressor != null) {
+        int header = inputStream.readRawVarint32();
+        size = (long) inputStream.getTotalBytesRead() + (header >>> 1);
+        if (size > MAX_MESSAGE_SIZE) {
+          throw new IllegalArgumentException(String.format("Message size (%d bytes) out of"
+              + " range (limit %d bytes)", size, MAX_MESSAGE_SIZE));
+        }
+        return (int) size;
+      }
+      inputStream.readInt64(); // sequence number
+      int typeSize = inputStream.readRawVarint32();
+      if (typeSize < 0 || typeSize > length) {
+        throw new IllegalArgumentException("Bad message type size " + typeSize);
+      }
+      inputStream.skipRawBytes(typeSize);
+      int messageSize = inputStream.readRawVarint32();
+      size = (long) inputStream.getTotalBytesRead() + messageSize;
+      if (messageSize < 0 || size > MAX_MESSAGE_SIZE) {
+        throw new IllegalArgumentException(String.format("Message size (%d bytes) out of"
+            + " range (limit %d bytes)", size, MAX_MESSAGE_SIZE));
+      }
+    } catch (InvalidProtocolBufferException e) {
+      // Truncated.
+      return 0;
+    } catch (IOException e) {
+      throw new IllegalStateException("Reading from an array failed", e);
+    }
+    return (int) size;
+  }
+
+  /**
+   * Passes the binary message in the given range to the proto callback,
+   * decompressing it first if need be.
+   */
+  private void dispatchBinaryMessage(byte[] data, int offset, int length) throws IOException {
+    if (compressor != null) {
+      CodedInputStream header = CodedInputStream.newInstance(data, offset, length);
+      boolean compressed = (header.readRawVarint32() & 1) != 0;
+      int headerSize = header.getTotalBytesRead();
+      offset += headerSize;
+      length -= headerSize;
+      if (compressed) {
+        data = compressor.inflate(data, offset, length, MAX_MESSAGE_SIZE);
+        offset = 0;
+        length = data.length;
+      }
+    }
+    readSequencedMessage(CodedInputStream.newInstance(data, offset, length), callback, this);
+  }
+
+  /**
+   * Send ASCII text in a text frame.
+   *
+   * @param data holds the text; it may be overwritten once this returns
+   * @param offset of the text in data
+   * @param length of the text
+   */
+  protected abstract void sendTextFrame(byte[] data, int offset, int length);
+
+  /**
+   * Send the given data in a binary frame. Only called on channels created
+   * for binary framing; those must override it.
    *
-   * @param data
+   * @param data holds the data; it may be overwritten once this returns
+   * @param offset of the data
+   * @param length of the data
    */
-  protected abstract void sendMessageString(String data);
+  protected void sendBinaryFrame(byte[] data, int offset, int length) {
+    throw new IllegalStateException("Binary framing was not negotiated on this channel");
+  }
   
   /**
    * Send the given message across the connection along with the sequence number.
@@ -123,8 +506,63 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    * @param message
    */
   public void sendMessage(long sequenceNo, Message message) {
-    sendMessageString(gson.toJson(new MessageWrapper(
-      VERSION, sequenceNo, message.getDescriptorForType().getFullName(),
-      JsonFormat.printToString(message))));      
+    String messageType = message.getDescriptorForType().getFullName();
+    if (binary) {
+      byte[] frame = new byte[computeSequencedMessageSize(sequenceNo, messageType, message)];
+      CodedOutputStream outputStream = CodedOutputStream.newInstance(frame);
+      try {
+        writeSequencedMessage(outputStream, sequenceNo, messageType, message);
+        outputStream.checkNoSpaceLeft();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      if (compressor != null) {
+        frame = wrapForDeflateProtocol(frame);
+      }
+      synchronized (sendLock) {
+        if (spanFrames) {
+          for (int offset = 0; offset < frame.length; offset += MAX_FRAME_SIZE) {
+            sendBinaryFrame(frame, offset, Math.min(MAX_FRAME_SIZE, frame.length - offset));
+          }
+        } else {
+          sendBinaryFrame(frame, 0, frame.length);
+        }
+      }
+    } else {
+      // The same wrapper, field for field, as the Gson-encoded one this
+      // channel used to send.
+      synchronized (sendLock) {
+        try {
+          textOutput.write("{\"version\":" + VERSION + ",\"sequenceNumber\":" + sequenceNo
+              + ",\"messageType\":\"" + messageType + "\",\"messageJson\":\"");
+          ProtoJsonCodec.print(message, quotedTextOutput);
+          textOutput.write("\"}");
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        textOutput.flush();
+      }
+    }
+  }
+
+  /**
+   * @return the serialized message preceded by the header of
+   *         {@link #DEFLATE_PROTOCOL}, compressed if worthwhile
+   */
+  private byte[] wrapForDeflateProtocol(byte[] message) {
+    byte[] payload = compressor.deflate(message, 0, message.length);
+    int header = (payload != null) ? (payload.length << 1) | 1 : message.length << 1;
+    if (payload == null) {
+      payload = message;
+    }
+    int headerSize = CodedOutputStream.computeRawVarint32Size(header);
+    byte[] frame = new byte[headerSize + payload.length];
+    try {
+      CodedOutputStream.newInstance(frame, 0, headerSize).writeRawVarint32(header);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    System.arraycopy(payload, 0, frame, headerSize, payload.length);
+    return frame;
   }
-}
\ No newline at end of file
+}
@@ -24,14 +24,17 @@ import com.sixfire.websocket.WebSocket;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
- * The client side of a WebSocketChannel. 
+ * The client side of a WebSocketChannel. The websocket client library only
+ * sends text frames, so messages are always sent as JSON.
  */
 class WebSocketClientChannel extends WebSocketChannel {
   private static final Log LOG = Log.get(WebSocketClientChannel.class);
+  private static final Charset ASCII = Charset.forName("US-ASCII");
   private final ExecutorService threadPool;
   private final Runnable asyncRead;
   private boolean isReading = false;
@@ -105,12 +108,12 @@ class WebSocketClientChannel extends WebSocketChannel {
   }
   
   /**
-   * Propagate a String message to the websocket client.
+   * Propagate ASCII text to the websocket client.
    */
   @Override
-  public void sendMessageString(String data) {
+  protected void sendTextFrame(byte[] data, int offset, int length) {
     try {
-      websocket.send(data);
+      websocket.send(new String(data, offset, length, ASCII));
     } catch (IOException e) {
       LOG.warning("Websocket send failed.", e);
     }
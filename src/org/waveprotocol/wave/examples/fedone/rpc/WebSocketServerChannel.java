@@ -43,6 +43,44 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
   public WebSocketServerChannel(ProtoCallback callback) {
     super(callback);
   }
+
+  /**
+   * Creates a new WebSocketServerChannel using the callback for incoming messages.
+   * 
+   * @param callback A ProtoCallback instance called with incoming messages.
+   * @param binary whether the client asked for {@link #BINARY_PROTOCOL}
+   */
+  public WebSocketServerChannel(ProtoCallback callback, boolean binary) {
+    super(callback, binary);
+  }
+
+  /**
+   * Creates a new WebSocketServerChannel using the callback for incoming messages.
+   *
+   * @param callback A ProtoCallback instance called with incoming messages.
+   * @param binary whether the client asked for a binary subprotocol
+   * @param compressor compresses and decompresses messages if the client
+   *        asked for {@link #DEFLATE_PROTOCOL}, otherwise null
+   */
+  public WebSocketServerChannel(ProtoCallback callback, boolean binary,
+      MessageCompressor compressor) {
+    super(callback, binary, compressor);
+  }
+
+  /**
+   * Creates a new WebSocketServerChannel using the callback for incoming messages.
+   *
+   * @param callback A ProtoCallback instance called with incoming messages.
+   * @param binary whether the client asked for a binary subprotocol
+   * @param compressor compresses and decompresses messages if the client
+   *        asked for {@link #DEFLATE_PROTOCOL}, otherwise null
+   * @param spanFrames whether the client asked for a subprotocol in which
+   *        large messages span frames
+   */
+  public WebSocketServerChannel(ProtoCallback callback, boolean binary,
+      MessageCompressor compressor, boolean spanFrames) {
+    super(callback, binary, compressor, spanFrames);
+  }
   
   /**
    * Handles an incoming connection
@@ -55,11 +93,16 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
   }
 
   /**
-   * Does nothing, as this only understands String messages, not byte ones.
+   * Pass on an incoming binary message.
+   *
+   * @param frame Which framing byte was used
+   * @param data Holds the message data
+   * @param offset Of the message in data
+   * @param length Of the message
    */
   @Override
   public void onMessage(byte frame, byte[] data, int offset, int length) {
-    // do nothing. we don't expect this type of message.
+    handleMessageBytes(data, offset, length);
   }
   
   /**
@@ -82,17 +125,36 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
   }
   
   /**
-   * Send the given data String
+   * Send ASCII text in a text frame.
    *
-   * @param data
+   * @param data holds the text
+   * @param offset of the text in data
+   * @param length of the text
    */
   @Override
-  protected void sendMessageString(String data) {
+  protected void sendTextFrame(byte[] data, int offset, int length) {
     try {
       // we always use null to frame our UTF-8 strings.
-      outbound.sendMessage((byte) 0x00, data);
+      outbound.sendMessage((byte) 0x00, data, offset, length);
     } catch (IOException e) {
       throw new IllegalStateException(e);
     }
-  }  
-}
\ No newline at end of file
+  }
+
+  /**
+   * Send the given data in a binary frame.
+   *
+   * @param data holds the data
+   * @param offset of the data
+   * @param length of the data
+   */
+  @Override
+  protected void sendBinaryFrame(byte[] data, int offset, int length) {
+    try {
+      // 0x80 frames binary data with a length prefix.
+      outbound.sendMessage((byte) 0x80, data, offset, length);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -17,17 +17,37 @@
 
 package org.waveprotocol.wave.examples.fedone.waveserver;
 
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 
+import java.util.List;
+
 /**
  * Utility methods for {@code ProtocolAppliedWaveletDelta}s.
  */
 public class AppliedDeltaUtil {
 
+  // Field numbers, from federation.protodevel, of the fields read straight
+  // from the wire.
+  private static final int APPLIED_SIGNED_ORIGINAL_DELTA_FIELD = 1;
+  private static final int APPLIED_HASHED_VERSION_APPLIED_AT_FIELD = 2;
+  private static final int APPLIED_OPERATIONS_APPLIED_FIELD = 3;
+  private static final int SIGNED_DELTA_FIELD = 1;
+  private static final int SIGNED_SIGNATURE_FIELD = 2;
+  private static final int SIGNATURE_SIGNER_ID_FIELD = 2;
+  private static final int DELTA_HASHED_VERSION_FIELD = 1;
+
+  // Wire types, as in the protocol buffer encoding, which WireFormat keeps to itself.
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int TAG_TYPE_BITS = 3;
+
   private AppliedDeltaUtil() {
   }
   
@@ -55,4 +75,148 @@ public class AppliedDeltaUtil {
       }
     }
   }
+
+  /**
+   * Reads the {@code ProtocolHashedVersion} a serialised applied delta was applied at,
+   * straight from its bytes, without parsing the rest of the applied delta. As with
+   * {@link #getHashedVersionAppliedAt(ProtocolAppliedWaveletDelta)}, this may require looking
+   * at the contained {@code ProtocolWaveletDelta}.
+   *
+   * @param appliedDeltaBytes serialised {@code ProtocolAppliedWaveletDelta}
+   * @return hashed version the delta was applied at
+   * @throws IllegalArgumentException if the applied delta is malformed
+   */
+  public static ProtocolHashedVersion getHashedVersionAppliedAt(ByteString appliedDeltaBytes) {
+    try {
+      ByteString appliedAt =
+          readBytesField(appliedDeltaBytes, APPLIED_HASHED_VERSION_APPLIED_AT_FIELD);
+      if (appliedAt == null) {
+        // Delta wasn't transformed, hashed version applied at comes from the contained delta
+        ByteString signedDelta =
+            requireField(readBytesField(appliedDeltaBytes, APPLIED_SIGNED_ORIGINAL_DELTA_FIELD));
+        ByteString delta = requireField(readBytesField(signedDelta, SIGNED_DELTA_FIELD));
+        appliedAt = requireField(readBytesField(delta, DELTA_HASHED_VERSION_FIELD));
+      }
+      return ProtocolHashedVersion.parseFrom(appliedAt);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Reads the number of operations applied by a serialised applied delta, straight from its
+   * bytes, without parsing the rest of the applied delta.
+   *
+   * @param appliedDeltaBytes serialised {@code ProtocolAppliedWaveletDelta}
+   * @return number of operations applied
+   * @throws IllegalArgumentException if the applied delta is malformed
+   */
+  public static int getOperationsApplied(ByteString appliedDeltaBytes) {
+    try {
+      CodedInputStream in = appliedDeltaBytes.newCodedInput();
+      Integer operationsApplied = null;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == makeTag(APPLIED_OPERATIONS_APPLIED_FIELD, WIRETYPE_VARINT)) {
+          operationsApplied = in.readInt32();
+        } else if (!in.skipField(tag)) {
+          break;
+        }
+      }
+      return requireField(operationsApplied);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException(e);
+    } catch (java.io.IOException e) {
+      // Reading from a ByteString never fails for any other reason.
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Reads the signer ids of the signatures on a serialised applied delta's original delta,
+   * straight from its bytes, without parsing the rest of the applied delta.
+   *
+   * @param appliedDeltaBytes serialised {@code ProtocolAppliedWaveletDelta}
+   * @return signer ids, in the order of the signatures
+   * @throws IllegalArgumentException if the applied delta is malformed
+   */
+  public static List<ByteString> getSignerIds(ByteString appliedDeltaBytes) {
+    try {
+      ByteString signedDelta =
+          requireField(readBytesField(appliedDeltaBytes, APPLIED_SIGNED_ORIGINAL_DELTA_FIELD));
+      List<ByteString> signerIds = Lists.newArrayList();
+      for (ByteString signature : readRepeatedBytesField(signedDelta, SIGNED_SIGNATURE_FIELD)) {
+        signerIds.add(requireField(readBytesField(signature, SIGNATURE_SIGNER_ID_FIELD)));
+      }
+      return signerIds;
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Reads a length-delimited field of a serialised message, skipping the other fields.
+   *
+   * @return the last value of the field, as the parser would take, or null if absent
+   */
+  private static ByteString readBytesField(ByteString message, int fieldNumber)
+      throws InvalidProtocolBufferException {
+    try {
+      CodedInputStream in = message.newCodedInput();
+      int wanted = makeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+      ByteString value = null;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == wanted) {
+          value = in.readBytes();
+        } else if (!in.skipField(tag)) {
+          break;
+        }
+      }
+      return value;
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (java.io.IOException e) {
+      // Reading from a ByteString never fails for any other reason.
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+  }
+
+  /**
+   * Reads every value of a repeated length-delimited field of a serialised message,
+   * skipping the other fields.
+   */
+  private static List<ByteString> readRepeatedBytesField(ByteString message, int fieldNumber)
+      throws InvalidProtocolBufferException {
+    try {
+      CodedInputStream in = message.newCodedInput();
+      int wanted = makeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+      List<ByteString> values = Lists.newArrayList();
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == wanted) {
+          values.add(in.readBytes());
+        } else if (!in.skipField(tag)) {
+          break;
+        }
+      }
+      return values;
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (java.io.IOException e) {
+      // Reading from a ByteString never fails for any other reason.
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+  }
+
+  private static int makeTag(int fieldNumber, int wireType) {
+    return (fieldNumber << TAG_TYPE_BITS) | wireType;
+  }
+
+  private static <T> T requireField(T value) throws InvalidProtocolBufferException {
+    if (value == null) {
+      throw new InvalidProtocolBufferException("Message missing required fields");
+    }
+    return value;
+  }
 }
@@ -19,20 +19,27 @@ package org.waveprotocol.wave.examples.fedone.waveserver;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.protobuf.ByteString;
 
 import org.waveprotocol.wave.crypto.WaveSigner;
+import org.waveprotocol.wave.examples.fedone.util.Log;
 import org.waveprotocol.wave.examples.fedone.waveserver.CertificateManager.SignatureResultListener;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
 
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -46,32 +53,80 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * A bundle is created on demand i.e. when a delta needs is to be added the first time,
  * or when a previous one has already been signed.
  *
+ * The deltas of a bundle are divided between the threads of a signing pool,
+ * so bundles are signed on as many cores as the pool has threads. Deltas may
+ * therefore be signed out of order, but the listeners of each wavelet's
+ * deltas are called in the order in which the deltas were passed to
+ * {@link #sign}.
+ *
+ * In Merkle mode a bundle is instead signed with a single signature over the
+ * root of a hash tree of its deltas, each signed delta carrying the proof
+ * that it's in the tree (see {@link WaveSigner#signBundle}). Bundles are then
+ * signed in parallel with each other rather than divided up.
+ *
  * TODO(balfanz): replace/augment the deltasToSign map to use proper streamauth bundles.
  *
  * @author jochen@google.com (Jochen Bekmann)
  */
 class BundlingDeltaSigner implements DeltaSigner {
 
+  private static final Log LOG = Log.get(BundlingDeltaSigner.class);
+
   private final int bundlingAccumulationDelayMs;
   private final WaveSigner signer;
   private final ScheduledExecutorService executorService;
+  private final ExecutorService signingPool;
+  private final int signingThreads;
+  private final boolean merkleSigning;
   private DeltaBundle currentBundle;
   private final int maximumDeltaBundleSize;
 
+  /** Deltas not yet delivered, per wavelet, in the order they were passed to sign(). */
+  private final Map<WaveletName, WaveletQueue> waveletQueues = Maps.newHashMap();
+
+  // Statistics.
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong bundlesSigned = new AtomicLong();
+  private final AtomicLong totalBundleLatencyNanos = new AtomicLong();
+  private final AtomicLong maxBundleLatencyNanos = new AtomicLong();
+
+  /** A delta waiting to be signed and for its listener to be called. */
+  private static final class PendingDelta {
+    final WaveletName waveletName;
+    final ByteStringMessage<ProtocolWaveletDelta> delta;
+    final SignatureResultListener resultListener;
+
+    // Guarded by waveletQueues.
+    boolean done = false;
+    ProtocolSignedDelta signedDelta = null;
+
+    PendingDelta(WaveletName waveletName, ByteStringMessage<ProtocolWaveletDelta> delta,
+        SignatureResultListener resultListener) {
+      this.waveletName = waveletName;
+      this.delta = delta;
+      this.resultListener = resultListener;
+    }
+  }
+
+  /** The undelivered deltas of a wavelet. Guarded by waveletQueues. */
+  private static final class WaveletQueue {
+    final ArrayDeque<PendingDelta> deltas = new ArrayDeque<PendingDelta>();
+    /** Whether a thread is calling listeners for this wavelet. */
+    boolean delivering = false;
+  }
+
   /** Stores deltas in a bundle. Start a timer when the first delta is added. */
   private class DeltaBundle {
 
-    AtomicBoolean acceptMoreDeltas;
+    private boolean acceptMoreDeltas = true;
 
-    Map<ByteStringMessage<ProtocolWaveletDelta>,
-        CertificateManager.SignatureResultListener> deltasToSign = Maps.newHashMap();
+    private final List<PendingDelta> deltasToSign = Lists.newArrayList();
 
     private ScheduledFuture<?> scheduledFuture;
     private final Runnable signingTask;
 
     DeltaBundle() {
       scheduledFuture = null;  // Will be null until a signingTask is scheduled.
-      acceptMoreDeltas = new AtomicBoolean(true);
       signingTask = new Runnable() {
         @Override public void run() {
           signBundle();
@@ -79,34 +134,62 @@ class BundlingDeltaSigner implements DeltaSigner {
       };
     }
 
-    boolean canAcceptMoreDeltas() {
-      return acceptMoreDeltas.get();
-    }
-
-    /** Sign bundle, notify every listener with a signedDelta result. */
-    synchronized private void signBundle() {
-      for (Entry<ByteStringMessage<ProtocolWaveletDelta>, SignatureResultListener> entry :
-        deltasToSign.entrySet()) {
-        ProtocolSignedDelta.Builder signedDelta = ProtocolSignedDelta.newBuilder();
-        ByteString deltaBytes =  entry.getKey().getByteString();
-        signedDelta.setDelta(deltaBytes);
-        signedDelta.addAllSignature(ImmutableList.of(signer.sign(deltaBytes.toByteArray()).build()));
-        entry.getValue().signatureResult(signedDelta.build());
+    /** Divide the bundle between the signing threads. */
+    private void signBundle() {
+      final List<PendingDelta> deltas;
+      synchronized (this) {
+        acceptMoreDeltas = false;
+        deltas = ImmutableList.copyOf(deltasToSign);
+        deltasToSign.clear();
+      }
+      if (deltas.isEmpty()) {
+        return;
+      }
+      final long startNanos = System.nanoTime();
+      if (merkleSigning) {
+        signingPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            signTree(deltas);
+            recordBundleLatency(deltas.size(), System.nanoTime() - startNanos);
+          }
+        });
+        return;
+      }
+      final int chunkSize = (deltas.size() + signingThreads - 1) / signingThreads;
+      final AtomicInteger remainingChunks =
+          new AtomicInteger((deltas.size() + chunkSize - 1) / chunkSize);
+      for (int start = 0; start < deltas.size(); start += chunkSize) {
+        final List<PendingDelta> chunk =
+            deltas.subList(start, Math.min(start + chunkSize, deltas.size()));
+        signingPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (PendingDelta pending : chunk) {
+              deliver(pending, signDirectly(pending));
+            }
+            if (remainingChunks.decrementAndGet() == 0) {
+              recordBundleLatency(deltas.size(), System.nanoTime() - startNanos);
+            }
+          }
+        });
       }
     }
 
     /**
-     * Add the delta to the bundle. This may trigger signing now or later. The
-     * resultListener will be called once the delta has been signed. May only
-     * be called when canAcceptMoreDeltas is true.
+     * Add the delta to the bundle. This may trigger signing now or later.
+     *
+     * @return false if the bundle is already being signed, in which case the
+     *         delta has not been added
      */
-    synchronized void addDelta(ByteStringMessage<ProtocolWaveletDelta> delta,
-        CertificateManager.SignatureResultListener resultListener) {
-      Preconditions.checkState(acceptMoreDeltas.get());
+    synchronized boolean addDelta(PendingDelta delta) {
+      if (!acceptMoreDeltas) {
+        return false;
+      }
 
-      deltasToSign.put(delta, resultListener);
+      deltasToSign.add(delta);
       if (deltasToSign.size() >= maximumDeltaBundleSize) {
-        acceptMoreDeltas.set(false);
+        acceptMoreDeltas = false;
         // If there is a task scheduled, attempt to cancel, but do not interrupt if it's
         // already executing. If cancel() returns false the task has already been run.
         if (scheduledFuture == null || scheduledFuture.cancel(false)) {
@@ -116,21 +199,33 @@ class BundlingDeltaSigner implements DeltaSigner {
         scheduledFuture = executorService.schedule(signingTask, bundlingAccumulationDelayMs,
             TimeUnit.MILLISECONDS);
       }
+      return true;
     }
   }
 
   /**
    * Constructor.
    * @param executorService a ScheduledExecutorService, may be null if maximumDeltaBundleSize = 1
+   * @param signingPool the pool on which deltas are signed and listeners called
+   * @param signingThreads the number of threads in the signing pool
+   * @param merkleSigning whether to sign each bundle with a single signature
+   *        over a hash tree of its deltas
    * @param signer wave signer
    * @param bundlingAccumulationDelayMs hold deltas at most for this long
    * @param maximumDeltaBundleSize largest size for a bundle
    */
   BundlingDeltaSigner(ScheduledExecutorService executorService,
+      ExecutorService signingPool,
+      int signingThreads,
+      boolean merkleSigning,
       WaveSigner signer,
       int maximumDeltaBundleSize,
       int bundlingAccumulationDelayMs) {
     this.executorService = executorService;
+    this.signingPool = signingPool;
+    Preconditions.checkArgument(signingThreads > 0);
+    this.signingThreads = signingThreads;
+    this.merkleSigning = merkleSigning;
     this.signer = signer;
     this.currentBundle = null;
     Preconditions.checkArgument(maximumDeltaBundleSize > 1);
@@ -140,13 +235,155 @@ class BundlingDeltaSigner implements DeltaSigner {
   }
 
   @Override
-  synchronized public void sign(ByteStringMessage<ProtocolWaveletDelta> delta,
+  synchronized public void sign(WaveletName waveletName,
+      ByteStringMessage<ProtocolWaveletDelta> delta,
       CertificateManager.SignatureResultListener resultListener) {
-    if (currentBundle == null || !currentBundle.canAcceptMoreDeltas()) {
+    PendingDelta pending = new PendingDelta(waveletName, delta, resultListener);
+    synchronized (waveletQueues) {
+      WaveletQueue queue = waveletQueues.get(waveletName);
+      if (queue == null) {
+        queue = new WaveletQueue();
+        waveletQueues.put(waveletName, queue);
+      }
+      queue.deltas.addLast(pending);
+    }
+    queueDepth.incrementAndGet();
+    if (currentBundle == null || !currentBundle.addDelta(pending)) {
       // If the old bundle has a pending task it will only be garbage collected once it's
       // signed all deltas because the scheduler has a handle to it.
       currentBundle = new DeltaBundle();
+      currentBundle.addDelta(pending);
+    }
+  }
+
+  /**
+   * Signs a delta on its own.
+   *
+   * @return the signed delta, or null if it couldn't be signed
+   */
+  private ProtocolSignedDelta signDirectly(PendingDelta pending) {
+    try {
+      ProtocolSignedDelta.Builder builder = ProtocolSignedDelta.newBuilder();
+      ByteString deltaBytes = pending.delta.getByteString();
+      builder.setDelta(deltaBytes);
+      builder.addAllSignature(ImmutableList.of(signer.sign(deltaBytes.toByteArray()).build()));
+      return builder.build();
+    } catch (RuntimeException e) {
+      LOG.severe("Failed to sign delta for " + pending.waveletName, e);
+      return null;
+    }
+  }
+
+  /**
+   * Signs a bundle of deltas with one signature over a hash tree of them, and
+   * delivers them.
+   */
+  private void signTree(List<PendingDelta> deltas) {
+    List<ProtocolSignature.Builder> signatures = null;
+    try {
+      List<byte[]> payloads = Lists.newArrayListWithCapacity(deltas.size());
+      for (PendingDelta pending : deltas) {
+        payloads.add(pending.delta.getByteString().toByteArray());
+      }
+      signatures = signer.signBundle(payloads);
+    } catch (RuntimeException e) {
+      LOG.severe("Failed to sign bundle of " + deltas.size() + " deltas", e);
+    }
+    for (int i = 0; i < deltas.size(); i++) {
+      PendingDelta pending = deltas.get(i);
+      deliver(pending, (signatures == null) ? null : ProtocolSignedDelta.newBuilder()
+          .setDelta(pending.delta.getByteString())
+          .addSignature(signatures.get(i))
+          .build());
+    }
+  }
+
+  /**
+   * Records the result of signing a delta, then calls the listeners of its
+   * wavelet's deltas which are now next in line, unless another thread is
+   * already doing so.
+   *
+   * @param signedDelta the signed delta, or null if it couldn't be signed
+   */
+  private void deliver(PendingDelta pending, ProtocolSignedDelta signedDelta) {
+    queueDepth.decrementAndGet();
+
+    WaveletQueue queue;
+    synchronized (waveletQueues) {
+      pending.done = true;
+      pending.signedDelta = signedDelta;
+      queue = waveletQueues.get(pending.waveletName);
+      if (queue.delivering) {
+        return;
+      }
+      queue.delivering = true;
+    }
+
+    while (true) {
+      List<PendingDelta> ready = Lists.newArrayList();
+      synchronized (waveletQueues) {
+        while (!queue.deltas.isEmpty() && queue.deltas.peekFirst().done) {
+          ready.add(queue.deltas.pollFirst());
+        }
+        if (ready.isEmpty()) {
+          queue.delivering = false;
+          if (queue.deltas.isEmpty()) {
+            waveletQueues.remove(pending.waveletName);
+          }
+          return;
+        }
+      }
+      for (PendingDelta delivered : ready) {
+        if (delivered.signedDelta != null) {
+          try {
+            delivered.resultListener.signatureResult(delivered.signedDelta);
+          } catch (RuntimeException e) {
+            LOG.severe("Signature result listener failed for " + delivered.waveletName, e);
+          }
+        }
+      }
+    }
+  }
+
+  private void recordBundleLatency(int size, long latencyNanos) {
+    bundlesSigned.incrementAndGet();
+    totalBundleLatencyNanos.addAndGet(latencyNanos);
+    long max;
+    do {
+      max = maxBundleLatencyNanos.get();
+    } while (latencyNanos > max && !maxBundleLatencyNanos.compareAndSet(max, latencyNanos));
+    if (LOG.isFineLoggable()) {
+      LOG.fine("Signed bundle of " + size + " deltas in "
+          + TimeUnit.NANOSECONDS.toMicros(latencyNanos) + "us");
     }
-    currentBundle.addDelta(delta, resultListener);
+  }
+
+  /** @return the number of deltas waiting to be signed. */
+  int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /** @return the number of bundles signed so far. */
+  long getBundlesSigned() {
+    return bundlesSigned.get();
+  }
+
+  /** @return the mean time taken to sign a bundle, in milliseconds. */
+  double getMeanBundleLatencyMs() {
+    long bundles = bundlesSigned.get();
+    return (bundles == 0) ? 0
+        : totalBundleLatencyNanos.get() / (bundles * (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  /** @return the longest time taken to sign a bundle, in milliseconds. */
+  double getMaxBundleLatencyMs() {
+    return maxBundleLatencyNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return "Delta signer: " + getQueueDepth() + " deltas queued, " + getBundlesSigned()
+        + " bundles signed, mean " + String.format("%.2f", getMeanBundleLatencyMs()) + "ms, max "
+        + String.format("%.2f", getMaxBundleLatencyMs()) + "ms";
   }
 }
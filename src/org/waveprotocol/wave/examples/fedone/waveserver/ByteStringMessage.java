@@ -25,11 +25,15 @@ import com.google.protobuf.Message;
  * Enforces consistency between serialised representations of protocol buffers (stored as
  * {@code ByteString}s) and their types.
  *
+ * The message is parsed from its bytes at most once, and only if it's asked for, unless it
+ * is created with {@link #from}, which parses it immediately so as to validate the bytes.
+ *
  *
  */
 public final class ByteStringMessage<T extends Message> {
+  private final T prototype;
   private final ByteString byteString;
-  private final T message;
+  private volatile T message;
 
   /**
    * Create a {@code ByteStringMessage} from a prototype of the message and its {@code ByteString}
@@ -41,7 +45,24 @@ public final class ByteStringMessage<T extends Message> {
    */
   public static <K extends Message> ByteStringMessage<K> from(K prototype, ByteString byteString)
       throws InvalidProtocolBufferException {
-    return new ByteStringMessage<K>(prototype, byteString);
+    ByteStringMessage<K> result = new ByteStringMessage<K>(prototype, byteString, null);
+    result.message = parse(prototype, byteString);
+    return result;
+  }
+
+  /**
+   * Create a {@code ByteStringMessage} from a prototype of the message and its {@code ByteString}
+   * representation, without parsing it until the message is first asked for. This suits bytes
+   * known to be valid, such as those this server serialised and stored itself, for which often
+   * only the bytes are ever needed. Bytes from elsewhere may be wrapped too, so long as the first
+   * call to {@link #getMessage} handles the exception thrown if they turn out to be invalid.
+   *
+   * @param prototype to create the {@code Message} from
+   * @param byteString valid representation of the message
+   */
+  public static <K extends Message> ByteStringMessage<K> fromUnparsed(K prototype,
+      ByteString byteString) {
+    return new ByteStringMessage<K>(prototype, byteString, null);
   }
 
   /**
@@ -52,27 +73,41 @@ public final class ByteStringMessage<T extends Message> {
    */
   @SuppressWarnings("unchecked")
   public static <K extends Message> ByteStringMessage<K> fromMessage(K message) {
-    try {
-      return (ByteStringMessage<K>) from(
-          message.getDefaultInstanceForType(), message.toByteString());
-    } catch (InvalidProtocolBufferException e) {
-      // This cannot possibly fail, unless the protocol buffer library is broken
-      throw new AssertionError(e);
-    }
+    // The message is immutable, so is its own parsed form.
+    return new ByteStringMessage<K>(
+        (K) message.getDefaultInstanceForType(), message.toByteString(), message);
+  }
+
+  private ByteStringMessage(T prototype, ByteString byteString, T message) {
+    this.prototype = prototype;
+    this.byteString = byteString;
+    this.message = message;
   }
 
   @SuppressWarnings("unchecked")
-  private ByteStringMessage(T prototype, ByteString byteString)
+  private static <K extends Message> K parse(K prototype, ByteString byteString)
       throws InvalidProtocolBufferException {
-    this.message = (T) prototype.newBuilderForType().mergeFrom(byteString).build();
-    this.byteString = byteString;
+    return (K) prototype.newBuilderForType().mergeFrom(byteString).build();
   }
 
   /**
    * @return the immutable underlying {@code Message}
+   * @throws IllegalStateException if the message was created with {@link #fromUnparsed}, and
+   *         its bytes turn out not to be a valid protocol buffer
    */
   public T getMessage() {
-    return message;
+    T result = message;
+    if (result == null) {
+      // Racing threads may both parse, but will produce equal messages.
+      try {
+        result = parse(prototype, byteString);
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException("Invalid serialised " + prototype.getClass().getName(),
+            e);
+      }
+      message = result;
+    }
+    return result;
   }
 
   /**
@@ -107,6 +142,8 @@ public final class ByteStringMessage<T extends Message> {
 
   @Override
   public String toString() {
-    return "ByteStringMessage: " + message;
+    T parsed = message;
+    return "ByteStringMessage: "
+        + ((parsed != null) ? parsed : "(unparsed, " + byteString.size() + " bytes)");
   }
 }
@@ -31,6 +31,7 @@ import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.waveserver.WaveletFederationProvider;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -63,10 +64,12 @@ public interface CertificateManager {
    * Verify the signature in the Signed Delta. Use the local WSP's certificate
    * to sign the delta.
    *
+   * @param waveletName the wavelet the delta applies to; results for a
+   *        wavelet's deltas are delivered in the order they were requested
    * @param delta as a byte string (the serialised representation of a ProtocolWaveletDelta)
    * @param resultListener is a callback for receiving the result.
    */
-  void signDelta(ByteStringMessage<ProtocolWaveletDelta> delta,
+  void signDelta(WaveletName waveletName, ByteStringMessage<ProtocolWaveletDelta> delta,
       SignatureResultListener resultListener);
 
 
@@ -81,6 +84,17 @@ public interface CertificateManager {
   ByteStringMessage<ProtocolWaveletDelta> verifyDelta(ProtocolSignedDelta signedDelta)
       throws SignatureException, UnknownSignerException;
 
+  /**
+   * Verify the signatures in a batch of Signed Deltas, such as the deltas in a
+   * history response, spreading the work across processors.
+   *
+   * @param signedDeltas to verify
+   * @return verified serialised ProtocolWaveletDeltas, in the same order
+   * @throws SignatureException if the signatures of any delta cannot be verified.
+   */
+  List<ByteStringMessage<ProtocolWaveletDelta>> verifyDeltas(
+      List<ProtocolSignedDelta> signedDeltas) throws SignatureException, UnknownSignerException;
+
   /**
    * Stores information about a signer (i.e., its certificate chain) in a
    * permanent store. In addition to a certificate chain, a {@link SignerInfo}
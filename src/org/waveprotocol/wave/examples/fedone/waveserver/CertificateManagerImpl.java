@@ -52,6 +52,13 @@ import org.waveprotocol.wave.waveserver.WaveletFederationProvider.DeltaSignerInf
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default implementation of {@link CertificateManager}.
@@ -67,6 +74,9 @@ public class CertificateManagerImpl implements CertificateManager {
 
   private final DeltaSigner deltaSigner;
 
+  /** Verifies the deltas of a batch in parallel. */
+  private final ExecutorService verificationPool;
+
   /**
    * Map of signer ids to requests for the signer info for those ids.  Each signer id is mapped to
    * a multimap: a domain mapped to a list of callbacks for that domain, called when the signer info
@@ -78,15 +88,31 @@ public class CertificateManagerImpl implements CertificateManager {
   @Inject
   public CertificateManagerImpl(
       @Named("waveserver_disable_verification") boolean disableVerfication,
+      @Named("signature_verification_threads") int verificationThreads,
       WaveSigner signer, WaveSignatureVerifier verifier, CertPathStore certPathStore,
       DeltaSigner deltaSigner) {
 
+    Preconditions.checkArgument(verificationThreads >= 0,
+        "Signature verification threads must be >= 0");
     this.disableVerfication = disableVerfication;
     this.waveSigner = signer;
     this.verifier = verifier;
     this.certPathStore = certPathStore;
     this.deltaSigner = deltaSigner;
     this.signerInfoRequests = Maps.newHashMap();
+    this.verificationPool = Executors.newFixedThreadPool(
+        (verificationThreads == 0) ? Runtime.getRuntime().availableProcessors()
+            : verificationThreads,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SignatureVerifier-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
     if (disableVerfication) {
       LOG.warning("** SIGNATURE VERIFICATION DISABLED ** "
           + "see flag \"waveserver_disable_verification\"");
@@ -106,13 +132,13 @@ public class CertificateManagerImpl implements CertificateManager {
   }
 
   @Override
-  public void signDelta(ByteStringMessage<ProtocolWaveletDelta> delta,
+  public void signDelta(WaveletName waveletName, ByteStringMessage<ProtocolWaveletDelta> delta,
       SignatureResultListener resultListener) {
 
     // TODO: support extended address paths. For now, there will be exactly
     // one signature, and we don't support federated groups.
     Preconditions.checkState(delta.getMessage().getAddressPathCount() == 0);
-    deltaSigner.sign(delta, resultListener);
+    deltaSigner.sign(waveletName, delta, resultListener);
   }
 
   @Override
@@ -148,6 +174,54 @@ public class CertificateManagerImpl implements CertificateManager {
     return delta;
   }
 
+  @Override
+  public List<ByteStringMessage<ProtocolWaveletDelta>> verifyDeltas(
+      List<ProtocolSignedDelta> signedDeltas) throws SignatureException, UnknownSignerException {
+    List<ByteStringMessage<ProtocolWaveletDelta>> deltas = Lists.newArrayList();
+    if (disableVerfication || signedDeltas.size() < 2) {
+      for (ProtocolSignedDelta signedDelta : signedDeltas) {
+        deltas.add(verifyDelta(signedDelta));
+      }
+      return deltas;
+    }
+
+    List<Future<ByteStringMessage<ProtocolWaveletDelta>>> results = Lists.newArrayList();
+    for (final ProtocolSignedDelta signedDelta : signedDeltas) {
+      results.add(verificationPool.submit(new Callable<ByteStringMessage<ProtocolWaveletDelta>>() {
+        @Override
+        public ByteStringMessage<ProtocolWaveletDelta> call() throws Exception {
+          return verifyDelta(signedDelta);
+        }
+      }));
+    }
+
+    try {
+      for (Future<ByteStringMessage<ProtocolWaveletDelta>> result : results) {
+        deltas.add(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SignatureException("interrupted while verifying deltas", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof UnknownSignerException) {
+        throw (UnknownSignerException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IllegalStateException(cause);
+      }
+    } finally {
+      // On failure, don't bother verifying the rest.
+      for (Future<ByteStringMessage<ProtocolWaveletDelta>> result : results) {
+        result.cancel(false);
+      }
+    }
+    return deltas;
+  }
+
   /**
    * Verifies a single signature.
    * @param delta the payload that we're verifying the signature on.
@@ -63,8 +63,13 @@ public interface ClientFrontend extends WaveletListener {
    * @param participant which is doing the requesting.
    * @param waveId the wave id.
    * @param waveletIdPrefixes set containing restricts on the wavelet id's.
-   * @param maximumInitialWavelets limit on the number of wavelets to
-   * @param snapshotsEnabled
+   * @param maximumInitialWavelets limit on the number of wavelets to send
+   *        when the wave is opened, most recently modified first. The rest
+   *        are left out of the subscription; each is sent as an update with
+   *        only its name, after the page, and clients page them in by
+   *        opening them with narrower prefixes. 0 for no limit.
+   * @param snapshotsEnabled whether to send a snapshot of each wavelet,
+   *        rather than its history, when the wave is opened.
    * @param openListener callback for updates.
    */
 
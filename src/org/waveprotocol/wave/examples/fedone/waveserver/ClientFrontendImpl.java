@@ -25,16 +25,16 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.google.inject.internal.Nullable;
 
 import static org.waveprotocol.wave.examples.fedone.common.CommonConstants.INDEX_WAVE_ID;
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
 import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
 import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
-import org.waveprotocol.wave.examples.fedone.waveclient.common.ClientUtils;
 import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot;
-import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot.DocumentSnapshot;
 import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
 import org.waveprotocol.wave.federation.FederationErrors;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
@@ -47,21 +47,19 @@ import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
-import org.waveprotocol.wave.model.operation.wave.AddParticipant;
-import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
-import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.waveserver.SubmitResultListener;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -83,6 +81,9 @@ public class ClientFrontendImpl implements ClientFrontend {
   @VisibleForTesting
   static final String DIGEST_DOCUMENT_ID = "digest";
 
+  /** Number of recent deltas whose participant operations are remembered. */
+  private static final int PARTICIPANT_OP_CACHE_SIZE = 4096;
+
   /** Information we hold in memory for each wavelet, including index wavelets. */
   private static class PerWavelet {
     private final Set<ParticipantId> participants;
@@ -90,6 +91,14 @@ public class ClientFrontendImpl implements ClientFrontend {
     private final ProtocolHashedVersion version0;
     private ProtocolHashedVersion currentVersion;
     private String digest;
+    private final DigestTracker digestTracker = new DigestTracker();
+    /**
+     * Number of updates being passed on to the participants. While none is,
+     * the participants and digest agree with every participant's version of
+     * the index wavelet. (An update which fails leaves this raised, so that
+     * index snapshots are no longer trusted.)
+     */
+    private int updatesInProgress = 0;
 
     PerWavelet(WaveletName waveletName) {
       this.participants = Collections.synchronizedSet(Sets.<ParticipantId>newHashSet());
@@ -108,6 +117,84 @@ public class ClientFrontendImpl implements ClientFrontend {
     }
   }
 
+  /**
+   * Passes updates on to an open listener which was sent only the first page
+   * of the wavelets it subscribed to, or sent snapshots ahead of the deltas
+   * broadcast for them. Deltas which a snapshot already covers are dropped.
+   * Wavelets left off the first page are left out of the subscription: each
+   * is marked by an update holding only its name, and no updates to it are
+   * passed on, so that the client never holds a stale copy of it.
+   */
+  private static class CatchUpListener implements OpenListener {
+    private final OpenListener listener;
+    /** Version of the snapshot sent of each wavelet whose deltas lag it. */
+    private final Map<WaveletName, Long> snapshotVersions = Maps.newHashMap();
+    /** Wavelets left off the first page. */
+    private final Set<WaveletName> unsent = Sets.newHashSet();
+
+    CatchUpListener(OpenListener listener) {
+      this.listener = listener;
+    }
+
+    synchronized void skipDeltasBefore(WaveletName waveletName, long snapshotVersion) {
+      snapshotVersions.put(waveletName, snapshotVersion);
+    }
+
+    /**
+     * Leaves a wavelet out of the subscription, and tells the client so it
+     * can open the wavelet itself.
+     */
+    void leaveUnsent(WaveletName waveletName) {
+      synchronized (this) {
+        unsent.add(waveletName);
+      }
+      List<ProtocolWaveletDelta> noDeltas = Collections.emptyList();
+      listener.onUpdate(waveletName, null, noDeltas, null, null);
+    }
+
+    @Override
+    public void onUpdate(WaveletName waveletName, @Nullable WaveletSnapshotAndVersions snapshot,
+        List<ProtocolWaveletDelta> deltas, @Nullable ProtocolHashedVersion endVersion,
+        @Nullable ProtocolHashedVersion committedVersion) {
+      synchronized (this) {
+        if (unsent.contains(waveletName)) {
+          return;
+        }
+        Long snapshotVersion = snapshotVersions.get(waveletName);
+        if (snapshotVersion != null && !deltas.isEmpty()) {
+          if (endVersion.getVersion() >= snapshotVersion) {
+            snapshotVersions.remove(waveletName);
+          }
+          int covered = 0;
+          while (covered < deltas.size()
+              && deltas.get(covered).getHashedVersion().getVersion() < snapshotVersion) {
+            covered++;
+          }
+          if (covered == deltas.size()) {
+            return;
+          }
+          deltas = deltas.subList(covered, deltas.size());
+        }
+      }
+      listener.onUpdate(waveletName, snapshot, deltas, endVersion, committedVersion);
+    }
+
+    @Override
+    public void onFailure(String errorMessage) {
+      listener.onFailure(errorMessage);
+    }
+  }
+
+  private static final WaveletSnapshotBuilder<WaveletSnapshotAndVersions> SNAPSHOT_BUILDER =
+      new WaveletSnapshotBuilder<WaveletSnapshotAndVersions>() {
+        @Override
+        public WaveletSnapshotAndVersions build(WaveletData waveletData,
+            HashedVersion currentVersion, ProtocolHashedVersion committedVersion) {
+          return new WaveletSnapshotAndVersions(serialize(waveletData),
+              currentVersion, committedVersion);
+        }
+      };
+
   /**
    * Constructs the name of the index wave wavelet that refers to the
    * specified conversation root wavelet.
@@ -152,6 +239,10 @@ public class ClientFrontendImpl implements ClientFrontend {
   private final Map<WaveletName, PerWavelet> perWavelet;
   private final WaveletProvider waveletProvider;
 
+  /** Participant operations of recent deltas, shared by all their participants. */
+  private final ParticipantOpCache participantOps =
+      new ParticipantOpCache(PARTICIPANT_OP_CACHE_SIZE);
+
   @Inject
   public ClientFrontendImpl(WaveletProvider waveletProvider) {
     this.waveletProvider = waveletProvider;
@@ -174,93 +265,154 @@ public class ClientFrontendImpl implements ClientFrontend {
     }
     final boolean isIndexWave = waveId.equals(INDEX_WAVE_ID);
     UserManager userManager = perUser.get(participant);
+    CatchUpListener listener = new CatchUpListener(openListener);
     synchronized(userManager) {
-      Set<WaveletId> waveletIds = userManager.subscribe(waveId, waveletIdPrefixes, openListener);
-      // Send this listener all deltas on relevant wavelets that we've already
-      // sent out to other listeners, so that the listener can catch up with
-      // those.
-      // TODO: Because of the way we create the fake digest edit ops for the
-      // index wave, if the listener is subscribing to the index wave then it
-      // may be that this requires fewer ops than the existing listeners have
-      // seen, leaving this listener at a different end version than other
-      // listeners on the same wavelet. Fix!
-      for (WaveletId waveletId : waveletIds) {
+      Set<WaveletId> waveletIds = userManager.subscribe(waveId, waveletIdPrefixes, listener);
+      List<WaveletId> page = mostRecentlyModified(waveId, waveletIds);
+      List<WaveletId> rest = Collections.emptyList();
+      if (maximumInitialWavelets > 0 && page.size() > maximumInitialWavelets) {
+        rest = page.subList(maximumInitialWavelets, page.size());
+        page = page.subList(0, maximumInitialWavelets);
+      }
+      // Send this listener the state of each wavelet on the page, as of the
+      // deltas we've already sent out to other listeners, so that the
+      // listener can catch up with those.
+      for (WaveletId waveletId : page) {
         WaveletName waveletName = WaveletName.of(waveId, waveletId);
-
-        // The WaveletName by which the waveletProvider knows the relevant deltas
-        WaveletName sourceWaveletName =
-          (isIndexWave ? waveletNameForIndexWavelet(waveletName) : waveletName);
-
-        ProtocolHashedVersion startVersion = perWavelet.get(sourceWaveletName).version0;
-        ProtocolHashedVersion endVersion = userManager.getWaveletVersion(sourceWaveletName);
-
-        List<ProtocolWaveletDelta> deltaList;
-        WaveletSnapshotAndVersions snapshot;
-
-        // TODO(arb): can I snapshot the indexWave?
-        if (isIndexWave || !snapshotsEnabled) {
-          DeltaSequence deltaSequence = new DeltaSequence(
-              waveletProvider.getHistory(sourceWaveletName, startVersion, endVersion),
-              endVersion);
-          if (isIndexWave) { // Construct fake index wave deltas from the deltas
-            String newDigest = perWavelet.get(sourceWaveletName).digest;
-            deltaSequence = createIndexDeltas(startVersion, deltaSequence, "", newDigest);
-          }
-          deltaList = deltaSequence;
-          endVersion = deltaSequence.getEndVersion();
-          snapshot = null;
-        } else {
-          // TODO(arb): when we have uncommitted deltas, look them up here.
-          deltaList = Collections.emptyList();
-          WaveletSnapshotBuilder<WaveletSnapshotAndVersions> snapshotBuilder =
-              new WaveletSnapshotBuilder<WaveletSnapshotAndVersions>() {
-                @Override
-                public WaveletSnapshotAndVersions build(WaveletData waveletData,
-                    HashedVersion currentVersion, ProtocolHashedVersion committedVersion) {
-                  return new WaveletSnapshotAndVersions(serializeSnapshot(waveletData),
-                      currentVersion, committedVersion);
-                }
-              };
-          snapshot = waveletProvider.getSnapshot(sourceWaveletName, snapshotBuilder);
+        boolean sent = false;
+        if (snapshotsEnabled) {
+          sent = isIndexWave ? sendIndexSnapshot(userManager, waveletName, listener)
+              : sendSnapshot(userManager, waveletName, listener);
         }
-
-        // TODO: Once we've made sure that all listeners have received the
-        // same number of ops for the index wavelet, enable the following check:
-        //if (!deltaList.getEndVersion().equals(userManager.getWaveletVersion(waveletName))) {
-        //  throw new IllegalStateException(..)
-        // }
-        if (snapshot == null) {
-          // TODO(arb): get the LCV - maybe add to waveletProvider?
-          openListener.onUpdate(waveletName, snapshot, deltaList, endVersion,
-              null);
-        } else {
-          openListener.onUpdate(waveletName, snapshot, deltaList, endVersion,
-              snapshot.committedVersion);
+        if (!sent) {
+          sendHistory(userManager, waveletName, isIndexWave, listener);
         }
       }
+      // Then mark where the page ends, with the wavelets the client can
+      // open next.
+      for (WaveletId waveletId : rest) {
+        listener.leaveUnsent(WaveletName.of(waveId, waveletId));
+      }
     }
   }
 
   /**
-   * Serializes a WaveletData into a WaveletSnapshot protobuffer.
+   * @return the given wavelets of a wave, most recently modified first
+   */
+  private List<WaveletId> mostRecentlyModified(WaveId waveId, Set<WaveletId> waveletIds) {
+    final Map<WaveletId, Long> timestamps = Maps.newHashMap();
+    for (WaveletId waveletId : waveletIds) {
+      WaveletName waveletName = WaveletName.of(waveId, waveletId);
+      if (waveId.equals(INDEX_WAVE_ID)) {
+        waveletName = waveletNameForIndexWavelet(waveletName);
+      }
+      timestamps.put(waveletId, perWavelet.get(waveletName).timestamp.get());
+    }
+    List<WaveletId> result = Lists.newArrayList(waveletIds);
+    Collections.sort(result, new Comparator<WaveletId>() {
+      @Override
+      public int compare(WaveletId a, WaveletId b) {
+        int byTime = timestamps.get(b).compareTo(timestamps.get(a));
+        return (byTime != 0) ? byTime : a.serialise().compareTo(b.serialise());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Sends a listener the deltas of a wavelet up to the version other
+   * listeners have been sent, or for an index wavelet the deltas summarising
+   * those.
+   */
+  private void sendHistory(UserManager userManager, WaveletName waveletName, boolean isIndexWave,
+      OpenListener listener) {
+    // The WaveletName by which the waveletProvider knows the relevant deltas
+    WaveletName sourceWaveletName =
+      (isIndexWave ? waveletNameForIndexWavelet(waveletName) : waveletName);
+
+    ProtocolHashedVersion startVersion = perWavelet.get(sourceWaveletName).version0;
+    ProtocolHashedVersion endVersion = userManager.getWaveletVersion(sourceWaveletName);
+
+    DeltaSequence deltaSequence = new DeltaSequence(
+        waveletProvider.getHistory(sourceWaveletName, startVersion, endVersion),
+        endVersion);
+    if (isIndexWave) { // Construct fake index wave deltas from the deltas
+      String newDigest = perWavelet.get(sourceWaveletName).digest;
+      deltaSequence = createIndexDeltas(startVersion, sourceWaveletName, deltaSequence, "",
+          newDigest);
+    }
+    // TODO: Because of the way we create the fake digest edit ops for the
+    // index wave, this may require fewer ops than the existing listeners have
+    // seen, leaving this listener at a different end version than other
+    // listeners on the same wavelet. Fix!
+    // TODO(arb): get the LCV - maybe add to waveletProvider?
+    listener.onUpdate(waveletName, null, deltaSequence, deltaSequence.getEndVersion(), null);
+  }
+
+  /**
+   * Sends a listener a snapshot of a wavelet. If other listeners haven't yet
+   * been sent the deltas up to the snapshot's version, the listener skips
+   * them when they are; if they have been sent later ones, the listener is
+   * sent those after the snapshot.
+   *
+   * @return false if the wavelet has no snapshot
+   */
+  private boolean sendSnapshot(UserManager userManager, WaveletName waveletName,
+      CatchUpListener listener) {
+    WaveletSnapshotAndVersions snapshot =
+        waveletProvider.getSnapshot(waveletName, SNAPSHOT_BUILDER);
+    if (snapshot == null) {
+      return false;
+    }
+    List<ProtocolWaveletDelta> noDeltas = Collections.emptyList();
+    listener.onUpdate(waveletName, snapshot, noDeltas, snapshot.currentVersion,
+        snapshot.committedVersion);
+
+    ProtocolHashedVersion endVersion = userManager.getWaveletVersion(waveletName);
+    long snapshotVersion = snapshot.currentVersion.getVersion();
+    if (snapshotVersion > endVersion.getVersion()) {
+      listener.skipDeltasBefore(waveletName, snapshotVersion);
+    } else if (snapshotVersion < endVersion.getVersion()) {
+      DeltaSequence tail = new DeltaSequence(
+          waveletProvider.getHistory(waveletName, snapshot.currentVersion, endVersion),
+          endVersion);
+      listener.onUpdate(waveletName, null, tail, tail.getEndVersion(), null);
+    }
+    return true;
+  }
+
+  /**
+   * Sends a listener a snapshot of an index wavelet, holding the participants
+   * and digest of the wavelet it refers to, at the version other listeners
+   * have been sent.
    *
-   * @param snapshot the snapshot
-   * @return the new protobuffer
+   * @return false if the wavelet it refers to is being updated, so its
+   *         participants and digest may not agree with that version
    */
-  private WaveletSnapshot serializeSnapshot(WaveletData snapshot) {
-    WaveletSnapshot.Builder snapshotBuilder = WaveletSnapshot.newBuilder();
-    Map<String, BufferedDocOp> documentMap = snapshot.getDocuments();
-    for (Entry<String,BufferedDocOp> document : documentMap.entrySet()) {
-      DocumentSnapshot.Builder documentBuilder = DocumentSnapshot.newBuilder();
-      documentBuilder.setDocumentId(document.getKey());
-      documentBuilder.setDocumentOperation(
-          WaveletOperationSerializer.serialize(document.getValue()));
-      snapshotBuilder.addDocument(documentBuilder.build());
-    }
-    for (ParticipantId participant : snapshot.getParticipants()) {
-      snapshotBuilder.addParticipantId(participant.toString());
-    }
-    return snapshotBuilder.build();
+  private boolean sendIndexSnapshot(UserManager userManager, WaveletName indexWaveletName,
+      OpenListener listener) {
+    PerWavelet waveletInfo = perWavelet.get(waveletNameForIndexWavelet(indexWaveletName));
+    WaveletSnapshot.Builder snapshot = WaveletSnapshot.newBuilder();
+    synchronized (waveletInfo) {
+      if (waveletInfo.updatesInProgress > 0) {
+        return false;
+      }
+      synchronized (waveletInfo.participants) {
+        for (ParticipantId participant : waveletInfo.participants) {
+          snapshot.addParticipantId(participant.getAddress());
+        }
+      }
+      if (!waveletInfo.digest.isEmpty()) {
+        snapshot.addDocument(WaveletSnapshot.DocumentSnapshot.newBuilder()
+            .setDocumentId(DIGEST_DOCUMENT_ID)
+            .setDocumentOperation(serialize(createEditOp("", waveletInfo.digest))));
+      }
+    }
+    List<ProtocolWaveletDelta> noDeltas = Collections.emptyList();
+    ProtocolHashedVersion version = userManager.getWaveletVersion(indexWaveletName);
+    listener.onUpdate(indexWaveletName,
+        new WaveletSnapshotAndVersions(snapshot.build(), version, null), noDeltas, version, null);
+    return true;
   }
 
   private static class SubmitResultListenerAdapter implements SubmitResultListener {
@@ -304,6 +456,31 @@ public class ClientFrontendImpl implements ClientFrontend {
     }
   }
 
+  @Override
+  public void waveletRestored(WaveletName waveletName, Collection<ParticipantId> participants,
+      ProtocolHashedVersion version, Map<String, BufferedDocOp> documentState) {
+    PerWavelet waveletInfo = perWavelet.get(waveletName);
+    synchronized (waveletInfo) {
+      if (!waveletInfo.getCurrentVersion().equals(waveletInfo.version0)) {
+        throw new IllegalStateException("Wavelet " + waveletName + " is already at version "
+            + waveletInfo.getCurrentVersion().getVersion());
+      }
+      waveletInfo.setCurrentVersion(version);
+      waveletInfo.digest = digest(waveletInfo.digestTracker.update(
+          Collections.<ProtocolWaveletDelta>emptyList(), documentState));
+    }
+    // The participants' index wavelets start out empty: opening one sends a
+    // snapshot of the participants and digest, and later index deltas edit
+    // the digest from there.
+    for (ParticipantId participant : participants) {
+      waveletInfo.participants.add(participant);
+      perUser.get(participant).addWavelet(waveletName, version);
+      if (isConversationRootWavelet(waveletName)) {
+        onAdd(indexWaveletNameFor(waveletName), participant);
+      }
+    }
+  }
+
   @Override
   public void waveletCommitted(WaveletName waveletName, ProtocolHashedVersion version) {
     for (ParticipantId participant : perWavelet.get(waveletName).participants) {
@@ -367,8 +544,8 @@ public class ClientFrontendImpl implements ClientFrontend {
       ProtocolHashedVersion indexVersion =
         perUser.get(participant).getWaveletVersion(indexWaveletName);
 
-      DeltaSequence indexDeltas = createIndexDeltas(indexVersion, deltasToSend,
-          oldDigest, newDigest);
+      DeltaSequence indexDeltas = createIndexDeltas(indexVersion, waveletName,
+          deltasToSend, oldDigest, newDigest);
       if (!indexDeltas.isEmpty()) {
         perUser.get(participant).onUpdate(indexWaveletName, indexDeltas);
       }
@@ -395,10 +572,14 @@ public class ClientFrontendImpl implements ClientFrontend {
     final String oldDigest;
     final Set<ParticipantId> remainingParticipants;
 
+    final String newDigest;
+
     synchronized(waveletInfo) {
       expectedVersion = waveletInfo.getCurrentVersion();
       oldDigest = waveletInfo.digest;
       remainingParticipants = Sets.newHashSet(waveletInfo.participants);
+      newDigest = digest(waveletInfo.digestTracker.update(newDeltas, documentState));
+      waveletInfo.updatesInProgress++;
     }
 
     DeltaSequence deltaSequence = new DeltaSequence(newDeltas, endVersion);
@@ -409,8 +590,6 @@ public class ClientFrontendImpl implements ClientFrontend {
           deltaSequence.getStartVersion().getVersion());
     }
 
-    String newDigest = digest(ClientUtils.render(documentState.values()));
-
     // Participants added during the course of newDeltas
     Set<ParticipantId> newParticipants = Sets.newHashSet();
 
@@ -442,6 +621,7 @@ public class ClientFrontendImpl implements ClientFrontend {
     synchronized(waveletInfo) {
       waveletInfo.setCurrentVersion(deltaSequence.getEndVersion());
       waveletInfo.digest = newDigest;
+      waveletInfo.updatesInProgress--;
     }
   }
 
@@ -481,26 +661,22 @@ public class ClientFrontendImpl implements ClientFrontend {
     return new DeltaSequence(deltas, serialize(HashedVersion.unsigned(endVersion)));
   }
 
-  private static DeltaSequence participantDeltasOnly(long version,
+  private DeltaSequence participantDeltasOnly(long version, WaveletName waveletName,
       Iterable<ProtocolWaveletDelta> deltas) {
     List<ProtocolWaveletDelta> result = Lists.newArrayList();
 
     // Filter out operations that are of interest to the index wave wavelet
     // (add/remove participant operations):
     for (ProtocolWaveletDelta protoDelta : deltas) {
-      Pair<WaveletDelta, HashedVersion> deltaAndVersion =
-        WaveletOperationSerializer.deserialize(protoDelta);
-      WaveletDelta delta = deltaAndVersion.first;
-      List<WaveletOperation> indexOps = Lists.newArrayList();
-      for (WaveletOperation op : delta.getOperations()) {
-        if (op instanceof AddParticipant || op instanceof RemoveParticipant) {
-          indexOps.add(op);
-        }
-      }
+      List<ProtocolWaveletOperation> indexOps =
+          participantOps.getParticipantOps(waveletName, protoDelta);
       if (!indexOps.isEmpty()) {
-        WaveletDelta indexDelta = new WaveletDelta(delta.getAuthor(), indexOps);
-        result.add(serialize(indexDelta, HashedVersion.unsigned(version)));
-        version += indexDelta.getOperations().size();
+        result.add(ProtocolWaveletDelta.newBuilder()
+            .addAllOperation(indexOps)
+            .setAuthor(ParticipantOpCache.normalize(protoDelta.getAuthor()))
+            .setHashedVersion(serialize(HashedVersion.unsigned(version)))
+            .build());
+        version += indexOps.size();
       }
     }
     return new DeltaSequence(result, serialize(HashedVersion.unsigned(version)));
@@ -546,19 +722,20 @@ public class ClientFrontendImpl implements ClientFrontend {
    * represent the change implied by deltas.
    *
    * @param indexVersion the returned deltas should start at
+   * @param waveletName the wavelet to which deltas were applied
    * @param deltas The deltas whose effect on the participants to determine
    * @return deltas to apply to the index wavelet to achieve the same change
    *         in participants, and the specified change in digest text
    */
-  private static DeltaSequence createIndexDeltas(ProtocolHashedVersion indexVersion,
-      DeltaSequence deltas, String oldDigest, String newDigest) {
+  private DeltaSequence createIndexDeltas(ProtocolHashedVersion indexVersion,
+      WaveletName waveletName, DeltaSequence deltas, String oldDigest, String newDigest) {
     long version = indexVersion.getVersion();
     ProtocolWaveletDelta digestDelta =
       createDigestDelta(HashedVersion.unsigned(version), oldDigest, newDigest);
     if (digestDelta != null) {
       version += digestDelta.getOperationCount();
     }
-    DeltaSequence participantDeltas = participantDeltasOnly(version, deltas);
+    DeltaSequence participantDeltas = participantDeltasOnly(version, waveletName, deltas);
     if (digestDelta == null) {
       return participantDeltas;
     } else {
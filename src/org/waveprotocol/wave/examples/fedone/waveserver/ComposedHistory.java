@@ -0,0 +1,218 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.DocOpCollector;
+import org.waveprotocol.wave.model.document.operation.algorithm.Transformer;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.OperationPair;
+import org.waveprotocol.wave.model.operation.Transform;
+import org.waveprotocol.wave.model.operation.TransformException;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Composes the operations of a {@link DeltaHistory} per document, so that a
+ * client delta submitted far behind head can be transformed against one
+ * composed operation per document instead of against every server operation
+ * in turn.
+ *
+ * The history is split into blocks of {@link #BLOCK_SIZE} deltas. The
+ * composition of a complete block never changes, since the history is only
+ * appended to, so it is computed the first time it is needed and kept. A
+ * range is composed from the blocks it covers plus the individual deltas at
+ * either end.
+ *
+ * Operations other than document operations (participant changes) are kept
+ * in order rather than composed. Not thread safe: like the history, it must
+ * be guarded by the wavelet's write lock.
+ */
+final class ComposedHistory {
+
+  /** Number of deltas composed together in each block. */
+  static final int BLOCK_SIZE = 64;
+
+  /** The operations of a range of deltas, composed per document. */
+  static final class Composition {
+    private final Map<String, BufferedDocOp> documentOps;
+    private final List<WaveletOperation> otherOps;
+
+    Composition(Map<String, BufferedDocOp> documentOps, List<WaveletOperation> otherOps) {
+      this.documentOps = documentOps;
+      this.otherOps = otherOps;
+    }
+
+    /** @return the composed operation on a document, or null if there is none. */
+    BufferedDocOp getDocumentOp(String documentId) {
+      return documentOps.get(documentId);
+    }
+
+    /** @return the operations on anything but documents, in order. */
+    List<WaveletOperation> getOtherOps() {
+      return otherOps;
+    }
+
+    /**
+     * Transforms client operations against the composed server operations,
+     * to the same effect as transforming each against every server operation
+     * in turn.
+     *
+     * @return the transformed client operations, one for each client operation
+     * @throws OperationException if transformation fails
+     */
+    List<WaveletOperation> transform(List<WaveletOperation> clientOps, ParticipantId clientAuthor)
+        throws OperationException {
+      List<WaveletOperation> transformedClientOps = Lists.newArrayList();
+      try {
+        for (WaveletOperation c : clientOps) {
+          // Participant changes transform document operations to themselves,
+          // but may still reject them if the client's author was removed.
+          for (WaveletOperation s : otherOps) {
+            c = Transform.transform(c, clientAuthor, s, null).clientOp();
+          }
+          if (c instanceof WaveletDocumentOperation) {
+            WaveletDocumentOperation docOp = (WaveletDocumentOperation) c;
+            BufferedDocOp serverOp = documentOps.get(docOp.getDocumentId());
+            if (serverOp != null) {
+              OperationPair<BufferedDocOp> pair = Transformer.transform(docOp.getOperation(),
+                  serverOp);
+              c = new WaveletDocumentOperation(docOp.getDocumentId(), pair.clientOp());
+            }
+          }
+          transformedClientOps.add(c);
+        }
+      } catch (TransformException e) {
+        throw new OperationException(e);
+      }
+      return transformedClientOps;
+    }
+  }
+
+  /** Collects the operations of consecutive deltas into a composition. */
+  private static final class Collector {
+    private final Map<String, DocOpCollector> documentOps = Maps.newLinkedHashMap();
+    private final ImmutableList.Builder<WaveletOperation> otherOps = ImmutableList.builder();
+
+    void add(WaveletDelta delta) {
+      for (WaveletOperation op : delta.getOperations()) {
+        if (op instanceof WaveletDocumentOperation) {
+          WaveletDocumentOperation docOp = (WaveletDocumentOperation) op;
+          addDocumentOp(docOp.getDocumentId(), docOp.getOperation());
+        } else {
+          otherOps.add(op);
+        }
+      }
+    }
+
+    void add(Composition composition) {
+      for (Map.Entry<String, BufferedDocOp> entry : composition.documentOps.entrySet()) {
+        addDocumentOp(entry.getKey(), entry.getValue());
+      }
+      otherOps.addAll(composition.otherOps);
+    }
+
+    private void addDocumentOp(String documentId, BufferedDocOp op) {
+      DocOpCollector collector = documentOps.get(documentId);
+      if (collector == null) {
+        collector = new DocOpCollector();
+        documentOps.put(documentId, collector);
+      }
+      collector.add(op);
+    }
+
+    Composition compose() throws OperationException {
+      ImmutableMap.Builder<String, BufferedDocOp> composed = ImmutableMap.builder();
+      try {
+        for (Map.Entry<String, DocOpCollector> entry : documentOps.entrySet()) {
+          composed.put(entry.getKey(), entry.getValue().composeAll());
+        }
+      } catch (IllegalArgumentException e) {
+        // DocOpCollector reports a failure to compose this way.
+        throw new OperationException("Server operations do not compose", e);
+      }
+      return new Composition(composed.build(), otherOps.build());
+    }
+  }
+
+  private final DeltaHistory history;
+
+  /** Compositions of complete blocks, null where not needed yet. */
+  private final List<Composition> blocks = Lists.newArrayList();
+
+  ComposedHistory(DeltaHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * Composes the operations of the deltas in the history from an index up to
+   * the end.
+   *
+   * @param first index of the first delta to compose
+   * @throws OperationException if the server operations don't compose
+   */
+  Composition composeFrom(int first) throws OperationException {
+    int size = history.size();
+    Collector collector = new Collector();
+    int i = first;
+    // Deltas before the first whole block.
+    int firstBlockStart = Math.min(roundUp(first), size);
+    for (; i < firstBlockStart; i++) {
+      collector.add(history.getDelta(i));
+    }
+    // Whole blocks.
+    for (; i + BLOCK_SIZE <= size; i += BLOCK_SIZE) {
+      collector.add(getBlock(i / BLOCK_SIZE));
+    }
+    // Deltas after the last whole block.
+    for (; i < size; i++) {
+      collector.add(history.getDelta(i));
+    }
+    return collector.compose();
+  }
+
+  private Composition getBlock(int block) throws OperationException {
+    while (blocks.size() <= block) {
+      blocks.add(null);
+    }
+    Composition composition = blocks.get(block);
+    if (composition == null) {
+      Collector collector = new Collector();
+      for (int i = block * BLOCK_SIZE; i < (block + 1) * BLOCK_SIZE; i++) {
+        collector.add(history.getDelta(i));
+      }
+      composition = collector.compose();
+      blocks.set(block, composition);
+    }
+    return composition;
+  }
+
+  private static int roundUp(int index) {
+    return (index + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The delta history of a wavelet, indexed by the version each delta was
+ * applied at. Holds the applied and the transformed form of every delta in
+ * parallel arrays alongside a sorted array of start versions, so lookups are
+ * a binary search over primitives. The serialised transformed delta is not
+ * kept, it is serialised again each time it is read.
+ *
+ * A history restored from a snapshot may start with deltas which are only
+ * indexed: their transformed form is worked out by a {@link Resolver} when
+ * first needed, so that restoring doesn't transform deltas already covered
+ * by the snapshot.
+ *
+ * Deltas may only be appended. Writers must be serialised with each other
+ * and with callers of the other methods, e.g. by the wavelet's lock. The
+ * lists returned by the range methods are immutable views which may be read
+ * on any thread they are handed to, also after later appends: they read the
+ * arrays as they were when the view was made, and appends never modify the
+ * slots in use. Indexed deltas are resolved under this history's monitor,
+ * which also guards growing the arrays, and the size is published after the
+ * slots, so that a resolver running on another thread, such as the
+ * snapshotter's, reads a consistent history.
+ */
+final class DeltaHistory {
+
+  /** Works out the transformed delta of an indexed delta. */
+  interface Resolver {
+    /**
+     * @param index of an indexed delta; earlier deltas may be read from the
+     *        history, resolving them in turn
+     * @return the transformed delta
+     */
+    WaveletDelta resolve(int index);
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] startVersions = new long[INITIAL_CAPACITY];
+  private HashedVersion[] hashedVersions = new HashedVersion[INITIAL_CAPACITY];
+  private WaveletDelta[] deltas = new WaveletDelta[INITIAL_CAPACITY];
+  @SuppressWarnings("unchecked")
+  private ByteStringMessage<ProtocolAppliedWaveletDelta>[] appliedDeltas =
+      (ByteStringMessage<ProtocolAppliedWaveletDelta>[]) new ByteStringMessage<?>[INITIAL_CAPACITY];
+  /** Written after the slots of the deltas it counts. */
+  private volatile int size = 0;
+  /** Number of deltas at the start which were indexed rather than appended. */
+  private int indexed = 0;
+  private final Resolver resolver;
+
+  /** Creates a history whose deltas are all appended. */
+  DeltaHistory() {
+    this(null);
+  }
+
+  /** Creates a history whose indexed deltas are resolved by the given resolver. */
+  DeltaHistory(Resolver resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Appends a delta to the history.
+   *
+   * @param appliedAt version the delta was applied at, must be later than
+   *        that of every delta already in the history
+   * @param delta the transformed delta
+   * @param appliedDelta the applied delta
+   */
+  void append(HashedVersion appliedAt, WaveletDelta delta,
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta) {
+    add(appliedAt, delta, appliedDelta);
+  }
+
+  /**
+   * Appends a delta without its transformed form, which is resolved when
+   * first needed. Only allowed before any delta has been appended.
+   *
+   * @param appliedAt version the delta was applied at, must be later than
+   *        that of every delta already in the history
+   * @param appliedDelta the applied delta
+   */
+  void index(HashedVersion appliedAt, ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta) {
+    Preconditions.checkState(resolver != null, "History has no resolver");
+    Preconditions.checkState(indexed == size, "Deltas have already been appended");
+    add(appliedAt, null, appliedDelta);
+    indexed++;
+  }
+
+  private void add(HashedVersion appliedAt, WaveletDelta delta,
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta) {
+    long version = appliedAt.getVersion();
+    int index = size;
+    Preconditions.checkArgument(index == 0 || version > startVersions[index - 1],
+        "Delta applied at %s does not follow the history", version);
+    if (index == startVersions.length) {
+      // A resolver may be reading the arrays, and writing resolved deltas.
+      synchronized (this) {
+        int capacity = index + (index >> 1);
+        startVersions = Arrays.copyOf(startVersions, capacity);
+        hashedVersions = Arrays.copyOf(hashedVersions, capacity);
+        deltas = Arrays.copyOf(deltas, capacity);
+        appliedDeltas = Arrays.copyOf(appliedDeltas, capacity);
+      }
+    }
+    startVersions[index] = version;
+    hashedVersions[index] = appliedAt;
+    deltas[index] = delta;
+    appliedDeltas[index] = appliedDelta;
+    size = index + 1;
+  }
+
+  /** @return the number of deltas in the history. */
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the index of the delta that contains the given version, i.e. the
+   *         last one applied at or before it, or -1 if there is none
+   */
+  int floorIndex(long version) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midVersion = startVersions[mid];
+      if (midVersion < version) {
+        low = mid + 1;
+      } else if (midVersion > version) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return high;
+  }
+
+  /** @return the index of the first delta applied at or after the given version. */
+  private int ceilingIndex(long version) {
+    int floor = floorIndex(version);
+    return (floor >= 0 && startVersions[floor] == version) ? floor : floor + 1;
+  }
+
+  /** @return the hashed version the delta at an index was applied at. */
+  HashedVersion getHashedVersion(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return hashedVersions[index];
+  }
+
+  /** @return the transformed delta at an index. */
+  WaveletDelta getDelta(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return (index < indexed) ? resolve(index) : deltas[index];
+  }
+
+  /**
+   * Resolves an indexed delta, once. Synchronised, as readers on any thread
+   * may resolve deltas concurrently with each other and with appends.
+   */
+  private synchronized WaveletDelta resolve(int index) {
+    if (deltas[index] == null) {
+      deltas[index] = resolver.resolve(index);
+    }
+    return deltas[index];
+  }
+
+  /** @return the applied delta at an index. */
+  ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return appliedDeltas[index];
+  }
+
+  /**
+   * @return the applied deltas from the one containing {@code startVersion}
+   *         up to, but excluding, the first one applied at or after
+   *         {@code endVersion}
+   */
+  List<ByteStringMessage<ProtocolAppliedWaveletDelta>> getAppliedDeltas(long startVersion,
+      long endVersion) {
+    return range(appliedDeltas, startVersion, endVersion);
+  }
+
+  /**
+   * @return the serialised transformed deltas from the one containing
+   *         {@code startVersion} up to, but excluding, the first one applied
+   *         at or after {@code endVersion}
+   */
+  List<ProtocolWaveletDelta> getTransformedDeltas(long startVersion, long endVersion) {
+    final List<WaveletDelta> deltaRange = getDeltas(startVersion, endVersion);
+    final List<HashedVersion> versionRange = getHashedVersions(startVersion, endVersion);
+    return new IndexRange<ProtocolWaveletDelta>(0, deltaRange.size()) {
+      @Override
+      ProtocolWaveletDelta getAt(int index) {
+        return WaveletOperationSerializer.serialize(
+            deltaRange.get(index), versionRange.get(index));
+      }
+    };
+  }
+
+  /**
+   * @return the transformed deltas from the one containing {@code startVersion}
+   *         up to, but excluding, the first one applied at or after
+   *         {@code endVersion}
+   */
+  List<WaveletDelta> getDeltas(long startVersion, long endVersion) {
+    if (indexed == 0) {
+      return range(deltas, startVersion, endVersion);
+    }
+    final int indexedCount = indexed;
+    final WaveletDelta[] array = deltas;
+    int from = Math.max(floorIndex(startVersion), 0);
+    int to = Math.max(ceilingIndex(endVersion), from);
+    return new IndexRange<WaveletDelta>(from, to) {
+      @Override
+      WaveletDelta getAt(int index) {
+        return (index < indexedCount) ? resolve(index) : array[index];
+      }
+    };
+  }
+
+  /**
+   * @return the hashed versions at which the deltas in
+   *         {@link #getDeltas(long, long)} were applied
+   */
+  List<HashedVersion> getHashedVersions(long startVersion, long endVersion) {
+    return range(hashedVersions, startVersion, endVersion);
+  }
+
+  private <T> List<T> range(final T[] array, long startVersion, long endVersion) {
+    int from = Math.max(floorIndex(startVersion), 0);
+    int to = Math.max(ceilingIndex(endVersion), from);
+    return new IndexRange<T>(from, to) {
+      @Override
+      T getAt(int index) {
+        return array[index];
+      }
+    };
+  }
+
+  /**
+   * An immutable view of part of the history. Appends never modify the slots
+   * already in use and growing the history copies to new arrays, so the view
+   * is stable.
+   */
+  private abstract static class IndexRange<T> extends AbstractList<T> implements RandomAccess {
+    private final int from;
+    private final int to;
+
+    IndexRange(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    /** @return the element at an index of the history. */
+    abstract T getAt(int index);
+
+    @Override
+    public T get(int index) {
+      Preconditions.checkElementIndex(index, to - from);
+      return getAt(from + index);
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+  }
+}
@@ -20,13 +20,15 @@ package org.waveprotocol.wave.examples.fedone.waveserver;
 import com.google.inject.ProvidedBy;
 
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
 
 @ProvidedBy(DeltaSignerProvider.class)
 public interface DeltaSigner {
   /**
    * Signs the delta. The callback to the listener may be delayed for a while if the signer
-   * is accumulating deltas.
+   * is accumulating deltas. Listeners for the deltas of a wavelet are called in the order
+   * in which the deltas were passed to this method.
    */
-  void sign(ByteStringMessage<ProtocolWaveletDelta> delta,
+  void sign(WaveletName waveletName, ByteStringMessage<ProtocolWaveletDelta> delta,
       CertificateManager.SignatureResultListener resultListener);
 }
@@ -30,7 +30,9 @@ import org.waveprotocol.wave.crypto.WaveSigner;
 import org.waveprotocol.wave.examples.fedone.waveserver.CertificateManager.SignatureResultListener;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
 
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 @Singleton
@@ -38,6 +40,8 @@ public class DeltaSignerProvider  implements Provider<DeltaSigner> {
 
   private int maximumDeltaBundleSize;
   private int bundlingAccumulationDelayMs;
+  private final int signingThreads;
+  private final boolean merkleSigning;
   private final WaveSigner waveSigner;
   private final ScheduledExecutorService executor;
 
@@ -45,15 +49,21 @@ public class DeltaSignerProvider  implements Provider<DeltaSigner> {
   public DeltaSignerProvider(ScheduledExecutorService executor,
     @Named("maximum_delta_bundle_size") int maximumDeltaBundleSize,
     @Named("delta_bundling_accumulation_delay_ms") int bundlingAccumulationDelayMs,
+    @Named("delta_signing_threads") int signingThreads,
+    @Named("delta_signing_merkle") boolean merkleSigning,
     WaveSigner waveSigner) {
 
     Preconditions.checkArgument(maximumDeltaBundleSize > 0, "Max delta bundle size must be >= 1.");
     Preconditions.checkArgument(bundlingAccumulationDelayMs >= 0, "Delta bundling accumulation " +
     		"delay must be >= 0");
+    Preconditions.checkArgument(signingThreads >= 0, "Delta signing threads must be >= 0");
     this.executor = executor;
     this.waveSigner = waveSigner;
     this.maximumDeltaBundleSize = maximumDeltaBundleSize;
     this.bundlingAccumulationDelayMs = bundlingAccumulationDelayMs;
+    this.signingThreads =
+        (signingThreads == 0) ? Runtime.getRuntime().availableProcessors() : signingThreads;
+    this.merkleSigning = merkleSigning;
   }
 
   @Override
@@ -63,7 +73,7 @@ public class DeltaSignerProvider  implements Provider<DeltaSigner> {
       return getSimpleDeltaSigner(waveSigner);
     } else {
       return new BundlingDeltaSigner(
-          executor,
+          executor, Executors.newFixedThreadPool(signingThreads), signingThreads, merkleSigning,
           waveSigner, maximumDeltaBundleSize,
           bundlingAccumulationDelayMs);
     }
@@ -78,7 +88,7 @@ public class DeltaSignerProvider  implements Provider<DeltaSigner> {
     return new DeltaSigner() {
 
       @Override
-      public void sign(ByteStringMessage<ProtocolWaveletDelta> delta,
+      public void sign(WaveletName waveletName, ByteStringMessage<ProtocolWaveletDelta> delta,
           SignatureResultListener resultListener) {
         ProtocolSignedDelta.Builder signedDelta = ProtocolSignedDelta.newBuilder();
         ByteString deltaBytes =  delta.getByteString();
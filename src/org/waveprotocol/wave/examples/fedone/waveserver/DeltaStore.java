@@ -0,0 +1,84 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Append-only storage for the serialised {@code ProtocolAppliedWaveletDelta}s
+ * of each wavelet. Wavelet containers append every delta they commit, and the
+ * wave server reads the logs back to rebuild wavelets after a restart.
+ *
+ * Implementations must be thread safe.
+ */
+public interface DeltaStore {
+
+  /**
+   * Receives the outcome of an {@link DeltaStore#append}.
+   */
+  interface AppendCallback {
+    /**
+     * Called once the delta, and every delta appended to the same wavelet
+     * before it, is durable.
+     */
+    void onCommitted();
+
+    /**
+     * Called if the delta could not be made durable.
+     */
+    void onFailure(IOException e);
+  }
+
+  /**
+   * @return the names of all wavelets which have persisted history.
+   */
+  Collection<WaveletName> getWaveletNames() throws IOException;
+
+  /**
+   * Reads back the persisted applied deltas of a wavelet, in the order they
+   * were appended.
+   *
+   * @param waveletName name of the wavelet
+   * @param startVersion only deltas applied at or after this version are returned
+   * @return the serialised applied deltas, empty if none are persisted
+   */
+  List<ByteString> readDeltas(WaveletName waveletName, long startVersion) throws IOException;
+
+  /**
+   * Appends an applied delta to the log of a wavelet. Returns without waiting
+   * for the delta to become durable; the callback is notified when it has.
+   *
+   * @param waveletName name of the wavelet
+   * @param versionAppliedAt version the delta was applied at
+   * @param appliedDelta the serialised {@code ProtocolAppliedWaveletDelta}
+   * @param callback notified once the delta is durable, or has failed to be
+   */
+  void append(WaveletName waveletName, long versionAppliedAt, ByteString appliedDelta,
+      AppendCallback callback);
+
+  /**
+   * Commits any pending appends and releases all resources held by the store.
+   */
+  void close();
+}
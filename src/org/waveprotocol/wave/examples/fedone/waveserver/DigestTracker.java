@@ -0,0 +1,177 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.AttributesUpdate;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpCursor;
+import org.waveprotocol.wave.model.document.operation.impl.InitializationCursorAdapter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the first line of text of a wavelet, i.e. the rendering of its
+ * documents concatenated in order, up to and including the first newline.
+ *
+ * Each document's contribution is remembered along with the number of items
+ * it spans. A document is only rendered again when an operation on it starts
+ * within that span, or anywhere if it holds no newline; operations which
+ * only touch the document past its first newline leave it as it was.
+ * Documents after the one holding the first newline are not rendered at all,
+ * and documents not rendered are never read, so an update only costs as much
+ * as the edits to the first line.
+ *
+ * Not thread safe.
+ */
+final class DigestTracker {
+
+  /** The rendered text of a document, up to its first newline. */
+  private static final class RenderedPrefix {
+    final String text;
+    final boolean endsLine;
+    /** Number of items of the document the text was rendered from. */
+    final int itemCount;
+
+    RenderedPrefix(String text, boolean endsLine, int itemCount) {
+      this.text = text;
+      this.endsLine = endsLine;
+      this.itemCount = itemCount;
+    }
+  }
+
+  private final Map<String, RenderedPrefix> documents = Maps.newHashMap();
+
+  /**
+   * Brings the tracker up to date with the documents of the wavelet.
+   *
+   * @param deltas the deltas applied since the last update; documents they
+   *        don't change within their first line are not read
+   * @param documentState the documents of the wavelet, in rendering order,
+   *        after the deltas
+   * @return the text of the wavelet up to and including its first newline,
+   *         or all of its text if it has none
+   */
+  String update(List<ProtocolWaveletDelta> deltas, Map<String, BufferedDocOp> documentState) {
+    for (ProtocolWaveletDelta delta : deltas) {
+      for (ProtocolWaveletOperation op : delta.getOperationList()) {
+        if (op.hasMutateDocument()) {
+          String documentId = op.getMutateDocument().getDocumentId();
+          RenderedPrefix prefix = documents.get(documentId);
+          if (prefix != null && (!prefix.endsLine || getStartOfChange(
+              op.getMutateDocument().getDocumentOperation()) < prefix.itemCount)) {
+            documents.remove(documentId);
+          }
+        }
+      }
+    }
+
+    StringBuilder firstLine = new StringBuilder();
+    Set<String> documentIds = documentState.keySet();
+    for (String documentId : documentIds) {
+      RenderedPrefix prefix = documents.get(documentId);
+      if (prefix == null) {
+        prefix = render(documentState.get(documentId));
+        documents.put(documentId, prefix);
+      }
+      firstLine.append(prefix.text);
+      if (prefix.endsLine) {
+        break;
+      }
+    }
+    if (documents.size() > documentIds.size()) {
+      documents.keySet().retainAll(documentIds);
+    }
+    return firstLine.toString();
+  }
+
+  /**
+   * @return the position of the first item a document operation changes,
+   *         or {@link Integer#MAX_VALUE} if it only retains and annotates
+   */
+  private static int getStartOfChange(ProtocolDocumentOperation operation) {
+    int position = 0;
+    for (ProtocolDocumentOperation.Component component : operation.getComponentList()) {
+      if (component.hasRetainItemCount()) {
+        position += component.getRetainItemCount();
+      } else if (!component.hasAnnotationBoundary()) {
+        return position;
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /** Renders the characters of a document up to and including its first newline. */
+  private static RenderedPrefix render(BufferedDocOp state) {
+    PrefixRenderer renderer = new PrefixRenderer();
+    state.apply(new InitializationCursorAdapter(renderer));
+    return new RenderedPrefix(renderer.text.toString(), renderer.endsLine, renderer.itemCount);
+  }
+
+  /** Collects the characters of a document, and counts its items, up to its first newline. */
+  private static final class PrefixRenderer implements DocOpCursor {
+    final StringBuilder text = new StringBuilder();
+    int itemCount = 0;
+    boolean endsLine = false;
+
+    @Override
+    public void characters(String s) {
+      if (!endsLine) {
+        int newline = s.indexOf('\n');
+        if (newline < 0) {
+          text.append(s);
+          itemCount += s.length();
+        } else {
+          text.append(s, 0, newline + 1);
+          itemCount += newline + 1;
+          endsLine = true;
+        }
+      }
+    }
+
+    @Override
+    public void elementStart(String type, Attributes attrs) {
+      if (!endsLine) {
+        itemCount++;
+      }
+    }
+
+    @Override
+    public void elementEnd() {
+      if (!endsLine) {
+        itemCount++;
+      }
+    }
+
+    @Override public void annotationBoundary(AnnotationBoundaryMap map) {}
+    @Override public void retain(int itemCount) {}
+    @Override public void deleteCharacters(String chars) {}
+    @Override public void deleteElementStart(String type, Attributes attrs) {}
+    @Override public void deleteElementEnd() {}
+    @Override public void replaceAttributes(Attributes oldAttrs, Attributes newAttrs) {}
+    @Override public void updateAttributes(AttributesUpdate attrUpdate) {}
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A {@link DeltaStore} that keeps nothing, used when persistence is disabled.
+ * Every append is reported as committed immediately, so wavelet history lives
+ * only in the wavelet containers themselves.
+ */
+public class DisabledDeltaStore implements DeltaStore {
+
+  @Override
+  public Collection<WaveletName> getWaveletNames() {
+    return ImmutableList.of();
+  }
+
+  @Override
+  public List<ByteString> readDeltas(WaveletName waveletName, long startVersion) {
+    return ImmutableList.of();
+  }
+
+  @Override
+  public void append(WaveletName waveletName, long versionAppliedAt, ByteString appliedDelta,
+      AppendCallback callback) {
+    callback.onCommitted();
+  }
+
+  @Override
+  public void close() {
+  }
+}
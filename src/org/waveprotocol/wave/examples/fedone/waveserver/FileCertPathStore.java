@@ -0,0 +1,225 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.MapMaker;
+
+import org.waveprotocol.wave.crypto.CertPathStore;
+import org.waveprotocol.wave.crypto.DefaultCertPathStore;
+import org.waveprotocol.wave.crypto.SignatureException;
+import org.waveprotocol.wave.crypto.SignerInfo;
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignerInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link CertPathStore} that also keeps each signer info on local disk, and
+ * loads them all when opened, so that a restarted server can verify deltas
+ * without first fetching every remote signer's certificates again.
+ *
+ * Signer infos are only stored once they have been validated (see
+ * {@link CertificateManager#storeSignerInfo}). Each is kept in a file named
+ * after the hex encoding of its signer id, which holds
+ *
+ * <pre>
+ *   int  length of the signer info
+ *   int  CRC32 of the validation time followed by the signer info
+ *   long time the signer info was validated, in milliseconds since the epoch
+ *   byte[] serialised ProtocolSignerInfo
+ * </pre>
+ *
+ * Files are written to a temporary file which is synced and then renamed, so
+ * a crash never leaves a partial signer info behind. Files that can't be read
+ * are skipped; their signer infos will be fetched again when needed. So are
+ * signer infos validated longer ago than the store's maximum age, which are
+ * deleted, so that they are fetched and validated afresh.
+ */
+public class FileCertPathStore extends DefaultCertPathStore {
+
+  private static final Log LOG = Log.get(FileCertPathStore.class);
+
+  /** Suffix of signer info file names. */
+  private static final String SIGNER_SUFFIX = ".signer";
+
+  /** Suffix of signer info files still being written. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File root;
+
+  /** Age after which a stored signer info is no longer loaded, 0 for no limit. */
+  private final long maxAgeMillis;
+
+  /** Time each signer info was validated, by signer id. */
+  private final ConcurrentMap<ByteBuffer, Long> validationTimes = new MapMaker().makeMap();
+
+  /**
+   * Opens the store, loading the signer infos kept in it.
+   *
+   * @param root directory in which the signer infos are kept
+   * @param maxAgeMillis age, since they were validated, after which signer
+   *   infos are dropped rather than loaded, or 0 for no limit
+   */
+  public FileCertPathStore(File root, long maxAgeMillis) {
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IllegalArgumentException("Couldn't create cert path store directory " + root);
+    }
+    if (maxAgeMillis < 0) {
+      throw new IllegalArgumentException("Maximum age must be >= 0, got " + maxAgeMillis);
+    }
+    this.root = root;
+    this.maxAgeMillis = maxAgeMillis;
+
+    int loaded = 0;
+    int expired = 0;
+    File[] files = root.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(SIGNER_SUFFIX)) {
+          try {
+            if (load(file)) {
+              loaded++;
+            } else {
+              expired++;
+            }
+          } catch (IOException e) {
+            LOG.warning("Skipping unreadable signer info " + file, e);
+          } catch (SignatureException e) {
+            LOG.warning("Skipping unparseable signer info " + file, e);
+          }
+        }
+      }
+    }
+    LOG.info("Cert path store opened at " + root.getAbsolutePath() + " with " + loaded
+        + " signer infos, " + expired + " expired");
+  }
+
+  @Override
+  public void put(ProtocolSignerInfo protobuf) throws SignatureException {
+    SignerInfo signerInfo = add(protobuf);
+    if (signerInfo != null) {
+      long now = System.currentTimeMillis();
+      validationTimes.put(ByteBuffer.wrap(signerInfo.getSignerId()), now);
+      try {
+        write(signerInfo, now);
+      } catch (IOException e) {
+        // The signer info is still usable until restart, when it'll be fetched again.
+        LOG.warning("Couldn't persist signer info for " + signerInfo.getDomain(), e);
+      }
+    }
+  }
+
+  /**
+   * @return when the signer info was validated, in milliseconds since the
+   *   epoch, or null if it is not in the store
+   */
+  public Long getValidationTime(byte[] signerId) {
+    return validationTimes.get(ByteBuffer.wrap(signerId));
+  }
+
+  /**
+   * Loads a signer info file, or deletes it if the signer info has expired.
+   *
+   * @return false if the signer info had expired
+   */
+  private boolean load(File file) throws IOException, SignatureException {
+    long validationTime;
+    byte[] bytes;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int length = in.readInt();
+      int crcValue = in.readInt();
+      if (length < 0 || 16L + length != file.length()) {
+        throw new IOException("Signer info " + file + " has the wrong length");
+      }
+      byte[] timeBytes = new byte[8];
+      bytes = new byte[length];
+      in.readFully(timeBytes);
+      in.readFully(bytes);
+      CRC32 checksum = new CRC32();
+      checksum.update(timeBytes);
+      checksum.update(bytes);
+      if ((int) checksum.getValue() != crcValue) {
+        throw new IOException("Signer info " + file + " fails its checksum");
+      }
+      validationTime = ByteBuffer.wrap(timeBytes).getLong();
+    } finally {
+      in.close();
+    }
+    if (maxAgeMillis > 0 && System.currentTimeMillis() - validationTime > maxAgeMillis) {
+      if (!file.delete()) {
+        LOG.warning("Couldn't delete expired signer info " + file);
+      }
+      return false;
+    }
+    SignerInfo signerInfo = add(ProtocolSignerInfo.parseFrom(bytes));
+    if (signerInfo != null) {
+      validationTimes.put(ByteBuffer.wrap(signerInfo.getSignerId()), validationTime);
+    }
+    return true;
+  }
+
+  private void write(SignerInfo signerInfo, long validationTime) throws IOException {
+    String name = toHex(signerInfo.getSignerId()) + SIGNER_SUFFIX;
+    File temp = new File(root, name + TEMP_SUFFIX);
+    File file = new File(root, name);
+
+    byte[] timeBytes = ByteBuffer.allocate(8).putLong(validationTime).array();
+    byte[] bytes = signerInfo.toProtoBuf().toByteArray();
+    CRC32 checksum = new CRC32();
+    checksum.update(timeBytes);
+    checksum.update(bytes);
+
+    FileOutputStream fileOut = new FileOutputStream(temp);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      out.writeInt(bytes.length);
+      out.writeInt((int) checksum.getValue());
+      out.write(timeBytes);
+      out.write(bytes);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+    // Replace any earlier copy, which renameTo won't do on every platform.
+    file.delete();
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Couldn't rename " + temp + " to " + file);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
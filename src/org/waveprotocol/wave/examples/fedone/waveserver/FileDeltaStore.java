@@ -0,0 +1,542 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.model.id.IdSerialiser.RuntimeInvalidIdException;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link DeltaStore} keeping one append-only log per wavelet on local disk.
+ *
+ * Each wavelet has a directory {@code <root>/<waveId>/<waveletId>} holding a
+ * sequence of segment files, each named after the version its first delta was
+ * applied at. A segment is closed once it grows past the configured size and
+ * later deltas go to a new one. Every record in a segment is
+ *
+ * <pre>
+ *   int  payload length
+ *   long version the delta was applied at
+ *   int  CRC32 of the payload
+ *   byte[] serialised ProtocolAppliedWaveletDelta
+ * </pre>
+ *
+ * Appends are handed to a single writer thread which group commits them:
+ * it writes every queued delta, fsyncs each touched segment once, and only
+ * then notifies the callbacks. A torn record at the end of a segment (from a
+ * crash mid-write) is detected by its length or checksum and truncated away.
+ */
+public class FileDeltaStore implements DeltaStore {
+
+  private static final Log LOG = Log.get(FileDeltaStore.class);
+
+  /** Suffix of segment file names. */
+  private static final String SEGMENT_SUFFIX = ".deltas";
+
+  /** Size of the record header: payload length, version applied at, checksum. */
+  private static final int HEADER_SIZE = 4 + 8 + 4;
+
+  /** An append waiting for the writer thread. */
+  private static final class PendingAppend {
+    final WaveletLog log;
+    final long versionAppliedAt;
+    final ByteString appliedDelta;
+    final AppendCallback callback;
+    IOException failure;
+
+    PendingAppend(WaveletLog log, long versionAppliedAt, ByteString appliedDelta,
+        AppendCallback callback) {
+      this.log = log;
+      this.versionAppliedAt = versionAppliedAt;
+      this.appliedDelta = appliedDelta;
+      this.callback = callback;
+    }
+  }
+
+  /** Queued by {@link #close} to stop the writer thread. */
+  private static final PendingAppend SHUTDOWN = new PendingAppend(null, 0, null, null);
+
+  /**
+   * The log of a single wavelet. The segment map and durable length are
+   * guarded by the instance monitor, everything else is only touched by the
+   * writer thread.
+   */
+  private final class WaveletLog {
+    private final File directory;
+    private final TreeMap<Long, File> segments = Maps.newTreeMap();
+    private long durableLength;
+
+    private FileChannel channel;
+    private long position;
+    private IOException failure;
+
+    WaveletLog(File directory) {
+      this.directory = directory;
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          String name = file.getName();
+          if (name.endsWith(SEGMENT_SUFFIX)) {
+            try {
+              segments.put(Long.parseLong(
+                  name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+              LOG.warning("Ignoring unexpected file in delta store: " + file);
+            }
+          }
+        }
+      }
+      if (!segments.isEmpty()) {
+        durableLength = segments.lastEntry().getValue().length();
+      }
+    }
+
+    /** Writes one record, opening or rolling the active segment as needed. */
+    void write(long versionAppliedAt, ByteString appliedDelta, byte[] scratch)
+        throws IOException {
+      if (failure != null) {
+        throw new IOException("Earlier append to " + directory + " failed", failure);
+      }
+      try {
+        if (channel == null) {
+          openActiveSegment(versionAppliedAt);
+        } else if (position >= segmentSizeBytes) {
+          sync();
+          channel.close();
+          channel = null;
+          createSegment(versionAppliedAt);
+        }
+        int length = appliedDelta.size();
+        ByteBuffer record = ByteBuffer.wrap(scratch, 0, HEADER_SIZE + length);
+        appliedDelta.copyTo(scratch, HEADER_SIZE);
+        crc.reset();
+        crc.update(scratch, HEADER_SIZE, length);
+        record.putInt(length).putLong(versionAppliedAt).putInt((int) crc.getValue());
+        record.position(0);
+        while (record.hasRemaining()) {
+          position += channel.write(record);
+        }
+      } catch (IOException e) {
+        // Refuse later appends, they would leave a hole in the history.
+        failure = e;
+        throw e;
+      }
+    }
+
+    /** Forces the active segment to disk and publishes its new length to readers. */
+    void sync() throws IOException {
+      if (channel != null) {
+        channel.force(false);
+        synchronized (this) {
+          durableLength = position;
+        }
+      }
+    }
+
+    void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+
+    /**
+     * Opens the newest segment for appending, truncating any torn record at
+     * its end, or creates the first segment.
+     */
+    private void openActiveSegment(long versionAppliedAt) throws IOException {
+      File file;
+      synchronized (this) {
+        file = segments.isEmpty() ? null : segments.lastEntry().getValue();
+      }
+      if (file == null) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          throw new IOException("Couldn't create delta store directory " + directory);
+        }
+        createSegment(versionAppliedAt);
+      } else {
+        long validLength = scanSegment(file, Long.MAX_VALUE, Long.MAX_VALUE, null);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        if (validLength < channel.size()) {
+          LOG.warning("Truncating torn record at " + validLength + " of " + file);
+          channel.truncate(validLength);
+          channel.force(false);
+        }
+        position = validLength;
+        channel.position(position);
+        synchronized (this) {
+          durableLength = position;
+        }
+      }
+    }
+
+    private void createSegment(long startVersion) throws IOException {
+      File file = new File(directory, String.format("%020d", startVersion) + SEGMENT_SUFFIX);
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      channel.truncate(0);
+      position = 0;
+      synchronized (this) {
+        segments.put(startVersion, file);
+        durableLength = 0;
+      }
+    }
+  }
+
+  private final File root;
+  private final long segmentSizeBytes;
+  private final int groupCommitDelayMs;
+  private final ConcurrentMap<WaveletName, WaveletLog> logs =
+      new ConcurrentHashMap<WaveletName, WaveletLog>();
+  private final BlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<PendingAppend>();
+  private final Thread writer;
+  private volatile boolean closed = false;
+  /** Set once the writer thread takes no more appends off the queue. */
+  private volatile boolean writerStopped = false;
+
+  /** Checksum used by the writer thread. */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * @param root directory under which the wavelet logs are kept
+   * @param segmentSizeBytes size after which a segment is closed and a new one started
+   * @param groupCommitDelayMs how long the writer waits for more appends to
+   *        accumulate before committing a batch, may be 0
+   */
+  public FileDeltaStore(File root, long segmentSizeBytes, int groupCommitDelayMs) {
+    Preconditions.checkArgument(segmentSizeBytes > 0, "Segment size must be > 0");
+    Preconditions.checkArgument(groupCommitDelayMs >= 0, "Group commit delay must be >= 0");
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IllegalArgumentException("Couldn't create delta store directory " + root);
+    }
+    this.root = root;
+    this.segmentSizeBytes = segmentSizeBytes;
+    this.groupCommitDelayMs = groupCommitDelayMs;
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runWriter();
+      }
+    }, "DeltaStoreWriter");
+    writer.setDaemon(true);
+    writer.start();
+    LOG.info("Delta store opened at " + root.getAbsolutePath());
+  }
+
+  @Override
+  public Collection<WaveletName> getWaveletNames() throws IOException {
+    List<WaveletName> names = Lists.newArrayList();
+    File[] waveDirs = root.listFiles();
+    if (waveDirs == null) {
+      throw new IOException("Couldn't list delta store directory " + root);
+    }
+    for (File waveDir : waveDirs) {
+      File[] waveletDirs = waveDir.listFiles();
+      if (waveletDirs == null) {
+        continue;
+      }
+      for (File waveletDir : waveletDirs) {
+        try {
+          names.add(WaveletName.of(decode(waveDir.getName()), decode(waveletDir.getName())));
+        } catch (RuntimeInvalidIdException e) {
+          LOG.warning("Ignoring unexpected directory in delta store: " + waveletDir);
+        }
+      }
+    }
+    return names;
+  }
+
+  @Override
+  public List<ByteString> readDeltas(WaveletName waveletName, long startVersion)
+      throws IOException {
+    WaveletLog log = getLog(waveletName);
+    SortedMap<Long, File> segments;
+    long lastSegmentLength;
+    synchronized (log) {
+      if (log.segments.isEmpty()) {
+        return Lists.newArrayList();
+      }
+      // Start from the segment containing startVersion.
+      Long first = log.segments.floorKey(startVersion);
+      segments = Maps.newTreeMap(first == null ? log.segments : log.segments.tailMap(first));
+      lastSegmentLength = log.durableLength;
+    }
+    List<ByteString> deltas = Lists.newArrayList();
+    Long lastStart = segments.isEmpty() ? null : segments.lastKey();
+    for (Map.Entry<Long, File> segment : segments.entrySet()) {
+      boolean isLast = segment.getKey().equals(lastStart);
+      long limit = isLast ? lastSegmentLength : segment.getValue().length();
+      long validLength = scanSegment(segment.getValue(), limit, startVersion, deltas);
+      if (validLength < limit && !isLast) {
+        throw new IOException("Corrupt record at " + validLength + " of " + segment.getValue());
+      }
+    }
+    return deltas;
+  }
+
+  @Override
+  public void append(WaveletName waveletName, long versionAppliedAt, ByteString appliedDelta,
+      AppendCallback callback) {
+    Preconditions.checkState(!closed, "Delta store is closed");
+    PendingAppend append =
+        new PendingAppend(getLog(waveletName), versionAppliedAt, appliedDelta, callback);
+    queue.add(append);
+    // Whoever takes the append off the queue notifies it, exactly once.
+    if (writerStopped && queue.remove(append)) {
+      notifyStopped(append);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    queue.add(SHUTDOWN);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (WaveletLog log : logs.values()) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        LOG.warning("Failed to close delta log " + log.directory, e);
+      }
+    }
+  }
+
+  private WaveletLog getLog(WaveletName waveletName) {
+    WaveletLog log = logs.get(waveletName);
+    if (log == null) {
+      WaveletLog newLog = new WaveletLog(getWaveletDirectory(root, waveletName));
+      log = logs.putIfAbsent(waveletName, newLog);
+      if (log == null) {
+        log = newLog;
+      }
+    }
+    return log;
+  }
+
+  /** Body of the writer thread: takes batches of appends off the queue and commits them. */
+  private void runWriter() {
+    List<PendingAppend> batch = Lists.newArrayList();
+    byte[] scratch = new byte[4096];
+    boolean shutdown = false;
+    while (!shutdown) {
+      try {
+        batch.add(queue.take());
+        if (groupCommitDelayMs > 0) {
+          Thread.sleep(groupCommitDelayMs);
+        }
+      } catch (InterruptedException e) {
+        // Nothing else interrupts the writer, so treat it like close: commit
+        // what is queued and stop, failing any later appends.
+        LOG.warning("Delta store writer interrupted, stopping", e);
+        Thread.currentThread().interrupt();
+        shutdown = true;
+      }
+      queue.drainTo(batch);
+      if (batch.remove(SHUTDOWN)) {
+        shutdown = true;
+      }
+      try {
+        for (PendingAppend append : batch) {
+          int required = HEADER_SIZE + append.appliedDelta.size();
+          if (scratch.length < required) {
+            scratch = new byte[Math.max(required, scratch.length * 2)];
+          }
+        }
+        commitBatch(batch, scratch);
+      } catch (RuntimeException e) {
+        // Don't let a bug kill the writer. Callbacks never throw out of
+        // commitBatch, so none has been notified, and what reached the logs
+        // is unknown: fail the whole batch and refuse later appends to them.
+        LOG.severe("Delta store writer failed to commit a batch", e);
+        IOException failure = new IOException("Delta store writer failed", e);
+        for (PendingAppend append : batch) {
+          append.failure = failure;
+          if (append.log.failure == null) {
+            append.log.failure = failure;
+          }
+        }
+        notifyBatch(batch);
+      }
+      batch.clear();
+    }
+    writerStopped = true;
+    // Appends which raced with the writer stopping.
+    for (PendingAppend append; (append = queue.poll()) != null; ) {
+      if (append != SHUTDOWN) {
+        notifyStopped(append);
+      }
+    }
+  }
+
+  private static void notifyStopped(PendingAppend append) {
+    try {
+      append.callback.onFailure(new IOException("Delta store writer has stopped"));
+    } catch (RuntimeException e) {
+      LOG.severe("Delta store callback threw exception", e);
+    }
+  }
+
+  /**
+   * Writes a batch of appends, fsyncs every log it touched once, then
+   * notifies the callbacks in the order the appends were made.
+   */
+  private void commitBatch(List<PendingAppend> batch, byte[] scratch) {
+    Set<WaveletLog> dirty = Sets.newLinkedHashSet();
+    for (PendingAppend append : batch) {
+      try {
+        append.log.write(append.versionAppliedAt, append.appliedDelta, scratch);
+        dirty.add(append.log);
+      } catch (IOException e) {
+        append.failure = e;
+      }
+    }
+    for (WaveletLog log : dirty) {
+      try {
+        log.sync();
+      } catch (IOException e) {
+        log.failure = e;
+        for (PendingAppend append : batch) {
+          if (append.log == log && append.failure == null) {
+            append.failure = e;
+          }
+        }
+      }
+    }
+    notifyBatch(batch);
+  }
+
+  /** Notifies the callbacks of a batch in the order the appends were made. */
+  private static void notifyBatch(List<PendingAppend> batch) {
+    for (PendingAppend append : batch) {
+      try {
+        if (append.failure == null) {
+          append.callback.onCommitted();
+        } else {
+          append.callback.onFailure(append.failure);
+        }
+      } catch (RuntimeException e) {
+        LOG.severe("Delta store callback threw exception", e);
+      }
+    }
+  }
+
+  /**
+   * Reads the records of a segment up to a limit, stopping at the first
+   * incomplete or corrupt record.
+   *
+   * @param file segment to read
+   * @param limit number of bytes of the file to consider
+   * @param startVersion deltas applied before this version are skipped
+   * @param deltas receives the deltas read, may be null to only validate
+   * @return the length of the valid prefix of the segment
+   */
+  private static long scanSegment(File file, long limit, long startVersion,
+      List<ByteString> deltas) throws IOException {
+    limit = Math.min(limit, file.length());
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    CRC32 checksum = new CRC32();
+    long offset = 0;
+    try {
+      while (offset + HEADER_SIZE <= limit) {
+        int length = in.readInt();
+        long versionAppliedAt = in.readLong();
+        int crcValue = in.readInt();
+        if (length < 0 || offset + HEADER_SIZE + length > limit) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        checksum.reset();
+        checksum.update(payload);
+        if ((int) checksum.getValue() != crcValue) {
+          break;
+        }
+        if (deltas != null && versionAppliedAt >= startVersion) {
+          deltas.add(ByteString.copyFrom(payload));
+        }
+        offset += HEADER_SIZE + length;
+      }
+    } catch (EOFException e) {
+      // The file was shorter than its length suggested, treat as a torn record.
+    } finally {
+      in.close();
+    }
+    return offset;
+  }
+
+  /**
+   * @return the directory {@code <root>/<waveId>/<waveletId>} of a wavelet,
+   *         with the ids encoded to be safe as file names
+   */
+  static File getWaveletDirectory(File root, WaveletName waveletName) {
+    return new File(new File(root, encode(waveletName.waveId.serialise())),
+        encode(waveletName.waveletId.serialise()));
+  }
+
+  private static String encode(String id) {
+    try {
+      return URLEncoder.encode(id, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String decode(String fileName) {
+    try {
+      return URLDecoder.decode(fileName, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
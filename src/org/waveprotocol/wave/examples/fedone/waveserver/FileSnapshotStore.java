@@ -0,0 +1,170 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SnapshotStore} keeping the latest snapshot of each wavelet on
+ * local disk, in a directory {@code <root>/<waveId>/<waveletId>} laid out as
+ * for {@link FileDeltaStore}. The snapshot file is named after its version
+ * and holds
+ *
+ * <pre>
+ *   int  length of the hashed version
+ *   int  length of the snapshot
+ *   int  CRC32 of the hashed version followed by the snapshot
+ *   byte[] serialised ProtocolHashedVersion
+ *   byte[] serialised WaveletSnapshot
+ * </pre>
+ *
+ * A new snapshot is written and synced to a temporary file which then
+ * replaces the previous one, so a crash leaves either the old or the new
+ * snapshot in place.
+ */
+public class FileSnapshotStore implements SnapshotStore {
+
+  private static final Log LOG = Log.get(FileSnapshotStore.class);
+
+  /** Suffix of snapshot file names. */
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+  /** Suffix of snapshot files still being written. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File root;
+
+  /**
+   * @param root directory under which the snapshots are kept
+   */
+  public FileSnapshotStore(File root) {
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IllegalArgumentException("Couldn't create snapshot store directory " + root);
+    }
+    this.root = root;
+    LOG.info("Snapshot store opened at " + root.getAbsolutePath());
+  }
+
+  @Override
+  public VersionedSnapshot read(WaveletName waveletName) throws IOException {
+    File file = findLatest(FileDeltaStore.getWaveletDirectory(root, waveletName));
+    if (file == null) {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int versionLength = in.readInt();
+      int snapshotLength = in.readInt();
+      int crcValue = in.readInt();
+      if (versionLength < 0 || snapshotLength < 0
+          || 12L + versionLength + snapshotLength != file.length()) {
+        throw new IOException("Snapshot " + file + " has the wrong length");
+      }
+      byte[] version = new byte[versionLength];
+      byte[] snapshot = new byte[snapshotLength];
+      in.readFully(version);
+      in.readFully(snapshot);
+      CRC32 checksum = new CRC32();
+      checksum.update(version);
+      checksum.update(snapshot);
+      if ((int) checksum.getValue() != crcValue) {
+        throw new IOException("Snapshot " + file + " fails its checksum");
+      }
+      return new VersionedSnapshot(WaveletSnapshot.parseFrom(snapshot),
+          WaveletOperationSerializer.deserialize(ProtocolHashedVersion.parseFrom(version)));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void write(WaveletName waveletName, VersionedSnapshot snapshot) throws IOException {
+    File directory = FileDeltaStore.getWaveletDirectory(root, waveletName);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Couldn't create snapshot directory " + directory);
+    }
+    String name = String.format("%020d", snapshot.version.getVersion()) + SNAPSHOT_SUFFIX;
+    File temp = new File(directory, name + TEMP_SUFFIX);
+    File file = new File(directory, name);
+
+    byte[] version = WaveletOperationSerializer.serialize(snapshot.version).toByteArray();
+    byte[] bytes = snapshot.snapshot.toByteArray();
+    CRC32 checksum = new CRC32();
+    checksum.update(version);
+    checksum.update(bytes);
+
+    FileOutputStream fileOut = new FileOutputStream(temp);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      out.writeInt(version.length);
+      out.writeInt(bytes.length);
+      out.writeInt((int) checksum.getValue());
+      out.write(version);
+      out.write(bytes);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Couldn't rename " + temp + " to " + file);
+    }
+
+    // Only the latest snapshot is ever read.
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File old : files) {
+        if (!old.equals(file) && old.getName().endsWith(SNAPSHOT_SUFFIX) && !old.delete()) {
+          LOG.warning("Couldn't delete old snapshot " + old);
+        }
+      }
+    }
+  }
+
+  /** @return the snapshot file with the highest version in a directory, or null. */
+  private static File findLatest(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return null;
+    }
+    File latest = null;
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(SNAPSHOT_SUFFIX)
+          && (latest == null || name.compareTo(latest.getName()) > 0)) {
+        latest = file;
+      }
+    }
+    return latest;
+  }
+}
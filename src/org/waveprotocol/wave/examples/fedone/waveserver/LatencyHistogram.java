@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies, in buckets whose bounds double from
+ * one microsecond up, so that recording is a few atomic increments and
+ * percentiles are accurate to within a factor of two.
+ */
+public final class LatencyHistogram {
+
+  /** Bucket i counts latencies below 2^i microseconds; the last is unbounded. */
+  private static final int BUCKETS = 32;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency, in nanoseconds
+   */
+  void record(long nanos) {
+    long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /** @return the number of latencies recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** @return the mean latency in microseconds, 0 if none was recorded. */
+  public long getMeanMicros() {
+    long n = count.get();
+    return (n == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / n);
+  }
+
+  /** @return the greatest latency recorded, in microseconds. */
+  public long getMaxMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound, in microseconds, of the bucket holding the
+   *         given percentile, or 0 if nothing was recorded
+   */
+  public long getPercentileMicros(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS - 1; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return 1L << i;
+      }
+    }
+    return getMaxMicros();
+  }
+
+  @Override
+  public String toString() {
+    return getCount() + " recorded, mean " + getMeanMicros() + "us, p50 <"
+        + getPercentileMicros(50) + "us, p99 <" + getPercentileMicros(99) + "us, max "
+        + getMaxMicros() + "us";
+  }
+}
@@ -35,8 +35,27 @@ import org.waveprotocol.wave.model.operation.OperationException;
 interface LocalWaveletContainer extends WaveletContainer {
 
   interface Factory {
-    /** @throws IllegalArgumentException if the waveletName is bad */
-    LocalWaveletContainer create(WaveletName waveletName);
+    /**
+     * @param waveletName name of the wavelet
+     * @param commitListener notified as the wavelet's deltas become durable
+     * @throws IllegalArgumentException if the waveletName is bad
+     */
+    LocalWaveletContainer create(WaveletName waveletName, CommitListener commitListener);
+  }
+
+  /**
+   * Receives notice when the deltas of a local wavelet have been durably
+   * committed, i.e. the last committed version has advanced.
+   */
+  interface CommitListener {
+    /**
+     * @param waveletName name of the wavelet
+     * @param wavelet the container whose deltas were committed, which may
+     *        since have been evicted
+     * @param version the new last committed version
+     */
+    void waveletCommitted(WaveletName waveletName, LocalWaveletContainer wavelet,
+        ProtocolHashedVersion version);
   }
 
   /**
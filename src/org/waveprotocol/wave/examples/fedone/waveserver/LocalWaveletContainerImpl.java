@@ -57,8 +57,25 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl
   private final Multimap<ProtocolHashedVersion, ByteString> deltaSigners =
       ArrayListMultimap.create();
 
+  /** Notified whenever the last committed version advances, may be null. */
+  private final CommitListener commitListener;
+
+  /**
+   * Creates a container whose history is kept in memory only.
+   */
   public LocalWaveletContainerImpl(WaveletName waveletName) {
-    super(waveletName);
+    this(waveletName, new DisabledDeltaStore(), null);
+  }
+
+  public LocalWaveletContainerImpl(WaveletName waveletName, DeltaStore deltaStore,
+      CommitListener commitListener) {
+    this(waveletName, deltaStore, WaveletSnapshotter.DISABLED, commitListener);
+  }
+
+  public LocalWaveletContainerImpl(WaveletName waveletName, DeltaStore deltaStore,
+      WaveletSnapshotter snapshotter, CommitListener commitListener) {
+    super(waveletName, deltaStore, snapshotter);
+    this.commitListener = commitListener;
   }
 
   @Override
@@ -126,7 +143,7 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl
           lookupAppliedDelta(transformed.version);
       // TODO: look this up (in appliedDeltas or currentVersion) rather than compute it?
       HashedVersion hashedVersionAfterApplication = HASHED_HISTORY_VERSION_FACTORY.create(
-        appliedDelta.getByteArray(), transformed.version, transformed.delta.getOperations().size());
+        appliedDelta.getByteString(), transformed.version, transformed.delta.getOperations().size());
       return new DeltaApplicationResult(appliedDelta,
           WaveletOperationSerializer.serialize(transformed.delta, transformed.version),
           WaveletOperationSerializer.serialize(hashedVersionAfterApplication));
@@ -152,6 +169,33 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl
     return applicationResult;
   }
 
+  @Override
+  protected void deltaCommitted(ProtocolHashedVersion version) {
+    acquireWriteLock();
+    try {
+      if (lastCommittedVersion != null
+          && lastCommittedVersion.getVersion() >= version.getVersion()) {
+        return;
+      }
+      lastCommittedVersion = version;
+    } finally {
+      releaseWriteLock();
+    }
+    if (commitListener != null) {
+      commitListener.waveletCommitted(waveletName, this, version);
+    }
+  }
+
+  @Override
+  protected void deltaRestored(ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta,
+      HashedVersion versionAfter) {
+    ProtocolHashedVersion version = serialize(versionAfter);
+    // The signer ids are read from the wire, so restoring leaves the delta unparsed.
+    deltaSigners.putAll(version, AppliedDeltaUtil.getSignerIds(appliedDelta.getByteString()));
+    // Everything restored was read back from the store, so is already durable.
+    lastCommittedVersion = version;
+  }
+
   private static ByteStringMessage<ProtocolAppliedWaveletDelta> buildAppliedDelta(
       ProtocolSignedDelta signedDelta, VersionedWaveletDelta transformed) {
     ProtocolAppliedWaveletDelta.Builder appliedDeltaBuilder =
@@ -175,4 +219,19 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl
   public boolean isDeltaSigner(ProtocolHashedVersion version, ByteString signerId) {
     return deltaSigners.get(version).contains(signerId);
   }
+
+  /**
+   * A local wavelet is persisted once every delta applied to it is durable;
+   * its delta signers are restored from the applied deltas.
+   */
+  @Override
+  public boolean isPersisted() {
+    acquireReadLock();
+    try {
+      long committed = (lastCommittedVersion == null) ? 0 : lastCommittedVersion.getVersion();
+      return state == State.OK && committed == currentVersion.getVersion();
+    } finally {
+      releaseReadLock();
+    }
+  }
 }
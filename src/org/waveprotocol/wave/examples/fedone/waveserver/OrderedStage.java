@@ -0,0 +1,188 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a pipeline: runs tasks on its own pool of threads, one at a
+ * time and in order for each key, while tasks for different keys run in
+ * parallel.
+ *
+ * At most a fixed number of tasks may be waiting or running in the stage;
+ * beyond that {@link #execute} waits for room, so that a slow stage holds up
+ * the stages feeding it rather than queueing without bound. Tasks must
+ * therefore never pass work back to an earlier stage. The number of tasks in
+ * the stage, and the time each spends there, queued and running, are
+ * exported by the stage's name.
+ *
+ * @param <K> the key by which tasks are ordered
+ */
+public final class OrderedStage<K> {
+
+  private static final Log LOG = Log.get(OrderedStage.class);
+
+  /** Number of tasks waiting or running in each stage, by stage name. */
+  public static final Map<String, AtomicLong> varzQueueDepth = new MapMaker().makeMap();
+
+  /** Time tasks have spent in each stage, queued and running, by stage name. */
+  public static final Map<String, LatencyHistogram> varzLatency = new MapMaker().makeMap();
+
+  /**
+   * Number of tasks for one key run in a row before the thread is given up,
+   * so that a busy key doesn't starve the others.
+   */
+  private static final int MAX_TASKS_PER_TURN = 16;
+
+  /** A task, with the time it entered the stage. */
+  private static final class Task {
+    final Runnable runnable;
+    final long enqueuedNanos;
+
+    Task(Runnable runnable, long enqueuedNanos) {
+      this.runnable = runnable;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+
+  private final String name;
+  private final ExecutorService executor;
+  private final Semaphore room;
+  private final AtomicLong queueDepth = new AtomicLong();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  /**
+   * Tasks waiting or running, per key, oldest first. A key is present while a
+   * thread is responsible for running its tasks.
+   */
+  private final Map<K, Queue<Task>> queues = Maps.newHashMap();
+
+  /**
+   * @param name of the stage, also used to name its threads
+   * @param threads number of threads, 0 for one per processor
+   * @param capacity number of tasks which may be in the stage at once
+   */
+  OrderedStage(final String name, int threads, int capacity) {
+    Preconditions.checkArgument(threads >= 0, "Thread count must be >= 0");
+    Preconditions.checkArgument(capacity > 0, "Capacity must be > 0");
+    this.name = name;
+    this.room = new Semaphore(capacity);
+    varzQueueDepth.put(name, queueDepth);
+    varzLatency.put(name, latency);
+    this.executor = Executors.newFixedThreadPool(
+        (threads == 0) ? Runtime.getRuntime().availableProcessors() : threads,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Runs a task after every task previously passed for the same key, waiting
+   * if the stage is full.
+   */
+  void execute(final K key, Runnable runnable) {
+    room.acquireUninterruptibly();
+    queueDepth.incrementAndGet();
+    boolean idle;
+    synchronized (queues) {
+      Queue<Task> queue = queues.get(key);
+      idle = (queue == null);
+      if (idle) {
+        queue = new ArrayDeque<Task>();
+        queues.put(key, queue);
+      }
+      queue.add(new Task(runnable, System.nanoTime()));
+    }
+    if (idle) {
+      scheduleTurn(key);
+    }
+  }
+
+  private void scheduleTurn(final K key) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        runTurn(key);
+      }
+    });
+  }
+
+  /** Runs tasks for a key until it has none left or its turn is up. */
+  private void runTurn(K key) {
+    for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+      Task task;
+      synchronized (queues) {
+        task = queues.get(key).peek();
+      }
+      try {
+        task.runnable.run();
+      } catch (RuntimeException e) {
+        LOG.severe(name + " task for " + key + " failed", e);
+      } finally {
+        latency.record(System.nanoTime() - task.enqueuedNanos);
+        queueDepth.decrementAndGet();
+        room.release();
+      }
+      synchronized (queues) {
+        Queue<Task> queue = queues.get(key);
+        queue.remove();
+        if (queue.isEmpty()) {
+          queues.remove(key);
+          return;
+        }
+      }
+    }
+    scheduleTurn(key);
+  }
+
+  /** @return the number of tasks waiting or running. */
+  int getQueueDepth() {
+    return (int) queueDepth.get();
+  }
+
+  /** @return the time tasks have spent in the stage, queued and running. */
+  LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + getQueueDepth() + " queued, latency " + latency;
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.util.Pair;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the add and remove participant operations of recently seen
+ * deltas, keyed by wavelet and the version each delta applies at, so that
+ * deriving index wave deltas for every participant of a wavelet scans each
+ * delta once rather than deserializing it once per participant.
+ *
+ * Operations are picked out of the protocol buffer directly, without
+ * deserializing document operations, and their addresses are normalised the
+ * way a round trip through {@link ParticipantId} would. An entry is only
+ * used for the very delta instance it was made from, so a different delta
+ * at the same version (after a wavelet is reloaded, say) is scanned afresh.
+ * Once full, the least recently used entries are evicted first.
+ */
+final class ParticipantOpCache {
+
+  private static final class Entry {
+    final ProtocolWaveletDelta delta;
+    final List<ProtocolWaveletOperation> ops;
+
+    Entry(ProtocolWaveletDelta delta, List<ProtocolWaveletOperation> ops) {
+      this.delta = delta;
+      this.ops = ops;
+    }
+  }
+
+  private final int maxSize;
+
+  private final LinkedHashMap<Pair<WaveletName, Long>, Entry> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxSize the number of deltas to remember; 0 to remember none
+   */
+  ParticipantOpCache(final int maxSize) {
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<Pair<WaveletName, Long>, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Pair<WaveletName, Long>, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return the add and remove participant operations of a delta on a
+   *         wavelet, in order, with normalised addresses
+   */
+  List<ProtocolWaveletOperation> getParticipantOps(WaveletName waveletName,
+      ProtocolWaveletDelta delta) {
+    if (maxSize == 0) {
+      return scan(delta);
+    }
+    Pair<WaveletName, Long> key = Pair.of(waveletName, delta.getHashedVersion().getVersion());
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.delta == delta) {
+        hits.incrementAndGet();
+        return entry.ops;
+      }
+    }
+    misses.incrementAndGet();
+    List<ProtocolWaveletOperation> ops = scan(delta);
+    synchronized (entries) {
+      entries.put(key, new Entry(delta, ops));
+    }
+    return ops;
+  }
+
+  /**
+   * Picks the add and remove participant operations out of a delta.
+   */
+  static List<ProtocolWaveletOperation> scan(ProtocolWaveletDelta delta) {
+    ImmutableList.Builder<ProtocolWaveletOperation> ops = ImmutableList.builder();
+    for (ProtocolWaveletOperation op : delta.getOperationList()) {
+      if (op.hasAddParticipant()) {
+        String address = normalize(op.getAddParticipant());
+        ops.add(address.equals(op.getAddParticipant()) ? op
+            : ProtocolWaveletOperation.newBuilder().setAddParticipant(address).build());
+      } else if (op.hasRemoveParticipant()) {
+        String address = normalize(op.getRemoveParticipant());
+        ops.add(address.equals(op.getRemoveParticipant()) ? op
+            : ProtocolWaveletOperation.newBuilder().setRemoveParticipant(address).build());
+      }
+    }
+    return ops.build();
+  }
+
+  /** @return the address in the form a {@link ParticipantId} would hold. */
+  static String normalize(String address) {
+    return new ParticipantId(address).getAddress();
+  }
+
+  /** @return the number of deltas remembered. */
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /** @return the number of lookups answered without scanning the delta. */
+  long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of lookups which had to scan the delta. */
+  long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ParticipantOpCache(size=" + size() + ", hits=" + getHits() + ", misses="
+        + getMisses() + ")";
+  }
+}
@@ -70,11 +70,27 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements
     Sets.newTreeSet(appliedDeltaComparator);
 
   /**
-   * Create a new RemoteWaveletContainerImpl. Just pass through to the parent
-   * constructor.
+   * Create a new RemoteWaveletContainerImpl whose history is kept in memory only.
    */
   public RemoteWaveletContainerImpl(WaveletName waveletName) {
-    super(waveletName);
+    this(waveletName, new DisabledDeltaStore());
+  }
+
+  /**
+   * Create a new RemoteWaveletContainerImpl. Just pass through to the parent
+   * constructor. The last committed version of a remote wavelet is set by its
+   * hosting server, so local persistence doesn't affect it.
+   */
+  public RemoteWaveletContainerImpl(WaveletName waveletName, DeltaStore deltaStore) {
+    this(waveletName, deltaStore, WaveletSnapshotter.DISABLED);
+  }
+
+  /**
+   * Create a new RemoteWaveletContainerImpl which takes periodic snapshots.
+   */
+  public RemoteWaveletContainerImpl(WaveletName waveletName, DeltaStore deltaStore,
+      WaveletSnapshotter snapshotter) {
+    super(waveletName, deltaStore, snapshotter);
     state = State.LOADING;
   }
 
@@ -135,7 +151,14 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements
     };
 
     for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : appliedDeltas) {
-      ProtocolSignedDelta toVerify = appliedDelta.getMessage().getSignedOriginalDelta();
+      ProtocolSignedDelta toVerify;
+      try {
+        // Incoming deltas are parsed on first use, which is here.
+        toVerify = appliedDelta.getMessage().getSignedOriginalDelta();
+      } catch (IllegalStateException e) {
+        setState(State.CORRUPTED);
+        throw new WaveServerException("Invalid applied delta protocol buffer", e);
+      }
       for (ProtocolSignature sig : toVerify.getSignatureList()) {
         if (certificateManager.retrieveSignerInfo(sig.getSignerId()) == null) {
           LOG.info("Fetching signer info " + Base64.encodeBytes(sig.getSignerId().toByteArray()));
@@ -177,29 +200,24 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements
       boolean haveRequestedHistory = false;
 
       // Verify signatures of all deltas
+      List<ProtocolSignedDelta> signedDeltas = Lists.newArrayList();
       for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : appliedDeltas) {
-        try {
-          certificateManager.verifyDelta(appliedDelta.getMessage().getSignedOriginalDelta());
-        } catch (SignatureException e) {
-          LOG.warning("Verification failure for " + domain + " incoming " + waveletName, e);
-          throw new WaveServerException("Verification failure", e);
-        } catch (UnknownSignerException e) {
-          LOG.severe("Unknown signer for " + domain + " incoming " + waveletName +
-              ", this is BAD! We were supposed to have prefetched it!", e);
-          throw new WaveServerException("Unknown signer", e);
-        }
+        signedDeltas.add(appliedDelta.getMessage().getSignedOriginalDelta());
+      }
+      try {
+        certificateManager.verifyDeltas(signedDeltas);
+      } catch (SignatureException e) {
+        LOG.warning("Verification failure for " + domain + " incoming " + waveletName, e);
+        throw new WaveServerException("Verification failure", e);
+      } catch (UnknownSignerException e) {
+        LOG.severe("Unknown signer for " + domain + " incoming " + waveletName +
+            ", this is BAD! We were supposed to have prefetched it!", e);
+        throw new WaveServerException("Unknown signer", e);
       }
 
       // Insert all available deltas into pendingDeltas.
       for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : appliedDeltas) {
         LOG.info("Delta incoming: " + appliedDelta);
-        ProtocolWaveletDelta actualDelta;
-        try {
-          actualDelta = ProtocolWaveletDelta.parseFrom(appliedDelta.getMessage().getSignedOriginalDelta().getDelta());
-          LOG.info("actual delta: " + actualDelta);
-        } catch (InvalidProtocolBufferException e) {
-          e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-        }
         pendingDeltas.add(appliedDelta);
       }
 
@@ -242,15 +260,10 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements
                     List<ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltaList =
                         Lists.newArrayList();
                     for (ByteString appliedDelta : deltaList) {
-                      try {
-                        LOG.info("Delta incoming from history: " + appliedDelta);
-                        appliedDeltaList.add(ByteStringMessage.from(
-                            ProtocolAppliedWaveletDelta.getDefaultInstance(), appliedDelta));
-                      } catch (InvalidProtocolBufferException e) {
-                        LOG.warning("Invalid protocol buffer when requesting history!");
-                        state = State.CORRUPTED;
-                        break;
-                      }
+                      LOG.info("Delta incoming from history: " + appliedDelta);
+                      // Parsed, and checked, when update first reads them.
+                      appliedDeltaList.add(ByteStringMessage.fromUnparsed(
+                          ProtocolAppliedWaveletDelta.getDefaultInstance(), appliedDelta));
                     }
 
                     // Try updating again with the new history
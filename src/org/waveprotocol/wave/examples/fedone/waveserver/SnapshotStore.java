@@ -0,0 +1,63 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.IOException;
+
+/**
+ * Storage for the latest snapshot of each wavelet, so that a wavelet can be
+ * rebuilt by applying only the deltas after the snapshot rather than its
+ * entire history.
+ *
+ * Implementations must be thread safe.
+ */
+public interface SnapshotStore {
+
+  /**
+   * The state of a wavelet at a version.
+   */
+  final class VersionedSnapshot {
+    public final WaveletSnapshot snapshot;
+    public final HashedVersion version;
+
+    public VersionedSnapshot(WaveletSnapshot snapshot, HashedVersion version) {
+      this.snapshot = snapshot;
+      this.version = version;
+    }
+  }
+
+  /**
+   * Reads the latest snapshot of a wavelet.
+   *
+   * @param waveletName name of the wavelet
+   * @return the latest snapshot, or null if there is none
+   */
+  VersionedSnapshot read(WaveletName waveletName) throws IOException;
+
+  /**
+   * Durably stores a snapshot of a wavelet, replacing any earlier one.
+   *
+   * @param waveletName name of the wavelet
+   * @param snapshot the snapshot and the version it was taken at
+   */
+  void write(WaveletName waveletName, VersionedSnapshot snapshot) throws IOException;
+}
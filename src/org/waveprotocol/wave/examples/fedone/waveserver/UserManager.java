@@ -21,8 +21,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -32,10 +30,12 @@ import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
 import org.waveprotocol.wave.examples.fedone.waveserver.ClientFrontend.OpenListener;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.IdSerialiser;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -81,8 +81,6 @@ final class UserManager {
      * specified wavelet.
      */
     boolean matches(WaveletId waveletId) {
-      // TODO: Could be made more efficient with a trie
-      List<OpenListener> result = Lists.newArrayList();
       String waveletIdStr = waveletId.serialise();
       for (String prefix : waveletIdPrefixes) {
         if (waveletIdStr.startsWith(prefix)) {
@@ -93,7 +91,161 @@ final class UserManager {
     }
   }
 
-  private final ListMultimap<WaveId, Subscription> subscriptions;
+  /**
+   * A node of a {@link SubscriptionIndex} trie, for one waveletId prefix.
+   */
+  private static final class PrefixNode {
+    private static final int[] NO_SUBSCRIPTIONS = {};
+
+    private char[] keys = {};
+    private PrefixNode[] children = {};
+    /** Indexes of the subscriptions with this prefix. */
+    private int[] subscriptions = NO_SUBSCRIPTIONS;
+
+    /** @return the node for this prefix followed by c, or null if none */
+    PrefixNode child(char c) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    /** @return the node for this prefix followed by c, added if need be */
+    PrefixNode addChild(char c) {
+      PrefixNode child = child(c);
+      if (child == null) {
+        child = new PrefixNode();
+        keys = Arrays.copyOf(keys, keys.length + 1);
+        keys[keys.length - 1] = c;
+        children = Arrays.copyOf(children, children.length + 1);
+        children[children.length - 1] = child;
+      }
+      return child;
+    }
+
+    void addSubscription(int index) {
+      subscriptions = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+      subscriptions[subscriptions.length - 1] = index;
+    }
+
+    /** Sets the bits of this node's subscriptions in the given bit set. */
+    void mark(long[] matched) {
+      for (int index : subscriptions) {
+        matched[index >>> 6] |= 1L << index;
+      }
+    }
+  }
+
+  /**
+   * The subscriptions to one wave, with their waveletId prefixes in a trie,
+   * so that those matching a wavelet are found in one walk down its id
+   * rather than by testing every prefix of every subscription. Matches are
+   * collected in a bit set indexed by the order of subscription, which
+   * keeps that order and counts a subscription with several matching
+   * prefixes once, without allocating.
+   */
+  private static final class SubscriptionIndex {
+    private final List<Subscription> subscriptions = Lists.newArrayList();
+    private final PrefixNode root = new PrefixNode();
+    /** Bit set reused by each match, unless a match is already using it. */
+    private long[] scratch = new long[1];
+    private boolean scratchInUse = false;
+
+    void add(Subscription subscription) {
+      int index = subscriptions.size();
+      subscriptions.add(subscription);
+      for (String prefix : subscription.waveletIdPrefixes) {
+        PrefixNode node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+          node = node.addChild(prefix.charAt(i));
+        }
+        node.addSubscription(index);
+      }
+    }
+
+    /**
+     * Finds the subscriptions matching a wavelet. The caller must pass the
+     * result to {@link #release} once done with it.
+     *
+     * @return a bit set of the indexes of the matching subscriptions
+     */
+    long[] match(WaveletId waveletId) {
+      int words = (subscriptions.size() + 63) / 64;
+      long[] matched;
+      if (!scratchInUse) {
+        if (scratch.length < words) {
+          scratch = new long[words];
+        }
+        matched = scratch;
+        scratchInUse = true;
+      } else {
+        matched = new long[words];
+      }
+      // Walk the serialised form of the id, domain!id, without building it.
+      root.mark(matched);
+      PrefixNode node = walk(root, waveletId.getDomain(), matched);
+      if (node != null) {
+        node = node.child(IdSerialiser.PART_SEPARATOR);
+        if (node != null) {
+          node.mark(matched);
+          walk(node, waveletId.getId(), matched);
+        }
+      }
+      return matched;
+    }
+
+    /**
+     * Walks down from a node along the characters of a string, marking the
+     * subscriptions of each node passed.
+     *
+     * @return the node reached at the end of the string, or null if the
+     *         trie ends before it
+     */
+    private static PrefixNode walk(PrefixNode node, String s, long[] matched) {
+      for (int i = 0; i < s.length() && node != null; i++) {
+        node = node.child(s.charAt(i));
+        if (node != null) {
+          node.mark(matched);
+        }
+      }
+      return node;
+    }
+
+    /**
+     * @return the index of the first matching subscription at or after
+     *         index, or -1 if none
+     */
+    static int nextMatch(long[] matched, int index) {
+      int word = index >>> 6;
+      if (word >= matched.length) {
+        return -1;
+      }
+      long bits = matched[word] & (-1L << index);
+      while (bits == 0) {
+        if (++word == matched.length) {
+          return -1;
+        }
+        bits = matched[word];
+      }
+      return word * 64 + Long.numberOfTrailingZeros(bits);
+    }
+
+    OpenListener listener(int index) {
+      return subscriptions.get(index).openListener;
+    }
+
+    /** Clears a bit set returned by {@link #match}, for reuse. */
+    void release(long[] matched) {
+      if (matched == scratch) {
+        Arrays.fill(matched, 0);
+        scratchInUse = false;
+      }
+    }
+  }
+
+  private final Map<WaveId, SubscriptionIndex> subscriptions;
 
   /** Wavelets that this user is a participant of. */
   private final HashMultimap<WaveId, WaveletId> waveletIds;
@@ -108,7 +260,7 @@ final class UserManager {
   private final Map<WaveletName, ProtocolHashedVersion> currentVersion;
 
   UserManager() {
-    this.subscriptions = LinkedListMultimap.create();
+    this.subscriptions = Maps.newHashMap();
     this.waveletIds = HashMultimap.create();
     this.currentVersion = Maps.newHashMap();
   }
@@ -124,9 +276,16 @@ final class UserManager {
   @VisibleForTesting
   synchronized List<OpenListener> matchSubscriptions(WaveletName waveletName) {
     List<OpenListener> result = Lists.newArrayList();
-    for (Subscription subscription : subscriptions.get(waveletName.waveId)) {
-      if (subscription.matches(waveletName.waveletId)) {
-        result.add(subscription.openListener);
+    SubscriptionIndex index = subscriptions.get(waveletName.waveId);
+    if (index != null) {
+      long[] matched = index.match(waveletName.waveletId);
+      try {
+        for (int i = SubscriptionIndex.nextMatch(matched, 0); i >= 0;
+            i = SubscriptionIndex.nextMatch(matched, i + 1)) {
+          result.add(index.listener(i));
+        }
+      } finally {
+        index.release(matched);
       }
     }
     return result;
@@ -157,17 +316,29 @@ final class UserManager {
     }
     long version = deltas.getStartVersion().getVersion();
     long expectedVersion = currentVersion.get(waveletName).getVersion();
-    Preconditions.checkArgument(expectedVersion == version,
-        "Expected startVersion " + expectedVersion + ", got " + version);
+    if (expectedVersion != version) {
+      throw new IllegalArgumentException(
+          "Expected startVersion " + expectedVersion + ", got " + version);
+    }
     currentVersion.put(waveletName, deltas.getEndVersion());
 
-    List<OpenListener> listeners = matchSubscriptions(waveletName);
-    for (OpenListener listener : listeners) {
-      try {
-        listener.onUpdate(waveletName, null, deltas, deltas.getEndVersion(), null);
-      } catch (IllegalStateException e) {
-        // TODO: remove the listener
+    SubscriptionIndex index = subscriptions.get(waveletName.waveId);
+    if (index == null) {
+      return;
+    }
+    // Deltas are broadcast on every update, so match without building a list.
+    long[] matched = index.match(waveletName.waveletId);
+    try {
+      for (int i = SubscriptionIndex.nextMatch(matched, 0); i >= 0;
+          i = SubscriptionIndex.nextMatch(matched, i + 1)) {
+        try {
+          index.listener(i).onUpdate(waveletName, null, deltas, deltas.getEndVersion(), null);
+        } catch (IllegalStateException e) {
+          // TODO: remove the listener
+        }
       }
+    } finally {
+      index.release(matched);
     }
   }
 
@@ -207,7 +378,12 @@ final class UserManager {
       WaveId waveId, Set<String> waveletIdPrefixes, OpenListener listener) {
     Preconditions.checkNotNull(waveId);
     Subscription subscription = new Subscription(waveletIdPrefixes, listener);
-    subscriptions.put(waveId, subscription);
+    SubscriptionIndex index = subscriptions.get(waveId);
+    if (index == null) {
+      index = new SubscriptionIndex();
+      subscriptions.put(waveId, index);
+    }
+    index.add(subscription);
     Set<WaveletId> result = Sets.newHashSet();
     for (WaveletId waveletId : getWaveletIds(waveId)) {
       if (subscription.matches(waveletId)) {
@@ -221,12 +397,23 @@ final class UserManager {
    * Notifies that the user has been added to the specified wavelet.
    */
   synchronized void addWavelet(WaveletName waveletName) {
+    addWavelet(waveletName,
+        WaveletOperationSerializer.serialize(HashedVersion.versionZero(waveletName)));
+  }
+
+  /**
+   * Notifies that the user is a participant of a wavelet whose deltas up to
+   * a version have already been applied, e.g. one restored from storage.
+   *
+   * @param waveletName we were added to
+   * @param version the version the next deltas will start at
+   */
+  synchronized void addWavelet(WaveletName waveletName, ProtocolHashedVersion version) {
     if (isParticipant(waveletName)) {
       throw new IllegalStateException("Already a participant of " + waveletName);
     }
     waveletIds.get(waveletName.waveId).add(waveletName.waveletId);
-    currentVersion.put(waveletName,
-        WaveletOperationSerializer.serialize(HashedVersion.versionZero(waveletName)));
+    currentVersion.put(waveletName, version);
   }
 
   /**
@@ -83,11 +83,11 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
     }
     Set<String> prefixes = new HashSet<String>(request.getWaveletIdPrefixCount());
     for (int i = 0; i < request.getWaveletIdPrefixCount(); ++i) {
-      prefixes.add(request.getWaveletIdPrefix(0));
+      prefixes.add(request.getWaveletIdPrefix(i));
     }
 
     frontend.openRequest(id, waveId, prefixes, request.getMaximumWavelets(),
-        false, new OpenListener() {
+        request.getSnapshots(), new OpenListener() {
 
           @Override
           public void onFailure(String errorMessage) {
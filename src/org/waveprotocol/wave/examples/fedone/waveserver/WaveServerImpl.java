@@ -22,11 +22,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.internal.Preconditions;
+import com.google.inject.name.Named;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -35,6 +35,7 @@ import org.waveprotocol.wave.crypto.UnknownSignerException;
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
 import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
 import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.examples.fedone.waveserver.SnapshotStore.VersionedSnapshot;
 import org.waveprotocol.wave.examples.fedone.waveserver.WaveletContainer.State;
 import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
 import org.waveprotocol.wave.federation.FederationErrors;
@@ -45,8 +46,6 @@ import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignerInfo;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
-import org.waveprotocol.wave.model.id.WaveId;
-import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.wave.ParticipantId;
@@ -57,10 +56,17 @@ import org.waveprotocol.wave.waveserver.WaveletFederationListener;
 import org.waveprotocol.wave.waveserver.WaveletFederationListener.Factory;
 import org.waveprotocol.wave.waveserver.WaveletFederationProvider;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -84,20 +90,68 @@ public class WaveServerImpl implements WaveServer {
   private final RemoteWaveletContainer.Factory remoteWaveletContainerFactory;
   private final LocalWaveletContainer.Factory localWaveletContainerFactory;
   private final WaveletFederationProvider federationRemote;
-  private WaveletListener clientListener = null;
+  private final DeltaStore deltaStore;
+  private final WaveletSnapshotter snapshotter;
+  private final WaveletResidency residency;
+  private volatile WaveletListener clientListener = null;
+
+  /**
+   * Wavelets restored from the delta store which the client listener hasn't
+   * been told about yet, because it wasn't set or they weren't loaded.
+   * Guarded, together with setting the listener, by the lock.
+   */
+  private final Set<WaveletName> unannounced = Sets.newHashSet();
+  private final Object announceLock = new Object();
+
+  /*
+   * The submit pipeline. Deltas submitted by remote servers are checked and
+   * verified in the verify stage; every delta to a local wavelet is applied,
+   * under the wavelet's lock, in the apply stage; and the results, client
+   * updates, federation updates and commit notices go out in the fan-out
+   * stage. Each stage keeps a wavelet's deltas in order. Persistence happens
+   * in between, in the delta store.
+   */
+  private final OrderedStage<WaveletName> verifyStage;
+  private final OrderedStage<WaveletName> applyStage;
+  private final OrderedStage<WaveletName> fanOutStage;
+
+  /**
+   * Delivers commit notices for local wavelets, in the order in which their
+   * deltas became durable.
+   */
+  private final ExecutorService commitNotifier = Executors.newSingleThreadExecutor();
+
+  /** Passed to local wavelet containers, to hear when their deltas are durable. */
+  private final LocalWaveletContainer.CommitListener localCommitListener =
+      new LocalWaveletContainer.CommitListener() {
+        @Override
+        public void waveletCommitted(final WaveletName waveletName,
+            final LocalWaveletContainer wavelet, final ProtocolHashedVersion version) {
+          commitNotifier.execute(new Runnable() {
+            @Override
+            public void run() {
+              scheduleCommitNotices(waveletName, wavelet, version);
+            }
+          });
+        }
+      };
+
+  /** Evicts idle wavelets when more are in memory than the residency limit allows. */
+  private final ExecutorService evictor = Executors.newSingleThreadExecutor();
+
+  /**
+   * Reloads of evicted wavelets in progress. Lookups of a wavelet being
+   * reloaded wait for its reload, so that it is only reloaded once, while
+   * lookups of other wavelets carry on.
+   */
+  private final ConcurrentMap<WaveletName, FutureTask<WaveletContainer>> reloads =
+      new MapMaker().makeMap();
 
   // -------------------------------------------------------------------------------------------
   // MAPS FOR WAVES AND FEDERATION HOSTS.
   // -------------------------------------------------------------------------------------------
 
-  private final Map<WaveId, Map<WaveletId, WaveletContainer>> waveMap =
-    new MapMaker().makeComputingMap(
-        new Function<WaveId, Map<WaveletId, WaveletContainer>>() {
-          @Override
-          public Map<WaveletId, WaveletContainer> apply(WaveId from) {
-            return Maps.newHashMap();
-          }
-        });
+  private final WaveletRegistry wavelets = new WaveletRegistry();
 
   /** List of federation hosts for which we have listeners */
   private final Map<String, WaveletFederationListener> federationHosts =
@@ -138,15 +192,10 @@ public class WaveServerImpl implements WaveServer {
         // Turn raw serialised ByteStrings in to a more useful representation
         List<ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltas = Lists.newArrayList();
         for (ByteString delta : rawAppliedDeltas) {
-          try {
-            appliedDeltas.add(ByteStringMessage.from(
-                ProtocolAppliedWaveletDelta.getDefaultInstance(), delta));
-          } catch (InvalidProtocolBufferException e) {
-            LOG.info("Invalid applied delta protobuf for incoming " + waveletName, e);
-            safeMarkWaveletCorrupted(wavelet);
-            callback.onFailure(FederationErrors.badRequest("Invalid applied delta protocol buffer"));
-            return;
-          }
+          // Parsed when the remote wavelet first reads them, which fails the
+          // update if they are invalid.
+          appliedDeltas.add(ByteStringMessage.fromUnparsed(
+              ProtocolAppliedWaveletDelta.getDefaultInstance(), delta));
         }
 
         // Update wavelet container with the applied deltas
@@ -164,7 +213,7 @@ public class WaveServerImpl implements WaveServer {
                 public void onSuccess(DeltaSequence result) {
                   if (clientListener != null) {
                     Map<String, BufferedDocOp> documentState =
-                        getWavelet(waveletName).getWaveletData().getDocuments();
+                        getWavelet(waveletName).getDocuments();
                     clientListener.waveletUpdate(waveletName, result, result.getEndVersion(),
                         documentState);
                   } else {
@@ -203,40 +252,71 @@ public class WaveServerImpl implements WaveServer {
       public void waveletCommitUpdate(WaveletName waveletName,
           ProtocolHashedVersion committedVersion, WaveletUpdateCallback callback) {
         Preconditions.checkNotNull(committedVersion);
-        if (clientListener != null) {
-          clientListener.waveletCommitted(waveletName, committedVersion);
-        } else {
+        boolean informClients = true;
+        WaveletContainer wavelet = getWavelet(waveletName);
+        if (wavelet instanceof RemoteWaveletContainer) {
+          try {
+            informClients = ((RemoteWaveletContainer) wavelet).committed(committedVersion);
+          } catch (WaveletStateException e) {
+            LOG.warning("Commit update for " + waveletName + " in bad state", e);
+            callback.onFailure(FederationErrors.badRequest(e.getMessage()));
+            return;
+          }
+        }
+        if (clientListener == null) {
           LOG.warning("Client listener is null");
+        } else if (informClients) {
+          clientListener.waveletCommitted(waveletName, committedVersion);
         }
-        // Pretend we've committed it, there is no persistence
+        // The hosting server has committed the wavelet, we only record its commit.
         LOG.fine("Responding with success to wavelet commit on " + waveletName);
         callback.onSuccess();
       }
     };
   }
 
-  /**
-   * Set wavelet as corrupted, if not null.
-   *
-   * @param wavelet to set as corrupted, if not null
-   */
-  private void safeMarkWaveletCorrupted(WaveletContainer wavelet) {
-    if (wavelet != null) {
-      wavelet.setState(State.CORRUPTED);
-    }
-  }
-
   // -------------------------------------------------------------------------------------------
   // METHODS IMPLEMENTING THE WAVELET-FEDERATION-PROVIDER INTERFACE USED BY THE FED REMOTE.
   // -------------------------------------------------------------------------------------------
 
   @Override
   public void setListener(WaveletListener listener) {
-    clientListener = listener;
+    synchronized (announceLock) {
+      clientListener = listener;
+      // Bring the new listener up to date with the restored wavelets in memory.
+      // Those left in the delta store are announced when they are loaded, see
+      // reloadWavelet.
+      for (WaveletName waveletName : wavelets.getWaveletNames()) {
+        WaveletContainer wc = getResidentWavelet(waveletName);
+        if (wc != null && unannounced.remove(waveletName)) {
+          announceRestoredWavelet(waveletName, wc);
+        }
+      }
+    }
   }
 
   @Override
-  public void submitRequest(WaveletName waveletName, ProtocolSignedDelta signedDelta,
+  public void submitRequest(final WaveletName waveletName, final ProtocolSignedDelta signedDelta,
+      final SubmitResultListener listener) {
+    verifyStage.execute(waveletName, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          verifyAndSubmitDelta(waveletName, signedDelta, listener);
+        } catch (RuntimeException e) {
+          LOG.severe("Failed to verify delta to " + waveletName, e);
+          listener.onFailure(FederationErrors.internalServerError(
+              "Failed to verify delta: " + e.getMessage()));
+        }
+      }
+    });
+  }
+
+  /**
+   * Checks and verifies a delta submitted by a remote server, then submits it.
+   * Runs in the verify stage.
+   */
+  private void verifyAndSubmitDelta(WaveletName waveletName, ProtocolSignedDelta signedDelta,
       SubmitResultListener listener) {
     // Disallow creation of wavelets by remote users.
     try {
@@ -289,7 +369,7 @@ public class WaveServerImpl implements WaveServer {
             waveletName);
       } else {
         try {
-          NavigableSet<ByteStringMessage<ProtocolAppliedWaveletDelta>> deltaHistory =
+          List<ByteStringMessage<ProtocolAppliedWaveletDelta>> deltaHistory =
               wc.requestHistory(startVersion, endVersion);
           List<ByteString> deltaHistoryBytes = Lists.newArrayList();
           for (ByteStringMessage<ProtocolAppliedWaveletDelta> d : deltaHistory) {
@@ -371,14 +451,14 @@ public class WaveServerImpl implements WaveServer {
   // -------------------------------------------------------------------------------------------
 
   @Override
-  public NavigableSet<ProtocolWaveletDelta> getHistory(WaveletName waveletName,
+  public List<ProtocolWaveletDelta> getHistory(WaveletName waveletName,
       ProtocolHashedVersion startVersion, ProtocolHashedVersion endVersion) {
     WaveletContainer wc = getWavelet(waveletName);
     if (wc == null) {
       LOG.info("Client request for history made for non-existent wavelet: " + waveletName);
       return null;
     } else {
-      NavigableSet<ProtocolWaveletDelta> deltaHistory = null;
+      List<ProtocolWaveletDelta> deltaHistory = null;
       try {
         deltaHistory = wc.requestTransformedHistory(startVersion, endVersion);
       } catch (AccessControlException e) {
@@ -413,7 +493,7 @@ public class WaveServerImpl implements WaveServer {
       final SubmitResultListener listener) {
     // The submitted delta is now serialized, from now on it's the canonical delta (i.e. it should
     // never be deserialized and regenerated anywhere (even in other waveservers).
-    certificateManager.signDelta(ByteStringMessage.fromMessage(delta),
+    certificateManager.signDelta(waveletName, ByteStringMessage.fromMessage(delta),
       new CertificateManager.SignatureResultListener() {
         @Override
         public void signatureResult(ProtocolSignedDelta signedDelta) {
@@ -436,16 +516,45 @@ public class WaveServerImpl implements WaveServer {
    * @param federationRemote federation remote interface
    * @param localWaveletContainerFactory factory for local WaveletContainers
    * @param remoteWaveletContainerFactory factory for remote WaveletContainers
+   * @param deltaStore store from which persisted wavelets are restored
+   * @param snapshotter reads the snapshots from which restoring starts
+   * @param enablePersistence whether the delta store persists deltas
+   * @param residencyLimit maximum number of wavelets to keep in memory, 0 for
+   *        no limit; only applies if persistence is enabled
+   * @param pipelineThreads number of threads in each stage of the submit
+   *        pipeline, 0 for one per processor
+   * @param pipelineCapacity number of deltas which may be queued in each stage
+   *        of the submit pipeline
    */
   @Inject
   public WaveServerImpl(CertificateManager certificateManager,
       @FederationHostBridge WaveletFederationListener.Factory federationHostFactory,
       @FederationRemoteBridge WaveletFederationProvider federationRemote,
       LocalWaveletContainer.Factory localWaveletContainerFactory,
-      RemoteWaveletContainer.Factory remoteWaveletContainerFactory) {
+      RemoteWaveletContainer.Factory remoteWaveletContainerFactory,
+      DeltaStore deltaStore,
+      WaveletSnapshotter snapshotter,
+      @Named("waveserver_enable_persistence") boolean enablePersistence,
+      @Named("wavelet_residency_limit") int residencyLimit,
+      @Named("submit_pipeline_threads") int pipelineThreads,
+      @Named("submit_pipeline_capacity") int pipelineCapacity) {
     this.certificateManager = certificateManager;
     this.federationHostFactory = federationHostFactory;
     this.federationRemote = federationRemote;
+    this.deltaStore = deltaStore;
+    this.snapshotter = snapshotter;
+    if (residencyLimit > 0 && !enablePersistence) {
+      // Evicted wavelets could not be reloaded.
+      LOG.warning("Ignoring the wavelet residency limit, persistence is disabled");
+      residencyLimit = 0;
+    }
+    this.residency = new WaveletResidency(residencyLimit);
+    this.verifyStage = new OrderedStage<WaveletName>("SubmitVerify", pipelineThreads,
+        pipelineCapacity);
+    this.applyStage = new OrderedStage<WaveletName>("SubmitApply", pipelineThreads,
+        pipelineCapacity);
+    this.fanOutStage = new OrderedStage<WaveletName>("SubmitFanOut", pipelineThreads,
+        pipelineCapacity);
 
     this.localWaveletContainerFactory = localWaveletContainerFactory;
     this.remoteWaveletContainerFactory = remoteWaveletContainerFactory;
@@ -460,6 +569,263 @@ public class WaveServerImpl implements WaveServer {
     } catch (SignatureException e) {
       LOG.severe("Failed to add our own signer info to the certificate store", e);
     }
+
+    restoreWavelets();
+  }
+
+  /**
+   * Recreates the wavelets which have history in the delta store, as many as
+   * the residency limit allows. The others are only registered as evicted, so
+   * that they are loaded when first looked up. A wavelet whose history can't
+   * be read or replayed is kept, marked as corrupted, so that it isn't
+   * recreated from scratch.
+   */
+  private void restoreWavelets() {
+    Collection<WaveletName> waveletNames;
+    try {
+      waveletNames = deltaStore.getWaveletNames();
+    } catch (IOException e) {
+      LOG.severe("Failed to list the wavelets in the delta store", e);
+      return;
+    }
+    int unloaded = 0;
+    for (WaveletName waveletName : waveletNames) {
+      synchronized (announceLock) {
+        unannounced.add(waveletName);
+      }
+      if (residency.isFull()) {
+        residency.unloaded(waveletName);
+        unloaded++;
+        continue;
+      }
+      WaveletContainer wc = loadWavelet(waveletName);
+      LOG.info("Restored " + waveletName + " at version " + wc.getCurrentVersion().getVersion());
+      wavelets.put(waveletName, wc);
+      residency.added(waveletName);
+    }
+    if (unloaded > 0) {
+      LOG.info("Left " + unloaded + " wavelets in the delta store until they are used");
+    }
+  }
+
+  /**
+   * Creates a container for a wavelet and rebuilds it from the delta store,
+   * starting from its latest snapshot if it has one. If the snapshot doesn't
+   * fit the history, the history is replayed in full instead. A wavelet whose
+   * history can't be read or replayed is marked as corrupted.
+   */
+  private WaveletContainer loadWavelet(WaveletName waveletName) {
+    WaveletContainer wc = createContainer(waveletName);
+    List<ByteString> deltas;
+    try {
+      deltas = deltaStore.readDeltas(waveletName, 0);
+    } catch (IOException e) {
+      LOG.severe("Failed to read the history of " + waveletName, e);
+      wc.setState(State.CORRUPTED);
+      return wc;
+    }
+    VersionedSnapshot snapshot = snapshotter.read(waveletName);
+    try {
+      wc.restoreHistory(deltas, snapshot);
+    } catch (WaveServerException e) {
+      if (snapshot == null) {
+        LOG.severe("Failed to restore " + waveletName, e);
+        return wc;
+      }
+      LOG.warning("Failed to restore " + waveletName + " from its snapshot, replaying all of "
+          + "its history", e);
+      wc = createContainer(waveletName);
+      try {
+        wc.restoreHistory(deltas, null);
+      } catch (WaveServerException e2) {
+        LOG.severe("Failed to restore " + waveletName, e2);
+      }
+    }
+    return wc;
+  }
+
+  private WaveletContainer createContainer(WaveletName waveletName) {
+    return isLocalWavelet(waveletName)
+        ? localWaveletContainerFactory.create(waveletName, localCommitListener)
+        : remoteWaveletContainerFactory.create(waveletName);
+  }
+
+  /**
+   * Reloads a wavelet which was evicted from memory.
+   *
+   * @return the reloaded container, or null if the wavelet was not evicted
+   */
+  private WaveletContainer reloadWavelet(final WaveletName waveletName) {
+    FutureTask<WaveletContainer> reload = reloads.get(waveletName);
+    if (reload == null) {
+      FutureTask<WaveletContainer> newReload = new FutureTask<WaveletContainer>(
+          new Callable<WaveletContainer>() {
+            @Override
+            public WaveletContainer call() {
+              WaveletContainer wc = getResidentWavelet(waveletName);
+              if (wc != null || !residency.isEvicted(waveletName)) {
+                return wc;
+              }
+              long start = System.nanoTime();
+              wc = loadWavelet(waveletName);
+              synchronized (announceLock) {
+                // Announced before it is visible, so before any update to it.
+                if (clientListener != null && unannounced.remove(waveletName)) {
+                  announceRestoredWavelet(waveletName, wc);
+                }
+                // Added before it stops being evicted, so that it is never neither.
+                wavelets.put(waveletName, wc);
+              }
+              residency.reloaded(waveletName, System.nanoTime() - start);
+              LOG.fine("Reloaded " + waveletName + " at version "
+                  + wc.getCurrentVersion().getVersion());
+              scheduleEviction();
+              return wc;
+            }
+          });
+      reload = reloads.putIfAbsent(waveletName, newReload);
+      if (reload == null) {
+        reload = newReload;
+        try {
+          newReload.run();
+        } finally {
+          reloads.remove(waveletName, newReload);
+        }
+      }
+    }
+    return getReloaded(reload);
+  }
+
+  /**
+   * Waits for a reload, run by this thread or another, to finish.
+   *
+   * @return the reloaded container, or null if the wavelet was not evicted
+   */
+  private static WaveletContainer getReloaded(FutureTask<WaveletContainer> reload) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return reload.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IllegalStateException("Failed to reload wavelet", e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Arranges for idle wavelets to be evicted, if there are more in memory than
+   * the residency limit allows.
+   */
+  private void scheduleEviction() {
+    if (residency.getExcess() > 0) {
+      evictor.execute(new Runnable() {
+        @Override
+        public void run() {
+          evictIdleWavelets();
+        }
+      });
+    }
+  }
+
+  /**
+   * Evicts the least recently used wavelets until no more are in memory than
+   * the residency limit allows. Wavelets which aren't entirely persisted are
+   * skipped. A wavelet is only evicted while holding its monitor, so that it
+   * can't happen during a submit, see {@link #submitDelta}. It is marked as
+   * evicted before it is removed, so that a concurrent lookup which doesn't
+   * find it reloads it rather than creating it afresh.
+   */
+  private void evictIdleWavelets() {
+    for (WaveletName waveletName : residency.getEvictionCandidates()) {
+      if (residency.getExcess() == 0) {
+        break;
+      }
+      WaveletContainer wc = getResidentWavelet(waveletName);
+      if (wc == null) {
+        continue;
+      }
+      synchronized (wc) {
+        if (wavelets.get(waveletName) == wc && wc.isPersisted()) {
+          residency.evicted(waveletName);
+          wavelets.remove(waveletName, wc);
+        }
+      }
+    }
+    LOG.info(residency.toString());
+  }
+
+  /**
+   * Tells the client listener about a restored wavelet: its participants and
+   * documents at the current version, so no history has to be read.
+   */
+  private void announceRestoredWavelet(WaveletName waveletName, WaveletContainer wc) {
+    if (wc.getState() != State.OK) {
+      return;
+    }
+    List<ParticipantId> participants;
+    ProtocolHashedVersion currentVersion;
+    Map<String, BufferedDocOp> documents;
+    synchronized (wc) {
+      participants = ImmutableList.copyOf(wc.getParticipants());
+      currentVersion = serialize(wc.getCurrentVersion());
+      documents = wc.getDocuments();
+    }
+    clientListener.waveletRestored(waveletName, participants, currentVersion, documents);
+  }
+
+  /**
+   * Hands the commit notices for a local wavelet to the fan-out stage. Holds
+   * the monitor of the container the delta was applied to, so the notices are
+   * queued after the update for the same delta, see {@link #applyLocalDelta}.
+   * That container is used even if it has been evicted since, rather than
+   * reloading the wavelet.
+   */
+  private void scheduleCommitNotices(final WaveletName waveletName,
+      final LocalWaveletContainer wc, final ProtocolHashedVersion version) {
+    synchronized (wc) {
+      fanOutStage.execute(waveletName, new Runnable() {
+        @Override
+        public void run() {
+          sendCommitNotices(waveletName, wc, version);
+        }
+      });
+    }
+  }
+
+  /**
+   * Tells the client listener and the federation hosts of a local wavelet's
+   * participants that the wavelet has been committed. Runs in the fan-out
+   * stage.
+   */
+  private void sendCommitNotices(WaveletName waveletName, LocalWaveletContainer wc,
+      ProtocolHashedVersion version) {
+    if (clientListener != null) {
+      clientListener.waveletCommitted(waveletName, version);
+    }
+    for (String hostDomain : getParticipantDomains(wc)) {
+      federationHosts.get(hostDomain).waveletCommitUpdate(waveletName, version,
+          new WaveletFederationListener.WaveletUpdateCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(FederationError error) {
+              LOG.warning("outgoing waveletCommitUpdate failure: " + error);
+            }
+          });
+    }
   }
 
   private boolean isLocalWavelet(WaveletName waveletName) {
@@ -492,14 +858,23 @@ public class WaveServerImpl implements WaveServer {
   private RemoteWaveletContainer getOrCreateRemoteWavelet(WaveletName waveletName) throws
       HostingException {
     checkWaveletHosting(false, waveletName);
-    synchronized (waveMap) {
-      Map<WaveletId, WaveletContainer> wave = waveMap.get(waveletName.waveId);
+    while (true) {
       // This will blow up if we messed up and put a local wavelet in by mistake.
-      RemoteWaveletContainer wc = (RemoteWaveletContainer) wave.get(waveletName.waveletId);
-      if (wc == null) {
-        wc = remoteWaveletContainerFactory.create(waveletName);
-        wave.put(waveletName.waveletId, wc);
+      RemoteWaveletContainer wc = (RemoteWaveletContainer) getWavelet(waveletName);
+      if (wc != null) {
+        return wc;
+      }
+      if (residency.isEvicted(waveletName)) {
+        // Evicted since we looked, try again.
+        continue;
+      }
+      wc = remoteWaveletContainerFactory.create(waveletName);
+      if (wavelets.putIfAbsent(waveletName, wc) != null) {
+        // Created concurrently, use that one.
+        continue;
       }
+      residency.added(waveletName);
+      scheduleEviction();
       return wc;
     }
   }
@@ -521,35 +896,57 @@ public class WaveServerImpl implements WaveServer {
       ParticipantId participantId) throws
       HostingException, AccessControlException, WaveletStateException {
     checkWaveletHosting(true, waveletName);
-    synchronized (waveMap) {
-      Map<WaveletId, WaveletContainer> wave = waveMap.get(waveletName.waveId);
+    while (true) {
       // This will blow up if we messed up and put a remote wavelet in by mistake.
-      LocalWaveletContainer wc = (LocalWaveletContainer) wave.get(waveletName.waveletId);
-      if (wc == null) {
-        wc = localWaveletContainerFactory.create(waveletName);
-        // TODO: HACK(Jochen): do we need a namespace policer here ??? ###
-        wave.put(waveletName.waveletId, wc);
-      } else {
+      LocalWaveletContainer wc = (LocalWaveletContainer) getWavelet(waveletName);
+      if (wc != null) {
         if (!wc.checkAccessPermission(participantId)) {
           throw new AccessControlException(participantId + " is not a participant: " + waveletName);
         }
+        return wc;
+      }
+      if (residency.isEvicted(waveletName)) {
+        // Evicted since we looked, try again.
+        continue;
       }
+      wc = localWaveletContainerFactory.create(waveletName, localCommitListener);
+      // TODO: HACK(Jochen): do we need a namespace policer here ??? ###
+      if (wavelets.putIfAbsent(waveletName, wc) != null) {
+        // Created concurrently, use that one.
+        continue;
+      }
+      residency.added(waveletName);
+      scheduleEviction();
       return wc;
     }
   }
 
   /**
    * Returns a generic wavelet container, when the caller doesn't need to validate whether
-   * its a local or remote wavelet.
+   * its a local or remote wavelet. Reloads the wavelet if it has been evicted.
    *
    * @param waveletName name of wavelet.
    * @return an wavelet container or null if it doesn't exist.
    */
   private WaveletContainer getWavelet(WaveletName waveletName) {
-    synchronized (waveMap) {
-      Map<WaveletId, WaveletContainer> wave = waveMap.get(waveletName.waveId);
-      return wave.get(waveletName.waveletId);
+    WaveletContainer wc = getResidentWavelet(waveletName);
+    if (wc != null) {
+      residency.hit(waveletName);
+      return wc;
     }
+    if (!residency.isEvicted(waveletName)) {
+      // It doesn't exist, unless it was reloaded since we looked.
+      return getResidentWavelet(waveletName);
+    }
+    residency.miss();
+    return reloadWavelet(waveletName);
+  }
+
+  /**
+   * @return the container of the wavelet if it is in memory, otherwise null
+   */
+  private WaveletContainer getResidentWavelet(WaveletName waveletName) {
+    return wavelets.get(waveletName);
   }
 
   /**
@@ -563,13 +960,17 @@ public class WaveServerImpl implements WaveServer {
    * Submit the delta to local or remote wavelets, return results via listener.
    * Also broadcast updates to federationHosts and clientFrontend.
    *
+   * A delta to a local wavelet is applied in the apply stage, and the result
+   * and updates are sent out in the fan-out stage, in the order in which the
+   * wavelet's deltas were applied.
+   *
    * TODO: for now a the WaveletFederationProvider will have
    *               made sure this is a local wavelet. Once we support
    *               federated groups, that test should be removed.
    */
   private void submitDelta(final WaveletName waveletName, final ProtocolSignedDelta delta,
       final SubmitResultListener resultListener) {
-    ByteStringMessage<ProtocolWaveletDelta> waveletDelta;
+    final ByteStringMessage<ProtocolWaveletDelta> waveletDelta;
     try {
       waveletDelta = ByteStringMessage.from(
           ProtocolWaveletDelta.getDefaultInstance(), delta.getDelta());
@@ -578,116 +979,168 @@ public class WaveServerImpl implements WaveServer {
     }
 
     if (isLocalWavelet(waveletName)) {
-      DeltaApplicationResult submitResult;
-      final ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta;
-      LocalWaveletContainer wc = null;
+      applyStage.execute(waveletName, new Runnable() {
+        @Override
+        public void run() {
+          applyLocalDelta(waveletName, delta, waveletDelta, resultListener);
+        }
+      });
+    } else {
+      // For remote wavelets post required signatures to the authorative server then send delta
+      postAllSignerInfo(delta.getSignatureList(), waveletName.waveletId.getDomain(),
+          new PostSignerInfoCallback() {
+            @Override public void done(int successCount) {
+              LOG.info("Remote: successfully sent " + successCount + " of "
+                  + delta.getSignatureCount() + " certs to " + waveletName.waveletId.getDomain());
+              federationRemote.submitRequest(waveletName, delta, resultListener);
+            }
+          });
+    }
+  }
 
-      try {
-        LOG.info("## WS: Got submit: " + waveletName + " delta: " + waveletDelta);
+  /**
+   * Applies a delta to a local wavelet and hands the result to the fan-out
+   * stage. Runs in the apply stage. Every result, failures included, goes
+   * through the fan-out stage, so that the results for a wavelet are returned
+   * in the order its deltas were submitted.
+   */
+  private void applyLocalDelta(final WaveletName waveletName, ProtocolSignedDelta delta,
+      ByteStringMessage<ProtocolWaveletDelta> waveletDelta,
+      final SubmitResultListener resultListener) {
+    LocalWaveletContainer wc = null;
+    FederationError error;
+
+    try {
+      LOG.info("## WS: Got submit: " + waveletName + " delta: " + waveletDelta);
 
-        // TODO(arb): add v0 policer here.
+      // TODO(arb): add v0 policer here.
+      while (true) {
         wc = getOrCreateLocalWavelet(waveletName,
             new ParticipantId(waveletDelta.getMessage().getAuthor()));
 
         /*
-         * Synchronise on the wavelet container so that updates passed to clientListener and
-         * Federation listeners are ordered correctly. The application of deltas can happen in any
-         * order (due to OT).
-         *
-         * TODO(thorogood): This basically creates a second write lock (like the one held within
-         * wc.submitRequest) and extends it out around the broadcast code. Ideally what should
-         * happen is the update is pushed onto a queue which is handled in another thread.
+         * Synchronise on the wavelet container so that the updates handed to the fan-out stage,
+         * and the commit notices which follow them, are ordered correctly. The application of
+         * deltas can happen in any order (due to OT).
          */
         synchronized (wc) {
+          // The wavelet may have been evicted since it was looked up; if so, look
+          // it up again so that the delta is applied to the reloaded container.
+          if (getResidentWavelet(waveletName) != wc) {
+            continue;
+          }
+
           // Get the host domains before applying the delta in case
           // the delta contains a removeParticipant operation.
-          Set<String> hostDomains = Sets.newHashSet(getParticipantDomains(wc));
-          submitResult = wc.submitRequest(waveletName, delta);
-          appliedDelta = submitResult.getAppliedDelta();
-
-          // return result to caller.
-          ProtocolHashedVersion resultingVersion =
-              serialize(HashedVersion.getHashedVersionAfter(appliedDelta));
-          LOG.info("## WS: Submit result: " + waveletName + " appliedDelta: " + appliedDelta);
-          resultListener.onSuccess(appliedDelta.getMessage().getOperationsApplied(),
-              resultingVersion, appliedDelta.getMessage().getApplicationTimestamp());
-
-          // Send the results to the client frontend
-          if (clientListener != null) {
-            Map<String, BufferedDocOp> documentState =
-                getWavelet(waveletName).getWaveletData().getDocuments();
-            LOG.info("Sending update to client listener: " + submitResult.getDelta());
-            clientListener.waveletUpdate(waveletName, ImmutableList.of(submitResult.getDelta()),
-                submitResult.getHashedVersionAfterApplication(), documentState);
-          }
+          final Set<String> hostDomains = Sets.newHashSet(getParticipantDomains(wc));
+          final DeltaApplicationResult submitResult = wc.submitRequest(waveletName, delta);
 
           // Capture any new domains from addParticipant operations.
           hostDomains.addAll(getParticipantDomains(wc));
 
-          // Broadcast results to the remote servers, but make sure they all have our signatures
-          for (final String hostDomain : hostDomains) {
-            final WaveletFederationListener host = federationHosts.get(hostDomain);
-            host.waveletDeltaUpdate(waveletName, ImmutableList.of(appliedDelta.getByteString()),
-                new WaveletFederationListener.WaveletUpdateCallback() {
-                  @Override
-                  public void onSuccess() {
-                  }
-
-                  @Override
-                  public void onFailure(FederationError error) {
-                    LOG.warning("outgoing waveletDeltaUpdate failure: " + error);
-                  }
-                });
+          // The fan-out stage reads the documents through the container's
+          // locked view, serialising only those it needs. It may see later
+          // deltas than this one, which only brings the digest it sends
+          // forward.
+          final Map<String, BufferedDocOp> documentState =
+              (clientListener == null) ? null : wc.getDocuments();
+
+          fanOutStage.execute(waveletName, new Runnable() {
+            @Override
+            public void run() {
+              fanOutAppliedDelta(waveletName, submitResult, hostDomains, documentState,
+                  resultListener);
+            }
+          });
+        }
+        return;
+      }
+    } catch (AccessControlException e) {
+      error = FederationErrors.badRequest(e.getMessage());
+    } catch (OperationException e) {
+      error = FederationErrors.badRequest(e.getMessage());
+    } catch (WaveletStateException e) {
+      error = FederationErrors.badRequest(e.getMessage());
+    } catch (IllegalArgumentException e) {
+      error = FederationErrors.badRequest(e.getMessage());
+    } catch (HostingException e) {
+      LOG.severe("Should not get HostingException after checking isLocalWavelet", e);
+      error = FederationErrors.internalServerError(e.getMessage());
+    } catch (InvalidProtocolBufferException e) {
+      error = FederationErrors.badRequest(e.getMessage());
+    } catch (InvalidHashException e) {
+      error = FederationErrors.badRequest(e.getMessage());
+    } catch (EmptyDeltaException e) {
+      // This is okay, just succeed silently.  Use an empty timestamp since nothing was applied.
+      final ProtocolHashedVersion version = serialize(wc.getCurrentVersion());
+      fanOutStage.execute(waveletName, new Runnable() {
+        @Override
+        public void run() {
+          resultListener.onSuccess(0, version, 0);
+        }
+      });
+      return;
+    } catch (RuntimeException e) {
+      LOG.severe("Failed to apply delta to " + waveletName, e);
+      error = FederationErrors.internalServerError("Failed to apply delta: " + e.getMessage());
+    }
+    final FederationError failure = error;
+    fanOutStage.execute(waveletName, new Runnable() {
+      @Override
+      public void run() {
+        resultListener.onFailure(failure);
+      }
+    });
+  }
 
-            // TODO: if persistence is added, don't send commit notice
-            host.waveletCommitUpdate(waveletName, resultingVersion,
-                new WaveletFederationListener.WaveletUpdateCallback() {
-                  @Override
-                  public void onSuccess() {
-                  }
+  /**
+   * Returns the result of applying a delta to the submitter, and sends the
+   * applied delta to the client frontend and to the federation hosts of the
+   * wavelet's participants. Runs in the fan-out stage. The result goes first,
+   * and a failure to send an update is only logged, as the delta has been
+   * applied regardless.
+   */
+  private void fanOutAppliedDelta(WaveletName waveletName, DeltaApplicationResult submitResult,
+      Set<String> hostDomains, Map<String, BufferedDocOp> documentState,
+      SubmitResultListener resultListener) {
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta = submitResult.getAppliedDelta();
+
+    // return result to caller.
+    ProtocolHashedVersion resultingVersion = submitResult.getHashedVersionAfterApplication();
+    LOG.info("## WS: Submit result: " + waveletName + " appliedDelta: " + appliedDelta);
+    resultListener.onSuccess(appliedDelta.getMessage().getOperationsApplied(),
+        resultingVersion, appliedDelta.getMessage().getApplicationTimestamp());
+
+    // Send the results to the client frontend
+    if (clientListener != null) {
+      LOG.info("Sending update to client listener: " + submitResult.getDelta());
+      try {
+        clientListener.waveletUpdate(waveletName, ImmutableList.of(submitResult.getDelta()),
+            resultingVersion, documentState);
+      } catch (RuntimeException e) {
+        LOG.severe("Failed to send update for " + waveletName + " to the client listener", e);
+      }
+    }
 
-                  @Override
-                  public void onFailure(FederationError error) {
-                    LOG.warning("outgoing waveletCommitUpdate failure: " + error);
-                  }
+    // Broadcast results to the remote servers, but make sure they all have our signatures
+    for (final String hostDomain : hostDomains) {
+      final WaveletFederationListener host = federationHosts.get(hostDomain);
+      try {
+        host.waveletDeltaUpdate(waveletName, ImmutableList.of(appliedDelta.getByteString()),
+            new WaveletFederationListener.WaveletUpdateCallback() {
+              @Override
+              public void onSuccess() {
+              }
+
+              @Override
+              public void onFailure(FederationError error) {
+                LOG.warning("outgoing waveletDeltaUpdate failure: " + error);
+              }
             });
-          }
-        }
-      } catch (AccessControlException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-        return;
-      } catch (OperationException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-        return;
-      } catch (WaveletStateException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-        return;
-      } catch (IllegalArgumentException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-        return;
-      } catch (HostingException e) {
-        throw new IllegalStateException("Should not get HostingException after " +
-                                        "checking isLocalWavelet", e);
-      } catch (InvalidProtocolBufferException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-        return;
-      } catch (InvalidHashException e) {
-        resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
-        return;
-      } catch (EmptyDeltaException e) {
-        // This is okay, just succeed silently.  Use an empty timestamp since nothing was applied.
-        resultListener.onSuccess(0, serialize(wc.getCurrentVersion()), 0);
+      } catch (RuntimeException e) {
+        LOG.severe("Failed to send update for " + waveletName + " to " + hostDomain, e);
       }
-    } else {
-      // For remote wavelets post required signatures to the authorative server then send delta
-      postAllSignerInfo(delta.getSignatureList(), waveletName.waveletId.getDomain(),
-          new PostSignerInfoCallback() {
-            @Override public void done(int successCount) {
-              LOG.info("Remote: successfully sent " + successCount + " of "
-                  + delta.getSignatureCount() + " certs to " + waveletName.waveletId.getDomain());
-              federationRemote.submitRequest(waveletName, delta, resultListener);
-            }
-          });
+      // The commit notice follows once the delta is durable, see sendCommitNotices.
     }
   }
 
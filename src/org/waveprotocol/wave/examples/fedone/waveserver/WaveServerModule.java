@@ -18,6 +18,7 @@
 package org.waveprotocol.wave.examples.fedone.waveserver;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -32,14 +33,17 @@ import org.waveprotocol.wave.crypto.DisabledCertPathValidator;
 import org.waveprotocol.wave.crypto.TimeSource;
 import org.waveprotocol.wave.crypto.TrustRootsProvider;
 import org.waveprotocol.wave.crypto.VerifiedCertChainCache;
+import org.waveprotocol.wave.crypto.VerifiedSignatureCache;
 import org.waveprotocol.wave.crypto.WaveCertPathValidator;
 import org.waveprotocol.wave.crypto.WaveSignatureVerifier;
 import org.waveprotocol.wave.crypto.WaveSigner;
 import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolWaveClientRpc;
 import org.waveprotocol.wave.model.id.WaveletName;
 
+import java.io.File;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Guice Module for the prototype Server.
@@ -49,28 +53,44 @@ import java.util.concurrent.ScheduledExecutorService;
 public class WaveServerModule extends AbstractModule {
 
   private static class LocalWaveletContainerFactory implements LocalWaveletContainer.Factory {
+    private final DeltaStore deltaStore;
+    private final WaveletSnapshotter snapshotter;
+
+    @Inject
+    LocalWaveletContainerFactory(DeltaStore deltaStore, WaveletSnapshotter snapshotter) {
+      this.deltaStore = deltaStore;
+      this.snapshotter = snapshotter;
+    }
+
     @Override
-    public LocalWaveletContainer create(WaveletName waveletName) {
-      return new LocalWaveletContainerImpl(waveletName);
+    public LocalWaveletContainer create(WaveletName waveletName,
+        LocalWaveletContainer.CommitListener commitListener) {
+      return new LocalWaveletContainerImpl(waveletName, deltaStore, snapshotter, commitListener);
     }
   }
 
   private static class RemoteWaveletContainerFactory implements RemoteWaveletContainer.Factory {
+    private final DeltaStore deltaStore;
+    private final WaveletSnapshotter snapshotter;
+
+    @Inject
+    RemoteWaveletContainerFactory(DeltaStore deltaStore, WaveletSnapshotter snapshotter) {
+      this.deltaStore = deltaStore;
+      this.snapshotter = snapshotter;
+    }
+
     @Override
     public RemoteWaveletContainer create(WaveletName waveletName) {
-      return new RemoteWaveletContainerImpl(waveletName);
+      return new RemoteWaveletContainerImpl(waveletName, deltaStore, snapshotter);
     }
   }
 
   // NOTE:
-  // This is a fairly important thread pool: It's currently used by the bundling
-  // signer... see DeltaSignerProvider.java.
-  // For each bundle the thread will perform the signature and call the
-  // listener for each signing request, this will do work like submit deltas
-  // to wavelets and broadcast results of the submit. Depending on the timeout
-  // on the bundling accumulation delay and bundle size parameters, the thread
-  // pool size will affect the performance of your server when it comes to
-  // dealing with client submits. (see WaveServerImpl.submitDelta).
+  // This thread pool is used by the bundling signer to time bundles... see
+  // DeltaSignerProvider.java. The signatures themselves, and the listeners
+  // for each signing request, which do work like submit deltas to wavelets
+  // and broadcast results of the submit, run on the signer's own pool of
+  // delta_signing_threads threads (see WaveServerImpl.submitDelta).
 
   @Provides
   private static ScheduledExecutorService provideScheduledExecutorService() {
@@ -79,13 +99,12 @@ public class WaveServerModule extends AbstractModule {
 
   @Override
   protected void configure() {
-    bind(CertPathStore.class).to(DefaultCertPathStore.class).in(Singleton.class);
     bind(TimeSource.class).to(DefaultTimeSource.class).in(Singleton.class);
     bind(WaveSigner.class).toProvider(WaveSignerProvider.class);
 
     try {
       bind(WaveSignatureVerifier.class).toConstructor(WaveSignatureVerifier.class.getConstructor(
-          WaveCertPathValidator.class, CertPathStore.class));
+          WaveCertPathValidator.class, CertPathStore.class, VerifiedSignatureCache.class));
       bind(VerifiedCertChainCache.class).to(DefaultCacheImpl.class).in(Singleton.class);
       bind(DefaultCacheImpl.class).toConstructor(
           DefaultCacheImpl.class.getConstructor(TimeSource.class));
@@ -105,6 +124,70 @@ public class WaveServerModule extends AbstractModule {
         .in(Singleton.class);
   }
 
+  /**
+   * Guice provider of the {@code DeltaStore}, which only persists deltas if
+   * persistence is enabled.
+   */
+  @Provides
+  @Singleton
+  protected DeltaStore provideDeltaStore(
+      @Named("waveserver_enable_persistence") boolean enablePersistence,
+      @Named("delta_store_directory") String directory,
+      @Named("delta_store_segment_size_bytes") int segmentSizeBytes,
+      @Named("delta_store_group_commit_delay_ms") int groupCommitDelayMs) {
+    if (enablePersistence) {
+      return new FileDeltaStore(new File(directory), segmentSizeBytes, groupCommitDelayMs);
+    } else {
+      return new DisabledDeltaStore();
+    }
+  }
+
+  /**
+   * Guice provider of the {@code CertPathStore}, which only persists signer
+   * infos if persistence is enabled.
+   */
+  @Provides
+  @Singleton
+  protected CertPathStore provideCertPathStore(
+      @Named("waveserver_enable_persistence") boolean enablePersistence,
+      @Named("cert_path_store_directory") String directory,
+      @Named("cert_path_store_max_age_hours") int maxAgeHours) {
+    if (enablePersistence) {
+      return new FileCertPathStore(new File(directory), TimeUnit.HOURS.toMillis(maxAgeHours));
+    } else {
+      return new DefaultCertPathStore();
+    }
+  }
+
+  /**
+   * Guice provider of the {@code WaveletSnapshotter}, which only takes
+   * snapshots if persistence is enabled and a snapshot interval is set.
+   */
+  @Provides
+  @Singleton
+  protected WaveletSnapshotter provideWaveletSnapshotter(
+      @Named("waveserver_enable_persistence") boolean enablePersistence,
+      @Named("snapshot_store_directory") String directory,
+      @Named("snapshot_interval_deltas") int deltaInterval,
+      @Named("snapshot_interval_bytes") int byteInterval) {
+    if (enablePersistence && (deltaInterval > 0 || byteInterval > 0)) {
+      return new WaveletSnapshotter(new FileSnapshotStore(new File(directory)), deltaInterval,
+          byteInterval, Executors.newSingleThreadExecutor());
+    } else {
+      return WaveletSnapshotter.DISABLED;
+    }
+  }
+
+  /**
+   * Guice provider of the {@code VerifiedSignatureCache}.
+   */
+  @Provides
+  @Singleton
+  protected VerifiedSignatureCache provideVerifiedSignatureCache(
+      @Named("verified_signature_cache_size") int cacheSize) {
+    return new VerifiedSignatureCache(cacheSize);
+  }
+
   /**
    * Guice provider of {@code WaveCertPathValidator}s.
    */
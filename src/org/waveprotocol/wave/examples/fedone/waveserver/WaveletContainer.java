@@ -17,15 +17,18 @@
 
 package org.waveprotocol.wave.examples.fedone.waveserver;
 
+import com.google.protobuf.ByteString;
+
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 
 import java.util.List;
-import java.util.NavigableSet;
+import java.util.Map;
 
 /**
  * Interface for a container class for a Wavelet's current state as well as its
@@ -51,6 +54,13 @@ abstract interface WaveletContainer {
 
   WaveletData getWaveletData();
 
+  /**
+   * @return a read-only view of the wavelet's documents which may be read
+   *         from any thread, and which reflects the wavelet as it is at each
+   *         read. Only the documents read are serialised.
+   */
+  Map<String, BufferedDocOp> getDocuments();
+
   <T> T getSnapshot(WaveletSnapshotBuilder<T> builder);
 
   // TODO: decide which to go for depending on common.proto modification. ###
@@ -63,7 +73,7 @@ abstract interface WaveletContainer {
    * @return serialised {@code ProtocolAppliedWaveletDelta}s in the range as requested. Note that
    *         if a delta straddles one of the requested version boundaries, it will be included.
    */
-  NavigableSet<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
+  List<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
       ProtocolHashedVersion versionStart, ProtocolHashedVersion versionEnd)
       throws WaveletStateException;
 
@@ -78,7 +88,7 @@ abstract interface WaveletContainer {
    * @return deltas in the range as requested, or null if there was an error. Note that
    *         if a delta straddles one of the requested version boundaries, it will be included.
    */
-  NavigableSet<ProtocolWaveletDelta> requestTransformedHistory(ProtocolHashedVersion versionStart,
+  List<ProtocolWaveletDelta> requestTransformedHistory(ProtocolHashedVersion versionStart,
       ProtocolHashedVersion versionEnd) throws AccessControlException, WaveletStateException;
 
   /**
@@ -99,4 +109,30 @@ abstract interface WaveletContainer {
 
   /** @return the current version of the wavelet. */
   HashedVersion getCurrentVersion();
+
+  /**
+   * @return true if the container holds nothing that could not be rebuilt
+   *         from the {@link DeltaStore}, so it may be dropped from memory and
+   *         restored later
+   */
+  boolean isPersisted();
+
+  /**
+   * Rebuilds the wavelet from applied deltas previously read back from the
+   * {@link DeltaStore}, without persisting them again. May only be called on a
+   * container that has not yet had any deltas applied.
+   *
+   * If a snapshot is given, the wavelet's state is taken from it and the
+   * deltas before the snapshot are only indexed: they are neither applied
+   * nor transformed until their transformed form is first read.
+   *
+   * @param appliedDeltas serialised {@code ProtocolAppliedWaveletDelta}s, in version order
+   * @param snapshot snapshot of the wavelet taken part way through the
+   *        deltas, may be null
+   * @throws WaveServerException if the deltas don't form a valid history, or
+   *         the snapshot was not taken of them, in which case the wavelet is
+   *         marked as corrupted
+   */
+  void restoreHistory(List<ByteString> appliedDeltas, SnapshotStore.VersionedSnapshot snapshot)
+      throws WaveServerException;
 }
@@ -18,7 +18,10 @@
 package org.waveprotocol.wave.examples.fedone.waveserver;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Sets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
@@ -26,10 +29,12 @@ import org.waveprotocol.wave.examples.fedone.common.HashedVersionFactory;
 import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
 import org.waveprotocol.wave.examples.fedone.model.util.HashedVersionFactoryImpl;
 import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.examples.fedone.waveserver.SnapshotStore.VersionedSnapshot;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.OperationPair;
@@ -37,14 +42,18 @@ import org.waveprotocol.wave.model.operation.Transform;
 import org.waveprotocol.wave.model.operation.TransformException;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
-import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
+import org.waveprotocol.wave.model.wave.data.impl.IndexedWaveletDataImpl;
 
+import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.NavigableSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -68,32 +77,116 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     }
   }
 
+  /**
+   * The documents of the wavelet, for reading from any thread. Each read
+   * locks the container, and serialises only the documents it reads.
+   */
+  private final class DocumentsView extends AbstractMap<String, BufferedDocOp> {
+    @Override
+    public BufferedDocOp get(Object documentId) {
+      acquireReadLock();
+      try {
+        return waveletData.getDocuments().get(documentId);
+      } finally {
+        releaseReadLock();
+      }
+    }
+
+    @Override
+    public boolean containsKey(Object documentId) {
+      acquireReadLock();
+      try {
+        return waveletData.getDocuments().containsKey(documentId);
+      } finally {
+        releaseReadLock();
+      }
+    }
+
+    @Override
+    public int size() {
+      acquireReadLock();
+      try {
+        return waveletData.getDocuments().size();
+      } finally {
+        releaseReadLock();
+      }
+    }
+
+    @Override
+    public Set<String> keySet() {
+      acquireReadLock();
+      try {
+        return ImmutableSet.copyOf(waveletData.getDocuments().keySet());
+      } finally {
+        releaseReadLock();
+      }
+    }
+
+    @Override
+    public Set<Map.Entry<String, BufferedDocOp>> entrySet() {
+      acquireReadLock();
+      try {
+        return ImmutableMap.copyOf(waveletData.getDocuments()).entrySet();
+      } finally {
+        releaseReadLock();
+      }
+    }
+  }
+
   private static final Log LOG = Log.get(WaveletContainerImpl.class);
 
+  /**
+   * Number of server deltas behind head from which a submitted delta is
+   * transformed against the composed history rather than delta by delta.
+   */
+  @VisibleForTesting
+  static final int COMPOSED_TRANSFORM_THRESHOLD = 16;
+
   protected static final HashedVersionFactory HASHED_HISTORY_VERSION_FACTORY =
       new HashedVersionFactoryImpl();
 
-  protected final NavigableSet<ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltas;
-  protected final NavigableSet<ProtocolWaveletDelta> transformedDeltas;
-  protected final NavigableSet<VersionedWaveletDelta> deserializedTransformedDeltas;
+  protected final DeltaHistory history;
+  private final ComposedHistory composedHistory;
   private final Lock readLock;
   private final Lock writeLock;
+  protected final DeltaStore deltaStore;
+  private final WaveletSnapshotter snapshotter;
+  private final Map<String, BufferedDocOp> documents = new DocumentsView();
   protected WaveletName waveletName;
   protected WaveletData waveletData;
   protected HashedVersion currentVersion;
   protected ProtocolHashedVersion lastCommittedVersion;
   protected State state;
 
-  /** Constructor. */
-  public WaveletContainerImpl(WaveletName waveletName) {
+  /** Number of deltas applied since the last snapshot. */
+  private int deltasSinceSnapshot = 0;
+
+  /** Total size of the deltas applied since the last snapshot. */
+  private long bytesSinceSnapshot = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param waveletName name of the wavelet
+   * @param deltaStore store to which committed deltas are appended
+   * @param snapshotter takes periodic snapshots of the wavelet
+   */
+  public WaveletContainerImpl(WaveletName waveletName, DeltaStore deltaStore,
+      WaveletSnapshotter snapshotter) {
     this.waveletName = waveletName;
-    waveletData = new WaveletDataImpl(waveletName.waveId, waveletName.waveletId);
+    this.deltaStore = deltaStore;
+    this.snapshotter = snapshotter;
+    waveletData = new IndexedWaveletDataImpl(waveletName.waveId, waveletName.waveletId);
     currentVersion = HASHED_HISTORY_VERSION_FACTORY.createVersionZero(waveletName);
     lastCommittedVersion = null;
 
-    appliedDeltas = Sets.newTreeSet(appliedDeltaComparator);
-    transformedDeltas = Sets.newTreeSet(transformedDeltaComparator);
-    deserializedTransformedDeltas = Sets.newTreeSet(deserializedDeltaComparator);
+    history = new DeltaHistory(new DeltaHistory.Resolver() {
+      @Override
+      public WaveletDelta resolve(int index) {
+        return resolveIndexedDelta(index);
+      }
+    });
+    composedHistory = new ComposedHistory(history);
 
     // Configure the locks used by this Wavelet.
     final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
@@ -136,35 +229,6 @@ abstract class WaveletContainerImpl implements WaveletContainer {
         }
       };
 
-  /**
-   * Return a dummy ProtocolWaveletDelta instance used as a range
-   * boundary for use in searches within a NavigableSet of deltas.
-   *
-   * @param version the version to return the delta applied at
-   * @return the generated dummy delta
-   */
-  private static ProtocolWaveletDelta emptyDeltaAtVersion(final long version) {
-    return ProtocolWaveletDelta.newBuilder()
-        .setAuthor("dummy")
-        .setHashedVersion(WaveletOperationSerializer.serialize(HashedVersion.unsigned(version)))
-        .build();
-  }
-
-  /**
-   * Return a dummy ProtocolAppliedWaveleetDelta instance used as a range
-   * boundary.
-   */
-  private static ByteStringMessage<ProtocolAppliedWaveletDelta> emptyAppliedDeltaAtVersion(
-      final long version) {
-    ProtocolAppliedWaveletDelta delta = ProtocolAppliedWaveletDelta.newBuilder()
-        .setApplicationTimestamp(0)
-        .setOperationsApplied(0)
-        .setSignedOriginalDelta(ProtocolSignedDelta.newBuilder()
-             .setDelta(emptyDeltaAtVersion(version).toByteString())
-        ).build();
-    return ByteStringMessage.fromMessage(delta);
-  }
-
   /**
    * Returns the version that the passed delta was actually applied at. Simply
    * resolves to the hashed version stored on the applied delta if it exists, or
@@ -184,43 +248,6 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     }
   }
 
-  /**
-   * Return a dummy VersionedWaveletDelta instance used as a range boundary for
-   * use in searches within a NavigableSet of deltas.
-   *
-   * @param version the version with which to return the versioned delta
-   * @return a dummy versioned delta with a null delta
-   */
-  private static VersionedWaveletDelta emptyDeserializedDeltaAtVersion(final long version) {
-    return new VersionedWaveletDelta(null, HashedVersion.unsigned(version));
-  }
-
-  /** A comparator to be used in a TreeSet for deserialized deltas. */
-  private static final Comparator<VersionedWaveletDelta> deserializedDeltaComparator =
-      new Comparator<VersionedWaveletDelta>() {
-        @Override
-        public int compare(VersionedWaveletDelta first, VersionedWaveletDelta second) {
-          if (first == null && second != null) { return -1; }
-          if (first != null && second == null) { return 1; }
-          if (first == null && second == null) { return 0; }
-          return Long.valueOf(first.version.getVersion()).compareTo(second.version.getVersion());
-        }
-      };
-
-  /** A comparator to be used in a TreeSet for transformed deltas. */
-  @VisibleForTesting
-  static final Comparator<ProtocolWaveletDelta> transformedDeltaComparator =
-      new Comparator<ProtocolWaveletDelta>() {
-        @Override
-        public int compare(ProtocolWaveletDelta first, ProtocolWaveletDelta second) {
-          if (first == null && second != null) { return -1; }
-          if (first != null && second == null) { return 1; }
-          if (first == null && second == null) { return 0; }
-          return Long.valueOf(first.getHashedVersion().getVersion()).compareTo(
-              second.getHashedVersion().getVersion());
-        }
-      };
-
   protected void assertStateOk() throws WaveletStateException {
     if (state != State.OK) {
       throw new WaveletStateException(state, "The wavelet is not in a usable state. ");
@@ -275,13 +302,18 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     return waveletData;
   }
 
+  @Override
+  public Map<String, BufferedDocOp> getDocuments() {
+    return documents;
+  }
+
   @Override
   public <T> T getSnapshot(WaveletSnapshotBuilder<T> builder) {
-    acquireWriteLock();
+    acquireReadLock();
     try {
       return builder.build(waveletData, currentVersion, lastCommittedVersion);
     } finally {
-      releaseWriteLock();
+      releaseReadLock();
     }
   }
 
@@ -370,19 +402,17 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   private VersionedWaveletDelta transformSubmittedDelta(WaveletDelta submittedDelta,
       HashedVersion appliedVersion) throws OperationException, InvalidHashException {
 
-    NavigableSet<VersionedWaveletDelta> serverDeltas = deserializedTransformedDeltas.tailSet(
-        deserializedTransformedDeltas.floor(emptyDeserializedDeltaAtVersion(
-            appliedVersion.getVersion())),true);
+    int first = Math.max(history.floorIndex(appliedVersion.getVersion()), 0);
 
-    if (serverDeltas.size() == 0) {
+    if (first >= history.size()) {
       LOG.warning("Got empty server set, but not sumbitting to head! " + submittedDelta);
       // Not strictly an invalid hash, but it's a related issue
       throw new InvalidHashException("Cannot submit to head");
     }
 
     // Confirm that the target version/hash of this delta is valid.
-    if (!serverDeltas.first().version.equals(appliedVersion)) {
-      LOG.warning("Mismatched hashes: expected: " + serverDeltas.first().version +
+    if (!history.getHashedVersion(first).equals(appliedVersion)) {
+      LOG.warning("Mismatched hashes: expected: " + history.getHashedVersion(first) +
           " got: " + appliedVersion);
       // Don't leak the hash to the client in the error message.
       throw new InvalidHashException("Mismatched hashes at version " + appliedVersion.getVersion());
@@ -390,23 +420,72 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
     ParticipantId clientAuthor = submittedDelta.getAuthor();
     List<WaveletOperation> clientOps = submittedDelta.getOperations();
-    for (VersionedWaveletDelta d : serverDeltas) {
+    // A client far behind head is transformed against the composed server
+    // history in one go, once the delta is known not to be a resubmission of
+    // one already applied.
+    if (history.size() - first >= COMPOSED_TRANSFORM_THRESHOLD && !clientOps.isEmpty()) {
+      int duplicate = findDuplicate(first, submittedDelta, appliedVersion);
+      if (duplicate >= 0) {
+        return new VersionedWaveletDelta(history.getDelta(duplicate),
+            history.getHashedVersion(duplicate));
+      }
+      clientOps = composedHistory.composeFrom(first).transform(clientOps, clientAuthor);
+      return new VersionedWaveletDelta(new WaveletDelta(clientAuthor, clientOps), currentVersion);
+    }
+    for (int i = first; i < history.size(); i++) {
+      HashedVersion serverVersion = history.getHashedVersion(i);
       // If the client delta transforms to nothing before we've traversed all the server
       // deltas, return the version at which the delta was obliterated (rather than the
       // current version) to ensure that delta submission is idempotent.
       if (clientOps.isEmpty()) {
-        return new VersionedWaveletDelta(new WaveletDelta(clientAuthor, clientOps), d.version);
+        return new VersionedWaveletDelta(new WaveletDelta(clientAuthor, clientOps), serverVersion);
       }
-      ParticipantId serverAuthor = d.delta.getAuthor();
-      List<WaveletOperation> serverOps = d.delta.getOperations();
+      WaveletDelta serverDelta = history.getDelta(i);
+      ParticipantId serverAuthor = serverDelta.getAuthor();
+      List<WaveletOperation> serverOps = serverDelta.getOperations();
       if (clientAuthor.equals(serverAuthor) && clientOps.equals(serverOps)) {
-        return d;
+        return new VersionedWaveletDelta(serverDelta, serverVersion);
       }
       clientOps = transformOps(clientOps, clientAuthor, serverOps, serverAuthor);
     }
     return new VersionedWaveletDelta(new WaveletDelta(clientAuthor, clientOps), currentVersion);
   }
 
+  /**
+   * Finds a server delta, from the given index on, applied from an earlier
+   * submission of the same delta at the same version: its original delta, as
+   * signed by the client, has the same author, version and operations.
+   * Only server deltas with the same author and number of operations are
+   * parsed.
+   *
+   * @return the index of the server delta, or -1 if there is none
+   */
+  private int findDuplicate(int first, WaveletDelta submittedDelta,
+      HashedVersion appliedVersion) {
+    ParticipantId clientAuthor = submittedDelta.getAuthor();
+    List<WaveletOperation> clientOps = submittedDelta.getOperations();
+    for (int i = first; i < history.size(); i++) {
+      WaveletDelta serverDelta = history.getDelta(i);
+      if (!serverDelta.getAuthor().equals(clientAuthor)
+          || serverDelta.getOperations().size() != clientOps.size()) {
+        continue;
+      }
+      Pair<WaveletDelta, HashedVersion> original;
+      try {
+        original = WaveletOperationSerializer.deserialize(ProtocolWaveletDelta.parseFrom(
+            history.getAppliedDelta(i).getMessage().getSignedOriginalDelta().getDelta()));
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException("Invalid applied delta in history", e);
+      }
+      if (original.second.equals(appliedVersion)
+          && original.first.getAuthor().equals(clientAuthor)
+          && original.first.getOperations().equals(clientOps)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Transforms the specified client operations against the specified server operations,
    * returning the transformed client operations in a new list.
@@ -438,7 +517,8 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   }
 
   /**
-   * Commit an applied delta to this wavelet container.
+   * Commit an applied delta to this wavelet container, and append it to the
+   * delta store.
    *
    * @param appliedDelta to commit
    * @param transformedDelta of the applied delta
@@ -447,21 +527,224 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   protected DeltaApplicationResult commitAppliedDelta(
       ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta,
       WaveletDelta transformedDelta) {
+    HashedVersion versionAppliedAt = currentVersion;
+    DeltaApplicationResult result = appendToHistory(appliedDelta, transformedDelta);
+    persistAppliedDelta(appliedDelta, versionAppliedAt, result.getHashedVersionAfterApplication());
+    maybeTakeSnapshot();
+    return result;
+  }
+
+  /**
+   * Adds an applied delta to the in-memory history and advances the current
+   * version. Must be called with write lock held.
+   */
+  private DeltaApplicationResult appendToHistory(
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta,
+      WaveletDelta transformedDelta) {
 
     ProtocolWaveletDelta transformedProtocolDelta =
       WaveletOperationSerializer.serialize(transformedDelta, currentVersion);
-    transformedDeltas.add(transformedProtocolDelta);
-    deserializedTransformedDeltas.add(new VersionedWaveletDelta(transformedDelta, currentVersion));
-    appliedDeltas.add(appliedDelta);
+    history.append(currentVersion, transformedDelta, appliedDelta);
 
     HashedVersion newVersion = HASHED_HISTORY_VERSION_FACTORY.create(
-        appliedDelta.getByteArray(), currentVersion, transformedDelta.getOperations().size());
+        appliedDelta.getByteString(), currentVersion, transformedDelta.getOperations().size());
     currentVersion = newVersion;
+    deltasSinceSnapshot++;
+    bytesSinceSnapshot += appliedDelta.getByteString().size();
 
     return new DeltaApplicationResult(appliedDelta, transformedProtocolDelta,
         WaveletOperationSerializer.serialize(newVersion));
   }
 
+  /**
+   * Hands the history to the snapshotter if enough has been applied since the
+   * last snapshot. Only the immutable views of the history are captured here,
+   * the snapshot itself is built on the snapshotter's thread. Must be called
+   * with write lock held.
+   */
+  private void maybeTakeSnapshot() {
+    if (snapshotter.isDue(deltasSinceSnapshot, bytesSinceSnapshot)) {
+      long version = currentVersion.getVersion();
+      snapshotter.takeSnapshot(waveletName, currentVersion,
+          history.getHashedVersions(0, version), history.getDeltas(0, version));
+      deltasSinceSnapshot = 0;
+      bytesSinceSnapshot = 0;
+    }
+  }
+
+  /**
+   * Hands an applied delta to the delta store; {@link #deltaCommitted} is
+   * called once it is durable.
+   */
+  private void persistAppliedDelta(ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta,
+      final HashedVersion versionAppliedAt, final ProtocolHashedVersion resultingVersion) {
+    deltaStore.append(waveletName, versionAppliedAt.getVersion(), appliedDelta.getByteString(),
+        new DeltaStore.AppendCallback() {
+          @Override
+          public void onCommitted() {
+            deltaCommitted(resultingVersion);
+          }
+
+          @Override
+          public void onFailure(IOException e) {
+            LOG.severe("Failed to persist delta applied at " + versionAppliedAt + " to "
+                + waveletName, e);
+          }
+        });
+  }
+
+  /**
+   * Called once a delta committed to this container, and all deltas before
+   * it, have been made durable by the delta store. May be called on the
+   * store's thread, with or without the write lock held.
+   *
+   * @param version of the wavelet after the durable delta
+   */
+  protected void deltaCommitted(ProtocolHashedVersion version) {
+  }
+
+  /**
+   * Called for each applied delta replayed by {@link #restoreHistory}, after
+   * it has been added to the history. Called with write lock held.
+   *
+   * @param appliedDelta the restored delta, which may not have been parsed
+   * @param versionAfter version of the wavelet after the delta
+   */
+  protected void deltaRestored(ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta,
+      HashedVersion versionAfter) {
+  }
+
+  @Override
+  public void restoreHistory(List<ByteString> appliedDeltaBytes, VersionedSnapshot snapshot)
+      throws WaveServerException {
+    acquireWriteLock();
+    try {
+      Preconditions.checkState(history.isEmpty(), "Wavelet already has history");
+      long snapshotVersion = 0;
+      if (snapshot != null) {
+        try {
+          for (WaveletOperation op : WaveletOperationSerializer.deserialize(snapshot.snapshot)) {
+            op.apply(waveletData);
+          }
+        } catch (OperationException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Couldn't apply snapshot of " + waveletName, e);
+        }
+        snapshotVersion = snapshot.version.getVersion();
+      }
+      for (ByteString bytes : appliedDeltaBytes) {
+        try {
+          // The store only holds deltas this server applied, so they are
+          // parsed when first needed rather than checked up front.
+          ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+              ByteStringMessage.fromUnparsed(ProtocolAppliedWaveletDelta.getDefaultInstance(), bytes);
+          HashedVersion appliedAt = WaveletOperationSerializer.deserialize(
+              AppliedDeltaUtil.getHashedVersionAppliedAt(bytes));
+          if (!appliedAt.equals(currentVersion)) {
+            throw new InvalidHashException("Persisted delta applied at " + appliedAt
+                + " does not follow version " + currentVersion);
+          }
+          if (appliedAt.getVersion() < snapshotVersion) {
+            // The delta is already part of the snapshot, so it is only
+            // indexed, and transformed if it is ever read.
+            history.index(currentVersion, appliedDelta);
+            currentVersion = HASHED_HISTORY_VERSION_FACTORY.create(
+                bytes, currentVersion, AppliedDeltaUtil.getOperationsApplied(bytes));
+            checkSnapshotVersion(snapshot);
+          } else {
+            Pair<WaveletDelta, HashedVersion> deltaAndVersion =
+                WaveletOperationSerializer.deserialize(ProtocolWaveletDelta.parseFrom(
+                    appliedDelta.getMessage().getSignedOriginalDelta().getDelta()));
+            VersionedWaveletDelta transformed =
+                maybeTransformSubmittedDelta(deltaAndVersion.first, deltaAndVersion.second);
+            applyWaveletOperations(transformed.delta.getOperations());
+            appendToHistory(appliedDelta, transformed.delta);
+          }
+          deltaRestored(appliedDelta, currentVersion);
+        } catch (InvalidProtocolBufferException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Persisted delta of " + waveletName + " is malformed", e);
+        } catch (IllegalArgumentException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Persisted delta of " + waveletName + " is malformed", e);
+        } catch (IllegalStateException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Persisted delta of " + waveletName + " is malformed", e);
+        } catch (InvalidHashException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Persisted history of " + waveletName + " is invalid", e);
+        } catch (OperationException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Couldn't replay persisted delta of " + waveletName, e);
+        } catch (EmptyDeltaException e) {
+          state = State.CORRUPTED;
+          throw new WaveServerException("Persisted delta of " + waveletName + " is empty", e);
+        }
+      }
+      if (currentVersion.getVersion() < snapshotVersion) {
+        state = State.CORRUPTED;
+        throw new WaveServerException("Snapshot of " + waveletName + " at " + snapshot.version
+            + " is ahead of its history at " + currentVersion);
+      }
+      if (!appliedDeltaBytes.isEmpty() && state == State.LOADING) {
+        state = State.OK;
+      }
+      maybeTakeSnapshot();
+    } finally {
+      releaseWriteLock();
+    }
+  }
+
+  /**
+   * Works out the transformed form of a delta which was only indexed when
+   * the history was restored, by transforming its original delta against
+   * the deltas applied between the version it was submitted at and the
+   * version it was applied at. Called by the history under its monitor,
+   * possibly on a thread which doesn't hold the wavelet's lock.
+   */
+  private WaveletDelta resolveIndexedDelta(int index) {
+    Pair<WaveletDelta, HashedVersion> original;
+    try {
+      original = WaveletOperationSerializer.deserialize(ProtocolWaveletDelta.parseFrom(
+          history.getAppliedDelta(index).getMessage().getSignedOriginalDelta().getDelta()));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Invalid applied delta in history", e);
+    }
+    HashedVersion appliedAt = history.getHashedVersion(index);
+    if (original.second.equals(appliedAt)) {
+      return original.first;
+    }
+    int first = history.floorIndex(original.second.getVersion());
+    if (first < 0 || first >= index || !history.getHashedVersion(first).equals(original.second)) {
+      throw new IllegalStateException("Delta applied at " + appliedAt
+          + " was submitted at " + original.second + ", which is not in the history");
+    }
+    ParticipantId author = original.first.getAuthor();
+    List<WaveletOperation> ops = original.first.getOperations();
+    try {
+      for (int i = first; i < index; i++) {
+        WaveletDelta serverDelta = history.getDelta(i);
+        ops = transformOps(ops, author, serverDelta.getOperations(), serverDelta.getAuthor());
+      }
+    } catch (OperationException e) {
+      throw new IllegalStateException("Couldn't transform the delta applied at " + appliedAt, e);
+    }
+    return new WaveletDelta(author, ops);
+  }
+
+  /**
+   * Checks, once the history replayed from before a snapshot has reached or
+   * passed the snapshot's version, that the snapshot was taken of this
+   * history. Must be called with write lock held.
+   */
+  private void checkSnapshotVersion(VersionedSnapshot snapshot) throws InvalidHashException {
+    if (currentVersion.getVersion() >= snapshot.version.getVersion()
+        && !currentVersion.equals(snapshot.version)) {
+      throw new InvalidHashException("Snapshot of " + waveletName + " at " + snapshot.version
+          + " does not match its history at " + currentVersion);
+    }
+  }
+
   /**
    * Returns the applied delta that was applied at a given hashed version.
    *
@@ -470,44 +753,37 @@ abstract class WaveletContainerImpl implements WaveletContainer {
    */
   protected ByteStringMessage<ProtocolAppliedWaveletDelta> lookupAppliedDelta(
       HashedVersion version) {
-    return appliedDeltas.floor(emptyAppliedDeltaAtVersion(version.getVersion()));
+    int index = history.floorIndex(version.getVersion());
+    return (index < 0) ? null : history.getAppliedDelta(index);
   }
 
   @Override
-  public NavigableSet<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
+  public List<ByteStringMessage<ProtocolAppliedWaveletDelta>> requestHistory(
       ProtocolHashedVersion versionStart, ProtocolHashedVersion versionEnd)
       throws WaveletStateException {
     acquireReadLock();
     try {
       assertStateOk();
       // TODO: ### validate requested range.
-      // TODO: #### make immutable.
-
-      NavigableSet<ByteStringMessage<ProtocolAppliedWaveletDelta>> set =
-          appliedDeltas.subSet(appliedDeltas.floor(
-              emptyAppliedDeltaAtVersion(versionStart.getVersion())),
-              true,
-              emptyAppliedDeltaAtVersion(versionEnd.getVersion()),
-              false);
+
+      List<ByteStringMessage<ProtocolAppliedWaveletDelta>> deltas =
+          history.getAppliedDeltas(versionStart.getVersion(), versionEnd.getVersion());
       LOG.info("### HR " + versionStart.getVersion() + " - " + versionEnd.getVersion() + " set - " +
-          set.size() + " = " + set);
-      return set;
+          deltas.size() + " = " + deltas);
+      return deltas;
     } finally {
       releaseReadLock();
     }
   }
 
   @Override
-  public NavigableSet<ProtocolWaveletDelta> requestTransformedHistory(ProtocolHashedVersion versionStart,
+  public List<ProtocolWaveletDelta> requestTransformedHistory(ProtocolHashedVersion versionStart,
       ProtocolHashedVersion versionEnd) throws WaveletStateException {
     acquireReadLock();
     try {
       assertStateOk();
       // TODO: ### validate requested range.
-      // TODO: #### make immutable.
-      return transformedDeltas.subSet(transformedDeltas.floor(
-          emptyDeltaAtVersion(versionStart.getVersion())),
-          true, emptyDeltaAtVersion(versionEnd.getVersion()), false);
+      return history.getTransformedDeltas(versionStart.getVersion(), versionEnd.getVersion());
     } finally {
       releaseReadLock();
     }
@@ -527,4 +803,9 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   public HashedVersion getCurrentVersion() {
     return currentVersion;
   }
+
+  @Override
+  public boolean isPersisted() {
+    return false;
+  }
 }
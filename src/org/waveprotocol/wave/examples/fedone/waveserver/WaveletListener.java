@@ -21,7 +21,9 @@ import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -47,6 +49,20 @@ public interface WaveletListener {
   void waveletUpdate(WaveletName waveletName, List<ProtocolWaveletDelta> newDeltas,
       ProtocolHashedVersion resultingVersion, Map<String, BufferedDocOp> documentState);
 
+  /**
+   * This message is passed for a wavelet restored from storage, which the
+   * receiver hasn't been told about yet. It carries the state of the wavelet
+   * rather than its history; any later update continues from the version.
+   *
+   * @param waveletName name of the wavelet.
+   * @param participants of the wavelet at the version
+   * @param version the current version of the wavelet
+   * @param documentState the state of each document (by documentId) in the
+   *                      wavelet at the version.
+   */
+  void waveletRestored(WaveletName waveletName, Collection<ParticipantId> participants,
+      ProtocolHashedVersion version, Map<String, BufferedDocOp> documentState);
+
   /**
    * Called when a wavelet is committed to disk at a specific version. This notifies
    * the listener that the hosting provider has reliably committed the wavelet and any
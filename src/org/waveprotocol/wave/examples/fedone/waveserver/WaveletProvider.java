@@ -22,7 +22,7 @@ import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.waveserver.SubmitResultListener;
 
-import java.util.NavigableSet;
+import java.util.List;
 
 /**
  * Interface that's used by the WaveView classes to access the waveserver.
@@ -56,7 +56,7 @@ public interface WaveletProvider {
    * @return deltas in the range as requested, or null if there was an error. Note that
    *         if a delta straddles one of the requested version boundaries, it will be included.
    */
-  NavigableSet<ProtocolWaveletDelta> getHistory(WaveletName waveletName,
+  List<ProtocolWaveletDelta> getHistory(WaveletName waveletName,
       ProtocolHashedVersion versionStart, ProtocolHashedVersion versionEnd);
 
   /**
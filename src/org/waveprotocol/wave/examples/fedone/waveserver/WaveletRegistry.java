@@ -0,0 +1,103 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.Lists;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The wavelet containers held in memory by the wave server, keyed by wave id
+ * and then wavelet id. Lookups never block, and a container is created at
+ * most once per wavelet through {@link #putIfAbsent}.
+ *
+ * A wave's map of wavelets is created when its first wavelet is added and is
+ * never removed, so a wavelet added concurrently with the removal of another
+ * in the same wave can't be lost.
+ */
+final class WaveletRegistry {
+
+  private final ConcurrentMap<WaveId, ConcurrentMap<WaveletId, WaveletContainer>> waves =
+      new ConcurrentHashMap<WaveId, ConcurrentMap<WaveletId, WaveletContainer>>();
+
+  /** @return the container of a wavelet, or null if there is none. */
+  WaveletContainer get(WaveletName waveletName) {
+    ConcurrentMap<WaveletId, WaveletContainer> wave = waves.get(waveletName.waveId);
+    return (wave == null) ? null : wave.get(waveletName.waveletId);
+  }
+
+  /**
+   * Adds the container of a wavelet unless the wavelet already has one.
+   *
+   * @return the existing container, or null if the given one was added
+   */
+  WaveletContainer putIfAbsent(WaveletName waveletName, WaveletContainer container) {
+    return getOrCreateWave(waveletName.waveId).putIfAbsent(waveletName.waveletId, container);
+  }
+
+  /**
+   * Sets the container of a wavelet, replacing any it already had.
+   */
+  void put(WaveletName waveletName, WaveletContainer container) {
+    getOrCreateWave(waveletName.waveId).put(waveletName.waveletId, container);
+  }
+
+  /**
+   * Removes the container of a wavelet, if it is the given one.
+   *
+   * @return whether it was removed
+   */
+  boolean remove(WaveletName waveletName, WaveletContainer container) {
+    ConcurrentMap<WaveletId, WaveletContainer> wave = waves.get(waveletName.waveId);
+    return (wave != null) && wave.remove(waveletName.waveletId, container);
+  }
+
+  /**
+   * @return the names of all wavelets in the registry. Wavelets added or
+   *         removed while this is running may or may not be included.
+   */
+  List<WaveletName> getWaveletNames() {
+    List<WaveletName> names = Lists.newArrayList();
+    for (Map.Entry<WaveId, ConcurrentMap<WaveletId, WaveletContainer>> wave : waves.entrySet()) {
+      for (WaveletId waveletId : wave.getValue().keySet()) {
+        names.add(WaveletName.of(wave.getKey(), waveletId));
+      }
+    }
+    return names;
+  }
+
+  private ConcurrentMap<WaveletId, WaveletContainer> getOrCreateWave(WaveId waveId) {
+    ConcurrentMap<WaveletId, WaveletContainer> wave = waves.get(waveId);
+    if (wave == null) {
+      ConcurrentMap<WaveletId, WaveletContainer> newWave =
+          new ConcurrentHashMap<WaveletId, WaveletContainer>();
+      wave = waves.putIfAbsent(waveId, newWave);
+      if (wave == null) {
+        wave = newWave;
+      }
+    }
+    return wave;
+  }
+}
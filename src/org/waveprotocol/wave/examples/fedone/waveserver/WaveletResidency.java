@@ -0,0 +1,248 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which wavelets the wave server holds in memory, roughly in
+ * least recently used order, and of which are in the delta store but not in
+ * memory and must be loaded from it. Also counts hits, misses, evictions and
+ * reloads.
+ *
+ * Recency is tracked with the CLOCK algorithm, so that lookups don't contend:
+ * a hit only sets a flag on the wavelet's entry, and the evictor, sweeping
+ * the wavelets in the order they were added, passes over those whose flag is
+ * set once, clearing it.
+ *
+ * The residency only does the bookkeeping; the wave server decides whether a
+ * wavelet can actually be evicted.
+ */
+final class WaveletResidency {
+
+  /** A resident wavelet. */
+  private static final class Entry {
+    final WaveletName waveletName;
+    /** Set by a hit, cleared by the evictor passing over the wavelet. */
+    volatile boolean referenced = false;
+
+    Entry(WaveletName waveletName) {
+      this.waveletName = waveletName;
+    }
+  }
+
+  /** Maximum number of resident wavelets, 0 for no limit. */
+  private final int limit;
+
+  /** Resident wavelets. */
+  private final ConcurrentMap<WaveletName, Entry> resident = new MapMaker().makeMap();
+
+  /**
+   * Entries in the order the evictor sweeps them. Holds entries of wavelets
+   * since evicted until the next sweep. Only reordered by the evictor.
+   */
+  private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+
+  /** Wavelets which are in the delta store but not in memory. */
+  private final Set<WaveletName> evicted =
+      Sets.newSetFromMap(new MapMaker().<WaveletName, Boolean>makeMap());
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong reloads = new AtomicLong();
+  private final AtomicLong totalReloadNanos = new AtomicLong();
+  private final AtomicLong maxReloadNanos = new AtomicLong();
+
+  /**
+   * @param limit maximum number of wavelets to keep resident, 0 for no limit
+   */
+  WaveletResidency(int limit) {
+    this.limit = limit;
+  }
+
+  /** @return whether a limit is imposed at all. */
+  boolean isLimited() {
+    return limit > 0;
+  }
+
+  /** @return whether as many wavelets are resident as the limit allows. */
+  boolean isFull() {
+    return isLimited() && resident.size() >= limit;
+  }
+
+  /**
+   * Records a lookup which found the wavelet in memory. Without a limit the
+   * order of use is irrelevant, so it isn't tracked.
+   */
+  void hit(WaveletName waveletName) {
+    hits.incrementAndGet();
+    if (isLimited()) {
+      Entry entry = resident.get(waveletName);
+      // Only write when the flag changes, to keep the entry's cache line shared.
+      if (entry != null && !entry.referenced) {
+        entry.referenced = true;
+      }
+    }
+  }
+
+  /** Records a lookup which did not find an evicted wavelet in memory. */
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  /** Records that a wavelet was created or loaded into memory. */
+  void added(WaveletName waveletName) {
+    Entry entry = new Entry(waveletName);
+    resident.put(waveletName, entry);
+    clock.add(entry);
+    evicted.remove(waveletName);
+  }
+
+  /**
+   * Records that a wavelet was reloaded into memory.
+   *
+   * @param reloadNanos time taken to reload it
+   */
+  void reloaded(WaveletName waveletName, long reloadNanos) {
+    added(waveletName);
+    reloads.incrementAndGet();
+    totalReloadNanos.addAndGet(reloadNanos);
+    long max = maxReloadNanos.get();
+    while (reloadNanos > max && !maxReloadNanos.compareAndSet(max, reloadNanos)) {
+      max = maxReloadNanos.get();
+    }
+  }
+
+  /** Records that a wavelet was dropped from memory and must be reloaded. */
+  void evicted(WaveletName waveletName) {
+    evicted.add(waveletName);
+    resident.remove(waveletName);
+    evictions.incrementAndGet();
+  }
+
+  /**
+   * Records that a wavelet in the delta store was left there rather than
+   * loaded, so that it is loaded when first looked up.
+   */
+  void unloaded(WaveletName waveletName) {
+    evicted.add(waveletName);
+  }
+
+  /** @return whether the wavelet is in the delta store but not in memory. */
+  boolean isEvicted(WaveletName waveletName) {
+    return evicted.contains(waveletName);
+  }
+
+  /** @return the wavelets which are currently evicted. */
+  Collection<WaveletName> getEvicted() {
+    return ImmutableList.copyOf(evicted);
+  }
+
+  /**
+   * Sweeps the resident wavelets. Those used since the last sweep are passed
+   * over and moved to the back, the others are candidates in sweep order.
+   *
+   * @return every resident wavelet, those not used since the last sweep first,
+   *         if there are more than the limit, otherwise nothing. Candidates
+   *         should be evicted in order, skipping any that can't be, until
+   *         {@link #getExcess()} is 0.
+   */
+  synchronized List<WaveletName> getEvictionCandidates() {
+    if (getExcess() == 0) {
+      return ImmutableList.of();
+    }
+    List<WaveletName> candidates = Lists.newArrayList();
+    List<Entry> used = Lists.newArrayList();
+    for (Iterator<Entry> it = clock.iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (resident.get(entry.waveletName) != entry) {
+        it.remove();
+      } else if (entry.referenced) {
+        entry.referenced = false;
+        it.remove();
+        used.add(entry);
+      } else {
+        candidates.add(entry.waveletName);
+      }
+    }
+    clock.addAll(used);
+    for (Entry entry : used) {
+      candidates.add(entry.waveletName);
+    }
+    return candidates;
+  }
+
+  /** @return the number of resident wavelets above the limit. */
+  int getExcess() {
+    return isLimited() ? Math.max(resident.size() - limit, 0) : 0;
+  }
+
+  int getResidentCount() {
+    return resident.size();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getEvictions() {
+    return evictions.get();
+  }
+
+  long getReloads() {
+    return reloads.get();
+  }
+
+  /** @return the mean time taken by a reload, in milliseconds. */
+  double getMeanReloadMillis() {
+    long count = reloads.get();
+    return (count == 0) ? 0 : totalReloadNanos.get() / (count * 1e6);
+  }
+
+  /** @return the longest time taken by a reload, in milliseconds. */
+  double getMaxReloadMillis() {
+    return maxReloadNanos.get() / 1e6;
+  }
+
+  @Override
+  public String toString() {
+    return "Wavelet residency: " + getResidentCount() + " resident (limit " + limit + "), "
+        + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions, "
+        + getReloads() + " reloads (mean " + getMeanReloadMillis() + "ms, max "
+        + getMaxReloadMillis() + "ms)";
+  }
+}
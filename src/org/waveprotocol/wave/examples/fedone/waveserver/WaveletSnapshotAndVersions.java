@@ -38,4 +38,11 @@ class WaveletSnapshotAndVersions {
     this.currentVersion = WaveletOperationSerializer.serialize(currentVersion);
     this.committedVersion = committedVersion;
   }
+
+  WaveletSnapshotAndVersions(WaveletSnapshot snapshot, ProtocolHashedVersion currentVersion,
+      ProtocolHashedVersion committedVersion) {
+    this.snapshot = snapshot;
+    this.currentVersion = currentVersion;
+    this.committedVersion = committedVersion;
+  }
 }
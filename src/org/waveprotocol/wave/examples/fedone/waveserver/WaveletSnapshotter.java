@@ -0,0 +1,175 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
+import org.waveprotocol.wave.examples.fedone.util.Log;
+import org.waveprotocol.wave.examples.fedone.waveserver.SnapshotStore.VersionedSnapshot;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+import org.waveprotocol.wave.model.wave.data.impl.IndexedWaveletDataImpl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides when wavelets are due a snapshot and writes the snapshots to a
+ * {@link SnapshotStore}.
+ *
+ * A snapshot is built on the snapshotter's own thread, away from the
+ * wavelet's locks: the wavelet hands over its (immutable) delta history, and
+ * the snapshotter applies the deltas since the previous stored snapshot to a
+ * copy of that snapshot.
+ */
+final class WaveletSnapshotter {
+
+  private static final Log LOG = Log.get(WaveletSnapshotter.class);
+
+  /** A snapshotter which never takes snapshots. */
+  static final WaveletSnapshotter DISABLED = new WaveletSnapshotter(null, 0, 0, null);
+
+  private final SnapshotStore store;
+  private final int deltaInterval;
+  private final long byteInterval;
+  private final Executor executor;
+
+  /**
+   * @param store store to which snapshots are written
+   * @param deltaInterval number of deltas after which a wavelet is due a
+   *        snapshot, 0 to ignore the number of deltas
+   * @param byteInterval size of the deltas after which a wavelet is due a
+   *        snapshot, 0 to ignore the size of the deltas
+   * @param executor runs the snapshot tasks
+   */
+  WaveletSnapshotter(SnapshotStore store, int deltaInterval, long byteInterval,
+      Executor executor) {
+    Preconditions.checkArgument(deltaInterval >= 0, "Delta interval must be >= 0");
+    Preconditions.checkArgument(byteInterval >= 0, "Byte interval must be >= 0");
+    this.store = store;
+    this.deltaInterval = deltaInterval;
+    this.byteInterval = byteInterval;
+    this.executor = executor;
+  }
+
+  /** @return whether snapshots are read and written at all. */
+  boolean isEnabled() {
+    return store != null;
+  }
+
+  /**
+   * @param deltas number of deltas applied since the last snapshot
+   * @param bytes total size of the applied deltas since the last snapshot
+   * @return whether a wavelet is due a new snapshot
+   */
+  boolean isDue(int deltas, long bytes) {
+    return isEnabled() && ((deltaInterval > 0 && deltas >= deltaInterval)
+        || (byteInterval > 0 && bytes >= byteInterval));
+  }
+
+  /**
+   * Reads the latest snapshot of a wavelet.
+   *
+   * @return the snapshot, or null if there is none or it can't be read
+   */
+  VersionedSnapshot read(WaveletName waveletName) {
+    if (!isEnabled()) {
+      return null;
+    }
+    try {
+      return store.read(waveletName);
+    } catch (IOException e) {
+      LOG.warning("Failed to read the snapshot of " + waveletName, e);
+      return null;
+    }
+  }
+
+  /**
+   * Asynchronously writes a snapshot of a wavelet.
+   *
+   * @param waveletName name of the wavelet
+   * @param version version of the wavelet to snapshot
+   * @param appliedAt the version each delta in the history was applied at
+   * @param deltas the transformed deltas of the wavelet up to {@code version};
+   *        the lists must not change
+   */
+  void takeSnapshot(final WaveletName waveletName, final HashedVersion version,
+      final List<HashedVersion> appliedAt, final List<WaveletDelta> deltas) {
+    if (!isEnabled()) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeSnapshot(waveletName, version, appliedAt, deltas);
+        } catch (IOException e) {
+          LOG.warning("Failed to write the snapshot of " + waveletName + " at " + version, e);
+        } catch (OperationException e) {
+          LOG.severe("Failed to build the snapshot of " + waveletName + " at " + version, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Applies the deltas after the stored snapshot, or all the deltas if the
+   * stored snapshot isn't part of this history, and stores the result.
+   */
+  void writeSnapshot(WaveletName waveletName, HashedVersion version,
+      List<HashedVersion> appliedAt, List<WaveletDelta> deltas)
+      throws IOException, OperationException {
+    WaveletData waveletData = new IndexedWaveletDataImpl(waveletName.waveId,
+        waveletName.waveletId);
+    int first = 0;
+    VersionedSnapshot previous = store.read(waveletName);
+    if (previous != null) {
+      if (previous.version.equals(version)) {
+        return;
+      }
+      first = appliedAt.indexOf(previous.version);
+      if (first >= 0) {
+        apply(WaveletOperationSerializer.deserialize(previous.snapshot), waveletData);
+      } else {
+        LOG.warning("Snapshot of " + waveletName + " at " + previous.version
+            + " is not part of its history, ignoring it");
+        first = 0;
+      }
+    }
+    for (int i = first; i < deltas.size(); i++) {
+      apply(deltas.get(i).getOperations(), waveletData);
+    }
+    store.write(waveletName,
+        new VersionedSnapshot(WaveletOperationSerializer.serialize(waveletData), version));
+    LOG.fine("Wrote snapshot of " + waveletName + " at " + version.getVersion() + ", from "
+        + (deltas.size() - first) + " deltas");
+  }
+
+  private static void apply(List<WaveletOperation> ops, WaveletData waveletData)
+      throws OperationException {
+    for (WaveletOperation op : ops) {
+      op.apply(waveletData);
+    }
+  }
+}
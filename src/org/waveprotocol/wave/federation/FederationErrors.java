@@ -29,5 +29,13 @@ public class FederationErrors {
     return newFederationError(FederationError.Code.BAD_REQUEST, errorMessage);
   }
 
+  /**
+   * An error on our side rather than the requester's. There is no code for
+   * it, so it is reported as {@code UNDEFINED_CONDITION}.
+   */
+  public static FederationError internalServerError(String errorMessage) {
+    return newFederationError(FederationError.Code.UNDEFINED_CONDITION, errorMessage);
+  }
+
 
 }
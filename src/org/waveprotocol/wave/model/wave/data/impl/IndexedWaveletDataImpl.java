@@ -0,0 +1,250 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.model.wave.data.impl;
+
+import org.waveprotocol.wave.model.document.indexed.AnnotationTree;
+import org.waveprotocol.wave.model.document.indexed.IndexedDocumentImpl;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.automaton.DocumentSchema;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.document.raw.impl.Element;
+import org.waveprotocol.wave.model.document.raw.impl.Node;
+import org.waveprotocol.wave.model.document.raw.impl.RawDocumentImpl;
+import org.waveprotocol.wave.model.document.raw.impl.Text;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link WaveletData} which keeps each document as a mutable indexed
+ * document, so that applying an operation costs time proportional to the
+ * operation rather than to the whole document.
+ *
+ * The {@link BufferedDocOp} form of a document is only serialised when
+ * {@link #getDocuments()} is read, and is cached until the document is next
+ * modified. Reading the documents from several threads at once is safe, as
+ * long as nothing modifies the wavelet meanwhile.
+ */
+public class IndexedWaveletDataImpl implements WaveletData {
+
+  private static final Object ONE_OBJECT = new Object();
+  private static final Object ANOTHER_OBJECT = new Object();
+
+  /**
+   * A document together with its most recent serialised snapshot.
+   */
+  private static final class DocumentState {
+    private final IndexedDocumentImpl<Node, Element, Text, ?> document =
+        new IndexedDocumentImpl<Node, Element, Text, Void>(
+            RawDocumentImpl.BUILDER.create("doc", Attributes.EMPTY_MAP),
+            new AnnotationTree<Object>(ONE_OBJECT, ANOTHER_OBJECT, null),
+            DocumentSchema.NO_SCHEMA_CONSTRAINTS);
+
+    /**
+     * Serialised form of the document, null if it has changed since. Volatile
+     * so that concurrent readers see a snapshot another reader cached.
+     */
+    private volatile BufferedDocOp snapshot;
+
+    void consume(BufferedDocOp operation) throws OperationException {
+      // Validate up front so that a bad operation leaves the document untouched.
+      document.maybeThrowOperationExceptionFor(operation);
+      snapshot = null;
+      document.consume(operation, false);
+    }
+
+    boolean isEmpty() {
+      return document.size() == 0;
+    }
+
+    BufferedDocOp getSnapshot() {
+      BufferedDocOp result = snapshot;
+      if (result == null) {
+        // Only one reader serialises the document, the others wait for it.
+        synchronized (this) {
+          result = snapshot;
+          if (result == null) {
+            result = DocOpUtil.buffer(document.asOperation());
+            snapshot = result;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /** Id of the wave to which this wavelet belongs. */
+  private final WaveId waveId;
+
+  /** The identifier of this wavelet. */
+  private final WaveletId waveletId;
+
+  /** The list of participants in this wavelet. */
+  private final List<ParticipantId> participants;
+
+  /** The set of documents in this wave, indexed by their identifier. */
+  private final Map<String, DocumentState> documents;
+
+  /** Read-only view of the documents as operations, built on demand. */
+  private final Map<String, BufferedDocOp> documentSnapshots = new SnapshotMap();
+
+  /**
+   * Creates a new, empty wavelet.
+   *
+   * @param waveId            id of the wave containing the wavelet
+   * @param id                id of the wavelet
+   * @throws IllegalArgumentException if the waveletName is bad.
+   */
+  public IndexedWaveletDataImpl(WaveId waveId, WaveletId id) {
+    if (id == null) {
+      throw new IllegalArgumentException("id cannot be null");
+    } else if (waveId == null) {
+      throw new IllegalArgumentException("wave id cannot be null");
+    }
+
+    this.waveletId = id;
+    this.waveId = waveId;
+    this.participants = new ArrayList<ParticipantId>();
+    this.documents = new HashMap<String, DocumentState>();
+  }
+
+  @Override
+  public Map<String, BufferedDocOp> getDocuments() {
+    return documentSnapshots;
+  }
+
+  @Override
+  public List<ParticipantId> getParticipants() {
+    return Collections.unmodifiableList(participants);
+  }
+
+  @Override
+  public WaveletName getWaveletName() {
+    return WaveletName.of(waveId, waveletId);
+  }
+
+  @Override
+  public boolean addParticipant(ParticipantId p) {
+    return (participants.contains(p) ? false : participants.add(p));
+  }
+
+  @Override
+  public boolean removeParticipant(ParticipantId p) {
+    return participants.remove(p);
+  }
+
+  @Override
+  public boolean modifyDocument(String documentId, BufferedDocOp operation)
+      throws OperationException {
+    DocumentState doc = documents.get(documentId);
+    boolean created = (doc == null);
+    if (created) {
+      doc = new DocumentState();
+    }
+    doc.consume(operation);
+    if (doc.isEmpty()) {
+      documents.remove(documentId);
+    } else if (created) {
+      documents.put(documentId, doc);
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "Wavelet State = " + waveId + " " + waveletId + " " + documentSnapshots;
+  }
+
+  /**
+   * Unmodifiable map from document id to the document's snapshot, which
+   * serialises only the documents actually read.
+   */
+  private final class SnapshotMap extends AbstractMap<String, BufferedDocOp> {
+    private final Set<Map.Entry<String, BufferedDocOp>> entrySet =
+        new AbstractSet<Map.Entry<String, BufferedDocOp>>() {
+          @Override
+          public Iterator<Map.Entry<String, BufferedDocOp>> iterator() {
+            final Iterator<Map.Entry<String, DocumentState>> states =
+                documents.entrySet().iterator();
+            return new Iterator<Map.Entry<String, BufferedDocOp>>() {
+              @Override
+              public boolean hasNext() {
+                return states.hasNext();
+              }
+
+              @Override
+              public Map.Entry<String, BufferedDocOp> next() {
+                Map.Entry<String, DocumentState> state = states.next();
+                return new AbstractMap.SimpleImmutableEntry<String, BufferedDocOp>(
+                    state.getKey(), state.getValue().getSnapshot());
+              }
+
+              @Override
+              public void remove() {
+                throw new UnsupportedOperationException("Documents are read-only");
+              }
+            };
+          }
+
+          @Override
+          public int size() {
+            return documents.size();
+          }
+        };
+
+    @Override
+    public Set<Map.Entry<String, BufferedDocOp>> entrySet() {
+      return entrySet;
+    }
+
+    @Override
+    public int size() {
+      return documents.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return documents.containsKey(key);
+    }
+
+    @Override
+    public Set<String> keySet() {
+      return Collections.unmodifiableSet(documents.keySet());
+    }
+
+    @Override
+    public BufferedDocOp get(Object key) {
+      DocumentState doc = documents.get(key);
+      return (doc == null) ? null : doc.getSnapshot();
+    }
+  }
+}
@@ -19,12 +19,12 @@ package org.waveprotocol.wave.waveserver;
 
 import com.google.protobuf.ByteString;
 
+import org.waveprotocol.wave.crypto.Sha256;
 import org.waveprotocol.wave.federation.FederationURICodec;
 import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.model.id.WaveletName;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class for creating ProtocolHashedVersion instances from bytes.
@@ -52,15 +52,11 @@ public class ProtocolHashedVersionFactory {
   }
 
   private static ByteString nextHash(ByteString historyHash, ByteString appliedDeltaBytes) {
-    MessageDigest sha256;
-    try {
-      sha256 = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
-    }
-    sha256.update(historyHash.toByteArray());
-    return ByteString.copyFrom(
-        sha256.digest(appliedDeltaBytes.toByteArray()), 0, HASH_SIZE_BITS / 8);
+    // Stream both into the digest in place, rather than copying them out.
+    MessageDigest sha256 = Sha256.digest();
+    sha256.update(historyHash.asReadOnlyByteBuffer());
+    sha256.update(appliedDeltaBytes.asReadOnlyByteBuffer());
+    return ByteString.copyFrom(sha256.digest(), 0, HASH_SIZE_BITS / 8);
   }
 
   /**
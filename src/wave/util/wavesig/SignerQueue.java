@@ -23,6 +23,7 @@ import org.waveprotocol.wave.examples.fedone.waveserver.DeltaSigner;
 import org.waveprotocol.wave.examples.fedone.waveserver.CertificateManager.SignatureResultListener;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
 
 import com.google.protobuf.ByteString;
 
@@ -34,7 +35,7 @@ public class SignerQueue extends MerkleQueue implements DeltaSigner {
 		this.signer=signer;
 	}
   @Override
-  public void sign(ByteStringMessage<ProtocolWaveletDelta> delta,
+  public void sign(WaveletName waveletName, ByteStringMessage<ProtocolWaveletDelta> delta,
       SignatureResultListener resultListener) {
     add(new WaveMessage(delta,resultListener));
   }
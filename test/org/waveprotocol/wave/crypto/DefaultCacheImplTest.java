@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.waveprotocol.wave.crypto;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+public class DefaultCacheImplTest extends TestCase {
+
+  private FakeTimeSource timeSource;
+  private DefaultCacheImpl cache;
+
+  @Override
+  public void setUp() throws Exception {
+    timeSource = new FakeTimeSource(1233465103000L); // Jan 31, 2009
+    cache = new DefaultCacheImpl(timeSource, 2, 60 * 1000L);
+  }
+
+  private static List<X509Certificate> chain(X509Certificate... certs) {
+    return Lists.newArrayList(certs);
+  }
+
+  public void testEqualChainsShareAnEntry() {
+    cache.add(chain(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    assertTrue(cache.contains(
+        chain(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT)));
+    assertFalse(cache.contains(
+        chain(CertConstantUtil.INTERMEDIATE_PUB_CERT, CertConstantUtil.SERVER_PUB_CERT)));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  public void testEntriesExpire() {
+    List<X509Certificate> serverChain = chain(CertConstantUtil.SERVER_PUB_CERT);
+    cache.add(serverChain);
+    timeSource.advanceSeconds(59);
+    assertTrue(cache.contains(serverChain));
+    timeSource.advanceSeconds(1);
+    assertFalse(cache.contains(serverChain));
+    assertEquals(1, cache.getExpiries());
+    assertEquals(0, cache.size());
+
+    // Adding the chain again makes it valid for another minute.
+    cache.add(serverChain);
+    timeSource.advanceSeconds(30);
+    assertTrue(cache.contains(serverChain));
+  }
+
+  public void testOldestEntryIsEvicted() {
+    List<X509Certificate> first = chain(CertConstantUtil.SERVER_PUB_CERT);
+    List<X509Certificate> second = chain(CertConstantUtil.INTERMEDIATE_PUB_CERT);
+    List<X509Certificate> third = chain(CertConstantUtil.CA_PUB_CERT);
+    cache.add(first);
+    timeSource.advanceSeconds(1);
+    cache.add(second);
+    timeSource.advanceSeconds(1);
+    cache.add(third);
+    assertEquals(2, cache.size());
+    assertFalse(cache.contains(first));
+    assertTrue(cache.contains(second));
+    assertTrue(cache.contains(third));
+  }
+
+  public void testReaddedEntryOutlivesItsFirstExpiry() {
+    List<X509Certificate> first = chain(CertConstantUtil.SERVER_PUB_CERT);
+    List<X509Certificate> second = chain(CertConstantUtil.INTERMEDIATE_PUB_CERT);
+    cache.add(first);
+    timeSource.advanceSeconds(30);
+    cache.add(first);
+    timeSource.advanceSeconds(40);
+
+    // The first entry's original expiry is dropped, but not its renewal.
+    cache.add(second);
+    assertTrue(cache.contains(first));
+    assertTrue(cache.contains(second));
+  }
+}
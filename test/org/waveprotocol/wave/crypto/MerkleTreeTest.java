@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.waveprotocol.wave.crypto;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature.SignatureAlgorithm;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class MerkleTreeTest extends TestCase {
+
+  private static ProtocolSignature.Builder newSignature() {
+    return ProtocolSignature.newBuilder()
+        .setSignatureBytes(ByteString.EMPTY)
+        .setSignerId(ByteString.EMPTY)
+        .setSignatureAlgorithm(SignatureAlgorithm.SHA1_RSA);
+  }
+
+  private static List<byte[]> payloads(int count) {
+    List<byte[]> payloads = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      payloads.add(("payload " + i).getBytes());
+    }
+    return payloads;
+  }
+
+  public void testEveryLeafProvesTheRoot() throws Exception {
+    for (int size = 1; size <= 17; size++) {
+      List<byte[]> payloads = payloads(size);
+      MerkleTree tree = new MerkleTree(payloads);
+      for (int leaf = 0; leaf < size; leaf++) {
+        ProtocolSignature signature = tree.addProof(newSignature(), leaf).build();
+        assertTrue(MerkleTree.hasProof(signature));
+        assertTrue("size " + size + ", leaf " + leaf, Arrays.equals(tree.getSignedPayload(),
+            MerkleTree.getSignedPayload(payloads.get(leaf), signature)));
+      }
+    }
+  }
+
+  public void testOtherPayloadDoesNotProveTheRoot() throws Exception {
+    List<byte[]> payloads = payloads(6);
+    MerkleTree tree = new MerkleTree(payloads);
+    ProtocolSignature signature = tree.addProof(newSignature(), 2).build();
+    assertFalse(Arrays.equals(tree.getSignedPayload(),
+        MerkleTree.getSignedPayload(payloads.get(3), signature)));
+  }
+
+  public void testDirectSignatureHasNoProof() {
+    assertFalse(MerkleTree.hasProof(newSignature().build()));
+  }
+
+  public void testMalformedProofIsRejected() throws Exception {
+    MerkleTree tree = new MerkleTree(payloads(4));
+    byte[] proof = tree.getProof(1);
+    ProtocolSignature truncated = newSignature().setUnknownFields(UnknownFieldSet.newBuilder()
+        .addField(MerkleTree.SERIALIZED_TREE_FIELD, UnknownFieldSet.Field.newBuilder()
+            .addLengthDelimited(ByteString.copyFrom(proof, 0, proof.length - 32)).build())
+        .addField(MerkleTree.LEAF_FIELD, UnknownFieldSet.Field.newBuilder()
+            .addVarint(1).build())
+        .build()).build();
+    try {
+      MerkleTree.getSignedPayload("payload 1".getBytes(), truncated);
+      fail("expected exception, but didn't get it");
+    } catch (SignatureException e) {
+      // expected
+    }
+  }
+}
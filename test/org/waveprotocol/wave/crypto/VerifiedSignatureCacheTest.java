@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.waveprotocol.wave.crypto;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature.SignatureAlgorithm;
+
+public class VerifiedSignatureCacheTest extends TestCase {
+
+  private static ProtocolSignature signature(String bytes) {
+    return ProtocolSignature.newBuilder()
+        .setSignatureBytes(ByteString.copyFromUtf8(bytes))
+        .setSignerId(ByteString.copyFromUtf8("signer"))
+        .setSignatureAlgorithm(SignatureAlgorithm.SHA1_RSA)
+        .build();
+  }
+
+  public void testKeyCoversEveryField() {
+    VerifiedSignatureCache cache = new VerifiedSignatureCache(10);
+    ByteString key = cache.keyFor("payload".getBytes(), signature("sig"), "example.com");
+    assertEquals(key, cache.keyFor("payload".getBytes(), signature("sig"), "example.com"));
+    assertFalse(key.equals(cache.keyFor("payload2".getBytes(), signature("sig"), "example.com")));
+    assertFalse(key.equals(cache.keyFor("payload".getBytes(), signature("sig2"), "example.com")));
+    assertFalse(key.equals(cache.keyFor("payload".getBytes(), signature("sig"), "example.org")));
+  }
+
+  public void testOldestEntriesAreEvicted() {
+    VerifiedSignatureCache cache = new VerifiedSignatureCache(3);
+    ByteString[] keys = new ByteString[4];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = cache.keyFor(("payload" + i).getBytes(), signature("sig"), "example.com");
+      cache.add(keys[i]);
+    }
+    assertEquals(3, cache.size());
+    assertFalse(cache.contains(keys[0]));
+    assertTrue(cache.contains(keys[1]));
+    assertTrue(cache.contains(keys[3]));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  public void testZeroSizeRemembersNothing() {
+    VerifiedSignatureCache cache = new VerifiedSignatureCache(0);
+    ByteString key = cache.keyFor("payload".getBytes(), signature("sig"), "example.com");
+    cache.add(key);
+    assertFalse(cache.contains(key));
+  }
+}
@@ -18,6 +18,7 @@
 package org.waveprotocol.wave.crypto;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
@@ -28,6 +29,7 @@ import org.waveprotocol.wave.federation.Proto.ProtocolSignature.SignatureAlgorit
 import org.waveprotocol.wave.federation.Proto.ProtocolSignerInfo.HashAlgorithm;
 
 import java.security.cert.X509Certificate;
+import java.util.List;
 
 public class WaveSignatureVerifierTest extends TestCase {
 
@@ -46,6 +48,7 @@ public class WaveSignatureVerifierTest extends TestCase {
   static private final byte[] MESSAGE = "hello".getBytes();
 
   private DefaultCertPathStore store;
+  private CachedCertPathValidator validator;
   private WaveSignatureVerifier verifier;
 
   @Override
@@ -55,7 +58,7 @@ public class WaveSignatureVerifierTest extends TestCase {
     // Jan 31, 2009
     FakeTimeSource timeSource = new FakeTimeSource(1233465103000L);
     DefaultCacheImpl cache = new DefaultCacheImpl(timeSource);
-    CachedCertPathValidator validator = new CachedCertPathValidator(cache,
+    validator = new CachedCertPathValidator(cache,
         timeSource, new FakeTrustRootsProvider(CertConstantUtil.CA_PUB_CERT));
     store = new DefaultCertPathStore();
     verifier = new WaveSignatureVerifier(validator, store);
@@ -148,6 +151,69 @@ public class WaveSignatureVerifierTest extends TestCase {
     }
   }
 
+  public void testVerify_merkleBundle() throws Exception {
+    ImmutableList<X509Certificate> certs = ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT);
+    storeSignerInfo(certs);
+    WaveSigner signer = new WaveSigner(SignatureAlgorithm.SHA1_RSA,
+        CertConstantUtil.SERVER_PRIV_KEY, new SignerInfo(HashAlgorithm.SHA256, certs, DOMAIN));
+
+    List<byte[]> payloads = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      payloads.add(("hello " + i).getBytes());
+    }
+    List<ProtocolSignature.Builder> signatures = signer.signBundle(payloads);
+    assertEquals(payloads.size(), signatures.size());
+
+    for (int i = 0; i < payloads.size(); i++) {
+      // The proof must survive serialization.
+      ProtocolSignature signature =
+          ProtocolSignature.parseFrom(signatures.get(i).build().toByteArray());
+      assertTrue(MerkleTree.hasProof(signature));
+      verifier.verify(payloads.get(i), signature, AUTHORITY);
+
+      try {
+        verifier.verify(payloads.get((i + 1) % payloads.size()), signature, AUTHORITY);
+        fail("expected exception, but didn't get it");
+      } catch (SignatureException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testVerify_cachesVerifiedSignatures() throws Exception {
+    storeSignerInfo(ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    VerifiedSignatureCache cache = new VerifiedSignatureCache(10);
+    verifier = new WaveSignatureVerifier(validator, store, cache);
+
+    ProtocolSignature signature = ProtocolSignature.newBuilder()
+        .setSignatureBytes(ByteString.copyFrom(deBase64(SIGNATURE)))
+        .setSignerId(ByteString.copyFrom(deBase64(SIGNER_ID)))
+        .setSignatureAlgorithm(SignatureAlgorithm.SHA1_RSA)
+        .build();
+
+    verifier.verify(MESSAGE, signature, AUTHORITY);
+    verifier.verify(MESSAGE, signature, AUTHORITY);
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getHits());
+
+    // A verified signature is no help for a different payload or authority.
+    try {
+      verifier.verify("hullo".getBytes(), signature, AUTHORITY);
+      fail("expected exception, but didn't get it");
+    } catch (SignatureException e) {
+      // expected
+    }
+    try {
+      verifier.verify(MESSAGE, signature, "some_other_authority.com");
+      fail("expected exception, but didn't get it");
+    } catch (SignatureException e) {
+      // expected
+    }
+    assertEquals(1, cache.size());
+  }
+
   public void testSpeed() throws Exception {
     storeSignerInfo(ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT,
         CertConstantUtil.INTERMEDIATE_PUB_CERT));
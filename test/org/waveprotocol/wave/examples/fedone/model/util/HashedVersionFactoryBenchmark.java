@@ -0,0 +1,110 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.model.util;
+
+import static org.waveprotocol.wave.examples.fedone.util.AllocationCounter.allocatedBytes;
+
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures the time and the bytes allocated per applied delta to advance a
+ * history hash, the way the wave server did before (copying the delta out of
+ * its ByteString, joining it with the history hash and hashing the result
+ * with a new digest) and the way it does now (streaming both into a reused
+ * per-thread digest).
+ *
+ * Not a test; run it with {@code main}, optionally passing the size of each
+ * delta in bytes and the number of deltas per run. Allocation is measured
+ * with the JVM's per-thread allocation counter, where the JVM has one.
+ */
+public class HashedVersionFactoryBenchmark {
+
+  /** A way of advancing the history hash by one applied delta. */
+  private interface Hasher {
+    HashedVersion create(ByteString appliedDelta, HashedVersion appliedAt);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int deltaBytes = (args.length > 0) ? Integer.parseInt(args[0]) : 1024;
+    int deltas = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+
+    byte[] bytes = new byte[deltaBytes];
+    new Random(0).nextBytes(bytes);
+    final ByteString appliedDelta = ByteString.copyFrom(bytes);
+    final HashedVersionFactoryImpl factory = new HashedVersionFactoryImpl();
+    HashedVersion versionZero =
+        factory.createVersionZero(WaveletName.of("example.com!w+a", "example.com!conv+root"));
+
+    Hasher joinCopy = new Hasher() {
+      @Override
+      public HashedVersion create(ByteString appliedDelta, HashedVersion appliedAt) {
+        byte[] deltaBytes = appliedDelta.toByteArray();
+        byte[] historyHash = appliedAt.getHistoryHash();
+        byte[] joined = new byte[historyHash.length + deltaBytes.length];
+        System.arraycopy(historyHash, 0, joined, 0, historyHash.length);
+        System.arraycopy(deltaBytes, 0, joined, historyHash.length, deltaBytes.length);
+        byte[] result = new byte[20];
+        try {
+          System.arraycopy(MessageDigest.getInstance("SHA-256").digest(joined), 0, result, 0,
+              result.length);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        return new HashedVersion(appliedAt.getVersion() + 1, result);
+      }
+    };
+    Hasher streaming = new Hasher() {
+      @Override
+      public HashedVersion create(ByteString appliedDelta, HashedVersion appliedAt) {
+        return factory.create(appliedDelta, appliedAt, 1);
+      }
+    };
+
+    // Warm up.
+    run(joinCopy, appliedDelta, versionZero, deltas);
+    run(streaming, appliedDelta, versionZero, deltas);
+
+    System.out.println(deltas + " deltas of " + deltaBytes + " bytes");
+    System.out.println("path\tns/delta\tbytes allocated/delta");
+    System.out.println("join-copy\t" + run(joinCopy, appliedDelta, versionZero, deltas));
+    System.out.println("streaming\t" + run(streaming, appliedDelta, versionZero, deltas));
+  }
+
+  /**
+   * Advances a history hash by the same delta a number of times.
+   *
+   * @return the time and bytes allocated per delta, tab separated
+   */
+  private static String run(Hasher hasher, ByteString appliedDelta, HashedVersion version,
+      int deltas) {
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < deltas; i++) {
+      version = hasher.create(appliedDelta, version);
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocatedBefore;
+    return (elapsed / deltas) + "\t" + ((allocatedBefore < 0) ? "n/a" : "" + allocated / deltas);
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.model.util;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.waveserver.ProtocolHashedVersionFactory;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link HashedVersionFactoryImpl}.
+ */
+public class HashedVersionFactoryImplTest extends TestCase {
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of("example.com!w+a", "example.com!conv+root");
+
+  private final HashedVersionFactoryImpl factory = new HashedVersionFactoryImpl();
+
+  /** The hash as defined by the protocol: SHA-256 of the joined bytes, truncated. */
+  private static byte[] expectedHash(byte[] historyHash, byte[] appliedDelta) throws Exception {
+    byte[] joined = new byte[historyHash.length + appliedDelta.length];
+    System.arraycopy(historyHash, 0, joined, 0, historyHash.length);
+    System.arraycopy(appliedDelta, 0, joined, historyHash.length, appliedDelta.length);
+    return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(joined), 20);
+  }
+
+  public void testHashChainMatchesProtocol() throws Exception {
+    HashedVersion version = factory.createVersionZero(WAVELET_NAME);
+    for (int i = 0; i < 5; i++) {
+      byte[] delta = ("applied delta " + i).getBytes();
+      HashedVersion fromBytes = factory.create(delta, version, 2);
+      HashedVersion fromByteString = factory.create(ByteString.copyFrom(delta), version, 2);
+      assertEquals(version.getVersion() + 2, fromByteString.getVersion());
+      assertTrue(Arrays.equals(expectedHash(version.getHistoryHash(), delta),
+          fromByteString.getHistoryHash()));
+      assertEquals(fromBytes, fromByteString);
+      version = fromByteString;
+    }
+  }
+
+  public void testAgreesWithProtocolHashedVersionFactory() throws Exception {
+    ByteString delta = ByteString.copyFromUtf8("applied delta");
+    HashedVersion version = factory.create(delta, factory.createVersionZero(WAVELET_NAME), 1);
+    ByteString protocolHash = ProtocolHashedVersionFactory.create(delta,
+        ProtocolHashedVersionFactory.createVersionZero(WAVELET_NAME), 1).getHistoryHash();
+    assertTrue(Arrays.equals(protocolHash.toByteArray(), version.getHistoryHash()));
+  }
+}
@@ -21,6 +21,7 @@ import com.google.protobuf.UnknownFieldSet;
 
 import java.nio.channels.ByteChannel;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -72,6 +73,11 @@ public class FakeProtoChannelManager {
   }
 
   public FakeProtoChannelManager(ByteChannel channel) {
+    this(channel, new MessageCompressor(MessageCompressor.DEFAULT_THRESHOLD,
+        new CompressionStats()));
+  }
+
+  public FakeProtoChannelManager(ByteChannel channel, MessageCompressor compressor) {
     this.channel = new SequencedProtoChannel(channel, new ProtoCallback() {
       @Override
       public void message(long sequenceNo, Message message) {
@@ -87,7 +93,8 @@ public class FakeProtoChannelManager {
       public void unknown(long sequenceNo, String messageType, String message) {
         queue.add(SequencedObject.of(sequenceNo, message));
       }
-    });
+    }, Executors.newSingleThreadExecutor(), SequencedProtoChannel.DEFAULT_MAX_MESSAGE_BYTES,
+        SequencedProtoChannel.DEFAULT_OUTBOUND_QUEUE_BYTES, compressor);
     this.channel.startAsyncRead();
   }
 
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MessageCompressor}.
+ */
+public class MessageCompressorTest extends TestCase {
+
+  private CompressionStats stats;
+  private MessageCompressor compressor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    stats = new CompressionStats();
+    compressor = new MessageCompressor(100, stats);
+  }
+
+  private static byte[] repetitive(int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + i % 7);
+    }
+    return data;
+  }
+
+  public void testRoundTrip() throws IOException {
+    byte[] data = repetitive(10000);
+    // Compress from the middle of an array, and more than once.
+    byte[] padded = new byte[data.length + 20];
+    System.arraycopy(data, 0, padded, 10, data.length);
+    for (int i = 0; i < 3; i++) {
+      byte[] compressed = compressor.deflate(padded, 10, data.length);
+      assertNotNull(compressed);
+      assertTrue(compressed.length < data.length / 10);
+      assertTrue(Arrays.equals(data,
+          compressor.inflate(compressed, 0, compressed.length, data.length)));
+    }
+    assertEquals(3, stats.getMessagesDeflated());
+    assertEquals(3 * data.length, stats.getBytesBeforeDeflate());
+    assertEquals(3, stats.getMessagesInflated());
+    assertEquals(3 * data.length, stats.getBytesAfterInflate());
+    assertEquals(stats.getBytesAfterDeflate(), stats.getBytesBeforeInflate());
+    assertTrue(stats.getDeflateRatio() < 0.1);
+  }
+
+  public void testSmallMessagesAreNotCompressed() {
+    assertNull(compressor.deflate(repetitive(99), 0, 99));
+    assertEquals(1, stats.getMessagesBelowThreshold());
+    assertEquals(99, stats.getBytesBelowThreshold());
+    assertEquals(0, stats.getMessagesDeflated());
+  }
+
+  public void testIncompressibleMessagesAreNotCompressed() {
+    byte[] data = new byte[5000];
+    new SecureRandom().nextBytes(data);
+    assertNull(compressor.deflate(data, 0, data.length));
+    assertEquals(1, stats.getMessagesIncompressible());
+    assertEquals(0, stats.getMessagesDeflated());
+  }
+
+  public void testDisabledCompressorStillDecompresses() throws IOException {
+    MessageCompressor disabled = new MessageCompressor(-1, stats);
+    assertFalse(disabled.isEnabled());
+    byte[] data = repetitive(10000);
+    assertNull(disabled.deflate(data, 0, data.length));
+    byte[] compressed = compressor.deflate(data, 0, data.length);
+    assertTrue(Arrays.equals(data,
+        disabled.inflate(compressed, 0, compressed.length, data.length)));
+  }
+
+  public void testOversizedMessageIsRejected() {
+    byte[] data = repetitive(10000);
+    byte[] compressed = compressor.deflate(data, 0, data.length);
+    try {
+      compressor.inflate(compressed, 0, compressed.length, data.length - 1);
+      fail("expected exception, but didn't get it");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testCorruptMessageIsRejected() throws IOException {
+    byte[] data = repetitive(10000);
+    byte[] compressed = compressor.deflate(data, 0, data.length);
+    byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+    try {
+      compressor.inflate(truncated, 0, truncated.length, data.length);
+      fail("expected exception, but didn't get it");
+    } catch (IOException e) {
+      // expected
+    }
+    byte[] garbled = compressed.clone();
+    Arrays.fill(garbled, 3, garbled.length, (byte) 0xff);
+    try {
+      compressor.inflate(garbled, 0, garbled.length, data.length);
+      fail("expected exception, but didn't get it");
+    } catch (IOException e) {
+      // expected
+    }
+    // The compressor is still usable.
+    assertTrue(Arrays.equals(data,
+        compressor.inflate(compressed, 0, compressed.length, data.length)));
+  }
+}
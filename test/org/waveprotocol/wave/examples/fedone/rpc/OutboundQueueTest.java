@@ -0,0 +1,212 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link OutboundQueue}.
+ */
+public class OutboundQueueTest extends TestCase {
+
+  /** Records each write made to it. */
+  private static class RecordingChannel implements WritableByteChannel {
+    final List<byte[]> writes = Lists.newArrayList();
+    boolean open = true;
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+      byte[] bytes = new byte[src.remaining()];
+      src.get(bytes);
+      writes.add(bytes);
+      return bytes.length;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public synchronized void close() {
+      open = false;
+    }
+  }
+
+  /** Holds tasks until they are run explicitly. */
+  private static class ManualExecutor implements Executor {
+    final List<Runnable> tasks = Lists.newArrayList();
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    synchronized void runAll() {
+      List<Runnable> toRun = Lists.newArrayList(tasks);
+      tasks.clear();
+      for (Runnable task : toRun) {
+        task.run();
+      }
+    }
+  }
+
+  private RecordingChannel channel;
+  private ManualExecutor executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    channel = new RecordingChannel();
+    executor = new ManualExecutor();
+  }
+
+  public void testQueuedFramesAreCoalescedInOrder() {
+    OutboundQueue queue = new OutboundQueue(channel, executor, 1024);
+    assertTrue(queue.offer(new byte[] {1, 2}));
+    assertTrue(queue.offer(new byte[] {3}));
+    assertTrue(queue.offer(new byte[] {4, 5, 6}));
+    assertEquals(3, queue.getQueueDepth());
+    assertEquals(6, queue.getQueuedBytes());
+    assertEquals(1, executor.tasks.size());
+
+    executor.runAll();
+    assertEquals(1, channel.writes.size());
+    assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4, 5, 6}, channel.writes.get(0)));
+    assertEquals(0, queue.getQueueDepth());
+    assertEquals(0, queue.getQueuedBytes());
+    assertEquals(3, queue.getFramesWritten());
+    assertEquals(6, queue.getBytesWritten());
+  }
+
+  public void testFrameLargerThanBufferIsWrittenOnItsOwn() {
+    int limit = 4 * OutboundQueue.COALESCE_BUFFER_SIZE;
+    OutboundQueue queue = new OutboundQueue(channel, executor, limit);
+    byte[] large = new byte[OutboundQueue.COALESCE_BUFFER_SIZE + 1];
+    large[large.length - 1] = 7;
+    assertTrue(queue.offer(new byte[] {1}));
+    assertTrue(queue.offer(large));
+    assertTrue(queue.offer(new byte[] {2}));
+
+    executor.runAll();
+    assertEquals(3, channel.writes.size());
+    assertTrue(Arrays.equals(new byte[] {1}, channel.writes.get(0)));
+    assertTrue(Arrays.equals(large, channel.writes.get(1)));
+    assertTrue(Arrays.equals(new byte[] {2}, channel.writes.get(2)));
+  }
+
+  public void testFullQueueClosesChannelWithoutWaiting() {
+    long disconnects = OutboundQueue.varzSlowConsumerDisconnects.get();
+    OutboundQueue queue = new OutboundQueue(channel, executor, 10);
+    assertTrue(queue.offer(new byte[8]));
+    assertFalse(queue.offer(new byte[8]));
+    assertTrue(queue.isClosed());
+    assertFalse(channel.isOpen());
+    assertEquals(disconnects + 1, OutboundQueue.varzSlowConsumerDisconnects.get());
+
+    // Nothing more is written once closed.
+    executor.runAll();
+    assertTrue(channel.writes.isEmpty());
+    assertFalse(queue.offer(new byte[1]));
+  }
+
+  public void testMonitorIsToldOnlyOfClosesByTheQueue() {
+    final List<String> events = Lists.newArrayList();
+    OutboundQueue.Monitor monitor = new OutboundQueue.Monitor() {
+      @Override
+      public void runWhenWritable(Runnable task) {
+        fail("unexpected");
+      }
+
+      @Override
+      public void closed() {
+        events.add("closed");
+      }
+    };
+    OutboundQueue closedByOwner = new OutboundQueue(new RecordingChannel(), executor, 10);
+    closedByOwner.setMonitor(monitor);
+    closedByOwner.close();
+    assertTrue(events.isEmpty());
+
+    OutboundQueue tooSlow = new OutboundQueue(channel, executor, 10);
+    tooSlow.setMonitor(monitor);
+    assertTrue(tooSlow.offer(new byte[8]));
+    assertFalse(tooSlow.offer(new byte[8]));
+    assertFalse(tooSlow.offer(new byte[8]));
+    assertEquals(ImmutableList.of("closed"), events);
+  }
+
+  public void testStalledWriterIsResumedByMonitor() throws Exception {
+    Pipe pipe = Pipe.open();
+    pipe.sink().configureBlocking(false);
+    pipe.source().configureBlocking(false);
+    final List<Runnable> waiting = Lists.newArrayList();
+    byte[] frame = new byte[4 * 1024 * 1024];
+    OutboundQueue queue = new OutboundQueue(pipe.sink(), executor, frame.length);
+    queue.setMonitor(new OutboundQueue.Monitor() {
+      @Override
+      public void runWhenWritable(Runnable task) {
+        waiting.add(task);
+      }
+
+      @Override
+      public void closed() {
+        fail("unexpected");
+      }
+    });
+    try {
+      assertTrue(queue.offer(frame));
+      ByteBuffer read = ByteBuffer.allocate(frame.length);
+      executor.runAll();
+      while (!waiting.isEmpty()) {
+        // The writer handed over once the pipe was full, without waiting.
+        assertTrue(executor.tasks.isEmpty());
+        assertEquals(1, waiting.size());
+        while (pipe.source().read(read) > 0) {}
+        waiting.remove(0).run();
+        executor.runAll();
+      }
+      while (pipe.source().read(read) > 0) {}
+      assertEquals(frame.length, read.position());
+      assertEquals(frame.length, queue.getBytesWritten());
+      assertEquals(0, queue.getQueuedBytes());
+    } finally {
+      pipe.sink().close();
+      pipe.source().close();
+    }
+  }
+
+  public void testFrameLargerThanLimitIsAcceptedWhenEmpty() {
+    OutboundQueue queue = new OutboundQueue(channel, executor, 10);
+    assertTrue(queue.offer(new byte[20]));
+    executor.runAll();
+    assertEquals(20, queue.getBytesWritten());
+    assertFalse(queue.isClosed());
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import static org.waveprotocol.wave.examples.fedone.util.AllocationCounter.allocatedBytes;
+
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.JsonFormat;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnknownFieldSet;
+
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Measures the time and the bytes allocated to send and to receive a wavelet
+ * update as JSON over a WebSocket, the way the channel did before (printing
+ * the message with JsonFormat, wrapping that string with Gson, and the
+ * reverse) and the way it does now (streaming it with {@link ProtoJsonCodec}
+ * straight into and out of frames).
+ *
+ * Not a test; run it with {@code main}, optionally passing the number of
+ * deltas in the update and the number of messages per run. Allocation is
+ * measured with the JVM's per-thread allocation counter, where the JVM has
+ * one.
+ */
+public class ProtoJsonCodecBenchmark {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** A way of sending and receiving a message. */
+  private interface Codec {
+    /** @return the frames the message is sent in */
+    List<String> send(long sequenceNo, Message message);
+
+    void receive(List<String> frames);
+  }
+
+  /** The wrapper as Gson encoded it. */
+  private static class MessageWrapper {
+    private int version;
+    private long sequenceNumber;
+    private String messageType;
+    private String messageJson;
+
+    MessageWrapper() {
+      // no-args constructor
+    }
+
+    MessageWrapper(int version, long sequenceNumber, String messageType, String messageJson) {
+      this.version = version;
+      this.sequenceNumber = sequenceNumber;
+      this.messageType = messageType;
+      this.messageJson = messageJson;
+    }
+  }
+
+  /** A channel which keeps the frames it sends. */
+  private static class CollectingChannel extends WebSocketChannel {
+    private List<String> frames;
+
+    CollectingChannel(ProtoCallback callback) {
+      super(callback);
+    }
+
+    @Override
+    protected void sendTextFrame(byte[] data, int offset, int length) {
+      frames.add(new String(data, offset, length, ASCII));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int deltas = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+    int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+    final ProtocolWaveletUpdate update = createUpdate(deltas);
+    final Gson gson = new Gson();
+    Codec gsonJsonFormat = new Codec() {
+      @Override
+      public List<String> send(long sequenceNo, Message message) {
+        return Lists.newArrayList(gson.toJson(new MessageWrapper(0, sequenceNo,
+            message.getDescriptorForType().getFullName(), JsonFormat.printToString(message))));
+      }
+
+      @Override
+      public void receive(List<String> frames) {
+        MessageWrapper wrapper = gson.fromJson(frames.get(0), MessageWrapper.class);
+        ProtocolWaveletUpdate.Builder builder = ProtocolWaveletUpdate.newBuilder();
+        try {
+          JsonFormat.merge(wrapper.messageJson, builder);
+        } catch (JsonFormat.ParseException e) {
+          throw new IllegalStateException(e);
+        }
+        builder.build();
+      }
+    };
+
+    final CollectingChannel channel = new CollectingChannel(new ProtoCallback() {
+      @Override
+      public void message(long sequenceNo, Message message) {
+      }
+
+      @Override
+      public void unknown(long sequenceNo, String messageType, UnknownFieldSet message) {
+        throw new IllegalStateException();
+      }
+
+      @Override
+      public void unknown(long sequenceNo, String messageType, String message) {
+        throw new IllegalStateException();
+      }
+    });
+    channel.expectMessage(ProtocolWaveletUpdate.getDefaultInstance());
+    Codec streaming = new Codec() {
+      @Override
+      public List<String> send(long sequenceNo, Message message) {
+        channel.frames = Lists.newArrayList();
+        channel.sendMessage(sequenceNo, message);
+        return channel.frames;
+      }
+
+      @Override
+      public void receive(List<String> frames) {
+        for (String frame : frames) {
+          channel.handleMessageString(frame);
+        }
+      }
+    };
+
+    // Warm up.
+    for (int i = 0; i < 2; i++) {
+      run(gsonJsonFormat, update, messages);
+      run(streaming, update, messages);
+    }
+
+    System.out.println(messages + " updates of " + deltas + " deltas, "
+        + update.getSerializedSize() + " bytes serialized");
+    System.out.println("path\tsend ns/msg\tsend bytes allocated/msg\treceive ns/msg"
+        + "\treceive bytes allocated/msg");
+    System.out.println("gson-jsonformat\t" + run(gsonJsonFormat, update, messages));
+    System.out.println("streaming\t" + run(streaming, update, messages));
+  }
+
+  /** @return an update of deltas each inserting some text in a document. */
+  private static ProtocolWaveletUpdate createUpdate(int deltas) {
+    ProtocolWaveletUpdate.Builder update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("wave://example.com/w+abc/conv+root");
+    for (int i = 0; i < deltas; i++) {
+      update.addAppliedDelta(ProtocolWaveletDelta.newBuilder()
+          .setHashedVersion(ProtocolHashedVersion.newBuilder().setVersion(i)
+              .setHistoryHash(ByteString.copyFrom(new byte[20])))
+          .setAuthor("someone@example.com")
+          .addOperation(ProtocolWaveletOperation.newBuilder()
+              .setMutateDocument(ProtocolWaveletOperation.MutateDocument.newBuilder()
+                  .setDocumentId("b+" + i)
+                  .setDocumentOperation(ProtocolDocumentOperation.newBuilder()
+                      .addComponent(ProtocolDocumentOperation.Component.newBuilder()
+                          .setRetainItemCount(i * 10))
+                      .addComponent(ProtocolDocumentOperation.Component.newBuilder()
+                          .setCharacters("Some text typed into the wave, number " + i + "."))))));
+    }
+    return update.build();
+  }
+
+  /**
+   * Sends and receives the same message a number of times.
+   *
+   * @return the time and bytes allocated per message, to send and to
+   *         receive, tab separated
+   */
+  private static String run(Codec codec, Message message, int messages) {
+    List<List<String>> sent = Lists.newArrayListWithCapacity(messages);
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      sent.add(codec.send(i, message));
+    }
+    long sendElapsed = System.nanoTime() - start;
+    long sendAllocated = allocatedBytes() - allocatedBefore;
+
+    allocatedBefore = allocatedBytes();
+    start = System.nanoTime();
+    for (List<String> frames : sent) {
+      codec.receive(frames);
+    }
+    long receiveElapsed = System.nanoTime() - start;
+    long receiveAllocated = allocatedBytes() - allocatedBefore;
+    return (sendElapsed / messages) + "\t"
+        + ((allocatedBefore < 0) ? "n/a" : "" + sendAllocated / messages) + "\t"
+        + (receiveElapsed / messages) + "\t"
+        + ((allocatedBefore < 0) ? "n/a" : "" + receiveAllocated / messages);
+  }
+}
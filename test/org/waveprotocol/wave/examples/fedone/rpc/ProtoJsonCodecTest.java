@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.JsonFormat;
+import com.google.protobuf.Message;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link ProtoJsonCodec}, against {@link JsonFormat}.
+ */
+public class ProtoJsonCodecTest extends TestCase {
+
+  private static final String AWKWARD_TEXT =
+      "plain \u00e9\u4e2d\ud83d\ude00 \"quoted\" back\\slash 'single' \n\t\r\u0001\u007f";
+
+  /** Checks that the codec prints as JsonFormat does, and reads it back. */
+  private static void checkMatchesJsonFormat(Message message) throws Exception {
+    String expected = JsonFormat.printToString(message);
+    assertEquals(expected, ProtoJsonCodec.printToString(message));
+    Message.Builder builder = message.newBuilderForType();
+    ProtoJsonCodec.merge(expected, builder);
+    assertEquals(message, builder.build());
+  }
+
+  public void testMatchesJsonFormat() throws Exception {
+    checkMatchesJsonFormat(WaveClientRpc.ProtocolOpenRequest.newBuilder()
+        .setParticipantId("someone@example.com").setWaveId(AWKWARD_TEXT)
+        .addWaveletIdPrefix("a").addWaveletIdPrefix("b").setMaximumWavelets(-7)
+        .setSnapshots(true).build());
+    checkMatchesJsonFormat(WaveClientRpc.ProtocolSubmitResponse.newBuilder()
+        .setOperationsApplied(3)
+        .setHashedVersionAfterApplication(ProtocolHashedVersion.newBuilder()
+            .setVersion(Long.MIN_VALUE)
+            .setHistoryHash(ByteString.copyFrom(new byte[] {0, 1, -1, '"', '\\', 10, 'a', -128})))
+        .build());
+    checkMatchesJsonFormat(WaveClientRpc.ProtocolOpenRequest.newBuilder()
+        .setParticipantId("").setWaveId("").build());
+  }
+
+  public void testMatchesJsonFormatForOtherTypes() throws Exception {
+    checkMatchesJsonFormat(DescriptorProtos.UninterpretedOption.newBuilder()
+        .setPositiveIntValue(-1L).setNegativeIntValue(Long.MIN_VALUE).setDoubleValue(1.5e-300)
+        .addName(DescriptorProtos.UninterpretedOption.NamePart.newBuilder()
+            .setNamePart("x").setIsExtension(false))
+        .build());
+    checkMatchesJsonFormat(DescriptorProtos.FieldOptions.newBuilder()
+        .setCtype(DescriptorProtos.FieldOptions.CType.CORD).setPacked(true).build());
+  }
+
+  public void testMatchesJsonFormatForRandomBytes() throws Exception {
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      byte[] bytes = new byte[random.nextInt(50)];
+      random.nextBytes(bytes);
+      checkMatchesJsonFormat(ProtocolHashedVersion.newBuilder().setVersion(i)
+          .setHistoryHash(ByteString.copyFrom(bytes)).build());
+    }
+  }
+
+  public void testReadsJsonEscapesAndRawText() throws Exception {
+    WaveClientRpc.ProtocolOpenRequest.Builder builder =
+        WaveClientRpc.ProtocolOpenRequest.newBuilder();
+    ProtoJsonCodec.merge("{ \"participant_id\" : \"\\u00e9\u4e2d\\x41\\101\" ,"
+        + " \"wave_id\" : \"\\ud83d\\ude00\", \"wavelet_id_prefix\": [] }", builder);
+    assertEquals("\u00e9\u4e2dAA", builder.getParticipantId());
+    assertEquals("\ud83d\ude00", builder.getWaveId());
+  }
+
+  public void testRejectsMalformedJson() {
+    String[] malformed = {
+        "", "{", "{\"bogus\": 1}", "{\"maximum_wavelets\": \"3\"}", "{\"snapshots\": maybe}",
+        "{\"maximum_wavelets\": 3,}", "{\"wave_id\": \"unterminated}", "{} {}",
+        "{\"maximum_wavelets\": 4294967296}"};
+    for (String json : malformed) {
+      try {
+        ProtoJsonCodec.merge(json, WaveClientRpc.ProtocolOpenRequest.newBuilder());
+        fail("expected exception for " + json);
+      } catch (JsonFormat.ParseException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnknownFieldSet;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link RpcSelectorServer}.
+ */
+public class RpcSelectorServerTest extends TestCase {
+  private static final int TIMEOUT_SECONDS = 5;
+
+  private ServerSocketChannel serverChannel;
+  private RpcSelectorServer server;
+  private ExecutorService threadPool;
+  /** Sends the echoes, off the selector thread as RPC responses are. */
+  private ExecutorService echoExecutor;
+  private final AtomicInteger connected = new AtomicInteger();
+  private CountDownLatch disconnected;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPool = Executors.newCachedThreadPool();
+    echoExecutor = Executors.newSingleThreadExecutor();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(null);
+    disconnected = new CountDownLatch(1);
+
+    // Echo every message back to where it came from.
+    server = new RpcSelectorServer(serverChannel, 1, new RpcSelectorServer.ConnectionHandler() {
+      @Override
+      public SequencedProtoChannel connected(SocketChannel channel) {
+        connected.incrementAndGet();
+        final SequencedProtoChannel[] protoChannel = new SequencedProtoChannel[1];
+        protoChannel[0] = new SequencedProtoChannel(channel, new ProtoCallback() {
+          @Override
+          public void message(final long sequenceNo, final Message message) {
+            echoExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                protoChannel[0].sendMessage(sequenceNo, message);
+              }
+            });
+          }
+
+          @Override
+          public void unknown(long sequenceNo, String messageType, UnknownFieldSet message) {
+            throw new IllegalStateException("Unexpected message " + messageType);
+          }
+
+          @Override
+          public void unknown(long sequenceNo, String messageType, String message) {
+            throw new IllegalStateException("Unexpected message " + messageType);
+          }
+        }, threadPool);
+        protoChannel[0].expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+        return protoChannel[0];
+      }
+
+      @Override
+      public void disconnected(SocketChannel channel) {
+        disconnected.countDown();
+      }
+    });
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    serverChannel.close();
+    server.stop();
+    threadPool.shutdownNow();
+    echoExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  private FakeProtoChannelManager connect() throws Exception {
+    FakeProtoChannelManager client = new FakeProtoChannelManager(
+        SocketChannel.open(serverChannel.socket().getLocalSocketAddress()));
+    client.channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    return client;
+  }
+
+  private static WaveClientRpc.ProtocolOpenRequest request(int i) {
+    return WaveClientRpc.ProtocolOpenRequest.newBuilder()
+        .setParticipantId("user" + i + "@example.com").setWaveId("wave" + i).build();
+  }
+
+  /**
+   * Tests that one selector thread serves many connections at once.
+   */
+  public void testOneThreadServesManyConnections() throws Exception {
+    final int CONNECTIONS = 50;
+    List<FakeProtoChannelManager> clients = Lists.newArrayList();
+    for (int i = 0; i < CONNECTIONS; i++) {
+      clients.add(connect());
+    }
+    for (int i = 0; i < CONNECTIONS; i++) {
+      clients.get(i).channel.sendMessage(i, request(i));
+    }
+    for (int i = 0; i < CONNECTIONS; i++) {
+      assertEquals(FakeProtoChannelManager.SequencedObject.of(i, request(i)),
+          clients.get(i).waitForMessage(TIMEOUT_SECONDS));
+    }
+    assertEquals(CONNECTIONS, connected.get());
+  }
+
+  /**
+   * Tests that messages split across reads are put back together.
+   */
+  public void testManyMessagesOnOneConnection() throws Exception {
+    final int MESSAGES = 200;
+    FakeProtoChannelManager client = connect();
+    for (int i = 0; i < MESSAGES; i++) {
+      client.channel.sendMessage(i, request(i));
+    }
+    for (int i = 0; i < MESSAGES; i++) {
+      assertEquals(FakeProtoChannelManager.SequencedObject.of(i, request(i)),
+          client.waitForMessage(TIMEOUT_SECONDS));
+    }
+  }
+
+  /**
+   * Tests that the handler hears about connections closed by the client.
+   */
+  public void testClientDisconnectIsNoticed() throws Exception {
+    FakeProtoChannelManager client = connect();
+    client.channel.sendMessage(0, request(0));
+    assertNotNull(client.waitForMessage(TIMEOUT_SECONDS));
+    client.channel.close();
+    assertTrue(disconnected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Tests that the handler hears about connections closed by the server for
+   * not reading their replies.
+   */
+  public void testSlowConsumerDisconnectIsNoticed() throws Exception {
+    // A client which sends large requests and never reads the echoes.
+    SocketChannel socket = SocketChannel.open(serverChannel.socket().getLocalSocketAddress());
+    SequencedProtoChannel client = new SequencedProtoChannel(socket, null, threadPool,
+        SequencedProtoChannel.DEFAULT_MAX_MESSAGE_BYTES, 64 * 1024 * 1024,
+        new MessageCompressor(MessageCompressor.DEFAULT_THRESHOLD, new CompressionStats()));
+    char[] padding = new char[3 * 1024 * 1024];
+    Arrays.fill(padding, 'a');
+    WaveClientRpc.ProtocolOpenRequest large = WaveClientRpc.ProtocolOpenRequest.newBuilder()
+        .setParticipantId(new String(padding)).setWaveId("wave").build();
+    try {
+      for (int i = 0; i < 10; i++) {
+        client.sendMessage(i, large);
+      }
+      assertTrue(disconnected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    } finally {
+      client.close();
+    }
+  }
+}
@@ -27,6 +27,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -166,4 +167,113 @@ public class SequencedProtoChannelTest extends TestCase {
     assertEquals(UnknownFieldSet.class, clientManager.waitForMessage(MESSAGE_TIMEOUT).message
         .getClass());
   }
+
+  /**
+   * Test that messages larger than the usual input buffer are received, and
+   * that smaller messages following them still are.
+   */
+  public void testLargeMessages() throws Exception {
+    final int MESSAGE_TIMEOUT = 5;
+    FakeProtoChannelManager clientManager = new FakeProtoChannelManager(connection.clientSocket);
+    FakeProtoChannelManager serverManager = new FakeProtoChannelManager(connection.serverSocket);
+    clientManager.channel.expectMessage(WaveClientRpc.ProtocolWaveletUpdate.getDefaultInstance());
+
+    int[] sizes = {100, 40 * 1024, 1024 * 1024, 100, 200 * 1024, 10};
+    for (int m = 0; m < sizes.length; ++m) {
+      char[] name = new char[sizes[m]];
+      Arrays.fill(name, (char) ('a' + m));
+      serverManager.channel.sendMessage(m, WaveClientRpc.ProtocolWaveletUpdate.newBuilder()
+          .setWaveletName(new String(name)).build());
+    }
+    for (int m = 0; m < sizes.length; ++m) {
+      FakeProtoChannelManager.SequencedObject<?> response =
+          clientManager.waitForMessage(MESSAGE_TIMEOUT);
+      assertNotNull("Couldn't get message number " + m, response);
+      assertEquals(m, response.sequenceNo);
+      String name = ((WaveClientRpc.ProtocolWaveletUpdate) response.message).getWaveletName();
+      assertEquals(sizes[m], name.length());
+      assertEquals('a' + m, name.charAt(sizes[m] - 1));
+    }
+  }
+
+  /**
+   * Test that once the client offers compression, large messages from the
+   * server are compressed, and small ones aren't.
+   */
+  public void testNegotiatedCompression() throws Exception {
+    final int MESSAGE_TIMEOUT = 5;
+    CompressionStats clientStats = new CompressionStats();
+    CompressionStats serverStats = new CompressionStats();
+    FakeProtoChannelManager clientManager = new FakeProtoChannelManager(connection.clientSocket,
+        new MessageCompressor(MessageCompressor.DEFAULT_THRESHOLD, clientStats));
+    FakeProtoChannelManager serverManager = new FakeProtoChannelManager(connection.serverSocket,
+        new MessageCompressor(MessageCompressor.DEFAULT_THRESHOLD, serverStats));
+    serverManager.channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    clientManager.channel.expectMessage(WaveClientRpc.ProtocolWaveletUpdate.getDefaultInstance());
+
+    // The server has taken up the offer by the time it reads the request.
+    clientManager.channel.offerCompression();
+    WaveClientRpc.ProtocolOpenRequest request = WaveClientRpc.ProtocolOpenRequest.newBuilder()
+        .setParticipantId("sam@example.com").setWaveId("foowave").build();
+    clientManager.channel.sendMessage(0, request);
+    assertEquals(FakeProtoChannelManager.SequencedObject.of(0, request),
+        serverManager.waitForMessage(MESSAGE_TIMEOUT));
+
+    WaveClientRpc.ProtocolWaveletUpdate small =
+        WaveClientRpc.ProtocolWaveletUpdate.newBuilder().setWaveletName("foowave").build();
+    char[] name = new char[100 * 1024];
+    Arrays.fill(name, 'w');
+    WaveClientRpc.ProtocolWaveletUpdate large =
+        WaveClientRpc.ProtocolWaveletUpdate.newBuilder().setWaveletName(new String(name)).build();
+    serverManager.channel.sendMessage(1, large);
+    serverManager.channel.sendMessage(2, small);
+    assertEquals(FakeProtoChannelManager.SequencedObject.of(1, large),
+        clientManager.waitForMessage(MESSAGE_TIMEOUT));
+    assertEquals(FakeProtoChannelManager.SequencedObject.of(2, small),
+        clientManager.waitForMessage(MESSAGE_TIMEOUT));
+
+    assertEquals(1, serverStats.getMessagesDeflated());
+    assertEquals(1, serverStats.getMessagesBelowThreshold());
+    assertTrue(serverStats.getDeflateRatio() < 0.1);
+    assertEquals(1, clientStats.getMessagesInflated());
+    assertEquals(large.getSerializedSize(), clientStats.getBytesAfterInflate(),
+        large.getSerializedSize() / 2);
+  }
+
+  /**
+   * Test that nothing is compressed unless compression is offered, nor to an
+   * end which has it disabled.
+   */
+  public void testCompressionNotNegotiated() throws Exception {
+    final int MESSAGE_TIMEOUT = 5;
+    CompressionStats clientStats = new CompressionStats();
+    CompressionStats serverStats = new CompressionStats();
+    FakeProtoChannelManager clientManager = new FakeProtoChannelManager(connection.clientSocket,
+        new MessageCompressor(MessageCompressor.DEFAULT_THRESHOLD, clientStats));
+    FakeProtoChannelManager serverManager = new FakeProtoChannelManager(connection.serverSocket,
+        new MessageCompressor(-1, serverStats));
+    serverManager.channel.expectMessage(WaveClientRpc.ProtocolWaveletUpdate.getDefaultInstance());
+    clientManager.channel.expectMessage(WaveClientRpc.ProtocolWaveletUpdate.getDefaultInstance());
+
+    char[] name = new char[100 * 1024];
+    Arrays.fill(name, 'w');
+    WaveClientRpc.ProtocolWaveletUpdate large =
+        WaveClientRpc.ProtocolWaveletUpdate.newBuilder().setWaveletName(new String(name)).build();
+    clientManager.channel.sendMessage(0, large);
+    assertEquals(FakeProtoChannelManager.SequencedObject.of(0, large),
+        serverManager.waitForMessage(MESSAGE_TIMEOUT));
+
+    // The server ignores the offer, so the client still doesn't compress.
+    clientManager.channel.offerCompression();
+    serverManager.channel.sendMessage(1, large);
+    assertEquals(FakeProtoChannelManager.SequencedObject.of(1, large),
+        clientManager.waitForMessage(MESSAGE_TIMEOUT));
+    clientManager.channel.sendMessage(2, large);
+    assertEquals(FakeProtoChannelManager.SequencedObject.of(2, large),
+        serverManager.waitForMessage(MESSAGE_TIMEOUT));
+
+    assertEquals(0, clientStats.getMessagesDeflated());
+    assertEquals(0, serverStats.getMessagesDeflated());
+    assertEquals(0, clientStats.getMessagesInflated());
+  }
 }
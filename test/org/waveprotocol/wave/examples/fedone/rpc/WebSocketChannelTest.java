@@ -0,0 +1,280 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.rpc;
+
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import com.google.protobuf.JsonFormat;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnknownFieldSet;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the framing of {@link WebSocketChannel}, with a channel which passes
+ * each frame it sends straight back to itself.
+ */
+public class WebSocketChannelTest extends TestCase {
+
+  /** Records the messages it is called with. */
+  private static class RecordingCallback implements ProtoCallback {
+    final List<Object> received = Lists.newArrayList();
+    final List<Long> sequenceNos = Lists.newArrayList();
+
+    @Override
+    public void message(long sequenceNo, Message message) {
+      sequenceNos.add(sequenceNo);
+      received.add(message);
+    }
+
+    @Override
+    public void unknown(long sequenceNo, String messageType, UnknownFieldSet message) {
+      sequenceNos.add(sequenceNo);
+      received.add(message);
+    }
+
+    @Override
+    public void unknown(long sequenceNo, String messageType, String message) {
+      sequenceNos.add(sequenceNo);
+      received.add(message);
+    }
+  }
+
+  private static class LoopbackChannel extends WebSocketChannel {
+    private final StringBuilder sentText = new StringBuilder();
+    private int textFrames = 0;
+    private int binaryFrames = 0;
+
+    LoopbackChannel(ProtoCallback callback, boolean binary) {
+      super(callback, binary);
+    }
+
+    LoopbackChannel(ProtoCallback callback, boolean binary, boolean spanFrames) {
+      super(callback, binary, null, spanFrames);
+    }
+
+    LoopbackChannel(ProtoCallback callback, MessageCompressor compressor) {
+      super(callback, true, compressor);
+    }
+
+    @Override
+    protected void sendTextFrame(byte[] data, int offset, int length) {
+      textFrames++;
+      String text = new String(data, offset, length);
+      sentText.append(text);
+      handleMessageString(text);
+    }
+
+    @Override
+    protected void sendBinaryFrame(byte[] data, int offset, int length) {
+      binaryFrames++;
+      handleMessageBytes(data, offset, length);
+    }
+  }
+
+  private RecordingCallback callback;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    callback = new RecordingCallback();
+  }
+
+  private static final WaveClientRpc.ProtocolOpenRequest REQUEST =
+      WaveClientRpc.ProtocolOpenRequest.newBuilder().setParticipantId("sam@example.com")
+          .setWaveId("foowave").build();
+
+  public void testBinaryRoundTrip() {
+    LoopbackChannel channel = new LoopbackChannel(callback, true);
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    channel.sendMessage(42, REQUEST);
+    assertEquals(1, channel.binaryFrames);
+    assertEquals(0, channel.textFrames);
+    assertEquals(Lists.newArrayList(42L), callback.sequenceNos);
+    assertEquals(Lists.<Object>newArrayList(REQUEST), callback.received);
+  }
+
+  public void testJsonRoundTrip() {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    channel.sendMessage(7, REQUEST);
+    assertEquals(0, channel.binaryFrames);
+    assertEquals(1, channel.textFrames);
+    assertEquals(Lists.newArrayList(7L), callback.sequenceNos);
+    assertEquals(Lists.<Object>newArrayList(REQUEST), callback.received);
+  }
+
+  public void testBinaryUnknownMessage() {
+    LoopbackChannel channel = new LoopbackChannel(callback, true);
+    channel.sendMessage(3, REQUEST);
+    assertEquals(1, callback.received.size());
+    assertEquals(UnknownFieldSet.class, callback.received.get(0).getClass());
+  }
+
+  public void testJsonIsReadableByGson() throws Exception {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    channel.sendMessage(7, REQUEST);
+    MessageWrapper wrapper = new Gson().fromJson(channel.sentText.toString(),
+        MessageWrapper.class);
+    assertEquals(7, wrapper.sequenceNumber);
+    assertEquals(REQUEST.getDescriptorForType().getFullName(), wrapper.messageType);
+    WaveClientRpc.ProtocolOpenRequest.Builder builder =
+        WaveClientRpc.ProtocolOpenRequest.newBuilder();
+    JsonFormat.merge(wrapper.messageJson, builder);
+    assertEquals(REQUEST, builder.build());
+  }
+
+  public void testReadsGsonWrapper() {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    String oldJson = new Gson().toJson(new MessageWrapper(0, 5,
+        REQUEST.getDescriptorForType().getFullName(), JsonFormat.printToString(REQUEST)));
+    channel.handleMessageString(oldJson);
+    assertEquals(Lists.newArrayList(5L), callback.sequenceNos);
+    assertEquals(Lists.<Object>newArrayList(REQUEST), callback.received);
+  }
+
+  public void testUnknownJsonMessage() {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    channel.sendMessage(3, REQUEST);
+    assertEquals(Lists.<Object>newArrayList(ProtoJsonCodec.printToString(REQUEST)),
+        callback.received);
+  }
+
+  public void testUnparseableJsonMessageIsPassedOnAsUnknown() {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    channel.handleMessageString("{\"version\":0,\"sequenceNumber\":1,\"messageType\":\""
+        + REQUEST.getDescriptorForType().getFullName() + "\",\"messageJson\":\"{\\\"x\\\": 1}\"}");
+    assertEquals(Lists.<Object>newArrayList("{\"x\": 1}"), callback.received);
+  }
+
+  public void testLargeMessagesSpanFramesWhenNegotiated() {
+    for (boolean binary : new boolean[] {false, true}) {
+      callback = new RecordingCallback();
+      LoopbackChannel channel = new LoopbackChannel(callback, binary, true);
+      channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+      char[] name = new char[3 * WebSocketChannel.MAX_FRAME_SIZE];
+      Arrays.fill(name, '"');
+      WaveClientRpc.ProtocolOpenRequest request = REQUEST.toBuilder()
+          .setWaveId(new String(name)).build();
+      channel.sendMessage(1, request);
+      channel.sendMessage(2, REQUEST);
+      assertTrue(channel.textFrames + channel.binaryFrames > 4);
+      assertEquals(Lists.newArrayList(1L, 2L), callback.sequenceNos);
+      assertEquals(Lists.<Object>newArrayList(request, REQUEST), callback.received);
+    }
+  }
+
+  public void testLargeMessagesTakeOneFrameUnlessNegotiated() {
+    for (boolean binary : new boolean[] {false, true}) {
+      callback = new RecordingCallback();
+      LoopbackChannel channel = new LoopbackChannel(callback, binary);
+      channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+      char[] name = new char[3 * WebSocketChannel.MAX_FRAME_SIZE];
+      Arrays.fill(name, '"');
+      WaveClientRpc.ProtocolOpenRequest request = REQUEST.toBuilder()
+          .setWaveId(new String(name)).build();
+      channel.sendMessage(1, request);
+      channel.sendMessage(2, REQUEST);
+      assertEquals(2, channel.textFrames + channel.binaryFrames);
+      assertEquals(Lists.newArrayList(1L, 2L), callback.sequenceNos);
+      assertEquals(Lists.<Object>newArrayList(request, REQUEST), callback.received);
+    }
+  }
+
+  public void testTextFramesSplitAnywhere() {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    String json = new Gson().toJson(new MessageWrapper(0, 5,
+        REQUEST.getDescriptorForType().getFullName(), JsonFormat.printToString(REQUEST)));
+    for (int i = 0; i < json.length(); i++) {
+      channel.handleMessageString(json.substring(i, i + 1));
+    }
+    // Two messages in one frame.
+    channel.handleMessageString(json + " " + json);
+    assertEquals(Lists.newArrayList(5L, 5L, 5L), callback.sequenceNos);
+  }
+
+  public void testMalformedTextIsRejected() {
+    LoopbackChannel channel = new LoopbackChannel(callback, false);
+    try {
+      channel.handleMessageString("not json");
+      fail("expected exception, but didn't get it");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testOversizedBinaryMessageIsRejected() {
+    LoopbackChannel channel = new LoopbackChannel(callback, true);
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    // Sequence number 1, type "x", then a message of 2^28 bytes.
+    byte[] frame = {1, 1, 'x', (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+    try {
+      channel.handleMessageBytes(frame, 0, frame.length);
+      fail("expected exception, but didn't get it");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testDeflateRoundTrip() {
+    CompressionStats stats = new CompressionStats();
+    LoopbackChannel channel =
+        new LoopbackChannel(callback, new MessageCompressor(1024, stats));
+    channel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    char[] name = new char[3 * WebSocketChannel.MAX_FRAME_SIZE];
+    Arrays.fill(name, 'w');
+    WaveClientRpc.ProtocolOpenRequest large = REQUEST.toBuilder()
+        .setWaveId(new String(name)).build();
+    channel.sendMessage(1, large);
+    channel.sendMessage(2, REQUEST);
+    // Each compresses into a single frame.
+    assertEquals(2, channel.binaryFrames);
+    assertEquals(Lists.newArrayList(1L, 2L), callback.sequenceNos);
+    assertEquals(Lists.<Object>newArrayList(large, REQUEST), callback.received);
+    assertEquals(1, stats.getMessagesDeflated());
+    assertEquals(1, stats.getMessagesInflated());
+    assertEquals(1, stats.getMessagesBelowThreshold());
+  }
+
+  /** The wrapper as Gson used to encode it. */
+  private static class MessageWrapper {
+    private int version;
+    private long sequenceNumber;
+    private String messageType;
+    private String messageJson;
+
+    MessageWrapper() {
+      // no-args constructor
+    }
+
+    MessageWrapper(int version, long sequenceNumber, String messageType, String messageJson) {
+      this.version = version;
+      this.sequenceNumber = sequenceNumber;
+      this.messageType = messageType;
+      this.messageJson = messageJson;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link AppliedDeltaUtil} and the lazy parsing of {@link ByteStringMessage}.
+ */
+public class AppliedDeltaUtilTest extends TestCase {
+  private static final ProtocolHashedVersion DELTA_VERSION = ProtocolHashedVersion.newBuilder()
+      .setVersion(10).setHistoryHash(ByteString.copyFromUtf8("delta hash")).build();
+  private static final ProtocolHashedVersion APPLIED_VERSION = ProtocolHashedVersion.newBuilder()
+      .setVersion(12).setHistoryHash(ByteString.copyFromUtf8("applied hash")).build();
+
+  private static final ByteString INVALID =
+      ByteString.copyFrom(new byte[] {(byte) 0xff, (byte) 0xff});
+
+  private static ProtocolAppliedWaveletDelta.Builder appliedDelta() {
+    ProtocolWaveletDelta delta = ProtocolWaveletDelta.newBuilder()
+        .setHashedVersion(DELTA_VERSION)
+        .setAuthor("author@example.com")
+        .build();
+    return ProtocolAppliedWaveletDelta.newBuilder()
+        .setSignedOriginalDelta(ProtocolSignedDelta.newBuilder()
+            .setDelta(delta.toByteString())
+            .addSignature(ProtocolSignature.newBuilder()
+                .setSignatureBytes(ByteString.copyFromUtf8("signature"))
+                .setSignerId(ByteString.copyFromUtf8("signer"))
+                .setSignatureAlgorithm(ProtocolSignature.SignatureAlgorithm.SHA1_RSA)))
+        .setOperationsApplied(3)
+        .setApplicationTimestamp(1234567890L);
+  }
+
+  public void testReadsFieldsFromWire() {
+    ByteString transformed = appliedDelta().setHashedVersionAppliedAt(APPLIED_VERSION).build()
+        .toByteString();
+    assertEquals(APPLIED_VERSION, AppliedDeltaUtil.getHashedVersionAppliedAt(transformed));
+    assertEquals(3, AppliedDeltaUtil.getOperationsApplied(transformed));
+  }
+
+  public void testReadsVersionFromContainedDelta() {
+    ProtocolAppliedWaveletDelta untransformed = appliedDelta().build();
+    assertEquals(DELTA_VERSION,
+        AppliedDeltaUtil.getHashedVersionAppliedAt(untransformed.toByteString()));
+    assertEquals(AppliedDeltaUtil.getHashedVersionAppliedAt(untransformed),
+        AppliedDeltaUtil.getHashedVersionAppliedAt(untransformed.toByteString()));
+  }
+
+  public void testReadsSignerIdsFromWire() {
+    ProtocolAppliedWaveletDelta.Builder delta = appliedDelta();
+    delta.setSignedOriginalDelta(delta.getSignedOriginalDelta().toBuilder()
+        .addSignature(ProtocolSignature.newBuilder()
+            .setSignatureBytes(ByteString.copyFromUtf8("other signature"))
+            .setSignerId(ByteString.copyFromUtf8("other signer"))
+            .setSignatureAlgorithm(ProtocolSignature.SignatureAlgorithm.SHA1_RSA)));
+    assertEquals(
+        Arrays.asList(ByteString.copyFromUtf8("signer"), ByteString.copyFromUtf8("other signer")),
+        AppliedDeltaUtil.getSignerIds(delta.build().toByteString()));
+  }
+
+  public void testMalformedDeltaIsRejected() {
+    try {
+      AppliedDeltaUtil.getOperationsApplied(INVALID);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // pass
+    }
+    try {
+      AppliedDeltaUtil.getHashedVersionAppliedAt(ByteString.EMPTY);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // pass
+    }
+  }
+
+  public void testMessageIsParsedOnlyWhenAskedFor() throws Exception {
+    ProtocolAppliedWaveletDelta delta = appliedDelta().build();
+    ByteStringMessage<ProtocolAppliedWaveletDelta> unparsed = ByteStringMessage.fromUnparsed(
+        ProtocolAppliedWaveletDelta.getDefaultInstance(), delta.toByteString());
+    assertEquals(delta, unparsed.getMessage());
+    assertSame(unparsed.getMessage(), unparsed.getMessage());
+
+    assertSame(delta, ByteStringMessage.fromMessage(delta).getMessage());
+    assertEquals(unparsed, ByteStringMessage.fromMessage(delta));
+  }
+
+  public void testInvalidBytesAreRejected() throws Exception {
+    try {
+      ByteStringMessage.from(ProtocolAppliedWaveletDelta.getDefaultInstance(), INVALID);
+      fail("Expected an InvalidProtocolBufferException");
+    } catch (InvalidProtocolBufferException expected) {
+      // pass
+    }
+    ByteStringMessage<ProtocolAppliedWaveletDelta> unparsed = ByteStringMessage.fromUnparsed(
+        ProtocolAppliedWaveletDelta.getDefaultInstance(), INVALID);
+    try {
+      unparsed.getMessage();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // pass
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.crypto.CertConstantUtil;
+import org.waveprotocol.wave.crypto.MerkleTree;
+import org.waveprotocol.wave.crypto.SignerInfo;
+import org.waveprotocol.wave.crypto.WaveSigner;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature.SignatureAlgorithm;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignerInfo.HashAlgorithm;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BundlingDeltaSigner}.
+ */
+public class BundlingDeltaSignerTest extends TestCase {
+  private static final int THREADS = 4;
+  private static final int WAVELETS = 5;
+  private static final int DELTAS_PER_WAVELET = 40;
+
+  private ScheduledExecutorService scheduler;
+  private ExecutorService signingPool;
+  private WaveSigner waveSigner;
+  private BundlingDeltaSigner deltaSigner;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    SignerInfo signerInfo = new SignerInfo(HashAlgorithm.SHA256,
+        ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT,
+            CertConstantUtil.INTERMEDIATE_PUB_CERT), "example.com");
+    waveSigner = new WaveSigner(SignatureAlgorithm.SHA1_RSA,
+        CertConstantUtil.SERVER_PRIV_KEY, signerInfo);
+    scheduler = Executors.newScheduledThreadPool(1);
+    signingPool = Executors.newFixedThreadPool(THREADS);
+    deltaSigner = new BundlingDeltaSigner(scheduler, signingPool, THREADS, false, waveSigner,
+        16, 5);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    scheduler.shutdownNow();
+    signingPool.shutdownNow();
+    super.tearDown();
+  }
+
+  private static ByteStringMessage<ProtocolWaveletDelta> delta(int version) {
+    return ByteStringMessage.fromMessage(ProtocolWaveletDelta.newBuilder()
+        .setAuthor("author@example.com")
+        .setHashedVersion(ProtocolHashedVersion.newBuilder()
+            .setVersion(version)
+            .setHistoryHash(com.google.protobuf.ByteString.EMPTY))
+        .build());
+  }
+
+  public void testListenersAreCalledInOrderPerWavelet() throws Exception {
+    checkListenersAreCalledInOrderPerWavelet(false);
+  }
+
+  public void testMerkleListenersAreCalledInOrderPerWavelet() throws Exception {
+    deltaSigner = new BundlingDeltaSigner(scheduler, signingPool, THREADS, true, waveSigner,
+        16, 5);
+    checkListenersAreCalledInOrderPerWavelet(true);
+  }
+
+  private void checkListenersAreCalledInOrderPerWavelet(final boolean merkle) throws Exception {
+    final CountDownLatch signed = new CountDownLatch(WAVELETS * DELTAS_PER_WAVELET);
+    final Map<WaveletName, List<Long>> versions = Maps.newHashMap();
+    List<WaveletName> names = Lists.newArrayList();
+    for (int w = 0; w < WAVELETS; w++) {
+      WaveletName name = WaveletName.of("example.com!w+" + w, "example.com!conv+root");
+      names.add(name);
+      versions.put(name, Collections.synchronizedList(Lists.<Long>newArrayList()));
+    }
+
+    // Interleave the wavelets' deltas so that every bundle holds several wavelets.
+    for (int d = 0; d < DELTAS_PER_WAVELET; d++) {
+      for (final WaveletName name : names) {
+        deltaSigner.sign(name, delta(d), new CertificateManager.SignatureResultListener() {
+          @Override
+          public void signatureResult(ProtocolSignedDelta signedDelta) {
+            assertEquals(1, signedDelta.getSignatureCount());
+            assertEquals(merkle, MerkleTree.hasProof(signedDelta.getSignature(0)));
+            try {
+              versions.get(name).add(
+                  ProtocolWaveletDelta.parseFrom(signedDelta.getDelta()).getHashedVersion()
+                      .getVersion());
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+            signed.countDown();
+          }
+        });
+      }
+    }
+
+    assertTrue(signed.await(30, TimeUnit.SECONDS));
+    for (WaveletName name : names) {
+      List<Long> received = versions.get(name);
+      assertEquals(DELTAS_PER_WAVELET, received.size());
+      for (int d = 0; d < DELTAS_PER_WAVELET; d++) {
+        assertEquals(Long.valueOf(d), received.get(d));
+      }
+    }
+    assertEquals(0, deltaSigner.getQueueDepth());
+    assertTrue(deltaSigner.getBundlesSigned() > 0);
+  }
+
+  public void testPartialBundleIsSignedAfterDelay() throws Exception {
+    final CountDownLatch signed = new CountDownLatch(1);
+    deltaSigner.sign(WaveletName.of("example.com!w+a", "example.com!conv+root"), delta(0),
+        new CertificateManager.SignatureResultListener() {
+          @Override
+          public void signatureResult(ProtocolSignedDelta signedDelta) {
+            signed.countDown();
+          }
+        });
+    assertTrue(signed.await(10, TimeUnit.SECONDS));
+  }
+}
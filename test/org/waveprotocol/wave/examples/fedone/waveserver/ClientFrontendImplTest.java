@@ -19,14 +19,17 @@ package org.waveprotocol.wave.examples.fedone.waveserver;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.internal.Nullable;
 
 import junit.framework.TestCase;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNotNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -36,6 +39,7 @@ import static org.waveprotocol.wave.examples.fedone.common.HashedVersion.unsigne
 import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
 import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
 import org.waveprotocol.wave.examples.fedone.waveserver.ClientFrontend.OpenListener;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot;
 import static org.waveprotocol.wave.examples.fedone.waveserver.ClientFrontendImpl.DIGEST_AUTHOR;
 import static org.waveprotocol.wave.examples.fedone.waveserver.ClientFrontendImpl.DIGEST_DOCUMENT_ID;
 import static org.waveprotocol.wave.examples.fedone.waveserver.ClientFrontendImpl.createUnsignedDeltas;
@@ -59,11 +63,12 @@ import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.waveserver.SubmitResultListener;
 
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  *
@@ -211,6 +216,210 @@ public class ClientFrontendImplTest extends TestCase {
     verifyZeroInteractions(listener);
   }
 
+  /**
+   * Tests that a listener opening with snapshots gets a snapshot of the
+   * wavelet rather than its history, then the deltas which follow.
+   */
+  public void testOpenWithSnapshot() {
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, DELTAS, true, false, "", "");
+    WaveletSnapshotAndVersions snapshot = snapshotAt(1L);
+    RecordingListener listener = new RecordingListener();
+    clientFrontend.openRequest(USER, WAVE_ID, ALL_WAVELETS, Integer.MAX_VALUE, true, listener);
+    assertEquals(ImmutableList.of(snapshot), listener.snapshots);
+    assertEquals(ImmutableList.of(ImmutableList.of()), listener.deltas);
+    verify(waveletProvider, never()).getHistory((WaveletName) any(),
+        (ProtocolHashedVersion) any(), (ProtocolHashedVersion) any());
+
+    DeltaSequence next = createUnsignedDeltas(ImmutableList.of(
+        makeDelta(USER, unsigned(1L), NoOp.INSTANCE)));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, next, false, false, "", "");
+    assertEquals(ImmutableList.of(ImmutableList.of(), next), listener.deltas);
+  }
+
+  /**
+   * Tests that deltas which a snapshot already covers aren't sent after it.
+   */
+  public void testSnapshotAheadOfBroadcastDeltas() {
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, DELTAS, true, false, "", "");
+    snapshotAt(3L);
+    RecordingListener listener = new RecordingListener();
+    clientFrontend.openRequest(USER, WAVE_ID, ALL_WAVELETS, Integer.MAX_VALUE, true, listener);
+
+    DeltaSequence covered = createUnsignedDeltas(ImmutableList.of(
+        makeDelta(USER, unsigned(1L), NoOp.INSTANCE, NoOp.INSTANCE)));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, covered, false, false, "", "");
+    assertEquals(1, listener.deltas.size());
+
+    DeltaSequence next = createUnsignedDeltas(ImmutableList.of(
+        makeDelta(USER, unsigned(3L), NoOp.INSTANCE)));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, next, false, false, "", "");
+    assertEquals(ImmutableList.of(ImmutableList.of(), next), listener.deltas);
+  }
+
+  /**
+   * Tests that deltas broadcast beyond a snapshot's version are sent after it.
+   */
+  public void testSnapshotBehindBroadcastDeltas() {
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, DELTAS, true, false, "", "");
+    DeltaSequence tail = createUnsignedDeltas(ImmutableList.of(
+        makeDelta(USER, unsigned(1L), NoOp.INSTANCE, NoOp.INSTANCE)));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, tail, false, false, "", "");
+    WaveletSnapshotAndVersions snapshot = snapshotAt(1L);
+    when(waveletProvider.getHistory(WAVELET_NAME, snapshot.currentVersion,
+        tail.getEndVersion())).thenReturn(tail);
+
+    RecordingListener listener = new RecordingListener();
+    clientFrontend.openRequest(USER, WAVE_ID, ALL_WAVELETS, Integer.MAX_VALUE, true, listener);
+    assertEquals(Lists.newArrayList(snapshot, null), listener.snapshots);
+    assertEquals(ImmutableList.of(ImmutableList.of(), tail), listener.deltas);
+    assertEquals(tail.getEndVersion(), listener.endVersions.get(1));
+  }
+
+  /**
+   * Tests that an index wavelet's snapshot holds the participants and digest
+   * of the wavelet it refers to, at the version of the deltas sent so far.
+   */
+  public void testOpenIndexWithSnapshot() {
+    waveletUpdate(VERSION_0,
+        ImmutableMap.of("default", makeAppend(0, "Hello, world\nignored text")),
+        new AddParticipant(USER),
+        NoOp.INSTANCE
+        );
+    RecordingListener listener = new RecordingListener();
+    clientFrontend.openRequest(USER, INDEX_WAVE_ID, ALL_WAVELETS, Integer.MAX_VALUE, true,
+        listener);
+
+    assertEquals(ImmutableList.of(INDEX_WAVELET_NAME), listener.waveletNames);
+    WaveletSnapshot expected = WaveletSnapshot.newBuilder()
+        .addParticipantId(USER.getAddress())
+        .addDocument(WaveletSnapshot.DocumentSnapshot.newBuilder()
+            .setDocumentId(DIGEST_DOCUMENT_ID)
+            .setDocumentOperation(serialize(makeAppend(0, "Hello, world"))))
+        .build();
+    WaveletSnapshotAndVersions snapshot = listener.snapshots.get(0);
+    assertEquals(expected, snapshot.snapshot);
+    // One digest operation, then one participant operation.
+    assertEquals(serialize(unsigned(2L)), snapshot.currentVersion);
+    verify(waveletProvider, never()).getHistory((WaveletName) any(),
+        (ProtocolHashedVersion) any(), (ProtocolHashedVersion) any());
+  }
+
+  /**
+   * Tests that a wavelet restored from its state, rather than its history, is
+   * opened from that state and updated from its version on.
+   */
+  public void testRestoredWavelet() {
+    clientFrontend.waveletRestored(WAVELET_NAME, ImmutableList.of(USER),
+        serialize(unsigned(2L)),
+        ImmutableMap.of("default", makeAppend(0, "Hello, world\nignored text")));
+
+    RecordingListener indexListener = new RecordingListener();
+    clientFrontend.openRequest(USER, INDEX_WAVE_ID, ALL_WAVELETS, Integer.MAX_VALUE, true,
+        indexListener);
+    WaveletSnapshot expected = WaveletSnapshot.newBuilder()
+        .addParticipantId(USER.getAddress())
+        .addDocument(WaveletSnapshot.DocumentSnapshot.newBuilder()
+            .setDocumentId(DIGEST_DOCUMENT_ID)
+            .setDocumentOperation(serialize(makeAppend(0, "Hello, world"))))
+        .build();
+    assertEquals(expected, indexListener.snapshots.get(0).snapshot);
+
+    WaveletSnapshotAndVersions snapshot = snapshotAt(2L);
+    RecordingListener listener = new RecordingListener();
+    clientFrontend.openRequest(USER, WAVE_ID, ALL_WAVELETS, Integer.MAX_VALUE, true, listener);
+    assertEquals(ImmutableList.of(snapshot), listener.snapshots);
+    verify(waveletProvider, never()).getHistory((WaveletName) any(),
+        (ProtocolHashedVersion) any(), (ProtocolHashedVersion) any());
+
+    waveletUpdate(unsigned(2L), ImmutableMap.of("default", makeAppend(0, "Hello, world\n")),
+        NoOp.INSTANCE);
+    assertEquals(2, listener.deltas.size());
+    assertEquals(serialize(unsigned(3L)), listener.endVersions.get(1));
+  }
+
+  /**
+   * Tests that only the most recently modified wavelets are sent when a
+   * wave is opened with a limit, and that the others are marked by their
+   * names and left out of the subscription.
+   */
+  public void testMaximumInitialWavelets() {
+    WaveletName otherWaveletName = WaveletName.of(WAVE_ID, new WaveletId("domain", "other"));
+    DeltaSequence otherDeltas = createUnsignedDeltas(ImmutableList.of(
+        serialize(new WaveletDelta(USER, ImmutableList.of(new AddParticipant(USER))),
+            HashedVersion.versionZero(otherWaveletName))));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, DELTAS, true, false, "", "");
+    clientFrontend.participantUpdate(otherWaveletName, USER, otherDeltas, true, false, "", "");
+    when(waveletProvider.getHistory(eq(otherWaveletName), (ProtocolHashedVersion) any(),
+        (ProtocolHashedVersion) any())).thenReturn(otherDeltas);
+
+    // Make the other wavelet the most recently modified.
+    SubmitResultListener submitListener = mock(SubmitResultListener.class);
+    clientFrontend.submitRequest(otherWaveletName, DELTA, submitListener);
+    ArgumentCaptor<SubmitResultListener> submitted =
+        ArgumentCaptor.forClass(SubmitResultListener.class);
+    verify(waveletProvider).submitRequest(eq(otherWaveletName), eq(DELTA), submitted.capture());
+    submitted.getValue().onSuccess(1, otherDeltas.getEndVersion(), 1000L);
+
+    RecordingListener listener = new RecordingListener();
+    clientFrontend.openRequest(USER, WAVE_ID, ALL_WAVELETS, 1, false, listener);
+    assertEquals(ImmutableList.of(otherWaveletName, WAVELET_NAME), listener.waveletNames);
+    assertNull(listener.snapshots.get(1));
+    assertEquals(ImmutableList.of(), listener.deltas.get(1));
+    assertNull(listener.endVersions.get(1));
+
+    // Updates to the wavelet left out aren't sent...
+    DeltaSequence next = createUnsignedDeltas(ImmutableList.of(
+        makeDelta(USER, unsigned(1L), NoOp.INSTANCE)));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, next, false, false, "", "");
+    assertEquals(2, listener.waveletNames.size());
+
+    // ...even once its history starts again from version 0.
+    DeltaSequence removal = createUnsignedDeltas(ImmutableList.of(
+        makeDelta(USER, unsigned(2L), new RemoveParticipant(USER))));
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, removal, false, true, "", "");
+    clientFrontend.participantUpdate(WAVELET_NAME, USER, DELTAS, true, false, "", "");
+    assertEquals(2, listener.waveletNames.size());
+  }
+
+  /**
+   * @return the snapshot the wavelet provider will return, at the given
+   *         version
+   */
+  private WaveletSnapshotAndVersions snapshotAt(long version) {
+    WaveletSnapshotAndVersions snapshot = new WaveletSnapshotAndVersions(
+        WaveletSnapshot.newBuilder().addParticipantId(USER.getAddress()).build(),
+        HashedVersion.unsigned(version), null);
+    when(waveletProvider.getSnapshot(eq(WAVELET_NAME),
+        Matchers.<WaveletSnapshotBuilder<WaveletSnapshotAndVersions>>any()))
+        .thenReturn(snapshot);
+    return snapshot;
+  }
+
+  /** An OpenListener that records every update. */
+  static final class RecordingListener implements OpenListener {
+    final List<WaveletName> waveletNames = Lists.newArrayList();
+    final List<WaveletSnapshotAndVersions> snapshots = Lists.newArrayList();
+    final List<List<ProtocolWaveletDelta>> deltas = Lists.newArrayList();
+    final List<ProtocolHashedVersion> endVersions = Lists.newArrayList();
+
+    @Override
+    public void onFailure(String errorMessage) {
+      fail("unexpected");
+    }
+
+    @Override
+    public void onUpdate(WaveletName wn,
+        @Nullable WaveletSnapshotAndVersions snapshot,
+        List<ProtocolWaveletDelta> newDeltas,
+        @Nullable ProtocolHashedVersion endVersion,
+        @Nullable ProtocolHashedVersion committedVersion) {
+      waveletNames.add(wn);
+      snapshots.add(snapshot);
+      deltas.add(ImmutableList.copyOf(newDeltas));
+      endVersions.add(endVersion);
+    }
+  }
+
   /**
    * An OpenListener that expects only onUpdate() calls and publishes the
    * values passed in.
@@ -321,9 +530,7 @@ public class ClientFrontendImplTest extends TestCase {
     assertTrue(!oldListener.deltas.isEmpty());
 
     // TODO(tobiast): Let getHistory() return a DeltaSequence, and simplify this test
-    NavigableSet<ProtocolWaveletDelta> expectedDeltas = new TreeSet<ProtocolWaveletDelta>(
-        WaveletContainerImpl.transformedDeltaComparator);
-    expectedDeltas.addAll(ImmutableList.copyOf(oldListener.deltas));
+    List<ProtocolWaveletDelta> expectedDeltas = ImmutableList.copyOf(oldListener.deltas);
     ProtocolHashedVersion startVersion = serialize(HashedVersion.versionZero(WAVELET_NAME));
     when(waveletProvider.getHistory(WAVELET_NAME, startVersion,
         oldListener.endVersion)).thenReturn(expectedDeltas);
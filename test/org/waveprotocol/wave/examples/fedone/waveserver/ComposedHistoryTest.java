@@ -0,0 +1,178 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.model.document.operation.BufferedDocInitialization;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.Transform;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+
+/**
+ * Tests for {@link ComposedHistory}.
+ */
+public class ComposedHistoryTest extends TestCase {
+  private static final ParticipantId SERVER = new ParticipantId("server@example.com");
+  private static final ParticipantId CLIENT = new ParticipantId("client@example.com");
+  private static final String DOC = "doc";
+
+  private DeltaHistory history;
+  private ComposedHistory composedHistory;
+  private long version;
+  private String text;
+  private int otherLength;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    history = new DeltaHistory();
+    composedHistory = new ComposedHistory(history);
+    version = 0;
+    text = "";
+    otherLength = 0;
+    append(docOp(DOC, new DocOpBuilder().characters("hello").build()));
+    text = "hello";
+  }
+
+  private void append(WaveletOperation... ops) {
+    history.append(HashedVersion.unsigned(version), new WaveletDelta(SERVER,
+        ImmutableList.of(ops)), null);
+    version += ops.length;
+  }
+
+  private static WaveletDocumentOperation docOp(String documentId, BufferedDocOp op) {
+    return new WaveletDocumentOperation(documentId, op);
+  }
+
+  /** Appends a server delta which edits the document one of several ways. */
+  private void appendServerEdit(int i) {
+    DocOpBuilder op = new DocOpBuilder();
+    switch (i % 3) {
+      case 0:
+        op.characters("s").retain(text.length());
+        text = "s" + text;
+        break;
+      case 1:
+        op.retain(text.length()).characters("t");
+        text = text + "t";
+        break;
+      default:
+        op.deleteCharacters(text.substring(0, 1)).retain(text.length() - 1);
+        text = text.substring(1);
+        break;
+    }
+    DocOpBuilder otherOp = new DocOpBuilder().characters("o");
+    if (otherLength > 0) {
+      otherOp.retain(otherLength);
+    }
+    otherLength++;
+    append(docOp(DOC, op.build()), docOp("other", otherOp.build()));
+  }
+
+  /** Transforms client ops against every server op in turn, as the container does. */
+  private List<WaveletOperation> transformOneByOne(int first, List<WaveletOperation> clientOps)
+      throws Exception {
+    List<WaveletOperation> transformed = Lists.newArrayList();
+    for (WaveletOperation c : clientOps) {
+      for (int i = first; i < history.size(); i++) {
+        for (WaveletOperation s : history.getDelta(i).getOperations()) {
+          c = Transform.transform(c, CLIENT, s, SERVER).clientOp();
+        }
+      }
+      transformed.add(c);
+    }
+    return transformed;
+  }
+
+  /** @return the server's document after the transformed client op. */
+  private static String applyClientOp(String serverText, WaveletOperation clientOp)
+      throws OperationException {
+    BufferedDocInitialization doc = new DocInitializationBuilder().characters(serverText).build();
+    return DocOpUtil.toXmlString(Composer.compose(doc,
+        ((WaveletDocumentOperation) clientOp).getOperation()));
+  }
+
+  private void checkMatchesOneByOne(int deltas) throws Exception {
+    for (int i = 0; i < deltas; i++) {
+      appendServerEdit(i);
+    }
+    List<WaveletOperation> clientOps = ImmutableList.<WaveletOperation>of(
+        docOp(DOC, new DocOpBuilder().retain(2).characters("X").retain(3).build()),
+        new AddParticipant(new ParticipantId("new@example.com")));
+
+    List<WaveletOperation> expected = transformOneByOne(1, clientOps);
+    List<WaveletOperation> actual = composedHistory.composeFrom(1).transform(clientOps, CLIENT);
+    assertEquals(2, actual.size());
+    assertEquals(applyClientOp(text, expected.get(0)), applyClientOp(text, actual.get(0)));
+    assertEquals(expected.get(1), actual.get(1));
+  }
+
+  public void testTransformWithinBlockMatchesOneByOne() throws Exception {
+    checkMatchesOneByOne(20);
+  }
+
+  public void testTransformAcrossBlocksMatchesOneByOne() throws Exception {
+    checkMatchesOneByOne(3 * ComposedHistory.BLOCK_SIZE + 7);
+    // Again, now that the blocks have been composed.
+    assertEquals(applyClientOp(text, transformOneByOne(1, clientEdit()).get(0)),
+        applyClientOp(text, composedHistory.composeFrom(1).transform(clientEdit(), CLIENT)
+            .get(0)));
+  }
+
+  private static List<WaveletOperation> clientEdit() {
+    return ImmutableList.<WaveletOperation>of(
+        docOp(DOC, new DocOpBuilder().retain(5).characters("!").build()));
+  }
+
+  public void testParticipantOpsAreKeptInOrder() throws Exception {
+    ParticipantId other = new ParticipantId("other@example.com");
+    append(new AddParticipant(other));
+    appendServerEdit(0);
+    append(new RemoveParticipant(other));
+    assertEquals(ImmutableList.of(new AddParticipant(other), new RemoveParticipant(other)),
+        composedHistory.composeFrom(1).getOtherOps());
+  }
+
+  public void testRemovedAuthorCannotSubmit() throws Exception {
+    appendServerEdit(0);
+    append(new RemoveParticipant(CLIENT));
+    try {
+      composedHistory.composeFrom(1).transform(clientEdit(), CLIENT);
+      fail("expected exception, but didn't get it");
+    } catch (OperationException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link DeltaHistory}.
+ */
+public class DeltaHistoryTest extends TestCase {
+  private static final ParticipantId USER = new ParticipantId("user@host.com");
+
+  private DeltaHistory history;
+  private List<ProtocolWaveletDelta> transformed;
+  private List<ByteStringMessage<ProtocolAppliedWaveletDelta>> applied;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    history = new DeltaHistory();
+    transformed = new ArrayList<ProtocolWaveletDelta>();
+    applied = new ArrayList<ByteStringMessage<ProtocolAppliedWaveletDelta>>();
+    // 40 deltas of 2 ops each, applied at versions 0, 2, 4, ... 78; enough to
+    // grow the arrays a few times.
+    for (long version = 0; version < 80; version += 2) {
+      append(version, 2);
+    }
+  }
+
+  public void testFloorIndex() {
+    assertEquals(0, history.floorIndex(0));
+    assertEquals(0, history.floorIndex(1));
+    assertEquals(1, history.floorIndex(2));
+    assertEquals(39, history.floorIndex(78));
+    assertEquals(39, history.floorIndex(1000));
+    assertEquals(-1, history.floorIndex(-1));
+  }
+
+  public void testRangeIncludesStraddlingDelta() {
+    assertEquals(transformed.subList(1, 3), history.getTransformedDeltas(3, 6));
+    assertEquals(applied.subList(1, 3), history.getAppliedDeltas(3, 6));
+    assertEquals(transformed.subList(1, 4), history.getTransformedDeltas(2, 7));
+    assertEquals(transformed, history.getTransformedDeltas(0, 80));
+    // As with any start version, the delta before the head is included.
+    assertEquals(transformed.subList(39, 40), history.getTransformedDeltas(80, 90));
+  }
+
+  public void testRangeIsStableAcrossAppends() {
+    List<ProtocolWaveletDelta> range = history.getTransformedDeltas(0, 80);
+    for (long version = 80; version < 200; version += 2) {
+      append(version, 2);
+    }
+    assertEquals(40, range.size());
+    assertEquals(transformed.subList(0, 40), range);
+    assertEquals(100, history.size());
+  }
+
+  public void testAppendOutOfOrderFails() {
+    try {
+      append(78, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // pass
+    }
+    assertEquals(40, history.size());
+  }
+
+  public void testIndexedDeltasAreResolvedOnceWhenRead() {
+    final List<WaveletDelta> deltas = new ArrayList<WaveletDelta>();
+    final List<Integer> resolved = new ArrayList<Integer>();
+    history = new DeltaHistory(new DeltaHistory.Resolver() {
+      @Override
+      public WaveletDelta resolve(int index) {
+        resolved.add(index);
+        return deltas.get(index);
+      }
+    });
+    transformed.clear();
+    applied.clear();
+    for (long version = 0; version < 6; version += 2) {
+      deltas.add(new WaveletDelta(USER, ops(2)));
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta = appliedDelta(version, 2,
+          serialize(deltas.get(deltas.size() - 1), HashedVersion.unsigned(version)));
+      history.index(HashedVersion.unsigned(version), appliedDelta);
+      applied.add(appliedDelta);
+    }
+    append(6, 2);
+    assertTrue(resolved.isEmpty());
+    assertEquals(applied, history.getAppliedDeltas(0, 8));
+
+    assertSame(deltas.get(1), history.getDelta(1));
+    assertEquals(serialize(deltas.get(2), HashedVersion.unsigned(4)),
+        history.getTransformedDeltas(4, 6).get(0));
+    assertEquals(deltas, history.getDeltas(0, 6));
+    assertEquals(ImmutableList.of(1, 2, 0), resolved);
+    assertEquals(transformed.get(0), history.getTransformedDeltas(6, 8).get(0));
+
+    try {
+      history.index(HashedVersion.unsigned(8), appliedDelta(8, 2, transformed.get(0)));
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // pass
+    }
+  }
+
+  public void testIndexedViewIsReadOnAnotherThreadWhileAppending() throws Exception {
+    final List<WaveletDelta> deltas = new ArrayList<WaveletDelta>();
+    history = new DeltaHistory(new DeltaHistory.Resolver() {
+      @Override
+      public WaveletDelta resolve(int index) {
+        // Read the history as a resolver transforming against it would.
+        assertEquals(index, history.floorIndex(index * 2L));
+        if (index > 0) {
+          history.getDelta(index - 1);
+        }
+        return deltas.get(index);
+      }
+    });
+    for (long version = 0; version < 20; version += 2) {
+      deltas.add(new WaveletDelta(USER, ops(2)));
+      history.index(HashedVersion.unsigned(version), appliedDelta(version, 2,
+          serialize(deltas.get(deltas.size() - 1), HashedVersion.unsigned(version))));
+    }
+    final List<WaveletDelta> view = history.getDeltas(0, 20);
+    final List<WaveletDelta> read = new ArrayList<WaveletDelta>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        for (int i = view.size() - 1; i >= 0; i--) {
+          read.add(0, view.get(i));
+        }
+      }
+    };
+    reader.start();
+    // Grow the arrays while the reader resolves.
+    for (long version = 20; version < 200; version += 2) {
+      append(version, 2);
+    }
+    reader.join();
+    assertEquals(deltas, read);
+    assertEquals(deltas, history.getDeltas(0, 20));
+  }
+
+  private static List<WaveletOperation> ops(int opCount) {
+    List<WaveletOperation> ops = new ArrayList<WaveletOperation>();
+    for (int i = 0; i < opCount; i++) {
+      ops.add(NoOp.INSTANCE);
+    }
+    return ops;
+  }
+
+  private static ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta(long version,
+      int opCount, ProtocolWaveletDelta protoDelta) {
+    return ByteStringMessage.fromMessage(
+        ProtocolAppliedWaveletDelta.newBuilder()
+            .setApplicationTimestamp(version)
+            .setOperationsApplied(opCount)
+            .setHashedVersionAppliedAt(serialize(HashedVersion.unsigned(version)))
+            .setSignedOriginalDelta(
+                ProtocolSignedDelta.newBuilder().setDelta(protoDelta.toByteString()))
+            .build());
+  }
+
+  private void append(long version, int opCount) {
+    WaveletDelta delta = new WaveletDelta(USER, ops(opCount));
+    HashedVersion appliedAt = HashedVersion.unsigned(version);
+    ProtocolWaveletDelta protoDelta = serialize(delta, appliedAt);
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+        appliedDelta(version, opCount, protoDelta);
+    history.append(appliedAt, delta, appliedDelta);
+    transformed.add(protoDelta);
+    applied.add(appliedDelta);
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link DigestTracker}.
+ */
+public class DigestTrackerTest extends TestCase {
+
+  private static final ParticipantId AUTHOR = new ParticipantId("digest@example.com");
+  private static final List<ProtocolWaveletDelta> NO_DELTAS = Collections.emptyList();
+
+  private DigestTracker tracker;
+  private Map<String, BufferedDocOp> documents;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tracker = new DigestTracker();
+    documents = Maps.newLinkedHashMap();
+  }
+
+  public void testTextWithoutNewlineIsReturnedWhole() {
+    documents.put("a", text("hello "));
+    documents.put("b", text("world"));
+    assertEquals("hello world", tracker.update(NO_DELTAS, documents));
+  }
+
+  public void testTextStopsAtFirstNewline() {
+    documents.put("a", text("hel"));
+    documents.put("b", new DocOpBuilder()
+        .elementStart("line", new AttributesImpl())
+        .characters("lo\nthere")
+        .elementEnd()
+        .build());
+    documents.put("c", text("never\n"));
+    assertEquals("hello\n", tracker.update(NO_DELTAS, documents));
+  }
+
+  public void testChangedAndRemovedDocumentsAreRerendered() {
+    documents.put("a", text("one"));
+    documents.put("b", text("two\n"));
+    assertEquals("onetwo\n", tracker.update(NO_DELTAS, documents));
+
+    documents.put("a", text("three "));
+    assertEquals("three two\n", tracker.update(
+        delta("a", new DocOpBuilder().deleteCharacters("one").characters("three ").build()),
+        documents));
+
+    documents.remove("a");
+    assertEquals("two\n", tracker.update(
+        delta("a", new DocOpBuilder().deleteCharacters("three ").build()), documents));
+
+    documents.put("a", text("four"));
+    assertEquals("two\n", tracker.update(delta("a", text("four")), documents));
+    documents.remove("b");
+    assertEquals("four", tracker.update(
+        delta("b", new DocOpBuilder().deleteCharacters("two\n").build()), documents));
+  }
+
+  public void testEditsPastTheFirstLineDoNotReadTheDocument() {
+    documents.put("a", new DocOpBuilder()
+        .elementStart("line", new AttributesImpl())
+        .elementEnd()
+        .characters("hello\nworld")
+        .build());
+    assertEquals("hello\n", tracker.update(NO_DELTAS, documents));
+
+    // Were the document read again, this would show.
+    documents.put("a", text("not read\n"));
+    assertEquals("hello\n", tracker.update(
+        delta("a", new DocOpBuilder().retain(8).characters("!").retain(5).build()), documents));
+  }
+
+  public void testEditsWithinTheFirstLineRerender() {
+    documents.put("a", text("hello\nworld"));
+    assertEquals("hello\n", tracker.update(NO_DELTAS, documents));
+
+    documents.put("a", text("heyllo\nworld"));
+    assertEquals("heyllo\n", tracker.update(
+        delta("a", new DocOpBuilder().retain(2).characters("y").retain(9).build()), documents));
+  }
+
+  public void testAnyEditToADocumentWithoutNewlineRerenders() {
+    documents.put("a", text("abc"));
+    documents.put("b", text("x\n"));
+    assertEquals("abcx\n", tracker.update(NO_DELTAS, documents));
+
+    documents.put("a", text("abcd"));
+    assertEquals("abcdx\n", tracker.update(
+        delta("a", new DocOpBuilder().retain(3).characters("d").build()), documents));
+  }
+
+  private static BufferedDocOp text(String characters) {
+    return new DocOpBuilder().characters(characters).build();
+  }
+
+  private static List<ProtocolWaveletDelta> delta(String documentId, BufferedDocOp operation) {
+    return ImmutableList.of(WaveletOperationSerializer.serialize(
+        new WaveletDelta(AUTHOR, ImmutableList.<WaveletOperation>of(
+            new WaveletDocumentOperation(documentId, operation))),
+        HashedVersion.unsigned(0)));
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.crypto.CertConstantUtil;
+import org.waveprotocol.wave.crypto.SignerInfo;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignerInfo.HashAlgorithm;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link FileCertPathStore}.
+ */
+public class FileCertPathStoreTest extends TestCase {
+
+  private File root;
+  private FileCertPathStore store;
+  private SignerInfo signerInfo;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    root = File.createTempFile("certpathstore", "");
+    root.delete();
+    store = new FileCertPathStore(root, 0);
+    signerInfo = new SignerInfo(HashAlgorithm.SHA256, ImmutableList.of(
+        CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT), "example.com");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = root.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    root.delete();
+    super.tearDown();
+  }
+
+  public void testSignerInfoSurvivesReopening() throws Exception {
+    assertNull(store.get(signerInfo.getSignerId()));
+    store.put(signerInfo.toProtoBuf());
+    Long validationTime = store.getValidationTime(signerInfo.getSignerId());
+    assertNotNull(validationTime);
+
+    store = new FileCertPathStore(root, 0);
+    SignerInfo loaded = store.get(signerInfo.getSignerId());
+    assertNotNull(loaded);
+    assertEquals(signerInfo.getCertificates(), loaded.getCertificates());
+    assertEquals("example.com", loaded.getDomain());
+    assertEquals(validationTime, store.getValidationTime(signerInfo.getSignerId()));
+  }
+
+  public void testStoringAgainKeepsTheParsedSignerInfo() throws Exception {
+    store.put(signerInfo.toProtoBuf());
+    SignerInfo stored = store.get(signerInfo.getSignerId());
+    store.put(signerInfo.toProtoBuf());
+    assertSame(stored, store.get(signerInfo.getSignerId()));
+    assertEquals(1, root.list().length);
+  }
+
+  public void testExpiredSignerInfoIsDropped() throws Exception {
+    store.put(signerInfo.toProtoBuf());
+    Thread.sleep(10);
+
+    store = new FileCertPathStore(root, TimeUnit.DAYS.toMillis(1));
+    assertNotNull(store.get(signerInfo.getSignerId()));
+    assertEquals(1, root.list().length);
+
+    store = new FileCertPathStore(root, 1);
+    assertNull(store.get(signerInfo.getSignerId()));
+    assertNull(store.getValidationTime(signerInfo.getSignerId()));
+    assertEquals(0, root.list().length);
+  }
+
+  public void testCorruptSignerInfoIsSkipped() throws Exception {
+    store.put(signerInfo.toProtoBuf());
+    File file = root.listFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() - 1);
+    raf.write(raf.read() ^ 0xff);
+    raf.close();
+
+    store = new FileCertPathStore(root, 0);
+    assertNull(store.get(signerInfo.getSignerId()));
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link FileDeltaStore}.
+ */
+public class FileDeltaStoreTest extends TestCase {
+  private static final WaveletName WAVELET_NAME = WaveletName.of("example.com!w+abc",
+      "example.com!conv+root");
+  private static final WaveletName OTHER_WAVELET_NAME = WaveletName.of("example.com!w+def",
+      "example.com!conv+root");
+
+  private File root;
+  private FileDeltaStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    root = File.createTempFile("deltastore", "");
+    root.delete();
+    store = new FileDeltaStore(root, 1024, 0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    store.close();
+    delete(root);
+    super.tearDown();
+  }
+
+  public void testAppendedDeltasAreReadBackAfterReopen() throws Exception {
+    appendAndWait(WAVELET_NAME, 0, delta("a"), delta("b"), delta("c"));
+    appendAndWait(OTHER_WAVELET_NAME, 0, delta("x"));
+    store.close();
+
+    store = new FileDeltaStore(root, 1024, 0);
+    assertEquals(2, store.getWaveletNames().size());
+    assertTrue(store.getWaveletNames().contains(WAVELET_NAME));
+    assertTrue(store.getWaveletNames().contains(OTHER_WAVELET_NAME));
+    assertEquals(ImmutableList.of(delta("a"), delta("b"), delta("c")),
+        store.readDeltas(WAVELET_NAME, 0));
+    assertEquals(ImmutableList.of(delta("x")), store.readDeltas(OTHER_WAVELET_NAME, 0));
+  }
+
+  public void testReadFromVersionSkipsEarlierDeltas() throws Exception {
+    appendAndWait(WAVELET_NAME, 0, delta("a"), delta("b"), delta("c"));
+    assertEquals(ImmutableList.of(delta("b"), delta("c")), store.readDeltas(WAVELET_NAME, 1));
+    assertEquals(ImmutableList.of(), store.readDeltas(WAVELET_NAME, 3));
+  }
+
+  public void testSegmentsRollOver() throws Exception {
+    ByteString big = ByteString.copyFrom(new byte[600]);
+    appendAndWait(WAVELET_NAME, 0, big, big, big, delta("end"));
+    File[] segments = waveletDirectory().listFiles();
+    assertEquals(2, segments.length);
+    assertEquals(ImmutableList.of(big, big, big, delta("end")), store.readDeltas(WAVELET_NAME, 0));
+    assertEquals(ImmutableList.of(big, delta("end")), store.readDeltas(WAVELET_NAME, 2));
+  }
+
+  public void testTornRecordIsDiscarded() throws Exception {
+    appendAndWait(WAVELET_NAME, 0, delta("a"), delta("b"));
+    store.close();
+
+    // Chop the last record in half, as if the server crashed mid-write.
+    File segment = waveletDirectory().listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(file.length() - 1);
+    file.close();
+
+    store = new FileDeltaStore(root, 1024, 0);
+    assertEquals(ImmutableList.of(delta("a")), store.readDeltas(WAVELET_NAME, 0));
+    appendAndWait(WAVELET_NAME, 1, delta("c"));
+    assertEquals(ImmutableList.of(delta("a"), delta("c")), store.readDeltas(WAVELET_NAME, 0));
+  }
+
+  public void testCallbacksRunInAppendOrder() throws Exception {
+    final AtomicInteger next = new AtomicInteger(0);
+    final CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      final int expected = i;
+      store.append(WAVELET_NAME, i, delta("d" + i), new DeltaStore.AppendCallback() {
+        @Override
+        public void onCommitted() {
+          assertTrue(next.compareAndSet(expected, expected + 1));
+          done.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+          fail("Unexpected failure " + e);
+        }
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(100, next.get());
+    assertEquals(100, store.readDeltas(WAVELET_NAME, 0).size());
+  }
+
+  public void testWriterSurvivesBatchThatThrows() throws Exception {
+    final CountDownLatch failed = new CountDownLatch(1);
+    // A null delta makes the writer throw a NullPointerException.
+    store.append(OTHER_WAVELET_NAME, 0, null, new DeltaStore.AppendCallback() {
+      @Override
+      public void onCommitted() {
+        fail("Unexpected commit");
+      }
+
+      @Override
+      public void onFailure(IOException e) {
+        failed.countDown();
+      }
+    });
+    assertTrue(failed.await(10, TimeUnit.SECONDS));
+    appendAndWait(WAVELET_NAME, 0, delta("a"));
+    assertEquals(ImmutableList.of(delta("a")), store.readDeltas(WAVELET_NAME, 0));
+  }
+
+  // Utilities
+
+  private void appendAndWait(WaveletName waveletName, long firstVersion, ByteString... deltas)
+      throws Exception {
+    final CountDownLatch committed = new CountDownLatch(deltas.length);
+    long version = firstVersion;
+    for (ByteString delta : deltas) {
+      store.append(waveletName, version++, delta, new DeltaStore.AppendCallback() {
+        @Override
+        public void onCommitted() {
+          committed.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+          fail("Unexpected failure " + e);
+        }
+      });
+    }
+    assertTrue(committed.await(10, TimeUnit.SECONDS));
+  }
+
+  private File waveletDirectory() {
+    return new File(new File(root, "example.com%21w%2Babc"), "example.com%21conv%2Broot");
+  }
+
+  private static ByteString delta(String content) {
+    return ByteString.copyFromUtf8(content);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
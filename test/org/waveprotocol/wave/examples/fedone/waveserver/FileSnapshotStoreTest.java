@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveserver.SnapshotStore.VersionedSnapshot;
+import org.waveprotocol.wave.examples.fedone.waveserver.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for {@link FileSnapshotStore}.
+ */
+public class FileSnapshotStoreTest extends TestCase {
+  private static final WaveletName WAVELET_NAME = WaveletName.of("example.com!w+abc",
+      "example.com!conv+root");
+
+  private File root;
+  private FileSnapshotStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    root = File.createTempFile("snapshotstore", "");
+    root.delete();
+    store = new FileSnapshotStore(root);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(root);
+    super.tearDown();
+  }
+
+  public void testLatestSnapshotReplacesEarlierOnes() throws Exception {
+    assertNull(store.read(WAVELET_NAME));
+
+    store.write(WAVELET_NAME, snapshot(10, "a@example.com"));
+    store.write(WAVELET_NAME, snapshot(20, "b@example.com"));
+
+    store = new FileSnapshotStore(root);
+    VersionedSnapshot read = store.read(WAVELET_NAME);
+    assertEquals(snapshot(20, "b@example.com").version, read.version);
+    assertEquals(snapshot(20, "b@example.com").snapshot, read.snapshot);
+    assertEquals(1, FileDeltaStore.getWaveletDirectory(root, WAVELET_NAME).list().length);
+  }
+
+  public void testCorruptSnapshotIsNotRead() throws Exception {
+    store.write(WAVELET_NAME, snapshot(10, "a@example.com"));
+    File file = FileDeltaStore.getWaveletDirectory(root, WAVELET_NAME).listFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() - 1);
+    raf.write(raf.read() ^ 0xff);
+    raf.close();
+
+    try {
+      store.read(WAVELET_NAME);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // pass
+    }
+  }
+
+  private static VersionedSnapshot snapshot(long version, String participant) {
+    return new VersionedSnapshot(
+        WaveletSnapshot.newBuilder().addParticipantId(participant).build(),
+        new HashedVersion(version, new byte[] {(byte) version, 1, 2, 3}));
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -102,6 +102,40 @@ public class LocalWaveletContainerImplTest extends TestCase {
     assertEquals(dar1.getHashedVersionAfterApplication(), dar2.getHashedVersionAfterApplication());
   }
 
+  /**
+   * Tests that a delta resubmitted far behind head, by an author who has
+   * submitted deltas of the same size since, is found to be a duplicate,
+   * while a different delta of the same size is applied at head.
+   */
+  public void testDuplicateFarBehindHead() throws Exception {
+    DeltaApplicationResult v0Response = wavelet.submitRequest(
+        WAVELET_NAME, createProtocolSignedDelta(addParticipantOp, versionZeroHashedVersion));
+    ProtocolHashedVersion v1 = v0Response.getHashedVersionAfterApplication();
+    ProtocolSignedDelta psd = createProtocolSignedDelta(addBlipOp, v1);
+    DeltaApplicationResult dar1 = wavelet.submitRequest(WAVELET_NAME, psd);
+
+    ProtocolHashedVersion head = dar1.getHashedVersionAfterApplication();
+    for (int i = 0; i < WaveletContainerImpl.COMPOSED_TRANSFORM_THRESHOLD; i++) {
+      head = wavelet.submitRequest(WAVELET_NAME,
+          createProtocolSignedDelta(createBlipOp("b+" + i), head))
+          .getHashedVersionAfterApplication();
+    }
+
+    DeltaApplicationResult dar2 = wavelet.submitRequest(WAVELET_NAME, psd);
+    assertEquals(dar1.getHashedVersionAfterApplication(), dar2.getHashedVersionAfterApplication());
+    assertEquals(head.getVersion(), wavelet.getCurrentVersion().getVersion());
+
+    DeltaApplicationResult other = wavelet.submitRequest(WAVELET_NAME,
+        createProtocolSignedDelta(createBlipOp("b+other"), v1));
+    assertEquals(head.getVersion() + 1,
+        other.getHashedVersionAfterApplication().getVersion());
+  }
+
+  private static ProtocolWaveletOperation createBlipOp(String blipId) {
+    return WaveletOperationSerializer.serialize(
+        new WaveletDocumentOperation(blipId, new DocOpBuilder().build()));
+  }
+
   private ProtocolSignedDelta createProtocolSignedDelta(ProtocolWaveletOperation operation,
       ProtocolHashedVersion protocolHashedVersion) {
     ProtocolWaveletDelta delta = ProtocolWaveletDelta.newBuilder()
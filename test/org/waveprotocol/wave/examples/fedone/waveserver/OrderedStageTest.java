@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link OrderedStage} and {@link LatencyHistogram}.
+ */
+public class OrderedStageTest extends TestCase {
+
+  public void testTasksForOneKeyRunInOrder() throws Exception {
+    OrderedStage<Integer> stage = new OrderedStage<Integer>("Test", 4, 1000);
+    final int keys = 5;
+    final int tasksPerKey = 100;
+    final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+    final List<List<Integer>> ran = Lists.newArrayList();
+    for (int k = 0; k < keys; k++) {
+      ran.add(Collections.synchronizedList(Lists.<Integer>newArrayList()));
+    }
+
+    for (int t = 0; t < tasksPerKey; t++) {
+      for (int k = 0; k < keys; k++) {
+        final int key = k;
+        final int task = t;
+        stage.execute(key, new Runnable() {
+          @Override
+          public void run() {
+            ran.get(key).add(task);
+            done.countDown();
+          }
+        });
+      }
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (List<Integer> tasks : ran) {
+      assertEquals(tasksPerKey, tasks.size());
+      for (int t = 0; t < tasksPerKey; t++) {
+        assertEquals(Integer.valueOf(t), tasks.get(t));
+      }
+    }
+    // Latency is recorded after each task, so wait for the last to leave.
+    long deadline = System.currentTimeMillis() + 10000;
+    while (stage.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(keys * tasksPerKey, stage.getLatency().getCount());
+  }
+
+  public void testKeysRunInParallel() throws Exception {
+    OrderedStage<String> stage = new OrderedStage<String>("Test", 2, 10);
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    final CountDownLatch done = new CountDownLatch(2);
+    for (String key : new String[] {"a", "b"}) {
+      stage.execute(key, new Runnable() {
+        @Override
+        public void run() {
+          bothRunning.countDown();
+          try {
+            if (bothRunning.await(10, TimeUnit.SECONDS)) {
+              done.countDown();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testStatsAreExportedByName() throws Exception {
+    OrderedStage<String> stage = new OrderedStage<String>("Exported", 1, 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    stage.execute("a", new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertEquals(1, OrderedStage.varzQueueDepth.get("Exported").get());
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (stage.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(0, OrderedStage.varzQueueDepth.get("Exported").get());
+    assertEquals(1, OrderedStage.varzLatency.get("Exported").getCount());
+  }
+
+  public void testFullStageMakesSubmittersWait() throws Exception {
+    final OrderedStage<String> stage = new OrderedStage<String>("Test", 1, 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocked = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    stage.execute("a", blocked);
+    stage.execute("a", blocked);
+    assertEquals(2, stage.getQueueDepth());
+
+    final CountDownLatch submitted = new CountDownLatch(1);
+    new Thread() {
+      @Override
+      public void run() {
+        stage.execute("b", new Runnable() {
+          @Override
+          public void run() {
+          }
+        });
+        submitted.countDown();
+      }
+    }.start();
+    assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+    release.countDown();
+    assertTrue(submitted.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testFailingTaskDoesNotStopTheKey() throws Exception {
+    OrderedStage<String> stage = new OrderedStage<String>("Test", 1, 10);
+    final CountDownLatch done = new CountDownLatch(1);
+    stage.execute("a", new Runnable() {
+      @Override
+      public void run() {
+        throw new RuntimeException("expected");
+      }
+    });
+    stage.execute("a", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentileMicros(50));
+    for (int i = 0; i < 99; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(100, histogram.getCount());
+    assertEquals(4, histogram.getPercentileMicros(50));
+    assertEquals(4, histogram.getPercentileMicros(99));
+    assertEquals(131072, histogram.getPercentileMicros(100));
+    assertEquals(100000, histogram.getMaxMicros());
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
+import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+
+/**
+ * Tests for {@link ParticipantOpCache}.
+ */
+public class ParticipantOpCacheTest extends TestCase {
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of("example.com!w+a", "example.com!conv+root");
+
+  private static ProtocolWaveletDelta delta(long version, String... addresses) {
+    ImmutableList.Builder<ProtocolWaveletOperation> ops = ImmutableList.builder();
+    ops.add(WaveletOperationSerializer.serialize(new WaveletDocumentOperation("doc",
+        new DocOpBuilder().characters("hello").build())));
+    for (int i = 0; i < addresses.length; i++) {
+      ProtocolWaveletOperation.Builder op = ProtocolWaveletOperation.newBuilder();
+      ops.add((i % 2 == 0) ? op.setAddParticipant(addresses[i]).build()
+          : op.setRemoveParticipant(addresses[i]).build());
+    }
+    return ProtocolWaveletDelta.newBuilder()
+        .setAuthor("author@example.com")
+        .addAllOperation(ops.build())
+        .setHashedVersion(WaveletOperationSerializer.serialize(HashedVersion.unsigned(version)))
+        .build();
+  }
+
+  public void testScanMatchesDeserialization() {
+    ProtocolWaveletDelta delta = delta(3, "Joe@Example.com", "jane@example.com", "bob@example.com");
+    List<ProtocolWaveletOperation> expected = ImmutableList.of(
+        WaveletOperationSerializer.serialize(
+            new AddParticipant(new ParticipantId("Joe@Example.com"))),
+        WaveletOperationSerializer.serialize(
+            new RemoveParticipant(new ParticipantId("jane@example.com"))),
+        WaveletOperationSerializer.serialize(
+            new AddParticipant(new ParticipantId("bob@example.com"))));
+    assertEquals(expected, ParticipantOpCache.scan(delta));
+  }
+
+  public void testSameDeltaIsScannedOnce() {
+    ParticipantOpCache cache = new ParticipantOpCache(10);
+    ProtocolWaveletDelta delta = delta(0, "joe@example.com");
+    List<ProtocolWaveletOperation> first = cache.getParticipantOps(WAVELET_NAME, delta);
+    assertSame(first, cache.getParticipantOps(WAVELET_NAME, delta));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  public void testOtherDeltaAtSameVersionIsScannedAfresh() {
+    ParticipantOpCache cache = new ParticipantOpCache(10);
+    cache.getParticipantOps(WAVELET_NAME, delta(0, "joe@example.com"));
+    List<ProtocolWaveletOperation> ops =
+        cache.getParticipantOps(WAVELET_NAME, delta(0, "jane@example.com"));
+    assertEquals("jane@example.com", ops.get(0).getAddParticipant());
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.size());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    ParticipantOpCache cache = new ParticipantOpCache(2);
+    ProtocolWaveletDelta first = delta(0, "a@example.com");
+    ProtocolWaveletDelta second = delta(1, "b@example.com");
+    cache.getParticipantOps(WAVELET_NAME, first);
+    cache.getParticipantOps(WAVELET_NAME, second);
+    cache.getParticipantOps(WAVELET_NAME, first);
+    cache.getParticipantOps(WAVELET_NAME, delta(2, "c@example.com"));
+    assertEquals(2, cache.size());
+
+    cache.getParticipantOps(WAVELET_NAME, first);
+    assertEquals(2, cache.getHits());
+    cache.getParticipantOps(WAVELET_NAME, second);
+    assertEquals(2, cache.getHits());
+  }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
+import static org.waveprotocol.wave.examples.fedone.util.AllocationCounter.allocatedBytes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
+import org.waveprotocol.wave.examples.fedone.waveserver.ClientFrontend.OpenListener;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures the time and the bytes allocated to fan a delta out to the
+ * listeners subscribed to a wave, matching the subscriptions through the
+ * prefix index of {@link UserManager} and, for comparison, by testing every
+ * prefix of every subscription against the serialised wavelet id as the user
+ * manager used to.
+ *
+ * Not a test; run it with {@code main}, optionally passing the number of
+ * subscriptions and the number of updates per run. Allocation is measured
+ * with the JVM's per-thread allocation counter, where the JVM has one.
+ */
+public class UserManagerBenchmark {
+
+  private static final ParticipantId AUTHOR = new ParticipantId("bench@example.com");
+  private static final WaveId WAVE_ID = new WaveId("example.com", "w+abc");
+
+  /** Every subscription matches this wavelet. */
+  private static final WaveletName CONVERSATION =
+      WaveletName.of(WAVE_ID, new WaveletId("example.com", "conv+root"));
+
+  /** Only one subscription matches this wavelet. */
+  private static final WaveletName USER_DATA =
+      WaveletName.of(WAVE_ID, new WaveletId("example.com", "user+7"));
+
+  /** A way of passing deltas on to the listeners subscribed to them. */
+  private interface FanOut {
+    void subscribe(WaveId waveId, Set<String> waveletIdPrefixes, OpenListener listener);
+
+    void onUpdate(WaveletName waveletName, DeltaSequence deltas);
+  }
+
+  /** Counts the updates it receives. */
+  private static class CountingListener implements OpenListener {
+    long updates = 0;
+
+    @Override
+    public void onFailure(String errorMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onUpdate(WaveletName waveletName, WaveletSnapshotAndVersions snapshot,
+        List<ProtocolWaveletDelta> deltas, ProtocolHashedVersion endVersion,
+        ProtocolHashedVersion committedVersion) {
+      updates++;
+    }
+  }
+
+  /** The linear scan the user manager used to match subscriptions with. */
+  private static class LinearFanOut implements FanOut {
+    private static class Subscription {
+      final List<String> waveletIdPrefixes;
+      final OpenListener openListener;
+
+      Subscription(Set<String> waveletIdPrefixes, OpenListener openListener) {
+        this.waveletIdPrefixes = ImmutableList.copyOf(waveletIdPrefixes);
+        this.openListener = openListener;
+      }
+
+      boolean matches(WaveletId waveletId) {
+        String waveletIdStr = waveletId.serialise();
+        for (String prefix : waveletIdPrefixes) {
+          if (waveletIdStr.startsWith(prefix)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+
+    private final ListMultimap<WaveId, Subscription> subscriptions = LinkedListMultimap.create();
+    private final Map<WaveletName, ProtocolHashedVersion> currentVersion = Maps.newHashMap();
+
+    @Override
+    public void subscribe(WaveId waveId, Set<String> waveletIdPrefixes, OpenListener listener) {
+      subscriptions.put(waveId, new Subscription(waveletIdPrefixes, listener));
+    }
+
+    @Override
+    public void onUpdate(WaveletName waveletName, DeltaSequence deltas) {
+      currentVersion.put(waveletName, deltas.getEndVersion());
+      List<OpenListener> result = Lists.newArrayList();
+      for (Subscription subscription : subscriptions.get(waveletName.waveId)) {
+        if (subscription.matches(waveletName.waveletId)) {
+          result.add(subscription.openListener);
+        }
+      }
+      for (OpenListener listener : result) {
+        listener.onUpdate(waveletName, null, deltas, deltas.getEndVersion(), null);
+      }
+    }
+  }
+
+  /** The user manager itself. */
+  private static class IndexedFanOut implements FanOut {
+    private final UserManager userManager = new UserManager();
+
+    IndexedFanOut() {
+      userManager.addWavelet(CONVERSATION);
+      userManager.addWavelet(USER_DATA);
+    }
+
+    @Override
+    public void subscribe(WaveId waveId, Set<String> waveletIdPrefixes, OpenListener listener) {
+      userManager.subscribe(waveId, waveletIdPrefixes, listener);
+    }
+
+    @Override
+    public void onUpdate(WaveletName waveletName, DeltaSequence deltas) {
+      userManager.onUpdate(waveletName, deltas);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int subscriptions = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+    int updates = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+    DeltaSequence[] deltas = new DeltaSequence[updates];
+    for (int i = 0; i < updates; i++) {
+      ProtocolWaveletDelta delta = serialize(
+          new WaveletDelta(AUTHOR, ImmutableList.<WaveletOperation>of(NoOp.INSTANCE)),
+          HashedVersion.unsigned(i));
+      deltas[i] = new DeltaSequence(ImmutableList.of(delta),
+          serialize(HashedVersion.unsigned(i + 1)));
+    }
+
+    // Warm up.
+    for (int i = 0; i < 3; i++) {
+      run(new LinearFanOut(), subscriptions, CONVERSATION, deltas);
+      run(new IndexedFanOut(), subscriptions, CONVERSATION, deltas);
+      run(new LinearFanOut(), subscriptions, USER_DATA, deltas);
+      run(new IndexedFanOut(), subscriptions, USER_DATA, deltas);
+    }
+
+    System.out.println(updates + " updates to " + subscriptions + " subscriptions");
+    System.out.println("path\twavelet\tns/update\tbytes allocated/update");
+    for (WaveletName waveletName : ImmutableList.of(CONVERSATION, USER_DATA)) {
+      String wavelet = waveletName.waveletId.serialise();
+      System.out.println("linear\t" + wavelet + "\t"
+          + run(new LinearFanOut(), subscriptions, waveletName, deltas));
+      System.out.println("indexed\t" + wavelet + "\t"
+          + run(new IndexedFanOut(), subscriptions, waveletName, deltas));
+    }
+  }
+
+  /**
+   * Subscribes listeners to the wave the way clients do, each to its own
+   * user data wavelet, to the conversation and to one of a few others, then
+   * fans deltas out to them.
+   *
+   * @return the time and bytes allocated per update, tab separated
+   */
+  private static String run(FanOut fanOut, int subscriptions, WaveletName waveletName,
+      DeltaSequence[] deltas) {
+    CountingListener listener = new CountingListener();
+    for (int i = 0; i < subscriptions; i++) {
+      fanOut.subscribe(WAVE_ID, ImmutableSet.of("example.com!user+" + i,
+          "example.com!conv+", "example.com!data+" + (i % 10)), listener);
+    }
+
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (DeltaSequence update : deltas) {
+      fanOut.onUpdate(waveletName, update);
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocatedBefore;
+    long expected = (waveletName == CONVERSATION) ? subscriptions : 1;
+    if (listener.updates != expected * deltas.length) {
+      throw new IllegalStateException("Expected " + expected * deltas.length + " updates, got "
+          + listener.updates);
+    }
+    return (elapsed / deltas.length) + "\t"
+        + ((allocatedBefore < 0) ? "n/a" : "" + allocated / deltas.length);
+  }
+}
@@ -19,6 +19,7 @@ package org.waveprotocol.wave.examples.fedone.waveserver;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.inject.internal.Nullable;
 
 import junit.framework.TestCase;
@@ -184,6 +185,85 @@ public class UserManagerTest extends TestCase {
     assertEquals(ImmutableList.of(l2, l5), m.matchSubscriptions(W2B));
   }
 
+  /**
+   * Tests that prefixes match at the boundaries of the parts of a wavelet id,
+   * and that many subscriptions are all matched, in the order made.
+   */
+  public void testMatchManySubscriptions() {
+    List<OpenListener> expected = Lists.newArrayList();
+    for (int i = 0; i < 150; i++) {
+      OpenListener listener = new MockListener("listener " + i);
+      switch (i % 5) {
+        case 0: m.subscribe(W2, ImmutableSet.of("waveletId!"), listener); break;
+        case 1: m.subscribe(W2, ImmutableSet.of("waveletId!A", "w"), listener); break;
+        case 2: m.subscribe(W2, ImmutableSet.of("waveletId!AB"), listener); break;
+        case 3: m.subscribe(W2, ImmutableSet.of("waveletIdA", "waveletId?"), listener); break;
+        default: m.subscribe(W1, ImmutableSet.of(""), listener); break;
+      }
+      if (i % 5 < 2) {
+        expected.add(listener);
+      }
+    }
+    assertEquals(expected, m.matchSubscriptions(W2A));
+    // Again, now the matches have been cleared.
+    assertEquals(expected, m.matchSubscriptions(W2A));
+    // "waveletId!" and "w" match the other wavelet too.
+    assertEquals(60, m.matchSubscriptions(W2B).size());
+    assertEquals(30, m.matchSubscriptions(W1A).size());
+  }
+
+  /**
+   * Tests that a listener which subscribes another while being updated
+   * doesn't stop the rest being updated.
+   */
+  public void testSubscribeDuringUpdate() {
+    final List<String> updated = Lists.newArrayList();
+    final OpenListener late = new RecordingListener("late", updated);
+    OpenListener subscribing = new RecordingListener("subscribing", updated) {
+      @Override
+      public void onUpdate(WaveletName waveletName,
+          @Nullable WaveletSnapshotAndVersions snapshot,
+          List<ProtocolWaveletDelta> deltas, @Nullable ProtocolHashedVersion endVersion,
+          @Nullable ProtocolHashedVersion committedVersion) {
+        super.onUpdate(waveletName, snapshot, deltas, endVersion, committedVersion);
+        for (int i = 0; i < 100; i++) {
+          m.subscribe(W1, ImmutableSet.of(""), new MockListener("other " + i));
+        }
+        m.subscribe(W1, ImmutableSet.of(""), late);
+        assertEquals(103, m.matchSubscriptions(W1A).size());
+      }
+    };
+    m.subscribe(W1, ImmutableSet.of(""), subscribing);
+    m.subscribe(W1, ImmutableSet.of("waveletId"), new RecordingListener("second", updated));
+    m.addWavelet(W1A);
+    m.onUpdate(W1A, DELTAS);
+    assertEquals(ImmutableList.of("subscribing", "second"), updated);
+  }
+
+  /** Records the names of the listeners updated. */
+  private static class RecordingListener implements OpenListener {
+    private final String name;
+    private final List<String> updated;
+
+    RecordingListener(String name, List<String> updated) {
+      this.name = name;
+      this.updated = updated;
+    }
+
+    @Override
+    public void onFailure(String errorMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onUpdate(WaveletName waveletName,
+        @Nullable WaveletSnapshotAndVersions snapshot,
+        List<ProtocolWaveletDelta> deltas, @Nullable ProtocolHashedVersion endVersion,
+        @Nullable ProtocolHashedVersion committedVersion) {
+      updated.add(name);
+    }
+  }
+
   /** Tests onUpdate() for a wavelet we're not a participant of. */
   public void testOnUpdateForUnknownWavelet() {
     try {
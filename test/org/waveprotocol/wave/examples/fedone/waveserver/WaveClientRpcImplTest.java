@@ -19,6 +19,7 @@ package org.waveprotocol.wave.examples.fedone.waveserver;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
@@ -45,6 +46,7 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.waveserver.SubmitResultListener;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -75,6 +77,10 @@ public class WaveClientRpcImplTest extends TestCase {
 
     private final Map<WaveId, OpenListener> openListeners = new HashMap<WaveId, OpenListener>();
 
+    Set<String> openWaveletIdPrefixes;
+    int openMaximumInitialWavelets;
+    boolean openSnapshotsEnabled;
+
     private final Map<WaveletName, SubmitRecord> submitRecords =
         new HashMap<WaveletName, SubmitRecord>();
 
@@ -106,6 +112,9 @@ public class WaveClientRpcImplTest extends TestCase {
         Set<String> waveletIdPrefixes, int maximumInitialWavelets, boolean snapshotsEnabled,
         OpenListener openListener) {
       openListeners.put(waveId, openListener);
+      openWaveletIdPrefixes = waveletIdPrefixes;
+      openMaximumInitialWavelets = maximumInitialWavelets;
+      openSnapshotsEnabled = snapshotsEnabled;
     }
 
     @Override
@@ -123,6 +132,11 @@ public class WaveClientRpcImplTest extends TestCase {
       }
     }
 
+    @Override
+    public void waveletRestored(WaveletName waveletName, Collection<ParticipantId> participants,
+        ProtocolHashedVersion version, Map<String, BufferedDocOp> documentState) {
+    }
+
     @Override
     public void waveletUpdate(WaveletName waveletName, List<ProtocolWaveletDelta> newDeltas,
         ProtocolHashedVersion resultingVersion, Map<String, BufferedDocOp> documentState) {
@@ -300,6 +314,29 @@ public class WaveClientRpcImplTest extends TestCase {
     assertFalse(controller.failed());
   }
 
+  /**
+   * Tests that every prefix, the wavelet limit and the snapshot flag of an
+   * open request are passed on to the frontend.
+   */
+  public void testOpenPassesOnRequestOptions() {
+    ProtocolOpenRequest request = ProtocolOpenRequest.newBuilder()
+        .setParticipantId(USER.getAddress())
+        .setWaveId(WAVE_ID.serialise())
+        .addWaveletIdPrefix("a")
+        .addWaveletIdPrefix("b")
+        .setMaximumWavelets(7)
+        .setSnapshots(true).build();
+    rpcImpl.open(controller, request, new RpcCallback<ProtocolWaveletUpdate>() {
+      @Override
+      public void run(ProtocolWaveletUpdate update) {
+      }
+    });
+    assertEquals(ImmutableSet.of("a", "b"), frontend.openWaveletIdPrefixes);
+    assertEquals(7, frontend.openMaximumInitialWavelets);
+    assertTrue(frontend.openSnapshotsEnabled);
+    assertFalse(controller.failed());
+  }
+
   /**
    * Tests that a failed submit results in the proper submit failure response.
    */
@@ -27,6 +27,9 @@ import org.waveprotocol.wave.examples.fedone.common.HashedVersion;
 import org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer;
 import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
 import org.waveprotocol.wave.examples.fedone.model.util.HashedVersionZeroFactoryImpl;
+import org.waveprotocol.wave.examples.fedone.waveserver.SnapshotStore.VersionedSnapshot;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
@@ -43,8 +46,13 @@ import org.waveprotocol.wave.model.operation.wave.WaveletDocumentOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for local and remote wavelet containers.
@@ -225,6 +233,17 @@ public class WaveletContainerTest extends TestCase {
     }
   }
 
+  public void testDocumentsViewFollowsTheWavelet() throws Exception {
+    Map<String, BufferedDocOp> documents = localWavelet.getDocuments();
+    assertTrue(documents.isEmpty());
+    String docId = "b+somedoc";
+    localWavelet.applyWaveletOperations(ImmutableList.<WaveletOperation> of(
+        new WaveletDocumentOperation(docId, new DocOpBuilder().characters("hi").build())));
+    assertEquals(Collections.singleton(docId), documents.keySet());
+    assertSame(localWavelet.getWaveletData().getDocuments().get(docId), documents.get(docId));
+    assertEquals(localWavelet.getWaveletData().getDocuments(), documents);
+  }
+
   public void testOperationsOfDifferentSizes() throws EmptyDeltaException, OperationException {
     String docId = "b+somedoc";
     BufferedDocOp docOp1 = new DocOpBuilder().characters("hi").build();
@@ -242,6 +261,193 @@ public class WaveletContainerTest extends TestCase {
     }
   }
 
+  public void testLocalWaveletIsRestoredFromDeltaStore() throws Exception {
+    File root = File.createTempFile("deltastore", "");
+    root.delete();
+    DeltaStore store = new FileDeltaStore(root, 1024 * 1024, 0);
+    final CountDownLatch committed = new CountDownLatch(2);
+    LocalWaveletContainerImpl wavelet = new LocalWaveletContainerImpl(waveletName, store,
+        new LocalWaveletContainer.CommitListener() {
+          @Override
+          public void waveletCommitted(WaveletName name, LocalWaveletContainer wavelet,
+              ProtocolHashedVersion version) {
+            committed.countDown();
+          }
+        });
+    wavelet.submitRequest(waveletName, ProtocolSignedDelta.newBuilder()
+        .addSignature(fakeSignature1)
+        .setDelta(addParticipantDelta.toByteString())
+        .build());
+    wavelet.submitRequest(waveletName, ProtocolSignedDelta.newBuilder()
+        .addSignature(fakeSignature2)
+        .setDelta(ProtocolWaveletDelta.newBuilder(removeParticipantDelta).setHashedVersion(
+            serialize(wavelet.getCurrentVersion())).build().toByteString())
+        .build());
+    assertTrue(committed.await(10, TimeUnit.SECONDS));
+    assertEquals(serialize(wavelet.getCurrentVersion()), wavelet.getLastCommittedVersion());
+    store.close();
+
+    store = new FileDeltaStore(root, 1024 * 1024, 0);
+    LocalWaveletContainerImpl restored = new LocalWaveletContainerImpl(waveletName, store, null);
+    restored.restoreHistory(store.readDeltas(waveletName, 0), null);
+    store.close();
+
+    assertEquals(wavelet.getCurrentVersion(), restored.getCurrentVersion());
+    assertEquals(wavelet.getLastCommittedVersion(), restored.getLastCommittedVersion());
+    assertEquals(Collections.emptyList(), restored.getParticipants());
+    assertTrue(restored.isDeltaSigner(serialize(restored.getCurrentVersion()), fakeSigner2));
+    assertEquals(wavelet.requestHistory(serialize(version0), serialize(wavelet.getCurrentVersion())),
+        restored.requestHistory(serialize(version0), serialize(restored.getCurrentVersion())));
+    assertTrue(restored.isPersisted());
+    deleteRecursively(root);
+  }
+
+  public void testMalformedPersistedDeltaCorruptsWavelet() throws Exception {
+    LocalWaveletContainerImpl restored =
+        new LocalWaveletContainerImpl(waveletName, new DisabledDeltaStore(), null);
+    try {
+      restored.restoreHistory(ImmutableList.of(ByteString.copyFrom(new byte[] {(byte) 0xff})),
+          null);
+      fail("Restoring a malformed delta did not throw WaveServerException");
+    } catch (WaveServerException expected) {
+      // Correct
+    }
+    assertEquals(WaveletContainer.State.CORRUPTED, restored.getState());
+  }
+
+  public void testLocalWaveletIsRestoredFromSnapshot() throws Exception {
+    File root = File.createTempFile("deltastore", "");
+    root.delete();
+    DeltaStore store = new DisabledDeltaStore();
+    SnapshotStore snapshots = new FileSnapshotStore(root);
+    WaveletSnapshotter snapshotter =
+        new WaveletSnapshotter(snapshots, 1, 0, new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            command.run();
+          }
+        });
+    LocalWaveletContainerImpl wavelet =
+        new LocalWaveletContainerImpl(waveletName, store, snapshotter, null);
+    ProtocolSignedDelta add = ProtocolSignedDelta.newBuilder()
+        .addSignature(fakeSignature1)
+        .setDelta(addParticipantDelta.toByteString())
+        .build();
+    wavelet.submitRequest(waveletName, add);
+    VersionedSnapshot snapshot = snapshots.read(waveletName);
+    assertEquals(wavelet.getCurrentVersion(), snapshot.version);
+    assertEquals(participants.size(), snapshot.snapshot.getParticipantIdCount());
+
+    ProtocolSignedDelta remove = ProtocolSignedDelta.newBuilder()
+        .addSignature(fakeSignature2)
+        .setDelta(ProtocolWaveletDelta.newBuilder(removeParticipantDelta).setHashedVersion(
+            serialize(wavelet.getCurrentVersion())).build().toByteString())
+        .build();
+    wavelet.submitRequest(waveletName, remove);
+    List<ByteString> deltas = Lists.newArrayList();
+    for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : wavelet.requestHistory(
+        serialize(version0), serialize(wavelet.getCurrentVersion()))) {
+      deltas.add(appliedDelta.getByteString());
+    }
+
+    // Only the delta after the snapshot is applied on restore.
+    LocalWaveletContainerImpl restored = new LocalWaveletContainerImpl(waveletName, store, null);
+    restored.restoreHistory(deltas, snapshot);
+    assertEquals(wavelet.getCurrentVersion(), restored.getCurrentVersion());
+    assertEquals(Collections.emptyList(), restored.getParticipants());
+    assertTrue(restored.isDeltaSigner(serialize(restored.getCurrentVersion()), fakeSigner2));
+    assertEquals(wavelet.requestTransformedHistory(serialize(version0),
+        serialize(wavelet.getCurrentVersion())), restored.requestTransformedHistory(
+        serialize(version0), serialize(restored.getCurrentVersion())));
+
+    // A snapshot which isn't of this history is rejected.
+    restored = new LocalWaveletContainerImpl(waveletName, store, null);
+    try {
+      restored.restoreHistory(deltas, new VersionedSnapshot(snapshot.snapshot,
+          new HashedVersion(snapshot.version.getVersion(), new byte[] {1})));
+      fail("Expected a WaveServerException");
+    } catch (WaveServerException expected) {
+      assertEquals(WaveletContainer.State.CORRUPTED, restored.getState());
+    }
+    deleteRecursively(root);
+  }
+
+  public void testDeltasBeforeSnapshotAreTransformedWhenRead() throws Exception {
+    File root = File.createTempFile("deltastore", "");
+    root.delete();
+    DeltaStore store = new DisabledDeltaStore();
+    SnapshotStore snapshots = new FileSnapshotStore(root);
+    WaveletSnapshotter snapshotter =
+        new WaveletSnapshotter(snapshots, 1, 0, new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            command.run();
+          }
+        });
+    LocalWaveletContainerImpl wavelet =
+        new LocalWaveletContainerImpl(waveletName, store, snapshotter, null);
+    wavelet.submitRequest(waveletName, signed(addParticipantDelta));
+    // Submitted at version 0, so transformed against the delta above.
+    wavelet.submitRequest(waveletName, signed(createBlipDelta("b+1", version0)));
+    wavelet.submitRequest(waveletName,
+        signed(createBlipDelta("b+2", wavelet.getCurrentVersion())));
+    VersionedSnapshot snapshot = snapshots.read(waveletName);
+    assertEquals(wavelet.getCurrentVersion(), snapshot.version);
+    List<ByteString> deltas = Lists.newArrayList();
+    for (ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta : wavelet.requestHistory(
+        serialize(version0), serialize(wavelet.getCurrentVersion()))) {
+      deltas.add(appliedDelta.getByteString());
+    }
+
+    LocalWaveletContainerImpl restored = new LocalWaveletContainerImpl(waveletName, store, null);
+    restored.restoreHistory(deltas, snapshot);
+    assertEquals(wavelet.getCurrentVersion(), restored.getCurrentVersion());
+    assertEquals(wavelet.requestTransformedHistory(serialize(version0),
+        serialize(wavelet.getCurrentVersion())), restored.requestTransformedHistory(
+        serialize(version0), serialize(restored.getCurrentVersion())));
+
+    // A delta submitted before the snapshot is transformed as before.
+    ProtocolSignedDelta late = signed(createBlipDelta("b+3", version0));
+    assertEquals(wavelet.submitRequest(waveletName, late).getDelta(),
+        restored.submitRequest(waveletName, late).getDelta());
+    deleteRecursively(root);
+  }
+
+  private static ProtocolSignedDelta signed(ProtocolWaveletDelta delta) {
+    return ProtocolSignedDelta.newBuilder()
+        .addSignature(fakeSignature1)
+        .setDelta(delta.toByteString())
+        .build();
+  }
+
+  private static ProtocolWaveletDelta createBlipDelta(String blipId, HashedVersion version) {
+    return WaveletOperationSerializer.serialize(new WaveletDelta(author, ImmutableList.of(
+        new WaveletDocumentOperation(blipId, new DocOpBuilder().build()))), version);
+  }
+
+  public void testLocalWaveletIsPersistedOnceDeltasAreDurable() throws Exception {
+    final List<DeltaStore.AppendCallback> pending = Lists.newArrayList();
+    DeltaStore store = new DisabledDeltaStore() {
+      @Override
+      public void append(WaveletName name, long versionAppliedAt, ByteString appliedDelta,
+          AppendCallback callback) {
+        pending.add(callback);
+      }
+    };
+    LocalWaveletContainerImpl wavelet = new LocalWaveletContainerImpl(waveletName, store, null);
+    assertTrue(wavelet.isPersisted());
+
+    wavelet.submitRequest(waveletName, ProtocolSignedDelta.newBuilder()
+        .addSignature(fakeSignature1)
+        .setDelta(addParticipantDelta.toByteString())
+        .build());
+    assertFalse(wavelet.isPersisted());
+
+    pending.get(0).onCommitted();
+    assertTrue(wavelet.isPersisted());
+    assertFalse(remoteWavelet.isPersisted());
+  }
+
   // Utilities
 
   /**
@@ -286,4 +492,14 @@ public class WaveletContainerTest extends TestCase {
     }
     assertEquals(with.getParticipants(), participants);
   }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
 }
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import static org.waveprotocol.wave.examples.fedone.common.WaveletOperationSerializer.serialize;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.NoOp;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures submit throughput across many distinct wavelets as the number of
+ * submitting threads grows, looking wavelets up through a
+ * {@link WaveletRegistry} and, for comparison, through a map guarded by a
+ * single global lock as the wave server used to.
+ *
+ * Not a test; run it with {@code main}, optionally passing the number of
+ * wavelets and the duration of each run in milliseconds.
+ */
+public class WaveletRegistryBenchmark {
+
+  private static final ParticipantId AUTHOR = new ParticipantId("bench@example.com");
+  private static final ProtocolSignature SIGNATURE = ProtocolSignature.newBuilder()
+      .setSignatureBytes(ByteString.EMPTY)
+      .setSignerId(ByteString.EMPTY)
+      .setSignatureAlgorithm(ProtocolSignature.SignatureAlgorithm.SHA1_RSA)
+      .build();
+  private static final WaveletDelta DELTA =
+      new WaveletDelta(AUTHOR, ImmutableList.<WaveletOperation>of(NoOp.INSTANCE));
+
+  /** How submitting threads find the container of a wavelet. */
+  private interface Lookup {
+    WaveletContainer get(WaveletName waveletName);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int waveletCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    long durationMs = (args.length > 1) ? Long.parseLong(args[1]) : 2000;
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+
+    final WaveletName[] names = new WaveletName[waveletCount];
+    final WaveletRegistry registry = new WaveletRegistry();
+    final Map<WaveletName, WaveletContainer> locked = Maps.newHashMap();
+    for (int i = 0; i < waveletCount; i++) {
+      names[i] = WaveletName.of("example.com!w+" + i, "example.com!conv+root");
+      WaveletContainer wc = new LocalWaveletContainerImpl(names[i]);
+      registry.put(names[i], wc);
+      locked.put(names[i], wc);
+    }
+
+    Lookup concurrent = new Lookup() {
+      @Override
+      public WaveletContainer get(WaveletName waveletName) {
+        return registry.get(waveletName);
+      }
+    };
+    Lookup global = new Lookup() {
+      @Override
+      public WaveletContainer get(WaveletName waveletName) {
+        synchronized (locked) {
+          return locked.get(waveletName);
+        }
+      }
+    };
+
+    // Warm up.
+    run(concurrent, names, maxThreads, durationMs);
+    run(global, names, maxThreads, durationMs);
+
+    System.out.println(waveletCount + " wavelets, " + durationMs + "ms per run");
+    System.out.println("threads\tregistry submits/s\tglobal lock submits/s");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      System.out.println(threads + "\t" + run(concurrent, names, threads, durationMs) + "\t"
+          + run(global, names, threads, durationMs));
+    }
+  }
+
+  /**
+   * Submits deltas to random wavelets from a number of threads.
+   *
+   * @return the number of submits per second
+   */
+  private static long run(final Lookup lookup, final WaveletName[] names, int threadCount,
+      final long durationMs) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicLong submits = new AtomicLong();
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final Random random = new Random(i);
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          long count = 0;
+          long end = System.currentTimeMillis() + durationMs;
+          while (System.currentTimeMillis() < end) {
+            WaveletName name = names[random.nextInt(names.length)];
+            WaveletContainer wc = lookup.get(name);
+            // As in WaveServerImpl.submitDelta.
+            synchronized (wc) {
+              submit((LocalWaveletContainer) wc, name);
+            }
+            count++;
+          }
+          submits.addAndGet(count);
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return submits.get() * 1000 / durationMs;
+  }
+
+  private static void submit(LocalWaveletContainer wc, WaveletName name) {
+    try {
+      wc.submitRequest(name, ProtocolSignedDelta.newBuilder()
+          .addSignature(SIGNATURE)
+          .setDelta(serialize(DELTA, wc.getCurrentVersion()).toByteString())
+          .build());
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
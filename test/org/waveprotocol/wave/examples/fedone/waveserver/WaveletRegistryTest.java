@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link WaveletRegistry}.
+ */
+public class WaveletRegistryTest extends TestCase {
+  private static final WaveletName A = WaveletName.of("example.com!w+a", "example.com!conv+root");
+  private static final WaveletName A2 = WaveletName.of("example.com!w+a", "example.com!user+x");
+  private static final WaveletName B = WaveletName.of("example.com!w+b", "example.com!conv+root");
+
+  private WaveletRegistry registry;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    registry = new WaveletRegistry();
+  }
+
+  public void testPutIfAbsentKeepsFirstContainer() {
+    WaveletContainer first = new LocalWaveletContainerImpl(A);
+    WaveletContainer second = new LocalWaveletContainerImpl(A);
+    assertNull(registry.get(A));
+    assertNull(registry.putIfAbsent(A, first));
+    assertSame(first, registry.putIfAbsent(A, second));
+    assertSame(first, registry.get(A));
+    assertNull(registry.get(A2));
+  }
+
+  public void testRemoveOnlyRemovesGivenContainer() {
+    WaveletContainer first = new LocalWaveletContainerImpl(A);
+    WaveletContainer other = new LocalWaveletContainerImpl(A);
+    registry.put(A, first);
+    registry.put(A2, new LocalWaveletContainerImpl(A2));
+    registry.put(B, new LocalWaveletContainerImpl(B));
+
+    assertFalse(registry.remove(A, other));
+    assertSame(first, registry.get(A));
+    assertTrue(registry.remove(A, first));
+    assertNull(registry.get(A));
+    assertEquals(ImmutableSet.of(A2, B), Sets.newHashSet(registry.getWaveletNames()));
+  }
+
+  public void testConcurrentCreationAddsOneContainer() throws Exception {
+    final int threadCount = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger added = new AtomicInteger();
+    final Set<WaveletContainer> seen = Collections.newSetFromMap(
+        new ConcurrentHashMap<WaveletContainer, Boolean>());
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          WaveletContainer wc = new LocalWaveletContainerImpl(A);
+          WaveletContainer existing = registry.putIfAbsent(A, wc);
+          if (existing == null) {
+            added.incrementAndGet();
+            existing = wc;
+          }
+          seen.add(existing);
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, added.get());
+    assertEquals(ImmutableSet.of(registry.get(A)), seen);
+  }
+}
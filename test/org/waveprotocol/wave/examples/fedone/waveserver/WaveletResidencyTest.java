@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.examples.fedone.waveserver;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Tests for {@link WaveletResidency}.
+ */
+public class WaveletResidencyTest extends TestCase {
+  private static final WaveletName A = WaveletName.of("example.com!w+a", "example.com!conv+root");
+  private static final WaveletName B = WaveletName.of("example.com!w+b", "example.com!conv+root");
+  private static final WaveletName C = WaveletName.of("example.com!w+c", "example.com!conv+root");
+
+  public void testUnlimitedResidencyNeverEvicts() {
+    WaveletResidency residency = new WaveletResidency(0);
+    residency.added(A);
+    residency.added(B);
+    assertFalse(residency.isLimited());
+    assertEquals(0, residency.getExcess());
+    assertTrue(residency.getEvictionCandidates().isEmpty());
+  }
+
+  public void testCandidatesAreLeastRecentlyUsedFirst() {
+    WaveletResidency residency = new WaveletResidency(2);
+    residency.added(A);
+    residency.added(B);
+    assertTrue(residency.getEvictionCandidates().isEmpty());
+
+    residency.added(C);
+    residency.hit(A);
+    assertEquals(1, residency.getExcess());
+    assertEquals(ImmutableList.of(B, C, A), residency.getEvictionCandidates());
+  }
+
+  public void testEvictionAndReloadAreCounted() {
+    WaveletResidency residency = new WaveletResidency(1);
+    residency.added(A);
+    residency.added(B);
+    residency.evicted(A);
+    assertTrue(residency.isEvicted(A));
+    assertEquals(ImmutableList.of(A), residency.getEvicted());
+    assertEquals(0, residency.getExcess());
+
+    residency.miss();
+    residency.reloaded(A, 3000000);
+    residency.hit(A);
+    assertFalse(residency.isEvicted(A));
+    assertEquals(1, residency.getEvictions());
+    assertEquals(1, residency.getReloads());
+    assertEquals(1, residency.getMisses());
+    assertEquals(1, residency.getHits());
+    assertEquals(3.0, residency.getMaxReloadMillis());
+    assertEquals(ImmutableList.of(B, A), residency.getEvictionCandidates());
+  }
+
+  public void testUsedWaveletsArePassedOverOnce() {
+    WaveletResidency residency = new WaveletResidency(1);
+    residency.added(A);
+    residency.added(B);
+    residency.hit(A);
+    assertEquals(ImmutableList.of(B, A), residency.getEvictionCandidates());
+    // A's use has been spent, only a new one counts.
+    assertEquals(ImmutableList.of(B, A), residency.getEvictionCandidates());
+    residency.hit(B);
+    assertEquals(ImmutableList.of(A, B), residency.getEvictionCandidates());
+  }
+
+  public void testUnloadedWaveletsAreEvictedButNotCounted() {
+    WaveletResidency residency = new WaveletResidency(1);
+    residency.added(A);
+    assertTrue(residency.isFull());
+    residency.unloaded(B);
+    assertTrue(residency.isEvicted(B));
+    assertEquals(0, residency.getEvictions());
+    assertEquals(1, residency.getResidentCount());
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.waveprotocol.wave.model.wave.data.impl;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.BufferedDocOp;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationBoundaryMapImpl;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuffer;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.OpComparators;
+import org.waveprotocol.wave.model.operation.OperationException;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link IndexedWaveletDataImpl}, checking it against the
+ * composition based {@link WaveletDataImpl}.
+ */
+public class IndexedWaveletDataImplTest extends TestCase {
+
+  private static final WaveId WAVE_ID = new WaveId("example.com", "hello");
+  private static final WaveletId WAVELET_ID = new WaveletId("example.com", "world");
+  private static final String DOC_ID = "doc";
+
+  private IndexedWaveletDataImpl wavelet;
+  private WaveletDataImpl reference;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    wavelet = new IndexedWaveletDataImpl(WAVE_ID, WAVELET_ID);
+    reference = new WaveletDataImpl(WAVE_ID, WAVELET_ID);
+  }
+
+  public void testSnapshotsMatchComposition() throws OperationException {
+    DocOpBuffer init = new DocOpBuffer();
+    init.elementStart("body", new AttributesImpl(ImmutableMap.of("a", "1")));
+    init.characters("hello");
+    init.elementEnd();
+    apply(DOC_ID, init.finish());
+
+    DocOpBuffer insert = new DocOpBuffer();
+    insert.retain(3);
+    insert.annotationBoundary(new AnnotationBoundaryMapImpl(
+        new String[0], new String[] {"style"}, new String[] {null}, new String[] {"bold"}));
+    insert.characters(" world");
+    insert.annotationBoundary(new AnnotationBoundaryMapImpl(
+        new String[] {"style"}, new String[0], new String[0], new String[0]));
+    insert.retain(4);
+    apply(DOC_ID, insert.finish());
+
+    DocOpBuffer delete = new DocOpBuffer();
+    delete.retain(1);
+    delete.deleteCharacters("h");
+    delete.retain(11);
+    apply(DOC_ID, delete.finish());
+
+    assertSameDocuments();
+  }
+
+  public void testEmptiedDocumentIsRemoved() throws OperationException {
+    DocOpBuffer insert = new DocOpBuffer();
+    insert.characters("hi");
+    apply(DOC_ID, insert.finish());
+    assertTrue(wavelet.getDocuments().containsKey(DOC_ID));
+
+    DocOpBuffer delete = new DocOpBuffer();
+    delete.deleteCharacters("hi");
+    apply(DOC_ID, delete.finish());
+    assertTrue(wavelet.getDocuments().isEmpty());
+    assertSameDocuments();
+  }
+
+  public void testInvalidOperationLeavesDocumentUnchanged() throws OperationException {
+    DocOpBuffer insert = new DocOpBuffer();
+    insert.characters("hi");
+    apply(DOC_ID, insert.finish());
+    BufferedDocOp before = wavelet.getDocuments().get(DOC_ID);
+
+    DocOpBuffer tooLong = new DocOpBuffer();
+    tooLong.retain(1);
+    tooLong.deleteCharacters("ix");
+    try {
+      wavelet.modifyDocument(DOC_ID, tooLong.finish());
+      fail("Expected an OperationException");
+    } catch (OperationException expected) {
+      // pass
+    }
+    assertTrue(OpComparators.SYNTACTIC_IDENTITY.equal(before,
+        wavelet.getDocuments().get(DOC_ID)));
+
+    DocOpBuffer append = new DocOpBuffer();
+    append.retain(2);
+    append.characters("!");
+    apply(DOC_ID, append.finish());
+    assertSameDocuments();
+  }
+
+  public void testSnapshotIsCachedUntilModified() throws OperationException {
+    DocOpBuffer insert = new DocOpBuffer();
+    insert.characters("hi");
+    apply(DOC_ID, insert.finish());
+    BufferedDocOp snapshot = wavelet.getDocuments().get(DOC_ID);
+    assertSame(snapshot, wavelet.getDocuments().get(DOC_ID));
+
+    DocOpBuffer append = new DocOpBuffer();
+    append.retain(2);
+    append.characters("!");
+    apply(DOC_ID, append.finish());
+    assertNotSame(snapshot, wavelet.getDocuments().get(DOC_ID));
+  }
+
+  public void testConcurrentReadersShareOneSnapshot() throws Exception {
+    DocOpBuffer insert = new DocOpBuffer();
+    insert.characters("hi");
+    apply(DOC_ID, insert.finish());
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final BufferedDocOp[] read = new BufferedDocOp[4];
+    Thread[] readers = new Thread[read.length];
+    for (int i = 0; i < readers.length; i++) {
+      final int index = i;
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          read[index] = wavelet.getDocuments().get(DOC_ID);
+        }
+      };
+      readers[i].start();
+    }
+    start.countDown();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    for (BufferedDocOp snapshot : read) {
+      assertSame(read[0], snapshot);
+    }
+    assertSame(read[0], wavelet.getDocuments().get(DOC_ID));
+    assertSameDocuments();
+  }
+
+  private void apply(String documentId, BufferedDocOp op) throws OperationException {
+    wavelet.modifyDocument(documentId, op);
+    reference.modifyDocument(documentId, op);
+  }
+
+  private void assertSameDocuments() {
+    assertEquals(reference.getDocuments().keySet(), wavelet.getDocuments().keySet());
+    for (String id : reference.getDocuments().keySet()) {
+      BufferedDocOp expected = reference.getDocuments().get(id);
+      BufferedDocOp actual = wavelet.getDocuments().get(id);
+      assertTrue("expected " + expected + " but was " + actual,
+          OpComparators.SYNTACTIC_IDENTITY.equal(expected, actual));
+    }
+  }
+}